@@ -0,0 +1,379 @@
+package game;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/*
+CLASS: Benchmarks
+DESCRIPTION: Micro- and macro-benchmarks for the hot paths: polygon
+             transforms and point-in-polygon, the pairwise collision test,
+             the VehicleStore move loop over 1M vehicles, one headless
+             Simulation tick at 100, 10k and 1M vehicles, and recording one
+             tick of 10k vehicles.
+             Each benchmark runs in a JVM of its own, so the JIT compiles
+             it from a clean profile, and runs warm-up iterations there,
+             then timed ones. It reports the average time per operation
+             with a 99.9% error bar, plus the bytes allocated per operation
+             on the benchmark thread. That matches JMH's "avgt" mode and
+             "gc.alloc.rate.norm" with one fork.
+USAGE: Compile together with the game sources and run:
+         javac -encoding UTF-8 -d out src/game/*.java bench/game/*.java
+         java -cp out game.Benchmarks [-o file] [--no-fork] [name-prefix ...]
+       With prefixes, only benchmarks whose name starts with one of them run
+       (e.g. "tick." or "polygon."). --no-fork runs them all in this JVM.
+       The forked JVMs get this one's JVM options (e.g. -Xmx).
+       bench/baseline.txt holds the checked-in results to compare a run
+       against.
+NOTE: The harness stands in for JMH, which the javac-only build has no way
+      to fetch or run. It covers the same pitfalls. Warm-up: 5 iterations
+      of half a second each, so the hot loops are compiled before any
+      timing (a tick.1M op takes about half a second, so the loops of its
+      first warm-up op are compiled on the stack). Dead code: every op
+      returns a value that depends on its work, and the results are summed
+      into 'sink', which is printed if it happens to equal 42. Ops are
+      timed in batches, so reading the clock isn't part of a
+      nanosecond-scale op. The tick benchmarks run the engine on one
+      thread, so the allocation figure covers all of its work.
+*/
+class Benchmarks {
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURE_ITERATIONS = 10;
+    private static final long ITERATION_NANOS = 500_000_000L;
+    // Ops between clock reads grow up to this share of an iteration.
+    private static final long BATCH_NANOS = ITERATION_NANOS / 100;
+
+    // One benchmark: setUp() once, then op() as many times as the harness likes.
+    interface Benchmark {
+        default void setUp() {}
+        // Returns something derived from the work, so the JIT can't drop it.
+        long op();
+        default void tearDown() {}
+    }
+
+    private static final class Entry {
+        final String name;
+        final Benchmark benchmark;
+        Entry(String name, Benchmark benchmark) {
+            this.name = name;
+            this.benchmark = benchmark;
+        }
+    }
+
+    private static long sink = 0; // every op's result ends up here
+
+    public static void main(String[] args) throws IOException {
+        Path outFile = null;
+        boolean fork = true;
+        List<String> prefixes = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length) outFile = Paths.get(args[++i]);
+            else if (args[i].equals("--no-fork")) fork = false;
+            else if (args[i].equals("--child") && i + 1 < args.length) {
+                child(args[++i]);
+                return;
+            } else prefixes.add(args[i]);
+        }
+
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "# java %s, %s %s, %d cpu(s), max heap %d MB",
+                System.getProperty("java.version"), System.getProperty("os.name"), System.getProperty("os.arch"),
+                Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() >> 20));
+        lines.add(String.format(Locale.ROOT, "%-32s %5s %14s %12s %6s %14s",
+                "Benchmark", "Cnt", "Score", "Error", "Units", "alloc B/op"));
+        System.out.println(lines.get(0));
+        System.out.println(lines.get(1));
+
+        for (Entry e : all()) {
+            if (!prefixes.isEmpty() && prefixes.stream().noneMatch(e.name::startsWith)) continue;
+            String line = fork ? forked(e.name) : run(e);
+            System.out.println(line);
+            lines.add(line);
+        }
+        if (outFile != null) Files.write(outFile, lines, StandardCharsets.UTF_8);
+        if (sink == 42) System.out.println(); // keeps 'sink' observable
+    }
+
+    // ---------------- HARNESS ----------------
+    // Runs the benchmark called 'name' in a new JVM and returns its line.
+    private static String forked(String name) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "game.Benchmarks", "--child", name));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String line;
+        try (BufferedReader output = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            line = output.readLine();
+        }
+        try {
+            if (process.waitFor() != 0 || line == null) throw new IOException("Benchmark " + name + " failed");
+        } catch (InterruptedException ex) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted running " + name, ex);
+        }
+        return line;
+    }
+
+    // The forked side: runs one benchmark and prints its line.
+    private static void child(String name) {
+        for (Entry e : all()) {
+            if (e.name.equals(name)) {
+                System.out.println(run(e));
+                if (sink == 42) System.out.println(); // keeps 'sink' observable
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No benchmark " + name);
+    }
+
+    private static String run(Entry e) {
+        Benchmark b = e.benchmark;
+        b.setUp();
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) iteration(b);
+        double[] nanosPerOp = new double[MEASURE_ITERATIONS];
+        double bytesPerOp = 0;
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            double[] result = iteration(b);
+            nanosPerOp[i] = result[0];
+            bytesPerOp += result[1] / MEASURE_ITERATIONS;
+        }
+        b.tearDown();
+
+        double mean = 0;
+        for (double v : nanosPerOp) mean += v / nanosPerOp.length;
+        double variance = 0;
+        for (double v : nanosPerOp) variance += (v - mean) * (v - mean) / (nanosPerOp.length - 1);
+        double error = 3.291 * Math.sqrt(variance / nanosPerOp.length); // 99.9%, normal approximation
+        String units = mean >= 1e6 ? "ms/op" : mean >= 1e3 ? "us/op" : "ns/op";
+        double scale = mean >= 1e6 ? 1e6 : mean >= 1e3 ? 1e3 : 1;
+        return String.format(Locale.ROOT, "%-32s %5d %14.3f %12s %6s %14.1f", e.name, MEASURE_ITERATIONS,
+                mean / scale, String.format(Locale.ROOT, "+- %.3f", error / scale), units, bytesPerOp);
+    }
+
+    // Runs ops for about ITERATION_NANOS (at least one); returns {ns/op, bytes/op}.
+    // The clock is read once per batch, and batches double while they take
+    // less than BATCH_NANOS.
+    private static double[] iteration(Benchmark b) {
+        long bytes0 = allocatedBytes();
+        long start = System.nanoTime(), ops = 0, elapsed = 0, batch = 1;
+        long acc = 0;
+        do {
+            long before = elapsed;
+            for (long k = 0; k < batch; k++) acc += b.op();
+            ops += batch;
+            elapsed = System.nanoTime() - start;
+            if (elapsed - before < BATCH_NANOS) batch *= 2;
+        } while (elapsed < ITERATION_NANOS);
+        long bytes = allocatedBytes() - bytes0;
+        sink += acc;
+        return new double[] {(double) elapsed / ops, (double) bytes / ops};
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+        }
+        return 0;
+    }
+
+    // ---------------- BENCHMARKS ----------------
+    private static List<Entry> all() {
+        List<Entry> list = new ArrayList<>();
+        list.add(new Entry("polygon.getPoints", new PolygonTransform(false)));
+        list.add(new Entry("polygon.transform", new PolygonTransform(true)));
+        list.add(new Entry("polygon.contains", new PolygonContains()));
+        list.add(new Entry("collision.checkIntersection.hit", new PairCollision(true)));
+        list.add(new Entry("collision.checkIntersection.miss", new PairCollision(false)));
+        list.add(new Entry("move.1M", new Move(1_000_000)));
+        list.add(new Entry("tick.100", new Tick(100)));
+        list.add(new Entry("tick.10k", new Tick(10_000)));
+        list.add(new Entry("tick.1M", new Tick(1_000_000)));
+        list.add(new Entry("record.10k", new Record(10_000)));
+        return list;
+    }
+
+    // A vehicle outline turned by a degree per op, so every op rebuilds the
+    // transform: through the allocating getPoints(), or the cached arrays.
+    private static final class PolygonTransform implements Benchmark {
+        private final boolean cached;
+        private final Polygon polygon = new Polygon(VehicleType.TRUCK.shape(), new Point(100, 100), 0);
+
+        PolygonTransform(boolean cached) { this.cached = cached; }
+
+        public long op() {
+            polygon.rotation = (polygon.rotation + 1) % 360;
+            if (cached) return Double.doubleToRawLongBits(polygon.worldXs()[1] + polygon.maxY());
+            Point[] points = polygon.getPoints();
+            return Double.doubleToRawLongBits(points[1].x);
+        }
+    }
+
+    // Point-in-polygon against a fixed pose, the point walking across it.
+    private static final class PolygonContains implements Benchmark {
+        private final Polygon polygon = new Polygon(VehicleType.TRUCK.shape(), new Point(100, 100), 30);
+        private int i = 0;
+
+        public long op() {
+            i = (i + 1) & 63;
+            return polygon.contains(95 + i * 0.7, 100 + (i & 15)) ? 1 : 0;
+        }
+    }
+
+    // The exact test on two vehicle views, overlapping or just apart, one of
+    // them turning so the cached vertices are rebuilt as in a live game.
+    private static final class PairCollision implements Benchmark {
+        private final TrafficElement a, b;
+
+        PairCollision(boolean hit) {
+            a = TrafficElement.create(VehicleType.CAR, new Point(100, 100), 0);
+            b = TrafficElement.create(VehicleType.TRUCK, new Point(hit ? 110 : 130, 95), 0);
+        }
+
+        public long op() {
+            a.rotation = (a.rotation + 1) % 360;
+            return TrafficElement.CollisionHandler.checkIntersection(a, b) ? 1 : 0;
+        }
+    }
+
+    // The store's move loop alone: every vehicle autonomous and driving,
+    // moved, wrapped at the world's edge and swapped in, as moveAll() does
+    // each tick for vehicles that don't follow lanes.
+    private static final class Move implements Benchmark {
+        private static final double WORLD = 10_000;
+        private final int vehicles;
+        private VehicleStore store;
+
+        Move(int vehicles) { this.vehicles = vehicles; }
+
+        public void setUp() {
+            store = new VehicleStore(vehicles);
+            VehicleType[] mix = VehicleType.values();
+            for (int i = 0; i < vehicles; i++) {
+                store.add(mix[i % mix.length], (i * 37) % WORLD, (i * 0.01) % WORLD, (i * 13) % 360, 40 + (i % 7) * 5,
+                        VehicleStore.AUTONOMOUS);
+            }
+        }
+
+        public long op() {
+            store.moveAll(Simulation.TICK_SECONDS, 0, 0, WORLD, WORLD);
+            return Double.doubleToRawLongBits(store.centerX(vehicles / 2));
+        }
+
+        public void tearDown() { store = null; }
+    }
+
+    /*
+    CLASS: Tick
+    DESCRIPTION: One Simulation tick over ring roads filled with lane-following
+                 traffic: rows of one-lane roads, each leaving the map on the
+                 right and coming back on the left, with a signalised junction
+                 half-way. Vehicles start 40 units apart (about 1000 per row)
+                 and settle into stop-and-go traffic at the lights; setUp()
+                 runs a few ticks first so one-off buffer growth isn't timed.
+    */
+    private static final class Tick implements Benchmark {
+        private static final int PER_ROW = 1000;
+        private static final double SPACING = 40, ROW_GAP = 20;
+        private static final int SETTLE_TICKS = 20;
+        private final int vehicles;
+        private Simulation sim;
+
+        Tick(int vehicles) { this.vehicles = vehicles; }
+
+        public void setUp() {
+            sim = null; // let the previous size go before building this one
+            int rows = (vehicles + PER_ROW - 1) / PER_ROW;
+            int perRow = Math.min(vehicles, PER_ROW);
+            double width = perRow * SPACING;
+            RoadNetwork net = new RoadNetwork();
+            int[] junctions = new int[rows];
+            for (int r = 0; r < rows; r++) {
+                double y = ROW_GAP * (r + 1);
+                int west = net.addNode(-40, y, 0);
+                junctions[r] = net.addNode(width / 2, y, 5);
+                int east = net.addNode(width + 40, y, 0);
+                net.addLane(west, junctions[r], 0, -8, 8, 60, 1800);
+                net.addLane(junctions[r], east, 0, -8, 8, 60, 1800);
+            }
+            Scenario.Builder b = new Scenario.Builder(net);
+            b.setWorld(width, ROW_GAP * (rows + 1));
+            for (int r = 0; r < rows; r++) b.addSignal(junctions[r], 200, 30, 20, (r * 37) % 250);
+            VehicleType[] mix = {VehicleType.CAR, VehicleType.CAR, VehicleType.CAR, VehicleType.TRUCK};
+            for (int i = 0; i < vehicles; i++) {
+                VehicleType t = mix[i & 3];
+                double cx = (i % PER_ROW) * SPACING + SPACING / 2, cy = ROW_GAP * (i / PER_ROW + 1);
+                b.addVehicle(t, cx - t.length / 2.0, cy - t.width / 2.0, 0, 40 + (i % 7) * 5);
+            }
+            sim = new Simulation(b.build(), false);
+            sim.setThreads(1);
+            // The first ticks grow the collision buffers as traffic bunches up.
+            for (int i = 0; i < SETTLE_TICKS; i++) sim.tick();
+        }
+
+        public long op() {
+            sim.tick();
+            return sim.getTick() + sim.getCandidatePairCount();
+        }
+
+        public void tearDown() {
+            sim.shutdown();
+            sim = null;
+        }
+    }
+
+    /*
+    CLASS: Record
+    DESCRIPTION: Recording one tick of the Tick benchmark's traffic with a
+                 TrajectoryRecorder. The recorder waits for a free buffer
+                 rather than dropping ticks, so this is the sustained cost
+                 of a frame: the copy on the calling thread, plus whatever
+                 compression and writing the background thread can't hide
+                 (on one core, all of it).
+    */
+    private static final class Record implements Benchmark {
+        private final Tick traffic;
+        private Path file;
+        private TrajectoryRecorder recorder;
+
+        Record(int vehicles) { traffic = new Tick(vehicles); }
+
+        public void setUp() {
+            traffic.setUp();
+            try {
+                file = Files.createTempFile("bench", ".strj");
+                recorder = new TrajectoryRecorder(file, traffic.sim.getNetwork().laneCount(), 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public long op() {
+            recorder.record(traffic.sim);
+            return recorder.recordedCount();
+        }
+
+        public void tearDown() {
+            try {
+                recorder.close();
+                Files.delete(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            traffic.tearDown();
+        }
+    }
+}
@@ -5,7 +5,8 @@ import java.awt.*;
 // AUTHORS: Zishan Vahora and Mostafa Elamin
 // DATE: October 2025
 //CLASS: Ambulance
-//DESCRIPTION: A fast emergency vehicle that moves automatically.
+//DESCRIPTION: A fast emergency vehicle that moves automatically. Signals
+//             turn green for it and traffic makes way (see Preemption).
 class Ambulance extends TrafficElement {
     
     public Ambulance(Point[] inShape, Point inPosition, double inRotation) {
@@ -13,20 +14,13 @@ class Ambulance extends TrafficElement {
         this.stepSize = 5.0; // Fast speed
     }
 
+    @Override
+    public VehicleType getType() { return VehicleType.AMBULANCE; }
+
     @Override
     public void paint(Graphics brush) {
         brush.setColor(Color.RED);
-        // Convert Point[] (double coords) to int[] for drawing methods
-        Point[] points = getPoints();
-        int[] xCoords = new int[points.length];
-        int[] yCoords = new int[points.length];
-        
-        for (int i = 0; i < points.length; i++) {
-            xCoords[i] = (int) points[i].x;
-            yCoords[i] = (int) points[i].y;
-        }
-        
-        brush.fillPolygon(xCoords, yCoords, points.length);
+        fill(brush); // reuses the polygon's screen vertices
         
         // Draw a white cross
         brush.setColor(Color.WHITE);
@@ -35,6 +29,7 @@ class Ambulance extends TrafficElement {
     }
     
     // automatic Movement, simple continuous movement
+    // Only used when unbound; a bound ambulance is moved by the VehicleStore.
     @Override
     public void move() {
         double radians = Math.toRadians(rotation);
@@ -0,0 +1,127 @@
+package game;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.function.Consumer;
+
+/*
+CLASS: BackgroundLayer
+DESCRIPTION: The part of a scene that doesn't move (ground, roads, lane
+             markings, buildings), painted once into an offscreen image and
+             copied under every frame instead of being drawn again. The
+             image is a VolatileImage when the screen offers one, so the
+             copy is a video-memory blit; it is repainted only when the
+             view's size changes, invalidate() is called (the map or the
+             viewport moved) or the graphics card dropped its contents.
+             It also does dirty-region bookkeeping: whatever a frame draws
+             on top is marked, and the next frame copies the background
+             back over just those rectangles, unless they add up to more
+             than FULL_COPY_SHARE of the view, where one whole copy is
+             cheaper.
+USAGE: layer = new BackgroundLayer(this::drawScene);
+       each frame, on a buffer that keeps its pixels between frames:
+         layer.restore(component, brush);     // background under last frame's marks
+         draw the moving things, layer.mark(x0, y0, x1, y1) around each
+       layer.markAll() when something was drawn over the whole view.
+NOTE: Only for use from the painting thread.
+*/
+class BackgroundLayer {
+    static final double FULL_COPY_SHARE = 0.4;
+
+    private final Consumer<Graphics> painter;
+    private Image image;             // VolatileImage, or a BufferedImage without one
+    private int width = -1, height = -1;
+    private boolean stale = true;     // repaint the image before using it
+    private boolean coverAll = true;  // copy the whole image next restore
+
+    // Rectangles drawn over the frame since the last restore: x0, y0, x1, y1 each.
+    private final IntList marks = new IntList(256);
+    private long markedArea = 0;
+
+    public BackgroundLayer(Consumer<Graphics> painter) {
+        this.painter = painter;
+    }
+
+    // The scene under the background changed: paint it again next frame.
+    public void invalidate() {
+        stale = true;
+    }
+
+    // Everything drawn this frame has to be covered by the next restore.
+    public void markAll() {
+        coverAll = true;
+    }
+
+    // A rectangle (inclusive of x0/y0, exclusive of x1/y1) drawn over this frame.
+    public void mark(int x0, int y0, int x1, int y1) {
+        if (coverAll) return;
+        x0 = Math.max(0, x0);
+        y0 = Math.max(0, y0);
+        x1 = Math.min(width, x1);
+        y1 = Math.min(height, y1);
+        if (x0 >= x1 || y0 >= y1) return;
+        marks.add(x0);
+        marks.add(y0);
+        marks.add(x1);
+        marks.add(y1);
+        markedArea += (long) (x1 - x0) * (y1 - y0);
+    }
+
+    /*
+    METHOD: restore
+    DESCRIPTION: Brings 'brush' (which still holds the last frame) back to
+                 the bare background: all of it when the image was just
+                 (re)painted or too much was marked, else only the
+                 rectangles marked last frame.
+    */
+    public void restore(Component view, Graphics brush) {
+        int w = view.getWidth(), h = view.getHeight();
+        if (w <= 0 || h <= 0) return;
+        if (ensureImage(view, w, h)) coverAll = true;
+
+        if (coverAll || markedArea > FULL_COPY_SHARE * w * h) {
+            brush.drawImage(image, 0, 0, null);
+        } else {
+            for (int i = 0; i < marks.size(); i += 4) {
+                int x0 = marks.get(i), y0 = marks.get(i + 1), x1 = marks.get(i + 2), y1 = marks.get(i + 3);
+                brush.drawImage(image, x0, y0, x1, y1, x0, y0, x1, y1, null);
+            }
+        }
+        if (image instanceof VolatileImage && ((VolatileImage) image).contentsLost()) stale = true;
+
+        // Covered; this frame's marks start afresh.
+        marks.clear();
+        markedArea = 0;
+        coverAll = false;
+    }
+
+    // Makes the image current for a w x h view; true if it was repainted.
+    private boolean ensureImage(Component view, int w, int h) {
+        if (image == null || w != width || h != height) {
+            VolatileImage v = view.getGraphicsConfiguration() == null ? null : view.createVolatileImage(w, h);
+            image = v != null ? v : new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            width = w;
+            height = h;
+            stale = true;
+        }
+        if (image instanceof VolatileImage) {
+            VolatileImage v = (VolatileImage) image;
+            int state = v.validate(view.getGraphicsConfiguration());
+            if (state == VolatileImage.IMAGE_INCOMPATIBLE) {
+                image = null;
+                return ensureImage(view, w, h);
+            }
+            if (state == VolatileImage.IMAGE_RESTORED) stale = true;
+        }
+        if (!stale) return false;
+        Graphics g = image.getGraphics();
+        try {
+            painter.accept(g);
+        } finally {
+            g.dispose();
+        }
+        stale = false;
+        return true;
+    }
+}
@@ -0,0 +1,401 @@
+package game;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+CLASS: BatchRunner
+DESCRIPTION: Runs a scenario headlessly, as fast as the machine allows, for
+             a set number of simulated hours, over many seeded replications
+             and parameter settings at once. Every run is its own
+             Simulation on one pool thread, so runs share nothing and the
+             pool keeps every core busy. It writes one CSV row per run and
+             prints the mean and a 95% interval of the main results for
+             each parameter setting.
+USAGE: java game.BatchRunner <scenario.bin|scenario.txt> [options]
+         --hours H          simulated hours per run (default 1)
+         --replications N   seeded runs per setting (default 10)
+         --seed S           seed of the first replication (default: the
+                            scenario's); replication r uses S + r
+         --threads T        runs at the same time (default: every core)
+         --green G,G,...    sweep every signal's green time (ticks)
+         --demand F,F,...   sweep a factor on every demand's rate
+         -o results.csv     write every run's results here
+         --record DIR       record each run's trajectories into DIR (see
+                            TrajectoryRecorder), one file per run
+         --warmup H         simulate H hours once per seed, then start
+                            every setting from that warm state
+         --checkpoint DIR   checkpoint each run into DIR every simulated
+                            hour and at its end; a run whose checkpoint is
+                            there resumes from it
+         --metrics S        log each run's tick timings every S seconds
+                            (see TickMetrics)
+         --preemption on|off  whether emergency vehicles preempt signals and
+                            get traffic to make way (default on)
+         --meso all|X0,Y0,X1,Y1  run lanes as queues (see QueueLanes):
+                            every lane, or every lane except those
+                            into a junction inside the box, which stay
+                            microscopic
+       Sweeps combine, so "--green 100,120 --demand 1,1.5" is four settings.
+NOTE: A run stops early if the scenario has a player car and the game is
+      lost. Each Simulation keeps its default single tick thread;
+      parallelism comes from running whole replications side by side,
+      which scales better than splitting one small run.
+      Results only count what happens after the warm-up. A batch killed
+      part way can be started again with the same options and
+      --checkpoint: finished runs come straight back from their last
+      checkpoint and the others carry on from theirs (their recordings,
+      if any, start again at that point).
+      While it runs, each run's TickMetrics are on JMX under its name.
+      Every run routes on one shared Router, so route tables are searched
+      once per batch rather than once per run.
+      Emergency vehicles' trips are also counted on their own, as response
+      times: compare a batch with --preemption off against one with it on.
+      Vehicles inside queue lanes count as on the map.
+*/
+class BatchRunner {
+    private static final String USAGE = "usage: java game.BatchRunner <scenario.bin|scenario.txt> [--hours H] "
+            + "[--replications N] [--seed S] [--threads T] [--green G,...] [--demand F,...] [-o results.csv] "
+            + "[--record DIR] [--warmup H] [--checkpoint DIR] [--metrics S] [--preemption on|off] "
+            + "[--meso all|X0,Y0,X1,Y1]";
+    // How often (in ticks) a run is checkpointed: every simulated hour.
+    private static final long CHECKPOINT_TICKS = Math.round(3600 / Simulation.TICK_SECONDS);
+
+    private final Scenario scenario;
+    private final long ticks;
+    private final Path recordDir, checkpointDir;
+    private final Checkpoint.Writer checkpoints; // null without --checkpoint
+    private final Map<Long, Checkpoint> warm = new HashMap<>(); // by seed, after --warmup
+    private final double metricsSeconds; // 0: no log lines
+    private final Router router;         // shared by every run
+    private final boolean preempting;    // emergency vehicles get priority
+    private final boolean[] queued;      // lanes run as queues; null without --meso
+
+    private BatchRunner(Scenario scenario, long ticks, Path recordDir, Path checkpointDir, double metricsSeconds,
+                        boolean preempting, String meso) {
+        this.scenario = scenario;
+        this.preempting = preempting;
+        this.ticks = ticks;
+        this.recordDir = recordDir;
+        this.checkpointDir = checkpointDir;
+        this.metricsSeconds = metricsSeconds;
+        RoadNetwork network = scenario.buildNetwork();
+        this.router = new Router(network);
+        this.queued = meso == null ? null : queueMask(network, meso);
+        this.checkpoints = checkpointDir == null ? null : new Checkpoint.Writer();
+    }
+
+    // Inner Class: Run (Static Nested Class)
+    // One replication: its settings going in and its results coming out.
+    static class Run {
+        final int green;        // -1 when the scenario's own times are used
+        final double demand;
+        final long seed;
+        long ticks, wallNanos;
+        long ticksRun;          // ticks this process simulated (fewer when resumed)
+        long resumedAt = -1;    // tick of the checkpoint it resumed from
+        long spawned, trips, tripTicks, onMap, waiting, collisionPairs;
+        long emergencyTrips, emergencyTripTicks;
+        boolean lost;
+
+        Run(int green, double demand, long seed) {
+            this.green = green;
+            this.demand = demand;
+            this.seed = seed;
+        }
+
+        double meanTripSeconds() { return trips == 0 ? Double.NaN : tripTicks * Simulation.TICK_SECONDS / trips; }
+        double meanEmergencySeconds() {
+            return emergencyTrips == 0 ? Double.NaN : emergencyTripTicks * Simulation.TICK_SECONDS / emergencyTrips;
+        }
+        double tripsPerHour() { return ticks == 0 ? 0 : trips * 3600 / (ticks * Simulation.TICK_SECONDS); }
+        double speedup() { return ticksRun * Simulation.TICK_SECONDS / (wallNanos / 1e9); }
+        String name() {
+            return (green < 0 ? "" : "green" + green + "-") + (demand == 1 ? "" : "demand" + demand + "-")
+                    + "seed" + seed;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) usage(null);
+        Path scenarioFile = Paths.get(args[0]);
+        double hours = 1;
+        int replications = 10, threads = Runtime.getRuntime().availableProcessors();
+        Long firstSeed = null;
+        int[] greens = {-1};
+        double[] demands = {1};
+        Path outFile = null, recordDir = null, checkpointDir = null;
+        double warmupHours = 0, metricsSeconds = 0;
+        boolean preempting = true;
+        String meso = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                String value = i + 1 < args.length ? args[i + 1] : null;
+                if (value == null) usage("missing value for " + args[i]);
+                switch (args[i++]) {
+                    case "--hours": hours = Double.parseDouble(value); break;
+                    case "--replications": replications = Integer.parseInt(value); break;
+                    case "--seed": firstSeed = Long.parseLong(value); break;
+                    case "--threads": threads = Integer.parseInt(value); break;
+                    case "--green": greens = parseInts(value); break;
+                    case "--demand": demands = parseDoubles(value); break;
+                    case "-o": outFile = Paths.get(value); break;
+                    case "--record": recordDir = Paths.get(value); break;
+                    case "--warmup": warmupHours = Double.parseDouble(value); break;
+                    case "--checkpoint": checkpointDir = Paths.get(value); break;
+                    case "--metrics": metricsSeconds = Double.parseDouble(value); break;
+                    case "--preemption":
+                        if (!value.equals("on") && !value.equals("off")) usage("--preemption takes on or off");
+                        preempting = value.equals("on");
+                        break;
+                    case "--meso":
+                        if (!value.equals("all") && parseDoubles(value).length != 4) {
+                            usage("--meso takes all or a box X0,Y0,X1,Y1");
+                        }
+                        meso = value;
+                        break;
+                    default: usage("unknown option " + args[i - 1]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            usage("bad number: " + e.getMessage());
+        }
+        if (hours <= 0 || replications < 1 || threads < 1) usage("hours, replications and threads must be positive");
+        if (warmupHours < 0 || metricsSeconds < 0) usage("warm-up and metrics interval can't be negative");
+
+        Scenario scenario = scenarioFile.toString().endsWith(".txt")
+                ? ScenarioConverter.parse(scenarioFile) : Scenario.map(scenarioFile);
+        long seed0 = firstSeed != null ? firstSeed : scenario.seed();
+        long ticks = Math.round(hours * 3600 / Simulation.TICK_SECONDS);
+        long warmupTicks = Math.round(warmupHours * 3600 / Simulation.TICK_SECONDS);
+        if (recordDir != null) Files.createDirectories(recordDir);
+        if (checkpointDir != null) Files.createDirectories(checkpointDir);
+        BatchRunner batch = new BatchRunner(scenario, ticks, recordDir, checkpointDir, metricsSeconds, preempting, meso);
+
+        List<Run> runs = new ArrayList<>();
+        for (int green : greens) {
+            for (double demand : demands) {
+                for (int r = 0; r < replications; r++) runs.add(new Run(green, demand, seed0 + r));
+            }
+        }
+        System.out.printf(Locale.ROOT, "%d runs of %.2f simulated hours (%d ticks) on %d threads%n",
+                runs.size(), hours, ticks, threads);
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            if (warmupTicks > 0) {
+                List<Future<Checkpoint>> warming = new ArrayList<>();
+                for (int r = 0; r < replications; r++) {
+                    long seed = seed0 + r;
+                    warming.add(pool.submit(() -> batch.warmUp(seed, warmupTicks)));
+                }
+                for (int r = 0; r < replications; r++) batch.warm.put(seed0 + r, warming.get(r).get());
+                System.err.println("warmed up " + replications + " seeds");
+            }
+            List<Future<Run>> pending = new ArrayList<>();
+            for (Run run : runs) pending.add(pool.submit(() -> batch.execute(run)));
+            for (int i = 0; i < pending.size(); i++) {
+                pending.get(i).get();
+                System.err.print("\rfinished " + (i + 1) + "/" + pending.size());
+            }
+            System.err.println();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("A run failed", e.getCause());
+        } finally {
+            pool.shutdown();
+            if (batch.checkpoints != null) batch.checkpoints.close();
+        }
+        double wall = (System.nanoTime() - start) / 1e9;
+        long ticksRun = 0;
+        for (Run r : runs) ticksRun += r.ticksRun;
+
+        if (outFile != null) Files.write(outFile, csv(runs), StandardCharsets.UTF_8);
+        printSummary(runs, greens, demands);
+        System.out.printf(Locale.ROOT, "%.1f s wall, %.0fx real time overall%n",
+                wall, ticksRun * Simulation.TICK_SECONDS / wall);
+    }
+
+    // ---------------- RUNNING ----------------
+    private static boolean[] queueMask(RoadNetwork network, String meso) {
+        if (meso.equals("all")) return QueueLanes.all(network);
+        double[] box = parseDoubles(meso);
+        return QueueLanes.outside(network, box[0], box[1], box[2], box[3]);
+    }
+
+    // A new Simulation of 'scenario' set up the way every run of the batch is.
+    private Simulation create(Scenario scenario) {
+        Simulation sim = new Simulation(scenario, false, router);
+        sim.setPreemption(preempting);
+        if (queued != null) sim.setQueueLanes(queued);
+        return sim;
+    }
+
+    // The scenario as run 'run' sees it.
+    private Scenario variant(Run run) {
+        Scenario s = scenario.withSeed(run.seed);
+        if (run.green >= 0) s = s.withGreen(run.green);
+        if (run.demand != 1) s = s.withDemandScale(run.demand);
+        return s;
+    }
+
+    // Runs the base scenario with 'seed' for the warm-up and keeps its state.
+    Checkpoint warmUp(long seed, long warmupTicks) {
+        Simulation sim = create(scenario.withSeed(seed));
+        try {
+            for (long t = 0; t < warmupTicks && !sim.isGameOver(); t++) sim.tick();
+            return sim.checkpoint();
+        } finally {
+            sim.shutdown();
+        }
+    }
+
+    /*
+    METHOD: execute
+    DESCRIPTION: Simulates one run for 'ticks' ticks, from its seed's warm
+                 state if there is one, or from its own checkpoint if a
+                 previous batch left one, and fills in its results (counted
+                 from the end of the warm-up). Records and checkpoints it
+                 when asked to.
+    */
+    Run execute(Run run) throws IOException {
+        Simulation sim = create(variant(run));
+        Checkpoint from = warm.get(run.seed);
+        if (from != null) sim.restore(from);
+        long first = sim.getTick(), end = first + ticks;
+        long trips0 = sim.getTripsCompleted(), tripTicks0 = sim.getTripTicks();
+        long emergencyTrips0 = sim.getEmergencyTripsCompleted(), emergencyTicks0 = sim.getEmergencyTripTicks();
+        long collisions0 = sim.getCollisionTotal(), spawned0 = sim.getDemand().spawnedCount();
+        Path checkpointFile = checkpointDir == null ? null : checkpointDir.resolve(run.name() + ".ckpt");
+        if (checkpointFile != null && Files.exists(checkpointFile)) {
+            sim.restore(Checkpoint.read(checkpointFile));
+            run.resumedAt = sim.getTick();
+        }
+        TrajectoryRecorder recorder = recordDir == null ? null : new TrajectoryRecorder(
+                recordDir.resolve(run.name() + ".strj"), sim.getNetwork().laneCount(), 1);
+        long start = System.nanoTime(), resumed = sim.getTick();
+        sim.getMetrics().register(run.name());
+        if (metricsSeconds > 0) sim.getMetrics().startLog(run.name(), metricsSeconds);
+        try {
+            if (recorder != null) recorder.record(sim);
+            while (sim.getTick() < end && !sim.isGameOver()) {
+                sim.tick();
+                if (recorder != null) recorder.record(sim);
+                if (checkpoints != null && (sim.getTick() - first) % CHECKPOINT_TICKS == 0 && sim.getTick() < end) {
+                    checkpoints.submit(sim.checkpoint(), checkpointFile);
+                }
+            }
+            if (checkpoints != null && sim.getTick() > resumed) checkpoints.submit(sim.checkpoint(), checkpointFile);
+        } finally {
+            sim.getMetrics().stopLog();
+            sim.getMetrics().unregister();
+            sim.shutdown();
+            if (recorder != null) recorder.close();
+        }
+        run.wallNanos = System.nanoTime() - start;
+        run.ticksRun = sim.getTick() - resumed;
+        run.ticks = sim.getTick() - first;
+        run.lost = sim.isGameOver();
+        run.spawned = sim.getDemand().spawnedCount() - spawned0;
+        run.trips = sim.getTripsCompleted() - trips0;
+        run.tripTicks = sim.getTripTicks() - tripTicks0;
+        run.emergencyTrips = sim.getEmergencyTripsCompleted() - emergencyTrips0;
+        run.emergencyTripTicks = sim.getEmergencyTripTicks() - emergencyTicks0;
+        run.collisionPairs = sim.getCollisionTotal() - collisions0;
+        run.onMap = sim.getStore().size() + sim.getQueues().size();
+        for (int d = 0; d < sim.getScenario().demandCount(); d++) run.waiting += sim.getDemand().waitingCount(d);
+        return run;
+    }
+
+    // ---------------- OUTPUT ----------------
+    private static List<String> csv(List<Run> runs) {
+        List<String> lines = new ArrayList<>();
+        lines.add("green,demand,seed,ticks,wall_ms,speedup,spawned,trips,mean_trip_s,trips_per_hour,"
+                + "emergency_trips,mean_emergency_trip_s,on_map,waiting,collision_pairs,lost,resumed_at");
+        for (Run r : runs) {
+            lines.add(String.format(Locale.ROOT, "%d,%s,%d,%d,%.1f,%.1f,%d,%d,%.2f,%.1f,%d,%.2f,%d,%d,%d,%b,%d",
+                    r.green, r.demand, r.seed, r.ticks, r.wallNanos / 1e6, r.speedup(), r.spawned, r.trips,
+                    r.meanTripSeconds(), r.tripsPerHour(), r.emergencyTrips, r.meanEmergencySeconds(),
+                    r.onMap, r.waiting, r.collisionPairs, r.lost, r.resumedAt));
+        }
+        return lines;
+    }
+
+    // Mean and 95% interval (normal approximation) of each setting's results.
+    private static void printSummary(List<Run> runs, int[] greens, double[] demands) {
+        System.out.printf(Locale.ROOT, "%6s %7s %4s %22s %22s %22s %10s %8s%n",
+                "green", "demand", "n", "mean trip (s)", "trips/hour", "emergency trip (s)", "waiting", "speedup");
+        for (int green : greens) {
+            for (double demand : demands) {
+                List<Run> group = new ArrayList<>();
+                for (Run r : runs) {
+                    if (r.green == green && r.demand == demand) group.add(r);
+                }
+                double[] trip = new double[group.size()], rate = new double[group.size()];
+                double[] emergency = new double[group.size()];
+                double waiting = 0, speedup = 0;
+                for (int i = 0; i < group.size(); i++) {
+                    trip[i] = group.get(i).meanTripSeconds();
+                    rate[i] = group.get(i).tripsPerHour();
+                    emergency[i] = group.get(i).meanEmergencySeconds();
+                    waiting += (double) group.get(i).waiting / group.size();
+                    speedup += group.get(i).speedup() / group.size();
+                }
+                System.out.printf(Locale.ROOT, "%6s %7s %4d %22s %22s %22s %10.1f %7.0fx%n",
+                        green < 0 ? "-" : Integer.toString(green), demand, group.size(),
+                        interval(trip), interval(rate), interval(emergency), waiting, speedup);
+            }
+        }
+    }
+
+    private static String interval(double[] values) {
+        double mean = 0;
+        int n = 0;
+        for (double v : values) {
+            if (Double.isNaN(v)) continue;
+            mean += v;
+            n++;
+        }
+        if (n == 0) return "-";
+        mean /= n;
+        if (n == 1) return String.format(Locale.ROOT, "%.2f", mean);
+        double variance = 0;
+        for (double v : values) {
+            if (!Double.isNaN(v)) variance += (v - mean) * (v - mean) / (n - 1);
+        }
+        return String.format(Locale.ROOT, "%.2f +- %.2f", mean, 1.96 * Math.sqrt(variance / n));
+    }
+
+    // ---------------- HELPERS ----------------
+    private static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) values[i] = Integer.parseInt(parts[i].trim());
+        return values;
+    }
+
+    private static double[] parseDoubles(String list) {
+        String[] parts = list.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) values[i] = Double.parseDouble(parts[i].trim());
+        return values;
+    }
+
+    private static void usage(String problem) {
+        if (problem != null) System.err.println(problem);
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
@@ -0,0 +1,77 @@
+package game;
+
+/*
+CLASS: Camera
+DESCRIPTION: Which part of the world a view shows: the world point at the
+             centre of the view and the zoom (screen pixels per world unit).
+             Converts between world and screen coordinates and pans and
+             zooms the way a map does (zooming keeps the point under the
+             cursor still).
+USAGE: setView() with the view's size before converting; fit() to show a
+       world rectangle; compare version() with the one last drawn to know
+       when anything cached in screen coordinates is out of date.
+*/
+class Camera {
+    static final double MIN_ZOOM = 1e-4, MAX_ZOOM = 64;
+
+    private double centerX, centerY, zoom = 1;
+    private int viewWidth = 1, viewHeight = 1;
+    private long version = 0;
+
+    // ---------------- VIEW ----------------
+    public void setView(int width, int height) {
+        width = Math.max(1, width);
+        height = Math.max(1, height);
+        if (width == viewWidth && height == viewHeight) return;
+        viewWidth = width;
+        viewHeight = height;
+        version++;
+    }
+
+    public int viewWidth() { return viewWidth; }
+    public int viewHeight() { return viewHeight; }
+    public double zoom() { return zoom; }
+    public long version() { return version; }
+
+    // Shows the whole rectangle, as large as the view allows.
+    public void fit(double x0, double y0, double x1, double y1) {
+        double w = Math.max(1e-9, x1 - x0), h = Math.max(1e-9, y1 - y0);
+        centerX = (x0 + x1) / 2;
+        centerY = (y0 + y1) / 2;
+        zoom = clampZoom(Math.min(viewWidth / w, viewHeight / h));
+        version++;
+    }
+
+    // Moves the view by a drag of (dx, dy) screen pixels.
+    public void pan(double dx, double dy) {
+        if (dx == 0 && dy == 0) return;
+        centerX -= dx / zoom;
+        centerY -= dy / zoom;
+        version++;
+    }
+
+    // Zooms by 'factor', keeping the world point under (screenX, screenY) there.
+    public void zoomAbout(double factor, double screenX, double screenY) {
+        double wx = worldX(screenX), wy = worldY(screenY);
+        double z = clampZoom(zoom * factor);
+        if (z == zoom) return;
+        zoom = z;
+        centerX = wx - (screenX - viewWidth / 2.0) / zoom;
+        centerY = wy - (screenY - viewHeight / 2.0) / zoom;
+        version++;
+    }
+
+    // ---------------- CONVERSION ----------------
+    public double screenX(double worldX) { return (worldX - centerX) * zoom + viewWidth / 2.0; }
+    public double screenY(double worldY) { return (worldY - centerY) * zoom + viewHeight / 2.0; }
+    public double worldX(double screenX) { return (screenX - viewWidth / 2.0) / zoom + centerX; }
+    public double worldY(double screenY) { return (screenY - viewHeight / 2.0) / zoom + centerY; }
+
+    // The world rectangle in view.
+    public double minX() { return worldX(0); }
+    public double minY() { return worldY(0); }
+    public double maxX() { return worldX(viewWidth); }
+    public double maxY() { return worldY(viewHeight); }
+
+    private static double clampZoom(double z) { return Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, z)); }
+}
@@ -15,20 +15,13 @@ class Car extends TrafficElement {
         this.stepSize = 4.0; // Slightly faster base speed
     }
 
+    @Override
+    public VehicleType getType() { return VehicleType.CAR; }
+
     @Override
     public void paint(Graphics brush) {
         brush.setColor(Color.BLUE);
-        // Convert Point[] (double coords) to int[] for drawing methods
-        Point[] points = getPoints();
-        int[] xCoords = new int[points.length];
-        int[] yCoords = new int[points.length];
-        
-        for (int i = 0; i < points.length; i++) {
-            xCoords[i] = (int) points[i].x;
-            yCoords[i] = (int) points[i].y;
-        }
-        
-        brush.fillPolygon(xCoords, yCoords, points.length);
+        fill(brush); // reuses the polygon's screen vertices
     }
     
     // Overriding the move method to add some extra logic if needed (e.g., braking, skidding)
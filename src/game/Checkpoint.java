@@ -0,0 +1,341 @@
+package game;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+CLASS: Checkpoint
+DESCRIPTION: The complete dynamic state of a Simulation between two ticks:
+             every vehicle column, the timer wheel with its pending events,
+             the signal stages, the lane occupancy and incidents, each
+             demand's random stream and waiting vehicles, the queue lanes
+             and what is in them, the player car and the run's counters.
+             Restoring it into a Simulation of the same scenario continues
+             the run bit for bit as if it had never stopped. Restoring it
+             into a variant of the scenario (other signal times, demand
+             rates or seed; see Scenario.withGreen etc.) forks a "what if"
+             from the warm state without re-running the warm-up.
+USAGE: Checkpoint c = sim.checkpoint();  ...  other.restore(c);
+       c.write(file) / Checkpoint.read(file) to keep it on disk, or a
+       Checkpoint.Writer to write them from a background thread.
+NOTE: capture() copies the state into one byte array with bulk puts, so it
+      costs about as much as copying the store; compressing and writing
+      happen later, off the tick thread if a Writer is used. A file is
+      written next to its target and then renamed over it, so a crash
+      mid-write leaves the previous checkpoint intact.
+      File layout (little-endian): 0 magic 'STCP', 4 version, 8 tick
+      (long), 16/20/24/28/32 the scenario's lane, signal, demand, incident
+      and node counts, 36 state bytes, 40 compressed bytes; then the
+      deflated state.
+*/
+class Checkpoint {
+    static final int MAGIC = 0x53544350; // "STCP"
+    static final int VERSION = 3;
+    static final int HEADER_BYTES = 44;
+
+    private final long tick;
+    private final int[] shape; // lanes, signals, demands, incidents, nodes
+    private final byte[] state;
+
+    private Checkpoint(long tick, int[] shape, byte[] state) {
+        this.tick = tick;
+        this.shape = shape;
+        this.state = state;
+    }
+
+    // Tick the simulation will run next.
+    public long tick() { return tick; }
+    public int sizeBytes() { return state.length; }
+
+    // ---------------- CAPTURE / RESTORE ----------------
+    static Checkpoint capture(Simulation sim) {
+        Out out = new Out(1 << 16);
+        sim.save(out);
+        return new Checkpoint(sim.getTick(), shapeOf(sim.getScenario()), out.toArray());
+    }
+
+    /*
+    METHOD: restoreInto
+    DESCRIPTION: Loads this state into 'sim' (through Simulation.restore).
+                 Fails if sim's scenario doesn't have the same numbers of
+                 lanes, signals, demands, incidents and nodes, since the
+                 state is indexed by them.
+    */
+    void restoreInto(Simulation sim) throws IOException {
+        if (!Arrays.equals(shape, shapeOf(sim.getScenario()))) {
+            throw new IOException("Checkpoint is of a different scenario (lanes, signals, demands, incidents, nodes "
+                    + Arrays.toString(shape) + " vs " + Arrays.toString(shapeOf(sim.getScenario())) + ")");
+        }
+        In in = new In(state);
+        sim.load(in);
+        if (in.buffer.hasRemaining()) throw new IOException("Checkpoint has " + in.buffer.remaining() + " bytes left over");
+    }
+
+    private static int[] shapeOf(Scenario s) {
+        return new int[] {s.laneCount(), s.signalCount(), s.demandCount(), s.incidentCount(), s.nodeCount()};
+    }
+
+    // ---------------- FILES ----------------
+    public void write(Path file) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] packed = new byte[state.length / 2 + 1024];
+        int length = 0;
+        try {
+            deflater.setInput(state);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (length == packed.length) packed = Arrays.copyOf(packed, packed.length * 2);
+                length += deflater.deflate(packed, length, packed.length - length);
+            }
+        } finally {
+            deflater.end();
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(tick);
+        for (int v : shape) header.putInt(v);
+        header.putInt(state.length).putInt(length).flip();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer body = ByteBuffer.wrap(packed, 0, length);
+            while (header.hasRemaining()) channel.write(header);
+            while (body.hasRemaining()) channel.write(body);
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static Checkpoint read(Path file) throws IOException {
+        byte[] all = Files.readAllBytes(file);
+        ByteBuffer header = ByteBuffer.wrap(all).order(ByteOrder.LITTLE_ENDIAN);
+        if (all.length < HEADER_BYTES || header.getInt(0) != MAGIC) throw new IOException("Not a checkpoint file");
+        if (header.getInt(4) != VERSION) throw new IOException("Unsupported checkpoint version " + header.getInt(4));
+        int[] shape = new int[5];
+        for (int i = 0; i < shape.length; i++) shape[i] = header.getInt(16 + 4 * i);
+        int stateBytes = header.getInt(36), packedBytes = header.getInt(40);
+        if (HEADER_BYTES + packedBytes != all.length) throw new IOException("Checkpoint file is cut short");
+        byte[] state = new byte[stateBytes];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(all, HEADER_BYTES, packedBytes);
+            int got = 0;
+            while (got < stateBytes && !inflater.finished()) {
+                int k = inflater.inflate(state, got, stateBytes - got);
+                if (k == 0 && inflater.needsInput()) break;
+                got += k;
+            }
+            if (got != stateBytes) throw new IOException("Checkpoint state is " + got + " bytes, expected " + stateBytes);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt checkpoint", e);
+        } finally {
+            inflater.end();
+        }
+        return new Checkpoint(header.getLong(8), shape, state);
+    }
+
+    /*
+    CLASS: Writer
+    DESCRIPTION: Writes checkpoints from a background thread, so a run only
+                 pays for capture(). At most one checkpoint per file waits
+                 to be written: a newer one for the same file replaces it,
+                 since only the latest matters.
+    */
+    static class Writer implements AutoCloseable {
+        private final LinkedHashMap<Path, Checkpoint> pending = new LinkedHashMap<>();
+        private final Thread thread;
+        private IOException failure;
+        private boolean closing = false;
+
+        Writer() {
+            thread = new Thread(this::drain, "checkpoint-writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Queues 'c' to be written to 'file'; throws if an earlier write failed.
+        public synchronized void submit(Checkpoint c, Path file) throws IOException {
+            if (failure != null) throw failure;
+            if (closing) throw new IllegalStateException("Writer is closed");
+            pending.put(file, c);
+            notifyAll();
+        }
+
+        // Writes whatever is still queued, then stops.
+        public void close() throws IOException {
+            synchronized (this) {
+                closing = true;
+                notifyAll();
+            }
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                if (failure != null) throw failure;
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Path file;
+                Checkpoint c;
+                synchronized (this) {
+                    while (pending.isEmpty() && !closing) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (pending.isEmpty()) return;
+                    file = pending.keySet().iterator().next();
+                    c = pending.remove(file);
+                }
+                try {
+                    c.write(file);
+                } catch (IOException e) {
+                    synchronized (this) {
+                        if (failure == null) failure = e;
+                    }
+                }
+            }
+        }
+    }
+
+    // ---------------- ENCODING ----------------
+    // Inner Class: Out (Static Nested Class)
+    // A growable little-endian buffer the simulation's parts write their state into.
+    static class Out {
+        private ByteBuffer buffer;
+
+        Out(int capacity) { buffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN); }
+
+        void putInt(int v) { room(4).putInt(v); }
+        void putLong(long v) { room(8).putLong(v); }
+        void putDouble(double v) { room(8).putDouble(v); }
+        void putBoolean(boolean v) { room(1).put((byte) (v ? 1 : 0)); }
+
+        void putString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            room(bytes.length).put(bytes);
+        }
+
+        // Arrays go as their first n values, preceded by n.
+        void putInts(int[] a, int n) {
+            putInt(n);
+            room(n * 4L);
+            buffer.asIntBuffer().put(a, 0, n);
+            buffer.position(buffer.position() + n * 4);
+        }
+
+        void putLongs(long[] a, int n) {
+            putInt(n);
+            room(n * 8L);
+            buffer.asLongBuffer().put(a, 0, n);
+            buffer.position(buffer.position() + n * 8);
+        }
+
+        void putDoubles(double[] a, int n) {
+            putInt(n);
+            room(n * 8L);
+            buffer.asDoubleBuffer().put(a, 0, n);
+            buffer.position(buffer.position() + n * 8);
+        }
+
+        void putBytes(byte[] a, int n) {
+            putInt(n);
+            room(n).put(a, 0, n);
+        }
+
+        void putBooleans(boolean[] a, int n) {
+            putInt(n);
+            room(n);
+            for (int i = 0; i < n; i++) buffer.put((byte) (a[i] ? 1 : 0));
+        }
+
+        byte[] toArray() { return Arrays.copyOf(buffer.array(), buffer.position()); }
+
+        private ByteBuffer room(long bytes) {
+            if (buffer.remaining() < bytes) {
+                long needed = buffer.position() + bytes;
+                if (needed > Integer.MAX_VALUE - 8) throw new IllegalStateException("State too large for a checkpoint");
+                int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, buffer.capacity() * 2L));
+                ByteBuffer bigger = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+            return buffer;
+        }
+    }
+
+    // Inner Class: In (Static Nested Class)
+    // Reads back what Out wrote, in the same order; arrays must have the
+    // length the reader expects.
+    static class In {
+        private final ByteBuffer buffer;
+
+        In(byte[] bytes) { buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN); }
+
+        int getInt() { return buffer.getInt(); }
+        long getLong() { return buffer.getLong(); }
+        double getDouble() { return buffer.getDouble(); }
+        boolean getBoolean() { return buffer.get() != 0; }
+
+        String getString() {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // The length of the next array, without reading it.
+        int peekLength() { return buffer.getInt(buffer.position()); }
+
+        void getInts(int[] into, int n) throws IOException {
+            expect(n);
+            buffer.asIntBuffer().get(into, 0, n);
+            buffer.position(buffer.position() + n * 4);
+        }
+
+        void getLongs(long[] into, int n) throws IOException {
+            expect(n);
+            buffer.asLongBuffer().get(into, 0, n);
+            buffer.position(buffer.position() + n * 8);
+        }
+
+        void getDoubles(double[] into, int n) throws IOException {
+            expect(n);
+            buffer.asDoubleBuffer().get(into, 0, n);
+            buffer.position(buffer.position() + n * 8);
+        }
+
+        void getBytes(byte[] into, int n) throws IOException {
+            expect(n);
+            buffer.get(into, 0, n);
+        }
+
+        void getBooleans(boolean[] into, int n) throws IOException {
+            expect(n);
+            for (int i = 0; i < n; i++) into[i] = buffer.get() != 0;
+        }
+
+        private void expect(int n) throws IOException {
+            int stored = buffer.getInt();
+            if (stored != n) throw new IOException("Checkpoint holds " + stored + " values where " + n + " were expected");
+        }
+    }
+}
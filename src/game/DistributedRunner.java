@@ -0,0 +1,367 @@
+package game;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/*
+CLASS: DistributedRunner
+DESCRIPTION: Runs one scenario too big for one process split over several:
+             the map is cut into vertical strips (Partition), each strip
+             is simulated by its own DomainWorker process, and this one
+             coordinates them. Every tick is a round: it sends each worker
+             the records the others wrote for it last round, waits until
+             every worker has ticked and replied (the barrier), and sorts
+             their new records by destination. Workers only talk to it, so
+             one round is two messages per worker however many there are.
+             Every so often it compares how long each worker spent ticking;
+             when the busiest took more than --imbalance times the average
+             it cuts the strips again, weighting every junction by the
+             vehicles on its approaches, and the workers hand over what moved.
+USAGE: java game.DistributedRunner <scenario.bin|scenario.txt> [options]
+         --domains N        processes the map is split over (default 2)
+         --hours H          simulated hours (default 1)
+         --seed S           the run's seed (default: the scenario's)
+         --threads T        tick threads per domain (default 1)
+         --port P           port to listen on (default: any free one)
+         --rebalance S      check the balance every S simulated seconds
+                            (default 300; 0 never)
+         --imbalance F      re-cut when the busiest domain took F times the
+                            average (default 1.25)
+         --launch on|off    start the workers as child JVMs on this machine
+                            (default on); off, it prints the port and waits
+                            for each to be started by hand:
+                              java game.DomainWorker <host> <port> <domain>
+NOTE: A vehicle crossing a boundary reaches its new domain one round after
+      it crossed, and what a domain sees of its neighbours (their ghosts)
+      is one tick old; within a domain everything is exact. So a run
+      matches a single process closely but not tick for tick: vehicles
+      spawned and trips come out the same within a fraction of a
+      percent, but a pair meeting at a boundary is judged between a
+      moved vehicle and a ghost where it stood a tick before, so
+      collisions come out a few percent higher, more with more domains
+      (2% for two and 3.5% for three on DistributedRunnerTest's grid,
+      less than the spread between two seeds); that test checks both
+      bounds. A given
+      number of domains gives the same results every time, unless a
+      rebalance (which goes by measured time) lands on another tick;
+      --rebalance 0 rules that out. It listens on the loopback address
+      only, so every worker runs on this machine.
+      Scenarios with a player car can't be split.
+      Messages (big-endian, DataOutput):
+        set-up     path (UTF), seed (long), domains, threads, cut count
+                   (ints) and cuts (doubles); the worker first sends its
+                   domain number.
+        to worker  command (byte: DomainWorker.STEP, PARTITION, GHOSTS or
+                   FINISH), for STEP whether to report load (boolean), for
+                   PARTITION the new cuts; then the domain count and one
+                   block (length, bytes) from each domain.
+        from it    tick (long), nanos busy (long), vehicles (int), load
+                   pairs (int, then junction and vehicles, ints), then one
+                   block for each domain; after FINISH its totals instead.
+*/
+class DistributedRunner {
+    private static final String USAGE = "usage: java game.DistributedRunner <scenario.bin|scenario.txt> [--domains N] "
+            + "[--hours H] [--seed S] [--threads T] [--port P] [--rebalance S] [--imbalance F] [--launch on|off]";
+    private static final byte[] EMPTY = new byte[0];
+    // What simulate() returns, summed over the domains: the last tick,
+    // trips and their total ticks, emergency trips and their total ticks,
+    // collisions, vehicles spawned, on the map and waiting to enter, the
+    // nanoseconds spent ticking, and vehicles handed in and out.
+    static final int TICK = 0, TRIPS = 1, TRIP_TICKS = 2, EMERGENCY_TRIPS = 3, EMERGENCY_TICKS = 4,
+            COLLISIONS = 5, SPAWNED = 6, ON_MAP = 7, WAITING = 8, BUSY_NANOS = 9, IN = 10, OUT = 11;
+    private static final int TOTALS = 12;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) usage(null);
+        Path scenarioFile = Paths.get(args[0]).toAbsolutePath();
+        int domains = 2, threads = 1, port = 0;
+        double hours = 1, rebalanceSeconds = 300, imbalance = 1.25;
+        Long seed = null;
+        boolean launch = true;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                String value = i + 1 < args.length ? args[i + 1] : null;
+                if (value == null) usage("missing value for " + args[i]);
+                switch (args[i++]) {
+                    case "--domains": domains = Integer.parseInt(value); break;
+                    case "--hours": hours = Double.parseDouble(value); break;
+                    case "--seed": seed = Long.parseLong(value); break;
+                    case "--threads": threads = Integer.parseInt(value); break;
+                    case "--port": port = Integer.parseInt(value); break;
+                    case "--rebalance": rebalanceSeconds = Double.parseDouble(value); break;
+                    case "--imbalance": imbalance = Double.parseDouble(value); break;
+                    case "--launch": launch = onOff(value); break;
+                    default: usage("unknown option " + args[i - 1]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            usage("bad number: " + e.getMessage());
+        }
+        if (domains < 1 || domains > DomainWorker.MAX_DOMAINS) usage("domains must be 1 to " + DomainWorker.MAX_DOMAINS);
+        if (hours <= 0 || threads < 1) usage("hours and threads must be positive");
+        if (rebalanceSeconds < 0 || imbalance < 1) usage("rebalance can't be negative, imbalance is at least 1");
+
+        Scenario scenario = scenarioFile.toString().endsWith(".txt")
+                ? ScenarioConverter.parse(scenarioFile) : Scenario.map(scenarioFile);
+        if (scenario.hasPlayer()) usage("a scenario with a player car can't be split");
+        long ticks = Math.round(hours * 3600 / Simulation.TICK_SECONDS);
+        DistributedRunner runner = new DistributedRunner(scenario, domains);
+        System.out.printf(Locale.ROOT, "%d domains, %d junctions, %.2f simulated hours (%d ticks), first cuts %s%n",
+                domains, runner.network.nodeCount(), hours, ticks, Arrays.toString(runner.partition.cuts()));
+        runner.run(scenarioFile, seed != null ? seed : scenario.seed(), threads, port, launch, ticks,
+                Math.round(rebalanceSeconds / Simulation.TICK_SECONDS), imbalance);
+    }
+
+    private final int domains;
+    private final RoadNetwork network;
+    private Partition partition;
+    private final DataInputStream[] in;
+    private final DataOutputStream[] out;
+    // routed[d][s]: the block domain s wrote for domain d last round.
+    private final byte[][][] routed;
+    private final long[] busyNanos, windowNanos; // per domain: the whole run / since the last check
+    private final int[] vehicles;
+    private final int[] load; // vehicles on each junction's approaches, when last reported
+    private long tick = 0;
+    private int rebalances = 0;
+
+    private DistributedRunner(Scenario scenario, int domains) {
+        this.domains = domains;
+        this.network = scenario.buildNetwork();
+        in = new DataInputStream[domains];
+        out = new DataOutputStream[domains];
+        routed = new byte[domains][domains][];
+        for (byte[][] row : routed) Arrays.fill(row, EMPTY);
+        busyNanos = new long[domains];
+        windowNanos = new long[domains];
+        vehicles = new int[domains];
+        load = new int[network.nodeCount()];
+        partition = Partition.balanced(network, weights(), domains);
+    }
+
+    /*
+    METHOD: simulate
+    DESCRIPTION: Runs 'scenarioFile' over 'domains' workers on this machine,
+                 one tick thread each, for 'ticks' ticks, and returns the
+                 totals over every domain (indexed by TRIPS, COLLISIONS and
+                 the rest). It prints the same table as main().
+    */
+    static long[] simulate(Path scenarioFile, int domains, long seed, long ticks, long rebalanceTicks,
+                           double imbalance) throws IOException, InterruptedException {
+        Scenario scenario = scenarioFile.toString().endsWith(".txt")
+                ? ScenarioConverter.parse(scenarioFile) : Scenario.map(scenarioFile);
+        if (scenario.hasPlayer()) throw new IllegalArgumentException("A scenario with a player car can't be split");
+        return new DistributedRunner(scenario, domains).run(scenarioFile.toAbsolutePath(), seed, 1, 0, true, ticks,
+                rebalanceTicks, imbalance);
+    }
+
+    // ---------------- RUN ----------------
+    private long[] run(Path scenarioFile, long seed, int threads, int port, boolean launch, long ticks,
+                         long rebalanceTicks, double imbalance) throws IOException, InterruptedException {
+        List<Process> workers = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(port, domains, InetAddress.getLoopbackAddress())) {
+            String host = server.getInetAddress().getHostAddress();
+            if (launch) {
+                String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+                for (int d = 0; d < domains; d++) {
+                    workers.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                            "game.DomainWorker", host, Integer.toString(server.getLocalPort()), Integer.toString(d))
+                            .inheritIO().start());
+                }
+            } else {
+                System.out.printf("waiting for %d workers: java game.DomainWorker %s %d <domain>%n",
+                        domains, host, server.getLocalPort());
+            }
+            Socket[] sockets = new Socket[domains];
+            for (int k = 0; k < domains; k++) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                int d = input.readInt();
+                if (d < 0 || d >= domains || sockets[d] != null) throw new IOException("Bad or repeated domain " + d);
+                sockets[d] = socket;
+                in[d] = input;
+                out[d] = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            }
+            long start = System.nanoTime();
+            for (int d = 0; d < domains; d++) {
+                out[d].writeUTF(scenarioFile.toString());
+                out[d].writeLong(seed);
+                out[d].writeInt(domains);
+                out[d].writeInt(threads);
+                writeCuts(out[d], partition);
+                out[d].flush();
+            }
+            round(DomainWorker.GHOSTS, false);
+            for (long t = 0; t < ticks; t++) {
+                boolean check = rebalanceTicks > 0 && (t + 1) % rebalanceTicks == 0;
+                round(DomainWorker.STEP, check);
+                if (check) rebalance(imbalance);
+            }
+            round(DomainWorker.FINISH, false);
+            long[] totals = summary(System.nanoTime() - start);
+            for (Socket socket : sockets) socket.close();
+            for (Process p : workers) p.waitFor();
+            return totals;
+        } finally {
+            for (Process p : workers) p.destroy();
+        }
+    }
+
+    /*
+    METHOD: round
+    DESCRIPTION: Sends every worker 'command' with the blocks meant for it,
+                 then reads every reply (the barrier) and keeps the blocks
+                 they wrote for the next round.
+    */
+    private void round(byte command, boolean reportLoad) throws IOException {
+        for (int d = 0; d < domains; d++) {
+            DataOutputStream o = out[d];
+            o.writeByte(command);
+            if (command == DomainWorker.STEP) o.writeBoolean(reportLoad);
+            if (command == DomainWorker.PARTITION) writeCuts(o, partition);
+            o.writeInt(domains);
+            for (int s = 0; s < domains; s++) {
+                o.writeInt(routed[d][s].length);
+                o.write(routed[d][s]);
+            }
+            o.flush();
+        }
+        if (command == DomainWorker.FINISH) return;
+        if (reportLoad) Arrays.fill(load, 0);
+        for (int s = 0; s < domains; s++) {
+            DataInputStream i = in[s];
+            tick = i.readLong();
+            long nanos = i.readLong();
+            busyNanos[s] += nanos;
+            windowNanos[s] += nanos;
+            vehicles[s] = i.readInt();
+            for (int pairs = i.readInt(); pairs > 0; pairs--) {
+                int node = i.readInt();
+                load[node] = i.readInt();
+            }
+            for (int d = 0; d < domains; d++) {
+                int length = i.readInt();
+                byte[] block = length == 0 ? EMPTY : new byte[length];
+                i.readFully(block);
+                routed[d][s] = block;
+            }
+        }
+    }
+
+    /*
+    METHOD: rebalance
+    DESCRIPTION: If the busiest domain spent more than 'imbalance' times the
+                 average ticking since the last check, cuts the strips again
+                 by the load just reported. If that lightens the heaviest
+                 strip by the same factor, one PARTITION round has the
+                 workers hand over what changes domain, and one GHOSTS round
+                 delivers it and fills in the new boundaries' ghosts.
+    */
+    private void rebalance(double imbalance) throws IOException {
+        long max = 0, total = 0;
+        for (long nanos : windowNanos) {
+            max = Math.max(max, nanos);
+            total += nanos;
+        }
+        Arrays.fill(windowNanos, 0);
+        if (total == 0 || max * domains < imbalance * total) return;
+        double[] weight = weights();
+        Partition next = Partition.balanced(network, weight, domains);
+        if (next.equals(partition) || heaviest(next, weight) * imbalance > heaviest(partition, weight)) {
+            return; // not worth the move
+        }
+        System.out.printf(Locale.ROOT, "tick %d: busiest domain at %.2fx the mean, new cuts %s%n",
+                tick, (double) max * domains / total, Arrays.toString(next.cuts()));
+        partition = next;
+        rebalances++;
+        round(DomainWorker.PARTITION, false);
+        round(DomainWorker.GHOSTS, false);
+    }
+
+    // A junction's weight: one, plus the vehicles last reported on its
+    // approaches (they are most of the work).
+    private double[] weights() {
+        double[] weight = new double[network.nodeCount()];
+        for (int n = 0; n < weight.length; n++) weight[n] = 1 + load[n];
+        return weight;
+    }
+
+    // The weight of the heaviest strip of 'p'.
+    private double heaviest(Partition p, double[] weight) {
+        double[] total = new double[domains];
+        int[] owner = p.nodeOwners(network);
+        for (int n = 0; n < owner.length; n++) total[owner[n]] += weight[n];
+        double max = 0;
+        for (double t : total) max = Math.max(max, t);
+        return max;
+    }
+
+    private static void writeCuts(DataOutputStream o, Partition p) throws IOException {
+        double[] cuts = p.cuts();
+        o.writeInt(cuts.length);
+        for (double x : cuts) o.writeDouble(x);
+    }
+
+    // ---------------- SUMMARY ----------------
+    // Reads every worker's totals (the FINISH reply), prints them and
+    // returns their sums (the tick is the last one, not a sum).
+    private long[] summary(long wallNanos) throws IOException {
+        int[] owner = partition.nodeOwners(network);
+        int[] junctions = new int[domains];
+        for (int o : owner) junctions[o]++;
+        System.out.printf(Locale.ROOT, "%6s %9s %8s %8s %8s %14s %14s %10s %8s %8s %9s%n", "domain", "junctions",
+                "on map", "spawned", "trips", "mean trip (s)", "emergency (s)", "collisions", "in", "out", "busy (s)");
+        long[] sum = new long[TOTALS];
+        for (int d = 0; d < domains; d++) {
+            long[] v = new long[TOTALS];
+            for (int k = 0; k < v.length; k++) {
+                v[k] = in[d].readLong();
+                if (k == TICK) sum[k] = v[k];
+                else sum[k] += v[k];
+            }
+            print(Integer.toString(d), junctions[d], v);
+        }
+        print("all", network.nodeCount(), sum);
+        double simulated = tick * Simulation.TICK_SECONDS, wall = wallNanos / 1e9;
+        long busiest = 0;
+        for (long nanos : busyNanos) busiest = Math.max(busiest, nanos);
+        System.out.printf(Locale.ROOT, "%.1f s wall, %.0fx real time, %.3f ms per tick of which %.3f ms exchange, "
+                        + "%d rebalances, final cuts %s%n", wall, simulated / wall, wallNanos / 1e6 / tick,
+                (wallNanos - busiest) / 1e6 / tick, rebalances, Arrays.toString(partition.cuts()));
+        return sum;
+    }
+
+    // v: one domain's totals, indexed by TRIPS and the rest.
+    private static void print(String name, int junctions, long[] v) {
+        System.out.printf(Locale.ROOT, "%6s %9d %8d %8d %8d %14.2f %14.2f %10d %8d %8d %9.1f%n", name, junctions,
+                v[ON_MAP], v[SPAWNED], v[TRIPS], v[TRIPS] == 0 ? Double.NaN : v[TRIP_TICKS] * Simulation.TICK_SECONDS / v[TRIPS],
+                v[EMERGENCY_TRIPS] == 0 ? Double.NaN : v[EMERGENCY_TICKS] * Simulation.TICK_SECONDS / v[EMERGENCY_TRIPS],
+                v[COLLISIONS], v[IN], v[OUT], v[BUSY_NANOS] / 1e9);
+    }
+
+    private static boolean onOff(String value) {
+        if (value.equals("on")) return true;
+        if (value.equals("off")) return false;
+        usage("expected on or off, not " + value);
+        return false;
+    }
+
+    private static void usage(String problem) {
+        if (problem != null) System.err.println(problem);
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
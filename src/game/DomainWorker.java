@@ -0,0 +1,401 @@
+package game;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/*
+CLASS: DomainWorker
+DESCRIPTION: One domain of a distributed run: a process that simulates the
+             part of the map its Partition strip holds and trades vehicles
+             with the other domains through DistributedRunner after every
+             tick. It builds the whole scenario like any Simulation, then
+             keeps only its own vehicles and lets in only its own demand.
+             After each tick:
+               - a vehicle that has driven onto another domain's lane is
+                 sent there, and stays here as a ghost through the next
+                 tick too, so the traffic behind it still sees it until
+                 the ghosts its new owner sends arrive;
+               - the vehicles within GHOST_ZONE of either end of a lane are
+                 sent as ghosts to every other domain with a lane at that
+                 junction: copies it files on its lanes but never moves,
+                 for its drivers to follow and its demand to leave room
+                 for. Both sides of a junction see each other, so a pair
+                 that overlaps there is seen by both owners.
+             The coordinator's next message brings the other domains'
+             vehicles and the fresh ghosts, which are filed on the lanes
+             (Simulation.refile) before the next tick starts. When
+             it moves the cuts, every junction, demand and vehicle that
+             changes domain goes over with its state.
+USAGE: Started by DistributedRunner, or by hand on the port it prints:
+         java game.DomainWorker <host> <port> <domain>
+NOTE: Signals, incidents and demand arrivals run in every copy (they are
+      cheap and come out the same everywhere); only the owner's matter and
+      only the owner's vehicles are counted. A collision with a ghost is
+      counted on one side only (Simulation.countsPair); since the ghost is
+      a tick old, pairs at a boundary are judged a tick apart, which is
+      why a split run counts a few percent more collisions (see
+      DistributedRunner). A vehicle off the lanes goes by position.
+      The messages are described in DistributedRunner.
+*/
+class DomainWorker {
+    // Commands from the coordinator.
+    static final byte STEP = 0, PARTITION = 1, GHOSTS = 2, FINISH = 3;
+    // Kinds of record in a block.
+    static final byte VEHICLE = 0, GHOST = 1, JUNCTION = 2, DEMAND = 3;
+    // How far from a boundary vehicles are copied across as ghosts: more
+    // than the gap a driver still reacts to at speed.
+    static final double GHOST_ZONE = 200;
+    // Domains fit in a long's bits.
+    static final int MAX_DOMAINS = 64;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("usage: java game.DomainWorker <host> <port> <domain>");
+            System.exit(2);
+        }
+        int index = Integer.parseInt(args[2]);
+        try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            out.writeInt(index);
+            out.flush();
+            new DomainWorker(index, in).serve(in, out);
+        }
+    }
+
+    private final int index, domains;
+    private final Scenario scenario;
+    private final Simulation sim;
+    private final VehicleStore store;
+    private final RoadNetwork network;
+    private Partition partition;
+    private int[] nodeOwner, laneOwner;
+    // Per lane: the domains that get ghosts of what is near its start / its end.
+    private long[] ghostsFromStart, ghostsFromEnd;
+    private final IntList ghosts = new IntList();    // handles of the ghosts held now
+    private final IntList departing = new IntList(); // the ones left by this round's departures
+    // This round's outgoing records, one block per domain.
+    private final ByteArrayOutputStream[] blocks;
+    private final DataOutputStream[] records;
+    private long roundNanos = 0, busyNanos = 0;
+    private long arrived = 0, departed = 0; // vehicles taken from / given to other domains
+
+    /*
+    Reads the set-up message: the scenario file, its seed, how many domains
+    there are, tick threads, and the first cuts.
+    */
+    DomainWorker(int index, DataInputStream in) throws IOException {
+        this.index = index;
+        Path file = Paths.get(in.readUTF());
+        long seed = in.readLong();
+        domains = in.readInt();
+        int threads = in.readInt();
+        double[] cuts = new double[in.readInt()];
+        for (int k = 0; k < cuts.length; k++) cuts[k] = in.readDouble();
+
+        Scenario base = file.toString().endsWith(".txt") ? ScenarioConverter.parse(file) : Scenario.map(file);
+        scenario = base.withSeed(seed);
+        sim = new Simulation(scenario, false);
+        sim.setThreads(threads);
+        store = sim.getStore();
+        network = sim.getNetwork();
+        store.setIdStride(index, domains);
+        blocks = new ByteArrayOutputStream[domains];
+        records = new DataOutputStream[domains];
+        for (int d = 0; d < domains; d++) {
+            blocks[d] = new ByteArrayOutputStream();
+            records[d] = new DataOutputStream(blocks[d]);
+        }
+        setPartition(new Partition(cuts), false);
+        // Every copy starts with every vehicle; keep ours.
+        for (int h = 0; h < store.highWater(); h++) {
+            if (store.isAlive(h) && ownerOf(h) != index) sim.despawn(h);
+        }
+    }
+
+    // ---------------- ROUNDS ----------------
+    /*
+    METHOD: serve
+    DESCRIPTION: Answers the coordinator's messages until FINISH. Each one
+                 replaces the ghosts with the ones it brings and takes in
+                 its vehicles, junctions and demands; then STEP ticks and
+                 replies with what leaves, PARTITION switches to new cuts
+                 and replies with everything handed over, and GHOSTS just
+                 replies with the ghosts.
+    */
+    void serve(DataInputStream in, DataOutputStream out) throws IOException {
+        while (true) {
+            byte command = in.readByte();
+            Partition next = null;
+            boolean reportLoad = false;
+            if (command == PARTITION) {
+                double[] cuts = new double[in.readInt()];
+                for (int k = 0; k < cuts.length; k++) cuts[k] = in.readDouble();
+                next = new Partition(cuts);
+            } else if (command == STEP) {
+                reportLoad = in.readBoolean();
+            }
+            dropGhosts();
+            receive(in);
+            sim.refile();
+            for (ByteArrayOutputStream b : blocks) b.reset();
+            long start = System.nanoTime();
+            switch (command) {
+                case FINISH:
+                    finish(out);
+                    return;
+                case PARTITION:
+                    dropGhosts(); // drawn up for the old cuts
+                    setPartition(next, true);
+                    break;
+                case GHOSTS:
+                    collect();
+                    break;
+                default:
+                    sim.tick();
+                    collect();
+            }
+            roundNanos = System.nanoTime() - start;
+            busyNanos += roundNanos;
+            reply(out, reportLoad);
+        }
+    }
+
+    // Takes in every block the coordinator passed on, in domain order.
+    private void receive(DataInputStream in) throws IOException {
+        for (int s = in.readInt(); s > 0; s--) {
+            byte[] block = new byte[in.readInt()];
+            in.readFully(block);
+            DataInputStream r = new DataInputStream(new ByteArrayInputStream(block));
+            while (r.available() > 0) {
+                byte kind = r.readByte();
+                switch (kind) {
+                    case VEHICLE:
+                    case GHOST:
+                        readVehicle(r, kind == GHOST);
+                        break;
+                    case JUNCTION:
+                        sim.getSignals().readJunction(r.readInt(), r);
+                        break;
+                    case DEMAND:
+                        int d = r.readInt(), waiting = r.readInt();
+                        sim.getDemand().handOver(d, waiting, r.readInt(), sim.getTick());
+                        break;
+                    default:
+                        throw new IOException("Unknown record kind " + kind);
+                }
+            }
+        }
+    }
+
+    /*
+    METHOD: collect
+    DESCRIPTION: One pass over the store: every vehicle now on another
+                 domain's lane (or strip) is written to that domain and
+                 turned into a ghost here, and every one in a ghost zone is
+                 written as a ghost to the domains on the other side.
+    */
+    private void collect() throws IOException {
+        int[] flags = store.flags;
+        for (int h = 0, n = store.highWater(); h < n; h++) {
+            if ((flags[h] & (VehicleStore.ALIVE | VehicleStore.GHOST)) != VehicleStore.ALIVE) continue;
+            int owner = ownerOf(h);
+            if (owner != index) {
+                writeVehicle(h, VEHICLE, records[owner]);
+                store.setFlags(h, (flags[h] & ~(VehicleStore.AUTONOMOUS | VehicleStore.HELD)) | VehicleStore.GHOST);
+                departing.add(h);
+                departed++;
+                continue;
+            }
+            if ((flags[h] & VehicleStore.ON_LANE) == 0) continue;
+            int lane = store.lane[h];
+            long to = (store.along[h] <= GHOST_ZONE ? ghostsFromStart[lane] : 0)
+                    | (store.along[h] >= network.laneLength(lane) - GHOST_ZONE ? ghostsFromEnd[lane] : 0);
+            for (; to != 0; to &= to - 1) writeVehicle(h, GHOST, records[Long.numberOfTrailingZeros(to)]);
+        }
+    }
+
+    // Report, then one block per domain. With 'reportLoad', also how many
+    // of our vehicles are on the lanes into each of our junctions.
+    private void reply(DataOutputStream out, boolean reportLoad) throws IOException {
+        out.writeLong(sim.getTick());
+        out.writeLong(roundNanos);
+        out.writeInt(store.size() - ghosts.size() - departing.size());
+        if (reportLoad) {
+            int[] load = new int[network.nodeCount()];
+            int pairs = 0;
+            for (int h = 0; h < store.highWater(); h++) {
+                int need = VehicleStore.ALIVE | VehicleStore.ON_LANE;
+                if ((store.flags[h] & (need | VehicleStore.GHOST)) != need) continue;
+                if (load[network.laneTo(store.lane[h])]++ == 0) pairs++;
+            }
+            out.writeInt(pairs);
+            for (int node = 0; node < load.length; node++) {
+                if (load[node] == 0) continue;
+                out.writeInt(node);
+                out.writeInt(load[node]);
+            }
+        } else {
+            out.writeInt(0);
+        }
+        for (ByteArrayOutputStream b : blocks) {
+            out.writeInt(b.size());
+            b.writeTo(out);
+        }
+        out.flush();
+    }
+
+    // What this domain did, for the coordinator's summary.
+    private void finish(DataOutputStream out) throws IOException {
+        long waiting = 0;
+        TrafficDemand demand = sim.getDemand();
+        for (int d = 0; d < scenario.demandCount(); d++) {
+            if (demand.isLocal(d)) waiting += demand.waitingCount(d);
+        }
+        out.writeLong(sim.getTick());
+        out.writeLong(sim.getTripsCompleted());
+        out.writeLong(sim.getTripTicks());
+        out.writeLong(sim.getEmergencyTripsCompleted());
+        out.writeLong(sim.getEmergencyTripTicks());
+        out.writeLong(sim.getCollisionTotal());
+        out.writeLong(demand.spawnedCount());
+        out.writeLong(store.size() - ghosts.size());
+        out.writeLong(waiting);
+        out.writeLong(busyNanos);
+        out.writeLong(arrived);
+        out.writeLong(departed);
+        out.flush();
+        sim.shutdown();
+    }
+
+    // ---------------- OWNERSHIP ----------------
+    /*
+    METHOD: setPartition
+    DESCRIPTION: Switches to 'p'. With 'handOver', first writes each of our
+                 junctions and demands that change domain to its new owner,
+                 then every vehicle that does (removing it here).
+    */
+    private void setPartition(Partition p, boolean handOver) throws IOException {
+        int[] nodes = p.nodeOwners(network);
+        if (handOver) {
+            SignalController signals = sim.getSignals();
+            for (int c = 0; c < signals.count(); c++) {
+                int node = signals.nodeOf(c);
+                if (nodeOwner[node] != index || nodes[node] == index) continue;
+                DataOutputStream out = records[nodes[node]];
+                out.writeByte(JUNCTION);
+                out.writeInt(c);
+                signals.writeJunction(c, out);
+            }
+            TrafficDemand demand = sim.getDemand();
+            for (int d = 0; d < scenario.demandCount(); d++) {
+                int origin = scenario.demandOrigin(d);
+                if (nodeOwner[origin] != index || nodes[origin] == index) continue;
+                DataOutputStream out = records[nodes[origin]];
+                out.writeByte(DEMAND);
+                out.writeInt(d);
+                out.writeInt(demand.waitingCount(d));
+                out.writeInt(demand.nextLaneOf(d));
+            }
+        }
+        partition = p;
+        nodeOwner = nodes;
+        laneOwner = p.laneOwners(network, nodes);
+        if (handOver) {
+            for (int h = 0; h < store.highWater(); h++) {
+                if (!store.isAlive(h) || ownerOf(h) == index) continue;
+                writeVehicle(h, VEHICLE, records[ownerOf(h)]);
+                sim.despawn(h);
+                departed++;
+            }
+        }
+        boolean[] local = new boolean[scenario.demandCount()];
+        for (int d = 0; d < local.length; d++) local[d] = nodeOwner[scenario.demandOrigin(d)] == index;
+        sim.getDemand().setLocal(local);
+
+        // Every domain with a lane at a junction sees every vehicle near it,
+        // so a pair there is seen from both sides (see Simulation.countsPair).
+        long[] touching = new long[network.nodeCount()];
+        for (int lane = 0; lane < network.laneCount(); lane++) {
+            touching[network.laneFrom(lane)] |= 1L << laneOwner[lane];
+            touching[network.laneTo(lane)] |= 1L << laneOwner[lane];
+        }
+        ghostsFromStart = new long[network.laneCount()];
+        ghostsFromEnd = new long[network.laneCount()];
+        for (int lane = 0; lane < network.laneCount(); lane++) {
+            if (laneOwner[lane] != index) continue;
+            ghostsFromStart[lane] = touching[network.laneFrom(lane)] & ~(1L << index);
+            ghostsFromEnd[lane] = touching[network.laneTo(lane)] & ~(1L << index);
+        }
+    }
+
+    private int ownerOf(int h) {
+        return (store.flags[h] & VehicleStore.ON_LANE) != 0 ? laneOwner[store.lane[h]]
+                : partition.ownerOfX(store.centerX(h));
+    }
+
+    // ---------------- VEHICLES ----------------
+    private void writeVehicle(int h, byte kind, DataOutputStream out) throws IOException {
+        out.writeByte(kind);
+        out.writeInt(store.id[h]);
+        out.writeByte(store.type[h]);
+        out.writeInt(store.flags[h]);
+        out.writeDouble(store.x[h]);
+        out.writeDouble(store.y[h]);
+        out.writeDouble(store.heading[h]);
+        out.writeDouble(store.speed[h]);
+        out.writeDouble(store.desiredSpeed[h]);
+        out.writeDouble(store.along[h]);
+        out.writeInt(store.lane[h]);
+        out.writeInt(store.targetLane[h]);
+        out.writeInt(store.destination[h]);
+        out.writeLong(store.born[h]);
+    }
+
+    // Puts a vehicle written by writeVehicle() in the store, as ours or as a ghost.
+    private void readVehicle(DataInputStream in, boolean ghost) throws IOException {
+        int id = in.readInt();
+        VehicleType type = VehicleType.byId(in.readByte());
+        int flags = in.readInt();
+        double x = in.readDouble(), y = in.readDouble(), heading = in.readDouble(), speed = in.readDouble();
+        int h = store.add(type, x, y, heading, speed, 0);
+        store.id[h] = id;
+        store.desiredSpeed[h] = in.readDouble();
+        store.along[h] = in.readDouble();
+        store.lane[h] = in.readInt();
+        store.targetLane[h] = in.readInt();
+        store.destination[h] = in.readInt();
+        store.born[h] = in.readLong();
+        if (ghost) {
+            store.targetLane[h] = store.lane[h];
+            flags = (flags & ~(VehicleStore.AUTONOMOUS | VehicleStore.HELD)) | VehicleStore.GHOST;
+            ghosts.add(h);
+        } else {
+            arrived++;
+        }
+        store.setFlags(h, flags);
+        sim.adopt(h);
+    }
+
+    // Drops the ghosts the last tick used. Those left by the last round's
+    // departures are kept for the next tick: their new domain only sends
+    // them back as ghosts after it has moved them once.
+    private void dropGhosts() {
+        for (int k = 0; k < ghosts.size(); k++) {
+            int h = ghosts.get(k);
+            if ((store.flags[h] & VehicleStore.GHOST) != 0) sim.despawn(h);
+        }
+        ghosts.clear();
+        ghosts.addAll(departing);
+        departing.clear();
+    }
+}
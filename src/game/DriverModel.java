@@ -0,0 +1,25 @@
+package game;
+
+/*
+INTERFACE: DriverModel
+DESCRIPTION: How a driver picks an acceleration from the road ahead, and
+             whether they take a neighbouring lane. Units are world units and
+             seconds throughout.
+USAGE: Set per vehicle through TrafficElement.setDriverModel or
+       VehicleStore.setDriver; IntelligentDriverModel is the default.
+*/
+interface DriverModel {
+    // Acceleration for a driver at 'speed' wanting 'desiredSpeed', with 'gap'
+    // of clear road (bumper to bumper) before a leader doing 'leaderSpeed'.
+    double acceleration(double speed, double desiredSpeed, double gap, double leaderSpeed);
+
+    // Braking the driver is willing to use to stop for a light.
+    double comfortableDeceleration();
+
+    // Lane-change decision from the accelerations of the driver, the
+    // follower it would cut in front of, and the follower it leaves behind,
+    // before and after the change.
+    boolean shouldChangeLane(double ownBefore, double ownAfter,
+                             double newFollowerBefore, double newFollowerAfter,
+                             double oldFollowerBefore, double oldFollowerAfter);
+}
@@ -0,0 +1,200 @@
+package game;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+CLASS: DynamicAssignment
+DESCRIPTION: Lets congestion shape the routes. It runs the scenario
+             headlessly, observes how long every lane took to drive in each
+             time bin (TravelTimes), routes the next run on those times and
+             repeats until drivers' routes no longer disagree with the
+             traffic they meet. The costs routed on are the method of
+             successive averages over the runs so far (iteration k moves
+             them 1/k of the way to what it saw), which settles instead of
+             swinging every driver back and forth.
+             Every iteration runs on the same network and Router; between
+             iterations the Router keeps each cached route table the new
+             costs can't alter, and lane costs that moved less than the
+             tolerance stay as they were, so an iteration searches again
+             only the destinations whose routes the new costs can change.
+USAGE: java game.DynamicAssignment <scenario.bin|scenario.txt> [options]
+         --hours H         simulated hours per iteration (default 1)
+         --bin M           minutes per travel-time bin (default 15)
+         --iterations N    at most N iterations (default 20)
+         --gap G           stop once the relative gap is below G (default 0.02)
+         --tolerance T     keep routes over lane costs that moved less than
+                           this fraction (default 0.05)
+         --threads T       tick threads (default: every core)
+         --seed S          seed for every iteration (default: the scenario's)
+         -o costs.csv      write the final travel time of each lane and bin
+NOTE: The relative gap is how far the costs an iteration routed on were
+      from what its vehicles then met, weighted by how many were there:
+      sum(samples * |observed - routed|) / sum(samples * routed), over the
+      lanes and bins with at least MIN_SAMPLES samples. Every iteration
+      uses the same seed, so only the routes differ.
+*/
+class DynamicAssignment {
+    // Speed samples (see TravelTimes) a lane needs in a bin before what
+    // was seen there moves its cost.
+    static final int MIN_SAMPLES = 30;
+    private static final String USAGE = "usage: java game.DynamicAssignment <scenario.bin|scenario.txt> [--hours H] "
+            + "[--bin M] [--iterations N] [--gap G] [--tolerance T] [--threads T] [--seed S] [-o costs.csv]";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) usage(null);
+        Path scenarioFile = Paths.get(args[0]);
+        double hours = 1, binMinutes = 15, targetGap = 0.02, tolerance = 0.05;
+        int iterations = 20, threads = Runtime.getRuntime().availableProcessors();
+        Long seed = null;
+        Path outFile = null;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                String value = i + 1 < args.length ? args[i + 1] : null;
+                if (value == null) usage("missing value for " + args[i]);
+                switch (args[i++]) {
+                    case "--hours": hours = Double.parseDouble(value); break;
+                    case "--bin": binMinutes = Double.parseDouble(value); break;
+                    case "--iterations": iterations = Integer.parseInt(value); break;
+                    case "--gap": targetGap = Double.parseDouble(value); break;
+                    case "--tolerance": tolerance = Double.parseDouble(value); break;
+                    case "--threads": threads = Integer.parseInt(value); break;
+                    case "--seed": seed = Long.parseLong(value); break;
+                    case "-o": outFile = Paths.get(value); break;
+                    default: usage("unknown option " + args[i - 1]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            usage("bad number: " + e.getMessage());
+        }
+        if (hours <= 0 || binMinutes <= 0 || iterations < 1 || threads < 1) {
+            usage("hours, bin, iterations and threads must be positive");
+        }
+        if (targetGap < 0 || tolerance < 0) usage("gap and tolerance can't be negative");
+
+        Scenario scenario = scenarioFile.toString().endsWith(".txt")
+                ? ScenarioConverter.parse(scenarioFile) : Scenario.map(scenarioFile);
+        if (seed != null) scenario = scenario.withSeed(seed);
+        long ticks = Math.round(hours * 3600 / Simulation.TICK_SECONDS);
+        long binTicks = Math.max(1, Math.round(binMinutes * 60 / Simulation.TICK_SECONDS));
+        int bins = (int) ((ticks + binTicks - 1) / binTicks);
+
+        DynamicAssignment assignment = new DynamicAssignment(scenario, ticks, bins, binTicks, threads);
+        System.out.printf(Locale.ROOT, "%d demands, %d lanes, %d bins of %.0f min, %.2f simulated hours per iteration%n",
+                scenario.demandCount(), assignment.router.getNetwork().laneCount(), bins, binMinutes, hours);
+        System.out.printf(Locale.ROOT, "%4s %8s %14s %9s %8s %8s %8s %8s%n",
+                "iter", "trips", "mean trip (s)", "gap", "tables", "dropped", "cached", "wall (s)");
+        for (int k = 1; k <= iterations; k++) {
+            Iteration it = assignment.iterate(k, tolerance);
+            System.out.printf(Locale.ROOT, "%4d %8d %14.2f %9.4f %8d %8d %8d %8.1f%n",
+                    k, it.trips, it.meanTripSeconds, it.gap, it.tablesComputed, it.tablesDropped,
+                    assignment.router.tablesCached(), it.wallNanos / 1e9);
+            if (it.gap < targetGap) {
+                System.out.println("converged after " + k + " iterations");
+                break;
+            }
+        }
+        if (outFile != null) Files.write(outFile, assignment.csv(), StandardCharsets.UTF_8);
+    }
+
+    // Inner Class: Iteration (Static Nested Class)
+    // What one run of the assignment did.
+    static class Iteration {
+        long trips, tablesComputed, tablesDropped, wallNanos;
+        double meanTripSeconds, gap;
+    }
+
+    private final Scenario scenario;
+    private final long ticks;
+    private final int threads;
+    private final Router router;     // kept, with its network and tables, for every iteration
+    private final double[] freeFlow; // by bin and lane
+    private final double[] averaged; // the costs routed on, same layout
+    private final TravelTimes observed;
+
+    DynamicAssignment(Scenario scenario, long ticks, int bins, long binTicks, int threads) {
+        this.scenario = scenario;
+        this.ticks = ticks;
+        this.threads = threads;
+        RoadNetwork network = scenario.buildNetwork();
+        double[] laneFree = Router.freeFlow(network);
+        freeFlow = new double[bins * laneFree.length];
+        for (int b = 0; b < bins; b++) System.arraycopy(laneFree, 0, freeFlow, b * laneFree.length, laneFree.length);
+        averaged = freeFlow.clone();
+        boolean[] destination = new boolean[network.nodeCount()];
+        int destinations = 0;
+        for (int d = 0; d < scenario.demandCount(); d++) {
+            if (!destination[scenario.demandDestination(d)]) destinations++;
+            destination[scenario.demandDestination(d)] = true;
+        }
+        // Room for every table a run uses, so nothing is searched twice for want of space.
+        router = new Router(network, freeFlow, bins, binTicks, Math.max(Router.DEFAULT_CACHE_TABLES, destinations * bins));
+        observed = new TravelTimes(network, bins, binTicks);
+    }
+
+    /*
+    METHOD: iterate
+    DESCRIPTION: Iteration k (from 1): runs the scenario on the current
+                 costs while observing travel times, measures the gap, then
+                 moves the costs 1/k of the way to what was observed and
+                 hands them to the Router.
+    */
+    Iteration iterate(int k, double tolerance) {
+        Iteration it = new Iteration();
+        long computed0 = router.tablesComputed(), start = System.nanoTime();
+        observed.clear();
+        Simulation sim = new Simulation(scenario, false, router);
+        try {
+            sim.setThreads(threads);
+            sim.setTravelTimes(observed);
+            for (long t = 0; t < ticks && !sim.isGameOver(); t++) sim.tick();
+        } finally {
+            sim.shutdown();
+        }
+        it.trips = sim.getTripsCompleted();
+        it.meanTripSeconds = it.trips == 0 ? Double.NaN : sim.getTripTicks() * Simulation.TICK_SECONDS / it.trips;
+        it.tablesComputed = router.tablesComputed() - computed0;
+
+        double[] seen = observed.costs(freeFlow);
+        int laneCount = router.getNetwork().laneCount();
+        double differ = 0, total = 0;
+        for (int i = 0; i < seen.length; i++) {
+            int samples = observed.samples(i / laneCount, i % laneCount);
+            if (samples < MIN_SAMPLES) continue; // too few to tell noise from congestion
+            differ += samples * Math.abs(seen[i] - averaged[i]);
+            total += samples * averaged[i];
+            averaged[i] += (seen[i] - averaged[i]) / k;
+        }
+        it.gap = total == 0 ? 0 : differ / total;
+        it.tablesDropped = router.updateCosts(averaged, tolerance);
+        it.wallNanos = System.nanoTime() - start;
+        return it;
+    }
+
+    // The costs the last iteration left, one row per bin and lane.
+    List<String> csv() {
+        RoadNetwork network = router.getNetwork();
+        List<String> lines = new ArrayList<>();
+        lines.add("bin,start_min,lane,from,to,seconds,free_flow_seconds");
+        for (int b = 0; b < router.bucketCount(); b++) {
+            for (int l = 0; l < network.laneCount(); l++) {
+                lines.add(String.format(Locale.ROOT, "%d,%.1f,%d,%d,%d,%.3f,%.3f", b,
+                        b * router.bucketTicks() * Simulation.TICK_SECONDS / 60, l, network.laneFrom(l),
+                        network.laneTo(l), router.travelTime(l, b), freeFlow[b * network.laneCount() + l]));
+            }
+        }
+        return lines;
+    }
+
+    private static void usage(String problem) {
+        if (problem != null) System.err.println(problem);
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
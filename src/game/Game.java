@@ -2,51 +2,131 @@ package game;
 
 /*
 CLASS: Game
-DESCRIPTION: A painted canvas in its own window, updated every tenth second.
-USAGE: Extended by YourGameName.
-NOTE: You don't need to understand the details here, no fiddling neccessary.*/
+DESCRIPTION: A painted canvas in its own window, redrawn by its own render
+             thread at a steady frame rate.
+USAGE: Extended by YourGameName; call start() once the subclass is built.
+NOTE: Rendering is active: the render thread calls 'paint' on an offscreen
+      buffer that keeps its pixels from one frame to the next, then copies
+      it to the screen through a BufferStrategy. AWT never calls 'paint'
+      itself, so a subclass's input handlers (which run on the AWT event
+      thread) must lock whatever they share with 'paint'; the render thread
+      holds the Game's own monitor while it paints. A slow frame only
+      delays the next frame; it never slows whatever the game simulates.*/
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferStrategy;
+import java.util.Locale;
 
 //AUTHORS: Zishan Vahora and Mostafa Elamin
 //DATE: October 2025
 
 abstract class Game extends Canvas {
-  protected boolean on = true;
+  protected volatile boolean on = true;
   protected int width, height;
   protected Image buffer;
-  
+  protected volatile int targetFps = 60;
+
+  private Graphics bufferBrush;   // one Graphics for the buffer, kept for the game's life
+  private BufferStrategy strategy;
+  private Thread renderer;
+
+  // Frame-time statistics: accumulated over the current second, then
+  // published for the HUD.
+  private long statsStart, statsFrames, statsNanos, statsWorst;
+  private volatile String frameStats = "";
+
 	public Game(String name, int inWidth, int inHeight) {
 	  width = inWidth;
 	  height = inHeight;
-	  
+
 	  // Frame can be read as 'window' here.
     Frame frame = new Frame(name);
     frame.add(this);
     frame.setSize(width,height);
     frame.setVisible(true);
     frame.setResizable(false);
-    frame.addWindowListener(new WindowAdapter() { 
-      public void windowClosing(WindowEvent e) {System.exit(0);} 
+    frame.addWindowListener(new WindowAdapter() {
+      public void windowClosing(WindowEvent e) {System.exit(0);}
     });
-    
+
+    setIgnoreRepaint(true);
     buffer = createImage(width, height);
 	}
-  
-  // 'paint' will be called every tenth of a second that the game is on.
+
+  // 'paint' is called once per frame, on the render thread, with the buffer.
 	abstract public void paint(Graphics brush);
-  
-  // 'update' paints to a buffer then to the screen, then waits a tenth of
-  // a second before repeating itself, assuming the game is on. This is done
-  // to avoid a choppy painting experience if repainted in pieces.
-  public void update(Graphics brush) {
-    paint(buffer.getGraphics());
-		brush.drawImage(buffer,0,0,this);
-    if (on) {sleep(100); repaint();}
+
+  // AWT's own repaints are ignored: the render thread draws every frame.
+  public void update(Graphics brush) {}
+
+  // 'start' sets up page flipping and starts the render thread.
+  public void start() {
+    if (renderer != null) return;
+    createBufferStrategy(2);
+    strategy = getBufferStrategy();
+    bufferBrush = buffer.getGraphics();
+    renderer = new Thread(this::renderLoop, "render");
+    renderer.setDaemon(true);
+    renderer.start();
   }
-  
-  // 'sleep' is a simple helper function used in 'update'.
-  private void sleep(int time) {
-    try {Thread.sleep(time);} catch(Exception exc){};
+
+  // "fps, mean and worst frame time" over the last whole second.
+  public String getFrameStats() {return frameStats;}
+
+  /*
+  The following methods are private access restricted because, as this access
+  level always implies, they are intended for use only as helpers of the
+  methods in this class that are not private. They can't be used anywhere else.
+  */
+
+  // Draws a frame, then sleeps until the next one is due. A frame that ran
+  // late moves the schedule rather than making later frames rush.
+  private void renderLoop() {
+    long next = System.nanoTime();
+    statsStart = next;
+    while (on) {
+      long start = System.nanoTime();
+      renderFrame();
+      countFrame(System.nanoTime() - start);
+      next += 1_000_000_000L / Math.max(1, targetFps);
+      long wait = next - System.nanoTime();
+      if (wait > 0) sleep(wait);
+      else next = System.nanoTime();
+    }
+  }
+
+  private void renderFrame() {
+    synchronized (this) {
+      paint(bufferBrush);
+    }
+    // The strategy's buffers can be lost (e.g. the display changed): redo
+    // the copy until it sticks.
+    do {
+      do {
+        Graphics g = strategy.getDrawGraphics();
+        g.drawImage(buffer, 0, 0, null);
+        g.dispose();
+      } while (strategy.contentsRestored());
+      strategy.show();
+    } while (strategy.contentsLost());
+    Toolkit.getDefaultToolkit().sync();
+  }
+
+  private void countFrame(long nanos) {
+    statsFrames++;
+    statsNanos += nanos;
+    statsWorst = Math.max(statsWorst, nanos);
+    long now = System.nanoTime();
+    if (now - statsStart >= 1_000_000_000L) {
+      frameStats = String.format(Locale.ROOT, "%.0f fps, %.1f ms/frame (worst %.1f)",
+          statsFrames * 1e9 / (now - statsStart), statsNanos / 1e6 / statsFrames, statsWorst / 1e6);
+      statsStart = now;
+      statsFrames = statsNanos = statsWorst = 0;
+    }
+  }
+
+  // 'sleep' is a simple helper function used by the render loop.
+  private void sleep(long nanos) {
+    try {Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));} catch(Exception exc){};
   }
-}
\ No newline at end of file
+}
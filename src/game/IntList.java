@@ -0,0 +1,40 @@
+package game;
+
+import java.util.Arrays;
+
+/*
+CLASS: IntList
+DESCRIPTION: A growable list of primitive ints, so hot loops can collect
+             handles and pairs without boxing.
+USAGE: clear() and refill it every tick; the backing array is kept.
+*/
+class IntList {
+    private int[] values;
+    private int size = 0;
+
+    public IntList() { this(16); }
+
+    public IntList(int initialCapacity) {
+        values = new int[Math.max(1, initialCapacity)];
+    }
+
+    public void add(int value) {
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+    }
+
+    public void addAll(IntList other) {
+        if (size + other.size > values.length) {
+            values = Arrays.copyOf(values, Math.max(values.length * 2, size + other.size));
+        }
+        System.arraycopy(other.values, 0, values, size, other.size);
+        size += other.size;
+    }
+
+    public int get(int index) { return values[index]; }
+    public void set(int index, int value) { values[index] = value; }
+    public int size() { return size; }
+    public void clear() { size = 0; }
+    // Keeps only the first 'newSize' values.
+    public void truncate(int newSize) { size = Math.max(0, Math.min(size, newSize)); }
+}
@@ -0,0 +1,72 @@
+package game;
+
+/*
+CLASS: IntelligentDriverModel
+DESCRIPTION: The Intelligent Driver Model (Treiber et al.) for following,
+             with MOBIL (Kesting et al.) for lane changes. A driver speeds up
+             towards the desired speed on open road and keeps a gap that
+             grows with speed and with how fast the leader is being closed
+             on, which is what makes queues form and dissolve realistically.
+USAGE: forType() gives the shared default for each VehicleType; construct
+       one for custom parameters. Instances are immutable and thread-safe.
+*/
+class IntelligentDriverModel implements DriverModel {
+    private static final double EXPONENT = 4;
+
+    private final double maxAcceleration; // a
+    private final double comfortDecel;    // b
+    private final double minGap;          // s0, standstill distance
+    private final double timeHeadway;     // T, seconds
+    private final double maxBraking;      // hard floor on the acceleration
+    private final double politeness;      // MOBIL p, 0 = selfish
+    private final double changeThreshold; // MOBIL, minimum net gain to change
+    private final double safeBraking;     // MOBIL, most braking forced on the new follower
+
+    public IntelligentDriverModel(double maxAcceleration, double comfortDecel, double minGap,
+                                  double timeHeadway, double politeness) {
+        this.maxAcceleration = maxAcceleration;
+        this.comfortDecel = comfortDecel;
+        this.minGap = minGap;
+        this.timeHeadway = timeHeadway;
+        this.maxBraking = 4 * comfortDecel;
+        this.politeness = politeness;
+        this.changeThreshold = 0.2 * maxAcceleration;
+        this.safeBraking = 2 * comfortDecel;
+    }
+
+    private static final IntelligentDriverModel CAR = new IntelligentDriverModel(6, 9, 8, 1.2, 0.3);
+    private static final IntelligentDriverModel TRUCK = new IntelligentDriverModel(3, 6, 10, 1.8, 0.5);
+    private static final IntelligentDriverModel AMBULANCE = new IntelligentDriverModel(10, 12, 6, 0.8, 0.0);
+
+    public static IntelligentDriverModel forType(VehicleType type) {
+        switch (type) {
+            case TRUCK: return TRUCK;
+            case AMBULANCE: return AMBULANCE;
+            default: return CAR;
+        }
+    }
+
+    @Override
+    public double acceleration(double speed, double desiredSpeed, double gap, double leaderSpeed) {
+        double free = desiredSpeed > 0 ? Math.pow(speed / desiredSpeed, EXPONENT) : 1;
+        double closing = speed - leaderSpeed;
+        double wanted = minGap + Math.max(0, speed * timeHeadway
+                + speed * closing / (2 * Math.sqrt(maxAcceleration * comfortDecel)));
+        double interaction = gap == Double.POSITIVE_INFINITY ? 0 : wanted / Math.max(gap, 0.01);
+        double a = maxAcceleration * (1 - free - interaction * interaction);
+        return Math.max(a, -maxBraking);
+    }
+
+    @Override
+    public double comfortableDeceleration() { return comfortDecel; }
+
+    @Override
+    public boolean shouldChangeLane(double ownBefore, double ownAfter,
+                                    double newFollowerBefore, double newFollowerAfter,
+                                    double oldFollowerBefore, double oldFollowerAfter) {
+        if (newFollowerAfter < -safeBraking) return false; // would make someone brake hard
+        double gain = ownAfter - ownBefore
+                + politeness * (newFollowerAfter - newFollowerBefore + oldFollowerAfter - oldFollowerBefore);
+        return gain > changeThreshold;
+    }
+}
@@ -0,0 +1,799 @@
+package game;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+CLASS: LaneDynamics
+DESCRIPTION: Moves the NPC vehicles that follow lanes (VehicleStore.ON_LANE).
+             Each tick every such vehicle finds what is ahead of it (the next
+             vehicle on its lane, or the first one on the lane it continues
+             onto, or a red light's stop line), lets its DriverModel pick an
+             acceleration, and considers the parallel lanes on either side.
+             Then it advances along its lane's driving line and turns onto
+             the next lane where the two lines cross (so a turn cuts the
+             corner; see RoadNetwork.turnFrom()), or leaves the map if its
+             lane ends at its destination (or nowhere). A vehicle with a
+             destination takes the next lane its Router's route table
+             gives; one without (or with no way there) carries on
+             straight. At a junction the first vehicle at each stop line
+             only goes in when there is room for it past the box on its
+             next lane, nothing with a crossing or merging path is in the
+             box or can't stop before it, and no one with the right of way
+             is due first (see junctionAccel()). Traffic
+             that Preemption tells to make way for an emergency vehicle
+             moves over if it safely can, and nobody changes into the
+             stretch in front of one. A lane that runs as a queue
+             (QueueLanes) is not driven: a vehicle reaching it leaves the
+             lanes to join the queue, and waits at the end of its own lane
+             while the queue is full.
+USAGE: sense() once per tick (serial), then decideRange() and moveRange()
+       over chunks of handles; Simulation runs them as tick phases.
+       place()/snap() put a vehicle on a lane when it is spawned, and
+       entrySpeed()/enter() let demand in at the start of a lane.
+       setBlockage() puts a standing obstacle (an incident) on a lane.
+       With a Router set, want() each destination as vehicles get it and
+       prepareRoutes() before the phases each tick.
+NOTE: decideRange() only reads other vehicles and writes the vehicle's own
+      accel/targetLane; moveRange() reads other vehicles' targetLane (which
+      nothing writes during the move) and otherwise only touches the
+      vehicle's own slot. So both are safe to run in parallel chunks, and the
+      result doesn't depend on how the handles were split.
+*/
+class LaneDynamics {
+    // Room a new vehicle needs ahead of it, and the headway (seconds) it
+    // leaves anyone about to come onto its lane.
+    static final double MIN_ENTRY_GAP = 10;
+    static final double ENTRY_HEADWAY = 1.5;
+    // MOBIL bias (acceleration) for moving over to make way: more than
+    // staying could ever gain, so only the safety test can stop it.
+    static final double YIELD_BIAS = 100;
+    // Junctions: how far ahead (seconds to the stop line) drivers sort out
+    // who goes first, the acceleration a standing driver is counted on to
+    // reach the line with, the room (beyond the sum of half widths) two
+    // paths through a box need not to touch, how much sooner (seconds) one
+    // driver must be due than another to go first whichever way each
+    // turns, and how long before a driver gets there something must be
+    // out of the box not to hold it up.
+    static final double JUNCTION_HORIZON = 4;
+    static final double JUNCTION_START_ACCEL = 3;
+    static final double JUNCTION_CLEARANCE = 1;
+    static final double ARRIVAL_WINDOW = 0.5;
+    static final double JUNCTION_MARGIN = 0.5;
+    static final double RANK_EPSILON = 1e-3;
+
+    private final RoadNetwork network;
+    private final VehicleStore store;
+    private final LaneOccupancy occupancy = new LaneOccupancy();
+    // Lanes that run off the map continue on the far side of this box.
+    private final double minX, minY, maxX, maxY;
+    private SignalController signals;
+    private Preemption preemption; // who makes way this tick, or null
+    private QueueLanes queues;     // lanes run as queues, or null
+    // Per lane: where an incident blocks it (infinity when clear), and the
+    // tick something last entered at its start (so two can't enter at once).
+    private final double[] blockedAt;
+    private final long[] enteredTick;
+    private int blockedLanes = 0;
+    // Lane changes go leftwards on even ticks and rightwards on odd ones, so
+    // two vehicles can't swerve into the same gap from opposite sides.
+    private boolean leftwardTick = true;
+
+    // Routing: the route table in use for each destination node (null
+    // until wanted), the destinations vehicles have had, and those still
+    // to look up. The tables follow the router's time buckets.
+    private Router router;
+    private int[][] routes = new int[0][];
+    private boolean[] wanted = new boolean[0];
+    private final IntList pendingRoutes = new IntList();
+    private int routeBucket = -1;
+
+    public LaneDynamics(RoadNetwork network, VehicleStore store,
+                        double minX, double minY, double maxX, double maxY) {
+        this.network = network;
+        this.store = store;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        blockedAt = new double[network.laneCount()];
+        Arrays.fill(blockedAt, Double.POSITIVE_INFINITY);
+        enteredTick = new long[network.laneCount()];
+        Arrays.fill(enteredTick, -1);
+    }
+
+    // Where the stop lines get their lights from (none until set).
+    public void setSignals(SignalController controller) { signals = controller; }
+
+    public LaneOccupancy getOccupancy() { return occupancy; }
+
+    // Where the decide phase learns who makes way for emergency vehicles (null: nobody).
+    public void setPreemption(Preemption p) { preemption = p; }
+
+    // Which lanes are queues rather than driven (null: none).
+    public void setQueues(QueueLanes q) { queues = q; }
+
+    // Routes vehicles with a destination on 'r' (built on this network).
+    public void setRouter(Router r) {
+        router = r;
+        routes = new int[network.nodeCount()][];
+        wanted = new boolean[network.nodeCount()];
+        pendingRoutes.clear();
+        routeBucket = -1;
+    }
+
+    // Blocks 'lane' at 'along' (Double.POSITIVE_INFINITY clears it).
+    public void setBlockage(int lane, double along) {
+        boolean was = blockedAt[lane] < Double.POSITIVE_INFINITY, is = along < Double.POSITIVE_INFINITY;
+        blockedLanes += (is ? 1 : 0) - (was ? 1 : 0);
+        blockedAt[lane] = along;
+    }
+
+    public double blockage(int lane) { return blockedAt[lane]; }
+
+    // Clears incidents and entry marks for a fresh run.
+    public void clear() {
+        Arrays.fill(blockedAt, Double.POSITIVE_INFINITY);
+        Arrays.fill(enteredTick, -1);
+        blockedLanes = 0;
+    }
+
+    // ---------------- CHECKPOINTS ----------------
+    void save(Checkpoint.Out out) {
+        out.putDoubles(blockedAt, blockedAt.length);
+        out.putLongs(enteredTick, enteredTick.length);
+        out.putInt(blockedLanes);
+        out.putBoolean(leftwardTick);
+        occupancy.save(out);
+    }
+
+    void load(Checkpoint.In in) throws IOException {
+        in.getDoubles(blockedAt, blockedAt.length);
+        in.getLongs(enteredTick, enteredTick.length);
+        blockedLanes = in.getInt();
+        leftwardTick = in.getBoolean();
+        occupancy.load(in);
+    }
+
+    // ---------------- PLACING ----------------
+    // Puts vehicle h on 'lane', 'along' units down its driving line.
+    public void place(int h, int lane, double along) {
+        store.lane[h] = store.targetLane[h] = lane;
+        store.along[h] = along;
+        store.setFlags(h, store.flags[h] | VehicleStore.ON_LANE);
+        store.setHeading(h, network.laneHeading(lane));
+        VehicleType t = VehicleType.byId(store.type[h]);
+        store.x[h] = network.laneX(lane, along) - t.length / 2;
+        store.y[h] = network.laneY(lane, along) - t.width / 2;
+    }
+
+    // Places h on the lane nearest its current pose; false (and left as is) if none.
+    public boolean snap(int h) {
+        double cx = store.centerX(h), cy = store.centerY(h);
+        int lane = network.snapLane(cx, cy, store.heading[h]);
+        if (lane < 0) return false;
+        place(h, lane, Math.max(0, Math.min(network.laneLength(lane), network.positionAlong(lane, cx, cy))));
+        return true;
+    }
+
+    /*
+    METHOD: entrySpeed
+    DESCRIPTION: How fast a vehicle of 'type' wanting 'desired' can appear
+                 at the start of 'lane' this tick: no faster than lets it
+                 stop comfortably behind whatever is ahead, and -1 if there
+                 isn't room at all. Runs before sense(), so it looks at the
+                 back of the lane as last filed, at the backs of its side
+                 lanes (which may have changed into it since) and at the
+                 fronts of the lanes leading into it (which may have
+                 crossed over since), by their current positions; anyone
+                 coming up behind must also be far enough back to stop.
+    */
+    public double entrySpeed(int lane, VehicleType type, double desired, long tick) {
+        if (enteredTick[lane] == tick) return -1;
+        double gap = blockedAt[lane] - type.length, leaderSpeed = 0;
+        for (int side = 0; side < 3; side++) {
+            int source = side == 0 ? lane : side == 1 ? network.leftLane(lane) : network.rightLane(lane);
+            if (source < 0) continue;
+            for (int k = 0; k < occupancy.count(source) && k < 2; k++) {
+                int h = occupancy.vehicle(source, k);
+                if (!store.isAlive(h) || store.lane[h] != lane) continue;
+                double g = store.along[h] - halfLength(h) - type.length;
+                if (g < gap) {
+                    gap = g;
+                    leaderSpeed = store.speed[h];
+                }
+            }
+        }
+        int from = network.laneFrom(lane);
+        for (int i = 0; i < network.inDegree(from); i++) {
+            int feeder = network.inLane(from, i);
+            if (occupancy.count(feeder) == 0) continue;
+            int h = occupancy.vehicle(feeder, occupancy.count(feeder) - 1);
+            if (!store.isAlive(h) || nextLane(h, feeder) != lane) continue;
+            if (store.lane[h] == lane) {
+                double g = store.along[h] - halfLength(h) - type.length;
+                if (g < gap) {
+                    gap = g;
+                    leaderSpeed = store.speed[h];
+                }
+            } else if (store.lane[h] == feeder) {
+                double toEnd = network.turnFrom(feeder, lane, halfLength(h)) - store.along[h] - halfLength(h);
+                if (toEnd < MIN_ENTRY_GAP + store.speed[h] * ENTRY_HEADWAY) return -1;
+            }
+        }
+        gap -= MIN_ENTRY_GAP;
+        if (gap < network.junctionHalfSize(from)) return -1; // it would wait in the box
+        if (crossedAt(lane, type, desired)) return -1;
+        double braking = IntelligentDriverModel.forType(type).comfortableDeceleration();
+        return Math.min(desired, leaderSpeed + Math.sqrt(2 * braking * gap));
+    }
+
+    // Whether a vehicle of 'type' appearing at the start of 'lane' at
+    // 'desired' would meet, before it is out of the box, anything whose way
+    // through that junction crosses its own: a vehicle in the box on
+    // another lane out, or one on a lane in that is due there by then.
+    private boolean crossedAt(int lane, VehicleType type, double desired) {
+        int node = network.laneFrom(lane);
+        double exit = network.junctionHalfSize(node), half = type.length / 2;
+        double clear = travelTime(exit + type.length, desired);
+        for (int i = 0; i < network.inDegree(node); i++) {
+            int other = network.inLane(node, i);
+            for (int k = occupancy.count(other) - 1; k >= 0; k--) { // from the front
+                int h = occupancy.vehicle(other, k);
+                if (!store.isAlive(h) || store.lane[h] != other) continue;
+                double hHalf = halfLength(h), v = store.speed[h];
+                double hToStop = network.stopLine(other) - store.along[h] - hHalf;
+                if (travelTime(hToStop, v) > clear || mustStop(other, hToStop, v, store.driverOf(h))) break;
+                int hNext = nextLane(h, other);
+                if (hNext >= 0 && hNext != lane && crosses(-1, 0, lane, 0, exit + half, type.width, half, other,
+                        Math.min(store.along[h] - hHalf, network.stopLine(other)), hNext, 0, exit + hHalf,
+                        VehicleType.byId(store.type[h]).width, hHalf)) {
+                    return true;
+                }
+            }
+        }
+        for (int j = 0; j < network.outDegree(node); j++) {
+            int out = network.outLane(node, j);
+            if (out == lane) continue;
+            for (int k = 0; k < occupancy.count(out); k++) { // from the back
+                int h = occupancy.vehicle(out, k);
+                double hHalf = halfLength(h), rear = store.along[h] - hHalf;
+                if (rear >= exit) break;
+                if (store.isAlive(h) && store.lane[h] == out && crosses(-1, 0, lane, 0, exit + half, type.width, half,
+                        -1, 0, out, rear, exit + hHalf, VehicleType.byId(store.type[h]).width, hHalf)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Puts h at the very start of 'lane' (see entrySpeed()).
+    public void enter(int h, int lane, long tick) {
+        place(h, lane, halfLength(h));
+        enteredTick[lane] = tick;
+    }
+
+    // ---------------- ROUTING ----------------
+    // A vehicle is heading for 'destination' (-1: nowhere in particular).
+    public void want(int destination) {
+        if (destination < 0 || destination >= wanted.length || wanted[destination]) return;
+        wanted[destination] = true;
+        pendingRoutes.add(destination);
+    }
+
+    /*
+    METHOD: prepareRoutes
+    DESCRIPTION: Makes sure every wanted destination has its route table
+                 for the time bucket 'tick' falls in: the new ones since
+                 last time, or all of them when the bucket changes. Missing
+                 tables are searched in one parallel batch on 'executor'.
+                 Serial; the phases then only read the tables.
+    */
+    public void prepareRoutes(long tick, TickExecutor executor) {
+        if (router == null) return;
+        int bucket = router.bucketOf(tick);
+        if (bucket != routeBucket) {
+            routeBucket = bucket;
+            Arrays.fill(routes, null);
+            pendingRoutes.clear();
+            for (int d = 0; d < wanted.length; d++) {
+                if (wanted[d]) pendingRoutes.add(d);
+            }
+        }
+        if (pendingRoutes.size() == 0) return;
+        router.tables(pendingRoutes, bucket, routes, executor);
+        pendingRoutes.clear();
+    }
+
+    // The lane vehicle h takes at the end of 'lane': its route's, or else straight on.
+    int nextLane(int h, int lane) {
+        return nextLaneTo(store.destination[h], lane);
+    }
+
+    // The same for anything bound for 'destination' (-1: nowhere in particular).
+    int nextLaneTo(int destination, int lane) {
+        if (destination >= 0 && destination < routes.length) {
+            int[] table = routes[destination];
+            if (table != null && table[lane] >= 0) return table[lane];
+        }
+        return network.nextLane(lane);
+    }
+
+    // ---------------- PHASES ----------------
+    public void sense(long tick) {
+        occupancy.rebuild(store, network.laneCount());
+        leftwardTick = (tick & 1) == 0;
+    }
+
+    /*
+    METHOD: decideRange
+    DESCRIPTION: Acceleration and lane choice for the lane followers among
+                 handles [from, to). A lane change is MOBIL: move to the side
+                 lane if the driver's model accepts the gain after weighing
+                 what it costs the followers on both lanes. A driver making
+                 way for an emergency vehicle adds YIELD_BIAS to the gain;
+                 a stretch kept clear for one is never changed into.
+    */
+    public void decideRange(int from, int to) {
+        int[] flags = store.flags, lanes = store.lane;
+        double[] along = store.along, speed = store.speed;
+        int need = VehicleStore.ALIVE | VehicleStore.AUTONOMOUS | VehicleStore.ON_LANE;
+        for (int h = from; h < to; h++) {
+            if ((flags[h] & need) != need) continue;
+            int lane = lanes[h];
+            DriverModel model = store.driverOf(h);
+            double s = along[h], v = speed[h], half = halfLength(h);
+            int leader = occupancy.leaderOf(h, lane);
+            double a = follow(h, model, v, desired(h, lane), lane, s, half, leader);
+
+            // Lane change: compare staying with this tick's side lane
+            // (never inside a junction box, where lanes cross and merge).
+            int target = lane, targetLeader = leader;
+            int other = leftwardTick ? network.leftLane(lane) : network.rightLane(lane);
+            if (other >= 0 && (s - half < network.junctionHalfSize(network.laneFrom(lane))
+                    || s + half > network.stopLine(lane)
+                    || preemption != null && preemption.keepClear(other, s, half))) {
+                other = -1;
+            }
+            if (other >= 0) {
+                int k = occupancy.countBehind(other, s, along);
+                int newLeader = k < occupancy.count(other) ? occupancy.vehicle(other, k) : -1;
+                int newFollower = k > 0 ? occupancy.vehicle(other, k - 1) : -1;
+                // Never cut in overlapping anyone.
+                boolean clear = (newLeader < 0 || along[newLeader] - halfLength(newLeader) - s - half >= 0)
+                        && (newFollower < 0 || s - half - along[newFollower] - halfLength(newFollower) >= 0);
+                if (clear) {
+                    double after = follow(h, model, v, desired(h, other), other, s, half, newLeader);
+                    double newFollowerBefore = newFollower < 0 ? 0 : accelBehind(newFollower, other, newLeader);
+                    double newFollowerAfter = newFollower < 0 ? 0 : accelBehind(newFollower, other, h);
+                    int oldFollower = occupancy.followerOf(h, lane);
+                    double oldFollowerBefore = oldFollower < 0 ? 0 : accelBehind(oldFollower, lane, h);
+                    double oldFollowerAfter = oldFollower < 0 ? 0 : accelBehind(oldFollower, lane, leader);
+                    double bias = preemption != null && preemption.yielding(h) ? YIELD_BIAS : 0;
+                    if (model.shouldChangeLane(a, after + bias, newFollowerBefore, newFollowerAfter,
+                            oldFollowerBefore, oldFollowerAfter)) {
+                        a = after;
+                        target = other;
+                        targetLeader = newLeader;
+                    }
+                }
+            }
+            a = Math.min(a, junctionAccel(h, model, v, desired(h, target), target, s, half, targetLeader));
+            store.accel[h] = a;
+            store.targetLane[h] = target;
+        }
+    }
+
+    /*
+    METHOD: moveRange
+    DESCRIPTION: Integrates speed and distance for the lane followers among
+                 [from, to) and writes their new position into the store's
+                 back buffer. Past its turn point (RoadNetwork.turnFrom())
+                 a vehicle carries on along the next lane from where the
+                 turn comes out; where the road leaves the map it comes
+                 back in on the far side, like everything else that wraps.
+                 A vehicle with a destination instead leaves at the end of
+                 a lane into its destination, or one with no way on; its
+                 handle goes into 'arrived' for the caller to remove. One
+                 that reaches a queue lane is given that lane and goes into
+                 'joining', for the caller to move into the queue.
+    */
+    public void moveRange(int from, int to, double dt, IntList arrived, IntList joining) {
+        int[] flags = store.flags;
+        double[] along = store.along, speed = store.speed, accel = store.accel;
+        int need = VehicleStore.ALIVE | VehicleStore.AUTONOMOUS | VehicleStore.ON_LANE;
+        for (int h = from; h < to; h++) {
+            if ((flags[h] & need) != need) continue;
+            double v = speed[h], a = accel[h];
+            double v1 = v + a * dt, ds;
+            if (v1 < 0) { // stops within the tick
+                ds = a < 0 ? -v * v / (2 * a) : 0;
+                v1 = 0;
+            } else {
+                ds = (v + v1) / 2 * dt;
+            }
+            speed[h] = v1;
+
+            int startLane = store.lane[h], lane = store.targetLane[h];
+            if (lane != startLane) {
+                // Two in a row heading for the same lane: the one behind waits.
+                int ahead = occupancy.leaderOf(h, startLane);
+                if (ahead >= 0 && store.targetLane[ahead] == lane) lane = startLane;
+            }
+            double s = along[h] + ds;
+            int destination = store.destination[h];
+            boolean gone = false, joined = false;
+            while (s > network.stopLine(lane)) {
+                boolean home = network.laneTo(lane) == destination;
+                int next = home ? -1 : nextLane(h, lane);
+                double end = next >= 0 ? network.turnFrom(lane, next, halfLength(h)) : network.laneLength(lane);
+                if (s <= end) break;
+                if (home) { // arrived
+                    gone = true;
+                    break;
+                }
+                if (next >= 0) {
+                    s += network.turnInto(lane, next, halfLength(h)) - end;
+                } else {
+                    s -= end;
+                    next = reenter(lane);
+                }
+                if (next < 0) { // nowhere to go: a sink, or carry on straight off the lane graph
+                    gone = destination >= 0;
+                    if (!gone) leaveLanes(h, dt);
+                    break;
+                }
+                lane = next;
+                if (queues != null && queues.isQueue(lane)) {
+                    joined = true;
+                    break;
+                }
+            }
+            if (gone) {
+                arrived.add(h);
+                continue;
+            }
+            if (joined) {
+                store.lane[h] = lane;
+                joining.add(h);
+                continue;
+            }
+            if ((store.flags[h] & VehicleStore.ON_LANE) == 0) continue;
+            store.lane[h] = lane;
+            along[h] = s;
+            if (lane != startLane) store.setHeading(h, network.laneHeading(lane));
+            VehicleType t = VehicleType.byId(store.type[h]);
+            store.nextX[h] = network.laneX(lane, s) - t.length / 2;
+            store.nextY[h] = network.laneY(lane, s) - t.width / 2;
+        }
+    }
+
+    // ---------------- HELPERS ----------------
+    /*
+    METHOD: follow
+    DESCRIPTION: The acceleration of a driver at 's' on 'lane' behind
+                 'leader' (the first vehicle ahead on that lane, or -1).
+                 With no leader on the lane it looks at the first vehicle on
+                 the lane it continues onto (or wraps onto). A light that
+                 says stop adds a standing obstacle at the stop line, a full
+                 queue lane next one at the end of the lane, and an incident
+                 one where it blocks the lane; the driver takes whichever
+                 asks for the hardest braking.
+    */
+    private double follow(int self, DriverModel model, double v, double desired,
+                          int lane, double s, double half, int leader) {
+        double gap = Double.POSITIVE_INFINITY, leaderSpeed = v;
+        int next = -2; // not looked up yet
+        if (leader >= 0) {
+            gap = store.along[leader] - halfLength(leader) - s - half;
+            leaderSpeed = store.speed[leader];
+        } else {
+            next = nextLane(self, lane);
+            if (next < 0) next = reenter(lane);
+            int ahead = next >= 0 ? occupancy.first(next) : -1;
+            if (ahead >= 0 && ahead != self) {
+                gap = toTurn(lane, next, half) - s + store.along[ahead] - halfLength(ahead) - half;
+                leaderSpeed = store.speed[ahead];
+            }
+        }
+        double a = model.acceleration(v, desired, gap, leaderSpeed);
+        double toStop = network.stopLine(lane) - s - half;
+        if (toStop >= 0 && mustStop(lane, toStop, v, model)) {
+            a = Math.min(a, model.acceleration(v, desired, toStop, 0));
+        }
+        if (queues != null) { // a full queue ahead is a wall at the end of this lane
+            if (next == -2) {
+                next = nextLane(self, lane);
+                if (next < 0) next = reenter(lane);
+            }
+            if (next >= 0 && queues.isQueue(next) && !queues.hasRoom(next, VehicleType.byId(store.type[self]))) {
+                a = Math.min(a, model.acceleration(v, desired, Math.max(0, turnOff(lane, next, half) - s - half), 0));
+            }
+        }
+        if (blockedLanes == 0) return a;
+        // Incidents: ahead on this lane, or else on the lane it continues onto.
+        double toBlock = blockedAt[lane] > s ? blockedAt[lane] - s - half : Double.POSITIVE_INFINITY;
+        if (toBlock == Double.POSITIVE_INFINITY) {
+            if (next == -2) {
+                next = nextLane(self, lane);
+                if (next < 0) next = reenter(lane);
+            }
+            if (next >= 0 && blockedAt[next] < Double.POSITIVE_INFINITY) {
+                toBlock = toTurn(lane, next, half) - s + blockedAt[next] - half;
+            }
+        }
+        if (toBlock < Double.POSITIVE_INFINITY) {
+            a = Math.min(a, model.acceleration(v, desired, Math.max(0, toBlock), 0));
+        }
+        return a;
+    }
+
+    // ---------------- JUNCTIONS ----------------
+    /*
+    METHOD: junctionAccel
+    DESCRIPTION: The acceleration that holds a driver at the stop line of
+                 'lane' (infinity when it may go on). Only the first driver
+                 short of the line decides, once it is due there within
+                 JUNCTION_HORIZON; one that can no longer stop comfortably
+                 before it is committed, like one past it. It waits while
+                 its next lane has no room for it beyond the box (so it
+                 never stops inside and blocks the junction), and while
+                 conflicts() finds anything in its way: the lights decide
+                 which lanes may go, and among those drivers give way as
+                 yields() says.
+    */
+    private double junctionAccel(int self, DriverModel model, double v, double desired,
+                                 int lane, double s, double half, int leader) {
+        double toStop = network.stopLine(lane) - s - half;
+        if (toStop < 0) return Double.POSITIVE_INFINITY;
+        if (leader >= 0 && store.along[leader] + halfLength(leader) <= network.stopLine(lane)) {
+            return Double.POSITIVE_INFINITY; // it gets there first and decides
+        }
+        if (travelTime(toStop, v) > JUNCTION_HORIZON) return Double.POSITIVE_INFINITY;
+        int next = nextLane(self, lane);
+        if (next < 0 || network.laneTo(lane) == store.destination[self] || queues != null && queues.isQueue(next)) {
+            return Double.POSITIVE_INFINITY; // it leaves the lanes there
+        }
+        boolean committed = toStop < v * v / (2 * model.comfortableDeceleration());
+        if ((committed || hasRoom(self, lane, next, leader)) && !conflicts(self, lane, next, toStop, committed)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return model.acceleration(v, desired, toStop, 0);
+    }
+
+    // Whether 'self', going from 'lane' onto 'next', would fit behind the
+    // back of the traffic there (allowing for how fast it is moving off)
+    // without stopping in the box; 'leader' is whoever is ahead of it on
+    // 'lane' inside the box, and counts if it is going the same way.
+    private boolean hasRoom(int self, int lane, int next, int leader) {
+        int back = occupancy.first(next);
+        if (back < 0 || back == self) return true;
+        double room = store.along[back] - halfLength(back) - network.junctionHalfSize(network.laneFrom(next))
+                + store.speed[back] * ENTRY_HEADWAY;
+        if (leader >= 0 && nextLane(leader, lane) == next) room -= 2 * halfLength(leader) + MIN_ENTRY_GAP;
+        return room >= 2 * halfLength(self) + MIN_ENTRY_GAP;
+    }
+
+    /*
+    METHOD: conflicts
+    DESCRIPTION: Whether anything keeps 'self' ('toStop' short of the line
+                 of 'lane', then onto 'next') out of the box: a vehicle on
+                 another lane in that is committed, or one still in the box
+                 on a lane out, whose path crosses or merges with its own
+                 and which won't be out of the box JUNCTION_MARGIN before
+                 'self' gets there; or, unless 'self' is committed itself,
+                 the first vehicle still free to stop on another lane in, if
+                 that one has the right of way (see yields()).
+    */
+    private boolean conflicts(int self, int lane, int next, double toStop, boolean committed) {
+        int node = network.laneTo(lane);
+        double exit = network.junctionHalfSize(node), half = halfLength(self);
+        double width = VehicleType.byId(store.type[self]).width, ownTo = exit + half;
+        double eta = travelTime(toStop, store.speed[self]);
+        double clear = travelTime(toStop + 2 * exit + 2 * half, store.speed[self]);
+        for (int i = 0; i < network.inDegree(node); i++) {
+            int other = network.inLane(node, i);
+            if (other == lane) continue;
+            for (int k = occupancy.count(other) - 1; k >= 0; k--) { // from the front
+                int h = occupancy.vehicle(other, k);
+                double hHalf = halfLength(h), v = store.speed[h];
+                double hToStop = network.stopLine(other) - store.along[h] - hHalf;
+                boolean hCommitted = hToStop < v * v / (2 * store.driverOf(h).comfortableDeceleration());
+                int hNext = nextLane(h, other);
+                boolean counts = hNext >= 0 && (hCommitted
+                        ? travelTime(hToStop + 2 * exit + 2 * hHalf, v) + JUNCTION_MARGIN > eta // not gone by then
+                        : !committed && yields(self, lane, next, eta, clear, h, other, hNext, hToStop, exit));
+                if (counts && crosses(lane, network.stopLine(lane), next, 0, ownTo, width, half, other,
+                        Math.min(store.along[h] - hHalf, network.stopLine(other)), hNext, 0, exit + hHalf,
+                        VehicleType.byId(store.type[h]).width, hHalf)) {
+                    return true;
+                }
+                if (!hCommitted) break;
+            }
+        }
+        for (int j = 0; j < network.outDegree(node); j++) {
+            int out = network.outLane(node, j);
+            if (out == next) continue; // ahead of it there, so only to be followed
+            for (int k = 0; k < occupancy.count(out); k++) { // from the back
+                int h = occupancy.vehicle(out, k);
+                double hHalf = halfLength(h), rear = store.along[h] - hHalf;
+                if (rear >= exit) break;
+                if (travelTime(exit - rear, store.speed[h]) + JUNCTION_MARGIN <= eta) continue; // gone by then
+                if (h != self && crosses(lane, network.stopLine(lane), next, 0, ownTo, width, half,
+                        -1, 0, out, rear, exit + hHalf, VehicleType.byId(store.type[h]).width, hHalf)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+    METHOD: yields
+    DESCRIPTION: Whether 'self' (going from 'lane' onto 'next', due at its
+                 line in 'eta' seconds and clear of the box in 'clear')
+                 gives way to h, the first vehicle still free to stop on
+                 lane 'other', 'toStop' short of its line and then taking
+                 'hNext'. Not if h must stop anyway (its light, or no room
+                 past the box) or is further off than JUNCTION_HORIZON.
+                 Otherwise emergency vehicles go first, then one due more
+                 than ARRIVAL_WINDOW sooner (so a turn across a steady
+                 stream still gets a go), then the movement that cuts
+                 across less (see turnRank()), then the earlier arrival,
+                 then the lower id; the one behind in that order gives way
+                 if the other is due before it is through. Both sides work
+                 this out from the same state, so at most one waits for the
+                 other.
+    */
+    private boolean yields(int self, int lane, int next, double eta, double clear,
+                           int h, int other, int hNext, double toStop, double exit) {
+        double v = store.speed[h];
+        if (mustStop(other, toStop, v, store.driverOf(h))) return false;
+        double hEta = travelTime(toStop, v);
+        if (hEta > JUNCTION_HORIZON || !hasRoom(h, other, hNext, occupancy.leaderOf(h, other))) return false;
+        boolean urgent = (store.flags[h] & VehicleStore.EMERGENCY) != 0;
+        if (urgent != ((store.flags[self] & VehicleStore.EMERGENCY) != 0)) return urgent && hEta <= clear;
+        double rank = turnRank(lane, next), hRank = turnRank(other, hNext);
+        boolean hFirst = Math.abs(hEta - eta) > ARRIVAL_WINDOW ? hEta < eta
+                       : Math.abs(hRank - rank) > RANK_EPSILON ? hRank > rank
+                       : hEta != eta ? hEta < eta : store.id[h] < store.id[self];
+        return hFirst && hEta <= clear;
+    }
+
+    // How little the turn from 'in' onto 'out' cuts across other traffic:
+    // 1 straight on, 0.5 towards the lane's own side, -0.5 across the
+    // other way, -1 turning back.
+    private double turnRank(int in, int out) {
+        double dot = network.laneDirX(in) * network.laneDirX(out) + network.laneDirY(in) * network.laneDirY(out);
+        double cross = network.laneDirX(in) * network.laneDirY(out) - network.laneDirY(in) * network.laneDirX(out);
+        return dot + 0.5 * Math.signum(cross) * Math.signum(network.laneOffset(in));
+    }
+
+    // Seconds to cover 'distance' from 'v', or from standing at JUNCTION_START_ACCEL.
+    private static double travelTime(double distance, double v) {
+        return distance / Math.max(v, Math.sqrt(JUNCTION_START_ACCEL * Math.max(distance, 1e-9) / 2));
+    }
+
+    /*
+    METHOD: crosses
+    DESCRIPTION: Whether two paths through a junction come closer than
+                 their half widths plus JUNCTION_CLEARANCE. A path runs down
+                 lane 'in' from 'from' to where the nose of a vehicle 'half'
+                 its length long is as it turns off, then down lane 'out'
+                 from where its tail is as it comes out (or 'outFrom' if
+                 further) to 'to'; with no 'in' (-1) only the second part.
+    */
+    private boolean crosses(int inA, double fromA, int outA, double outFromA, double toA, double widthA, double halfA,
+                            int inB, double fromB, int outB, double outFromB, double toB, double widthB, double halfB) {
+        double reach = (widthA + widthB) / 2 + JUNCTION_CLEARANCE;
+        for (int i = inA < 0 ? 2 : 0; i < 3; i++) {
+            double ax = cornerX(inA, fromA, outA, outFromA, toA, halfA, i), ay = cornerY(inA, fromA, outA, outFromA, toA, halfA, i);
+            double bx = cornerX(inA, fromA, outA, outFromA, toA, halfA, i + 1), by = cornerY(inA, fromA, outA, outFromA, toA, halfA, i + 1);
+            for (int j = inB < 0 ? 2 : 0; j < 3; j++) {
+                if (segmentDistance(ax, ay, bx, by,
+                        cornerX(inB, fromB, outB, outFromB, toB, halfB, j), cornerY(inB, fromB, outB, outFromB, toB, halfB, j),
+                        cornerX(inB, fromB, outB, outFromB, toB, halfB, j + 1), cornerY(inB, fromB, outB, outFromB, toB, halfB, j + 1))
+                        < reach) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Corner c of such a path: its start, the nose where it turns off
+    // 'in', the tail where it comes out on 'out' (or 'outFrom' if further),
+    // its end.
+    private double cornerX(int in, double from, int out, double outFrom, double to, double half, int c) {
+        switch (c) {
+            case 0: return network.laneX(in, from);
+            case 1: return network.laneX(in, network.turnFrom(in, out, half) + half);
+            case 2: return network.laneX(out, Math.min(in < 0 ? outFrom : Math.max(outFrom, network.turnInto(in, out, half) - half), to));
+            default: return network.laneX(out, to);
+        }
+    }
+
+    private double cornerY(int in, double from, int out, double outFrom, double to, double half, int c) {
+        switch (c) {
+            case 0: return network.laneY(in, from);
+            case 1: return network.laneY(in, network.turnFrom(in, out, half) + half);
+            case 2: return network.laneY(out, Math.min(in < 0 ? outFrom : Math.max(outFrom, network.turnInto(in, out, half) - half), to));
+            default: return network.laneY(out, to);
+        }
+    }
+
+    // Shortest distance between segments (ax, ay)-(bx, by) and (cx, cy)-(dx, dy).
+    static double segmentDistance(double ax, double ay, double bx, double by,
+                                  double cx, double cy, double dx, double dy) {
+        double abx = bx - ax, aby = by - ay, cdx = dx - cx, cdy = dy - cy;
+        double d1 = (cx - ax) * aby - (cy - ay) * abx, d2 = (dx - ax) * aby - (dy - ay) * abx;
+        double d3 = (ax - cx) * cdy - (ay - cy) * cdx, d4 = (bx - cx) * cdy - (by - cy) * cdx;
+        if (d1 * d2 < 0 && d3 * d4 < 0) return 0; // they cross
+        return Math.min(Math.min(pointDistance(ax, ay, cx, cy, dx, dy), pointDistance(bx, by, cx, cy, dx, dy)),
+                        Math.min(pointDistance(cx, cy, ax, ay, bx, by), pointDistance(dx, dy, ax, ay, bx, by)));
+    }
+
+    // Distance from (px, py) to the segment (ax, ay)-(bx, by).
+    private static double pointDistance(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax, dy = by - ay, len2 = dx * dx + dy * dy;
+        double t = len2 == 0 ? 0 : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / len2));
+        return Math.hypot(px - ax - t * dx, py - ay - t * dy);
+    }
+
+    // How far down 'lane' the start of 'next' is for a vehicle 'half' its
+    // length long: where it turns off, less how far down 'next' it comes
+    // out (next may be a wrap).
+    private double toTurn(int lane, int next, double half) {
+        if (network.laneTo(lane) != network.laneFrom(next)) return network.laneLength(lane);
+        return network.turnFrom(lane, next, half) - network.turnInto(lane, next, half);
+    }
+
+    // Where a vehicle 'half' its length long going on to 'next' leaves 'lane'.
+    private double turnOff(int lane, int next, double half) {
+        return network.laneTo(lane) == network.laneFrom(next) ? network.turnFrom(lane, next, half) : network.laneLength(lane);
+    }
+
+    // Acceleration of 'follower' (on 'lane') if 'leader' were directly ahead of it.
+    private double accelBehind(int follower, int lane, int leader) {
+        if ((store.flags[follower] & VehicleStore.AUTONOMOUS) == 0) return 0; // the player doesn't react
+        return follow(follower, store.driverOf(follower), store.speed[follower], desired(follower, lane),
+                lane, store.along[follower], halfLength(follower), leader);
+    }
+
+    // Red always stops; yellow only if the driver can still stop comfortably
+    // and isn't already at the line (like one waiting there to turn across).
+    private boolean mustStop(int lane, double toStop, double v, DriverModel model) {
+        LightState light = signals == null ? LightState.GREEN : signals.laneState(lane);
+        if (light == LightState.GREEN) return false;
+        return light == LightState.RED
+                || toStop > MIN_ENTRY_GAP && toStop >= v * v / (2 * model.comfortableDeceleration());
+    }
+
+    private double desired(int h, int lane) {
+        return Math.min(store.desiredSpeed[h], network.laneSpeedLimit(lane));
+    }
+
+    private double halfLength(int h) {
+        return VehicleType.byId(store.type[h]).length / 2;
+    }
+
+    // The lane a vehicle comes back in on after driving off the map at the
+    // end of 'lane': the matching lane found across the wrap box. -1 if the
+    // lane ends inside the box or nothing lines up on the other side.
+    int reenter(int lane) {
+        double len = network.laneLength(lane);
+        double px = network.laneX(lane, len), py = network.laneY(lane, len);
+        double wx = px >= maxX ? minX : px <= minX ? maxX : px;
+        double wy = py >= maxY ? minY : py <= minY ? maxY : py;
+        if (wx == px && wy == py) return -1;
+        return network.snapLane(wx, wy, network.laneHeading(lane)); // may be 'lane' itself (a ring)
+    }
+
+    private void leaveLanes(int h, double dt) {
+        store.lane[h] = -1;
+        store.setFlags(h, store.flags[h] & ~VehicleStore.ON_LANE);
+        store.nextX[h] = store.x[h] + store.vx[h] * dt;
+        store.nextY[h] = store.y[h] + store.vy[h] * dt;
+    }
+}
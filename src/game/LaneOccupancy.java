@@ -0,0 +1,157 @@
+package game;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+CLASS: LaneOccupancy
+DESCRIPTION: Which vehicles are on each lane, in order from the start of the
+             lane to its end. It is a CSR table like RoadNetwork's: the
+             vehicles of lane l are order[start[l] .. start[l+1]), sorted by
+             distance along the lane, so a vehicle's leader is simply the
+             next entry and finding it is O(1).
+USAGE: rebuild() once per tick, before anyone asks for a leader; then
+       leaderOf()/followerOf() and the per-lane accessors. Read-only
+       between rebuilds, so any number of threads can query it.
+NOTE: Traffic mostly keeps its order from one tick to the next, so the
+      rebuild files vehicles in last tick's order and then insertion-sorts
+      each lane, which is linear when (as usual) almost nothing overtook.
+*/
+class LaneOccupancy {
+    private int[] start = new int[1];      // per lane, plus one
+    private int[] order = new int[0];      // handles grouped by lane, sorted by 'along'
+    private int[] previous = new int[0];   // copy of the last order, the next starting guess
+    private int previousCount = 0;
+    private int[] rank = new int[0];       // per handle: index into 'order', -1 if on no lane
+    private int[] fill = new int[0];
+    private int count = 0;
+    private int lanesFiled = 0, handlesFiled = 0; // sizes at the last rebuild
+
+    /*
+    METHOD: rebuild
+    DESCRIPTION: Files every live vehicle with a lane (autonomous or not, so
+                 traffic also queues behind the player) and sorts each lane.
+    */
+    public void rebuild(VehicleStore store, int laneCount) {
+        int n = store.highWater();
+        int[] lanes = store.lane, flags = store.flags;
+        double[] along = store.along;
+        if (start.length < laneCount + 1) {
+            start = new int[laneCount + 1];
+            fill = new int[laneCount];
+        }
+        if (rank.length < n) rank = new int[Math.max(n, rank.length * 2)];
+        if (order.length < n) {
+            order = new int[Math.max(n, order.length * 2)];
+            previous = Arrays.copyOf(previous, order.length);
+        }
+
+        // Count per lane, then prefix sums.
+        Arrays.fill(start, 0, laneCount + 1, 0);
+        count = 0;
+        for (int h = 0; h < n; h++) {
+            rank[h] = -1;
+            if ((flags[h] & VehicleStore.ALIVE) != 0 && lanes[h] >= 0) {
+                start[lanes[h] + 1]++;
+                count++;
+            }
+        }
+        for (int l = 0; l < laneCount; l++) start[l + 1] += start[l];
+        System.arraycopy(start, 0, fill, 0, laneCount);
+
+        // Last tick's order first, then anyone new; rank doubles as "already filed".
+        for (int k = 0; k < previousCount; k++) place(previous[k], n, lanes, flags);
+        for (int h = 0; h < n; h++) place(h, n, lanes, flags);
+
+        // Only lanes with someone on them: in a large or mostly queued network
+        // (QueueLanes) nearly every lane is empty.
+        for (int k = 0; k < count; ) {
+            int l = lanes[order[k]];
+            sortLane(start[l], start[l + 1], along);
+            k = start[l + 1];
+        }
+        for (int k = 0; k < count; k++) rank[order[k]] = k;
+
+        System.arraycopy(order, 0, previous, 0, count);
+        previousCount = count;
+        lanesFiled = laneCount;
+        handlesFiled = n;
+    }
+
+    // ---------------- CHECKPOINTS ----------------
+    // The table as last rebuilt: a checkpoint is taken after vehicles have
+    // moved, but the next tick's events still look at where they were filed.
+    void save(Checkpoint.Out out) {
+        out.putInts(start, lanesFiled + 1);
+        out.putInts(order, count);
+        out.putInts(rank, handlesFiled);
+    }
+
+    void load(Checkpoint.In in) throws IOException {
+        lanesFiled = in.peekLength() - 1;
+        if (start.length < lanesFiled + 1) {
+            start = new int[lanesFiled + 1];
+            fill = new int[lanesFiled];
+        }
+        in.getInts(start, lanesFiled + 1);
+        count = in.peekLength();
+        if (order.length < count) {
+            order = new int[count];
+            previous = new int[count];
+        }
+        in.getInts(order, count);
+        System.arraycopy(order, 0, previous, 0, count);
+        previousCount = count;
+        handlesFiled = in.peekLength();
+        if (rank.length < handlesFiled) rank = new int[handlesFiled];
+        in.getInts(rank, handlesFiled);
+    }
+
+    private void place(int h, int n, int[] lanes, int[] flags) {
+        if (h >= n || rank[h] >= 0 || (flags[h] & VehicleStore.ALIVE) == 0 || lanes[h] < 0) return;
+        order[fill[lanes[h]]++] = h;
+        rank[h] = 0; // filed; the real rank is set after sorting
+    }
+
+    private void sortLane(int from, int to, double[] along) {
+        for (int i = from + 1; i < to; i++) {
+            int h = order[i];
+            double key = along[h];
+            int j = i - 1;
+            while (j >= from && along[order[j]] > key) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = h;
+        }
+    }
+
+    // ---------------- QUERIES ----------------
+    public int count(int lane) { return start[lane + 1] - start[lane]; }
+    // The k-th vehicle on the lane counting from its start.
+    public int vehicle(int lane, int k) { return order[start[lane] + k]; }
+    public int first(int lane) { return count(lane) > 0 ? order[start[lane]] : -1; }
+
+    // The vehicle directly ahead of h on its own lane, or -1 if h is the front one.
+    public int leaderOf(int h, int lane) {
+        int k = rank[h] + 1;
+        return k < start[lane + 1] ? order[k] : -1;
+    }
+
+    // The vehicle directly behind h on its own lane, or -1.
+    public int followerOf(int h, int lane) {
+        int k = rank[h] - 1;
+        return k >= start[lane] ? order[k] : -1;
+    }
+
+    // How many vehicles on 'lane' are strictly behind 'along' (binary search).
+    public int countBehind(int lane, double along, double[] alongs) {
+        int lo = start[lane], hi = start[lane + 1];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (alongs[order[mid]] < along) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo - start[lane];
+    }
+}
@@ -0,0 +1,102 @@
+package game;
+
+import java.util.Arrays;
+
+/*
+CLASS: LatencyHistogram
+DESCRIPTION: Counts durations (in nanoseconds) in log-linear buckets, the
+             way HdrHistogram does: below 64 ns every nanosecond has its own
+             bucket, and above that each power of two is split into 32, so
+             any recorded value is known to within about 3%. All buckets
+             are allocated up front and record() only increments a counter,
+             so it can sit in the tick loop. Values past MAX_NANOS (about
+             18 minutes) are counted as MAX_NANOS.
+USAGE: record() on one thread; read percentile(), mean() and the rest
+       anywhere. To look at an interval instead of the whole run, keep a
+       copy from the start of it (copyTo) and setDifference() the two.
+NOTE: Not synchronised. Readers on other threads may see a record() half
+      done (a count without its sum, say), which is fine for monitoring
+      but not for exact bookkeeping.
+*/
+class LatencyHistogram {
+    static final int SUB_BITS = 5;                 // 32 buckets per power of two
+    static final int SUB_COUNT = 1 << SUB_BITS;
+    static final long MAX_NANOS = 1L << 40;
+    private static final int BUCKETS = index(MAX_NANOS) + 1;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0, total = 0, max = 0;
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        else if (nanos > MAX_NANOS) nanos = MAX_NANOS;
+        counts[index(nanos)]++;
+        count++;
+        total += nanos;
+        if (nanos > max) max = nanos;
+    }
+
+    public long count() { return count; }
+    public long totalNanos() { return total; }
+    public long maxNanos() { return max; }
+    public double mean() { return count == 0 ? 0 : total / (double) count; }
+
+    /*
+    METHOD: percentile
+    DESCRIPTION: The duration that 'p' percent (0 to 100) of the recorded
+                 ones are at or below: the top of the bucket it falls in,
+                 but never more than the largest value seen. 0 when
+                 nothing was recorded.
+    */
+    public long percentile(double p) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, p)) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highest(i), max);
+        }
+        return max;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = total = max = 0;
+    }
+
+    public void copyTo(LatencyHistogram into) {
+        System.arraycopy(counts, 0, into.counts, 0, BUCKETS);
+        into.count = count;
+        into.total = total;
+        into.max = max;
+    }
+
+    // Makes this what was recorded into 'now' since it was copied to
+    // 'earlier'. The maximum is only known to the bucket it fell in.
+    public void setDifference(LatencyHistogram now, LatencyHistogram earlier) {
+        max = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = Math.max(0, now.counts[i] - earlier.counts[i]);
+            if (counts[i] > 0) max = Math.min(highest(i), now.max);
+        }
+        count = Math.max(0, now.count - earlier.count);
+        total = Math.max(0, now.total - earlier.total);
+    }
+
+    // ---------------- BUCKETS ----------------
+    // Values below 2 * SUB_COUNT index themselves; above, the bucket is the
+    // power of two (past the first) plus the next SUB_BITS bits.
+    static int index(long nanos) {
+        if (nanos < 2 * SUB_COUNT) return (int) nanos;
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) ((nanos >>> shift) - SUB_COUNT);
+    }
+
+    // The largest value that falls in bucket i.
+    static long highest(int i) {
+        if (i < 2 * SUB_COUNT) return i;
+        int shift = i / SUB_COUNT - 1;
+        long sub = i % SUB_COUNT + SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
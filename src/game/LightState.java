@@ -0,0 +1,7 @@
+package game;
+
+/*
+ENUM: LightState
+DESCRIPTION: The three colours a traffic light cycles through.
+*/
+enum LightState { GREEN, YELLOW, RED }
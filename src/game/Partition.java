@@ -0,0 +1,97 @@
+package game;
+
+import java.util.Arrays;
+
+/*
+CLASS: Partition
+DESCRIPTION: How the map is split into domains for a distributed run
+             (DistributedRunner): vertical strips, domain d covering
+             cuts[d-1] <= x < cuts[d]. A junction belongs to the strip it
+             stands in, a lane to the junction it leads to (so a stop line,
+             its detector, its signal and the queue at it are always in one
+             domain), and a vehicle off the lanes to the strip under its
+             centre.
+USAGE: balanced() cuts strips of about equal weight; nodeOwners() and
+       laneOwners() give every junction's and lane's domain.
+NOTE: Immutable.
+*/
+class Partition {
+    private final double[] cuts; // ascending, one fewer than the domains
+
+    public Partition(double[] cuts) {
+        this.cuts = cuts.clone();
+        for (int k = 1; k < cuts.length; k++) {
+            if (!(cuts[k] > cuts[k - 1])) throw new IllegalArgumentException("Cuts must increase: " + Arrays.toString(cuts));
+        }
+    }
+
+    public int domains() { return cuts.length + 1; }
+    public double[] cuts() { return cuts.clone(); }
+
+    // The domain of the strip 'x' falls in.
+    public int ownerOfX(double x) {
+        int lo = 0, hi = cuts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (x >= cuts[mid]) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    public int[] nodeOwners(RoadNetwork network) {
+        int[] owner = new int[network.nodeCount()];
+        for (int n = 0; n < owner.length; n++) owner[n] = ownerOfX(network.nodeX(n));
+        return owner;
+    }
+
+    public int[] laneOwners(RoadNetwork network, int[] nodeOwner) {
+        int[] owner = new int[network.laneCount()];
+        for (int l = 0; l < owner.length; l++) owner[l] = nodeOwner[network.laneTo(l)];
+        return owner;
+    }
+
+    /*
+    METHOD: balanced
+    DESCRIPTION: Strips for 'domains' domains that give each about the same
+                 total 'weight' (one per junction). Junctions in one column
+                 (the same x) stay together, and a column goes to whichever
+                 side of a cut holds more than half of it. With fewer
+                 columns than domains the last domains are left empty.
+    */
+    public static Partition balanced(RoadNetwork network, double[] weight, int domains) {
+        int n = network.nodeCount();
+        Integer[] order = new Integer[n];
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+            total += weight[i];
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(network.nodeX(a), network.nodeX(b)));
+        double[] cuts = new double[domains - 1];
+        int k = 0;
+        double before = 0, lastX = 0;
+        for (int i = 0; i < n && k < cuts.length; ) {
+            double x = network.nodeX(order[i]), column = 0;
+            int j = i;
+            while (j < n && network.nodeX(order[j]) == x) column += weight[order[j++]];
+            if (i > 0 && before + column / 2 > total * (k + 1) / domains) cuts[k++] = (lastX + x) / 2;
+            before += column;
+            lastX = x;
+            i = j;
+        }
+        for (double x = lastX + 1; k < cuts.length; x++) cuts[k++] = x; // empty strips past the map
+        return new Partition(cuts);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Partition && Arrays.equals(cuts, ((Partition) o).cuts);
+    }
+
+    @Override
+    public int hashCode() { return Arrays.hashCode(cuts); }
+
+    @Override
+    public String toString() { return "Partition" + Arrays.toString(cuts); }
+}
@@ -15,11 +15,28 @@ NOTE: You don't need to worry about the "magic math" details.
 
 */
 
+import java.awt.Graphics;
+
 class Polygon {
   private Point[] shape;   // An array of points.
   public Point position;   // The offset mentioned above.
   public double rotation; // Zero degrees is due east.
   
+  // The shape never changes, so its vertices and centroid are copied into
+  // primitive arrays once and reused by every transform.
+  private final double[] localX, localY;
+  private final double centerX, centerY;
+  
+  // World-space vertices for the pose (position, rotation) they were built
+  // from. They are rebuilt only when that pose differs from the current one.
+  private final double[] worldX, worldY;
+  // Screen (int) copies of the vertices for fill(), reused every frame.
+  private final int[] screenX, screenY;
+  private double cachedX = Double.NaN, cachedY = Double.NaN,
+                 cachedRotation = Double.NaN;
+  // Axis-aligned bounding box of the cached vertices.
+  private double minX, minY, maxX, maxY;
+  
   public Polygon(Point[] inShape, Point inPosition, double inRotation) {
     shape = inShape;
     position = inPosition;
@@ -37,49 +54,115 @@ class Polygon {
       p.x -= origin.x;
       p.y -= origin.y;
     }
+    
+    localX = new double[shape.length];
+    localY = new double[shape.length];
+    for (int i = 0; i < shape.length; i++) {
+      localX[i] = shape[i].x;
+      localY[i] = shape[i].y;
+    }
+    Point center = findCenter();
+    centerX = center.x;
+    centerY = center.y;
+    worldX = new double[shape.length];
+    worldY = new double[shape.length];
+    screenX = new int[shape.length];
+    screenY = new int[shape.length];
   }
   
   // "getPoints" applies the rotation and offset to the shape of the polygon.
+  // It hands out fresh Point objects; hot paths should prefer contains(x, y)
+  // or the cached arrays below, which allocate nothing.
   public Point[] getPoints() {
-    Point center = findCenter();
-    Point[] points = new Point[shape.length];
-    for (int i = 0; i < shape.length; i++) {
-//    for (Point p : shape) {
-      Point p = shape[i];
-      double x = ((p.x-center.x) * Math.cos(Math.toRadians(rotation)))
-               - ((p.y-center.y) * Math.sin(Math.toRadians(rotation)))
-               + center.x + position.x;
-      double y = ((p.x-center.x) * Math.sin(Math.toRadians(rotation)))
-               + ((p.y-center.y) * Math.cos(Math.toRadians(rotation)))
-               + center.y + position.y;
-      points[i] = new Point(x,y);
+    refresh();
+    Point[] points = new Point[worldX.length];
+    for (int i = 0; i < worldX.length; i++) {
+      points[i] = new Point(worldX[i], worldY[i]);
     }
     return points;
   }
   
   // "contains" implements some magical math (i.e. the ray-casting algorithm).
   public boolean contains(Point point) {
-    Point[] points = getPoints();
-    double crossingNumber = 0;
-    for (int i = 0, j = 1; i < shape.length; i++, j=(j+1)%shape.length) {
-      if ((((points[i].x < point.x) && (point.x <= points[j].x)) ||
-           ((points[j].x < point.x) && (point.x <= points[i].x))) &&
-          (point.y > points[i].y + (points[j].y-points[i].y)/
-           (points[j].x - points[i].x) * (point.x - points[i].x))) {
-        crossingNumber++;
+    return contains(point.x, point.y);
+  }
+  
+  public boolean contains(double px, double py) {
+    refresh();
+    double[] xs = worldX, ys = worldY;
+    int n = xs.length;
+    boolean inside = false;
+    for (int i = 0, j = 1; i < n; i++, j=(j+1)%n) {
+      if ((((xs[i] < px) && (px <= xs[j])) ||
+           ((xs[j] < px) && (px <= xs[i]))) &&
+          (py > ys[i] + (ys[j]-ys[i])/(xs[j] - xs[i]) * (px - xs[i]))) {
+        inside = !inside;
       }
     }
-    return crossingNumber%2 == 1;
+    return inside;
+  }
+  
+  // "fill" paints the polygon in the brush's colour without allocating.
+  public void fill(Graphics brush) {
+    refresh();
+    for (int i = 0; i < worldX.length; i++) {
+      screenX[i] = (int) worldX[i];
+      screenY[i] = (int) worldY[i];
+    }
+    brush.fillPolygon(screenX, screenY, worldX.length);
   }
   
   public void rotate(int degrees) {rotation = (rotation+degrees)%360;}
   
+  // Number of vertices, and the cached world-space coordinates of them.
+  // The arrays are owned by this polygon: read them, never write them, and
+  // don't hold on to them across a move.
+  int vertexCount() {return worldX.length;}
+  double[] worldXs() {refresh(); return worldX;}
+  double[] worldYs() {refresh(); return worldY;}
+  
+  // The axis-aligned box around the current world-space vertices.
+  double minX() {refresh(); return minX;}
+  double minY() {refresh(); return minY;}
+  double maxX() {refresh(); return maxX;}
+  double maxY() {refresh(); return maxY;}
+  
   /*
   The following methods are private access restricted because, as this access
   level always implies, they are intended for use only as helpers of the
   methods in this class that are not private. They can't be used anywhere else.
   */
   
+  // "refresh" rebuilds the world-space vertices if the pose has moved since
+  // they were last built. One cos/sin pair covers every vertex.
+  private void refresh() {
+    double px = position.x, py = position.y, rot = rotation;
+    if (px == cachedX && py == cachedY && rot == cachedRotation) return;
+    double radians = Math.toRadians(rot);
+    double cos = Math.cos(radians), sin = Math.sin(radians);
+    double offsetX = centerX + px, offsetY = centerY + py;
+    double loX = Double.POSITIVE_INFINITY, loY = Double.POSITIVE_INFINITY;
+    double hiX = Double.NEGATIVE_INFINITY, hiY = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < localX.length; i++) {
+      double dx = localX[i] - centerX, dy = localY[i] - centerY;
+      double x = dx * cos - dy * sin + offsetX;
+      double y = dx * sin + dy * cos + offsetY;
+      worldX[i] = x;
+      worldY[i] = y;
+      if (x < loX) loX = x;
+      if (x > hiX) hiX = x;
+      if (y < loY) loY = y;
+      if (y > hiY) hiY = y;
+    }
+    minX = loX;
+    minY = loY;
+    maxX = hiX;
+    maxY = hiY;
+    cachedX = px;
+    cachedY = py;
+    cachedRotation = rot;
+  }
+  
   // "findArea" implements some more magic math.
   private double findArea() {
     double sum = 0;
@@ -89,7 +172,8 @@ class Polygon {
     return Math.abs(sum/2);
   }
   
-  // "findCenter" implements another bit of math.
+  // "findCenter" implements another bit of math. It runs once, from the
+  // constructor, since the shape it measures never changes.
   private Point findCenter() {
     Point sum = new Point(0,0);
     for (int i = 0, j = 1; i < shape.length; i++, j=(j+1)%shape.length) {
@@ -0,0 +1,179 @@
+package game;
+
+import java.util.Arrays;
+
+/*
+CLASS: Preemption
+DESCRIPTION: Priority for emergency vehicles (VehicleStore.EMERGENCY). Each
+             tick every one of them that is driving a lane looks
+             REQUEST_DISTANCE down its route and asks each signalised
+             junction it will reach there for green (SignalController.
+             preempt), and clears the road just ahead of it: the vehicles
+             in front of it on its lane out to YIELD_DISTANCE are told to
+             move over, and nobody may change into that stretch. Both come
+             from the lane index (LaneOccupancy) by lane and position, so a
+             tick costs a few lanes per emergency vehicle and nothing per
+             other vehicle, however many there are.
+USAGE: track() each vehicle as it is added (anything not EMERGENCY is
+       ignored); a removed one drops out by itself. update() once per tick,
+       serially, after LaneDynamics.sense() and before the signals and
+       the decide phase, which then read yielding() and keepClear().
+NOTE: Only writes during update(); the parallel phases just read. The
+      tracked vehicles are taken in the order they arrived, so when two
+      want the same junction the first keeps it, the same way every run.
+*/
+class Preemption {
+    // How far ahead along its route an emergency vehicle calls for green.
+    static final double REQUEST_DISTANCE = 400;
+    // A junction stays preempted this many ticks after the last call, so
+    // the vehicle clears the junction box before the plan resumes.
+    static final int HOLD_TICKS = 30;
+    // How far ahead traffic on its lane moves over, and how far behind
+    // its centre the stretch nobody may change into starts.
+    static final double YIELD_DISTANCE = 200;
+    static final double CLEAR_BEHIND = 20;
+    // Most lanes one route walk looks at (a ring would go round forever).
+    private static final int MAX_LANES_AHEAD = 16;
+
+    private final RoadNetwork network;
+    private final VehicleStore store;
+    private final LaneDynamics lanes;
+    private SignalController signals;
+
+    // Emergency vehicles by handle, with the id each had when tracked (a
+    // handle whose id has changed was removed and recycled).
+    private final IntList handles = new IntList(), ids = new IntList();
+    // This tick: who must move over, and the stretch of each lane kept clear
+    // (clearFrom > clearTo where none), with the lists to reset them from.
+    private boolean[] yielding = new boolean[64];
+    private final IntList yielders = new IntList();
+    private final double[] clearFrom, clearTo;
+    private final IntList clearLanes = new IntList();
+
+    public Preemption(RoadNetwork network, VehicleStore store, LaneDynamics lanes) {
+        this.network = network;
+        this.store = store;
+        this.lanes = lanes;
+        clearFrom = new double[network.laneCount()];
+        clearTo = new double[network.laneCount()];
+        Arrays.fill(clearFrom, Double.POSITIVE_INFINITY);
+        Arrays.fill(clearTo, Double.NEGATIVE_INFINITY);
+    }
+
+    // The junctions to preempt (none until set).
+    public void setSignals(SignalController controller) { signals = controller; }
+
+    // Starts following vehicle h if it is an emergency vehicle.
+    public void track(int h) {
+        if ((store.flags[h] & VehicleStore.EMERGENCY) == 0) return;
+        handles.add(h);
+        ids.add(store.id[h]);
+    }
+
+    // Forgets everyone (the next update() also clears last tick's marks).
+    public void clear() {
+        handles.clear();
+        ids.clear();
+    }
+
+    /*
+    METHOD: trackAll
+    DESCRIPTION: Tracks every emergency vehicle in the store, oldest
+                 first, as if each had been track()ed on arrival. For a
+                 store just loaded from a checkpoint.
+    */
+    public void trackAll() {
+        clear();
+        for (int h = 0; h < store.highWater(); h++) {
+            if (!store.isAlive(h) || (store.flags[h] & VehicleStore.EMERGENCY) == 0) continue;
+            int k = handles.size();
+            handles.add(h);
+            ids.add(store.id[h]);
+            for (; k > 0 && ids.get(k - 1) > store.id[h]; k--) { // few of them: insertion sort by id
+                handles.set(k, handles.get(k - 1));
+                ids.set(k, ids.get(k - 1));
+            }
+            handles.set(k, h);
+            ids.set(k, store.id[h]);
+        }
+    }
+
+    public int trackedCount() { return handles.size(); }
+
+    // ---------------- UPDATE ----------------
+    /*
+    METHOD: update
+    DESCRIPTION: Drops the vehicles that have gone, then walks each lane
+                 follower's route ahead of it: calls for green at every
+                 signalised stop line within REQUEST_DISTANCE, and marks the
+                 traffic within YIELD_DISTANCE (on its lane and on into the
+                 next ones) to move over.
+    */
+    public void update(long tick) {
+        for (int k = 0; k < yielders.size(); k++) yielding[yielders.get(k)] = false;
+        yielders.clear();
+        for (int k = 0; k < clearLanes.size(); k++) {
+            clearFrom[clearLanes.get(k)] = Double.POSITIVE_INFINITY;
+            clearTo[clearLanes.get(k)] = Double.NEGATIVE_INFINITY;
+        }
+        clearLanes.clear();
+        if (yielding.length < store.highWater()) yielding = new boolean[Math.max(store.highWater(), yielding.length * 2)];
+
+        int kept = 0;
+        for (int k = 0; k < handles.size(); k++) {
+            int h = handles.get(k);
+            if (!store.isAlive(h) || store.id[h] != ids.get(k)) continue;
+            handles.set(kept, h);
+            ids.set(kept++, ids.get(k));
+            if ((store.flags[h] & VehicleStore.ON_LANE) != 0) clearAhead(h, tick);
+        }
+        handles.truncate(kept);
+        ids.truncate(kept);
+    }
+
+    private void clearAhead(int h, long tick) {
+        LaneOccupancy occupancy = lanes.getOccupancy();
+        int lane = store.lane[h];
+        double s = store.along[h];
+        double from = s - CLEAR_BEHIND; // on this lane; 0 on the ones after
+        double travelled = -s;          // from h to the start of 'lane'
+        for (int n = 0; n < MAX_LANES_AHEAD && lane >= 0; n++) {
+            double toStop = travelled + network.stopLine(lane);
+            if (signals != null && toStop >= 0 && toStop <= REQUEST_DISTANCE) {
+                int c = signals.junctionAt(network.laneTo(lane));
+                if (c >= 0) signals.preempt(c, lane, tick + HOLD_TICKS);
+            }
+            double to = Math.min(network.laneLength(lane), YIELD_DISTANCE - travelled);
+            if (to > from) {
+                markClear(lane, from, to);
+                for (int k = occupancy.countBehind(lane, from, store.along); k < occupancy.count(lane); k++) {
+                    int other = occupancy.vehicle(lane, k);
+                    if (store.along[other] > to) break;
+                    if (other == h || (store.flags[other] & VehicleStore.EMERGENCY) != 0) continue;
+                    if (store.along[other] <= s && n == 0) continue; // behind it
+                    if (!yielding[other]) yielders.add(other);
+                    yielding[other] = true;
+                }
+            }
+            travelled += network.laneLength(lane);
+            if (travelled >= Math.max(REQUEST_DISTANCE, YIELD_DISTANCE)) break;
+            lane = lanes.nextLane(h, lane);
+            from = 0;
+        }
+    }
+
+    private void markClear(int lane, double from, double to) {
+        if (clearFrom[lane] > clearTo[lane]) clearLanes.add(lane);
+        clearFrom[lane] = Math.min(clearFrom[lane], from);
+        clearTo[lane] = Math.max(clearTo[lane], to);
+    }
+
+    // ---------------- QUERIES (for the decide phase) ----------------
+    // True if vehicle h should move out of the way this tick.
+    public boolean yielding(int h) { return h < yielding.length && yielding[h]; }
+
+    // True if something from 'along - half' to 'along + half' on 'lane' would be in the way.
+    public boolean keepClear(int lane, double along, double half) {
+        return along + half >= clearFrom[lane] && along - half <= clearTo[lane];
+    }
+}
@@ -0,0 +1,412 @@
+package game;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+CLASS: QueueLanes
+DESCRIPTION: The mesoscopic engine: lanes that run as queues instead of
+             being driven. A queue lane holds its vehicles in the order
+             they came in. Each may leave no sooner than the lane's
+             free-flow time after it entered, and only from the front. The
+             front vehicle leaves once:
+               - its time on the lane is up;
+               - the lane's capacity lets another out (one per saturation
+                 headway, from RoadNetwork.laneCapacity);
+               - its light is green;
+               - and the next lane on its route has room.
+             Room is a queue's storage: its length, taken up by each
+             vehicle's length plus JAM_GAP, as stopped traffic would.
+             Every wait is an event on the TimerWheel: the front's time
+             coming up, the junction's next signal change, or the lane it
+             waits for letting someone out. A vehicle costs a few events per
+             lane and nothing on the ticks between, however long the lane.
+             Lanes that are not queues are driven as usual (LaneDynamics),
+             so a run can drive vehicles only where detail matters (a
+             hybrid run) and queue them everywhere else. A queue's front
+             vehicle goes onto a driven lane the way demand does (see
+             LaneDynamics.entrySpeed). A driven vehicle reaching a queue
+             lane joins its back, and waits at the end of its own lane
+             while that queue is full.
+USAGE: Simulation owns one and passes it the events it schedules; choose
+       the lanes with Simulation.setQueueLanes() (outside() and all() build
+       the usual choices). enter() puts a vehicle at the back of a queue
+       that hasRoom() for it.
+NOTE: Vehicles in queues are not in the VehicleStore. They have no
+      position to draw, record or collide, just a type, destination, start
+      tick and the tick they may leave. A queue can hold a little more than
+      its storage when several driven vehicles reach it on one tick. A
+      front vehicle that has been due to leave for STUCK_TICKS squeezes
+      into the next queue even if it is full, so a ring of full queues
+      can't lock up for good. Emergency vehicles at the front of a queue go
+      through red lights while preemption is on, but get no other priority.
+      An incident on a queue lane stops it letting anyone out until it
+      clears.
+*/
+class QueueLanes {
+    // Standstill distance behind each vehicle in a queue (a car's, see
+    // IntelligentDriverModel).
+    static final double JAM_GAP = 8;
+    // How often a front vehicle looks again at what it can't see change:
+    // a driven lane to enter, an incident, or an actuated light.
+    static final int RETRY_TICKS = 5;
+    // How long a front vehicle waits for room before squeezing in anyway.
+    static final int STUCK_TICKS = 600;
+
+    private final RoadNetwork network;
+    private final LaneDynamics lanes;
+    private final Simulation sim;
+    private TimerWheel wheel;
+    private int eventKind;
+    private SignalController signals;
+    private TravelTimes travelTimes; // observed traversals, or null
+
+    // ---------------- PER LANE ----------------
+    private boolean[] queued;             // runs as a queue
+    private final double[] headwayTicks;  // saturation headway
+    private final int[] head, tail, count;
+    private final double[] used;          // storage taken
+    private final double[] nextFree;      // earliest tick the next vehicle may leave
+    private final int[] event;            // this lane's pending event, or -1
+    // Lanes whose front waits for room on a lane, as a doubly linked list
+    // per lane waited for.
+    private final int[] waitingOn, firstWaiter, nextWaiter, prevWaiter;
+
+    // ---------------- PER VEHICLE (pooled) ----------------
+    private byte[] type = new byte[64];
+    private int[] destination = new int[64], next = new int[64];
+    private long[] born = new long[64], entered = new long[64], ready = new long[64];
+    private double[] desired = new double[64];
+    private int pooled = 0, freeHead = -1, size = 0;
+
+    public QueueLanes(RoadNetwork network, LaneDynamics lanes, Simulation sim) {
+        this.network = network;
+        this.lanes = lanes;
+        this.sim = sim;
+        int n = network.laneCount();
+        queued = new boolean[n];
+        headwayTicks = new double[n];
+        for (int l = 0; l < n; l++) headwayTicks[l] = 3600 / network.laneCapacity(l) / Simulation.TICK_SECONDS;
+        head = new int[n];
+        tail = new int[n];
+        count = new int[n];
+        used = new double[n];
+        nextFree = new double[n];
+        event = new int[n];
+        waitingOn = new int[n];
+        firstWaiter = new int[n];
+        nextWaiter = new int[n];
+        prevWaiter = new int[n];
+        empty();
+    }
+
+    // The lanes outside the box: a hybrid run drives the lanes into the
+    // junctions inside it and queues the rest.
+    public static boolean[] outside(RoadNetwork network, double minX, double minY, double maxX, double maxY) {
+        boolean[] out = new boolean[network.laneCount()];
+        for (int l = 0; l < out.length; l++) {
+            int to = network.laneTo(l);
+            double x = network.nodeX(to), y = network.nodeY(to);
+            out[l] = x < minX || x > maxX || y < minY || y > maxY;
+        }
+        return out;
+    }
+
+    // Every lane: a purely mesoscopic run.
+    public static boolean[] all(RoadNetwork network) {
+        boolean[] out = new boolean[network.laneCount()];
+        Arrays.fill(out, true);
+        return out;
+    }
+
+    /*
+    METHOD: attach
+    DESCRIPTION: Empties every queue and takes a fresh run's wheel (its
+                 events go on as 'kind', the argument a lane) and signals.
+                 Which lanes are queues stays as set.
+    */
+    public void attach(TimerWheel timers, int kind, SignalController controller) {
+        wheel = timers;
+        eventKind = kind;
+        signals = controller;
+        empty();
+    }
+
+    // Makes the lanes marked true the queues (null: none); see Simulation.setQueueLanes().
+    void setQueued(boolean[] isQueued) {
+        queued = isQueued == null ? new boolean[network.laneCount()] : isQueued.clone();
+    }
+
+    public void setTravelTimes(TravelTimes t) { travelTimes = t; }
+
+    // ---------------- QUERIES ----------------
+    public boolean isQueue(int lane) { return queued[lane]; }
+    public boolean any() {
+        for (boolean q : queued) if (q) return true;
+        return false;
+    }
+    public int size() { return size; }
+    public int count(int lane) { return count[lane]; }
+
+    // True if a vehicle of type 't' fits at the back of queue 'lane'.
+    public boolean hasRoom(int lane, VehicleType t) {
+        return count[lane] == 0 || used[lane] + t.length + JAM_GAP <= network.laneLength(lane);
+    }
+
+    // How many at the front of 'lane' have done their time on it by 'tick'
+    // and are stopped there, counting back no more than 'within' units.
+    public int waiting(int lane, long tick, double within) {
+        int n = 0;
+        double length = 0;
+        for (int v = head[lane]; v >= 0 && ready[v] <= tick; v = next[v]) {
+            length += VehicleType.byId(type[v]).length + JAM_GAP;
+            if (length > within) break;
+            n++;
+        }
+        return n;
+    }
+
+    // ---------------- ENTERING ----------------
+    /*
+    METHOD: enter
+    DESCRIPTION: Puts a vehicle at the back of queue 'lane' at 'tick': of
+                 'vehicleType', wanting 'speed', bound for 'dest' (-1 for
+                 nowhere) and on the road since 'bornTick'.
+    */
+    public void enter(int lane, VehicleType vehicleType, double speed, int dest, long bornTick, long tick) {
+        int v = allocate();
+        type[v] = (byte) vehicleType.ordinal();
+        desired[v] = speed;
+        destination[v] = dest;
+        born[v] = bornTick;
+        lanes.want(dest);
+        push(lane, v, tick);
+    }
+
+    // Moves driven vehicle h, which has just reached queue lane store.lane[h], into it at 'tick'.
+    public void join(VehicleStore store, int h, long tick) {
+        enter(store.lane[h], store.typeOf(h), store.desiredSpeed[h], store.destination[h], store.born[h], tick);
+    }
+
+    // ---------------- EVENTS ----------------
+    /*
+    METHOD: fire
+    DESCRIPTION: Lane's front vehicle may be able to leave (its event came
+                 up). Lets it go if everything allows, and books the next
+                 look: for the one behind it, or for itself at whatever
+                 held it up.
+    */
+    public void fire(int lane, long tick) {
+        event[lane] = -1;
+        stopWaiting(lane);
+        int v = head[lane];
+        if (v < 0) return;
+        long due = Math.max(ready[v], (long) Math.ceil(nextFree[lane]));
+        if (due > tick) {
+            schedule(lane, due);
+            return;
+        }
+        if (lanes.blockage(lane) < Double.POSITIVE_INFINITY) {
+            schedule(lane, tick + RETRY_TICKS);
+            return;
+        }
+        VehicleType t = VehicleType.byId(type[v]);
+        int c = signals == null ? -1 : signals.junctionAt(network.laneTo(lane));
+        if (c >= 0 && signals.laneState(lane) != LightState.GREEN
+                && !(t == VehicleType.AMBULANCE && sim.isPreempting())) {
+            long change = signals.nextChange(c);
+            schedule(lane, change > tick ? change : tick + RETRY_TICKS);
+            return;
+        }
+
+        int to = -1;
+        double entry = 0;
+        if (network.laneTo(lane) != destination[v]) {
+            to = lanes.nextLaneTo(destination[v], lane);
+            if (to < 0) to = lanes.reenter(lane);
+        }
+        if (to >= 0 && queued[to]) {
+            if (!hasRoom(to, t) && tick - ready[v] < STUCK_TICKS) {
+                waitFor(lane, to);
+                schedule(lane, ready[v] + STUCK_TICKS);
+                return;
+            }
+        } else if (to >= 0) {
+            entry = lanes.entrySpeed(to, t, desired[v], tick);
+            if (entry < 0) {
+                schedule(lane, tick + RETRY_TICKS);
+                return;
+            }
+        }
+
+        pop(lane, tick);
+        if (travelTimes != null) travelTimes.traversed(lane, tick, (tick - entered[v]) * Simulation.TICK_SECONDS);
+        if (to >= 0 && queued[to]) {
+            push(to, v, tick);
+            return;
+        }
+        if (to >= 0) {
+            int h = sim.spawnOnLane(t, to, desired[v], destination[v]);
+            sim.getStore().speed[h] = entry;
+            sim.getStore().born[h] = born[v];
+        } else if (destination[v] >= 0) {
+            sim.arrive(t == VehicleType.AMBULANCE, tick - born[v]);
+        }
+        free(v);
+    }
+
+    // ---------------- CHECKPOINTS ----------------
+    void save(Checkpoint.Out out) {
+        int n = network.laneCount();
+        out.putBooleans(queued, n);
+        out.putInts(head, n);
+        out.putInts(tail, n);
+        out.putInts(count, n);
+        out.putDoubles(used, n);
+        out.putDoubles(nextFree, n);
+        out.putInts(event, n);
+        out.putInts(waitingOn, n);
+        out.putInts(firstWaiter, n);
+        out.putInts(nextWaiter, n);
+        out.putInts(prevWaiter, n);
+        out.putInt(pooled);
+        out.putInt(freeHead);
+        out.putInt(size);
+        out.putBytes(type, pooled);
+        out.putInts(destination, pooled);
+        out.putInts(next, pooled);
+        out.putLongs(born, pooled);
+        out.putLongs(entered, pooled);
+        out.putLongs(ready, pooled);
+        out.putDoubles(desired, pooled);
+    }
+
+    void load(Checkpoint.In in) throws IOException {
+        int n = network.laneCount();
+        in.getBooleans(queued, n);
+        in.getInts(head, n);
+        in.getInts(tail, n);
+        in.getInts(count, n);
+        in.getDoubles(used, n);
+        in.getDoubles(nextFree, n);
+        in.getInts(event, n);
+        in.getInts(waitingOn, n);
+        in.getInts(firstWaiter, n);
+        in.getInts(nextWaiter, n);
+        in.getInts(prevWaiter, n);
+        pooled = in.getInt();
+        freeHead = in.getInt();
+        size = in.getInt();
+        grow(Math.max(64, pooled));
+        in.getBytes(type, pooled);
+        in.getInts(destination, pooled);
+        in.getInts(next, pooled);
+        in.getLongs(born, pooled);
+        in.getLongs(entered, pooled);
+        in.getLongs(ready, pooled);
+        in.getDoubles(desired, pooled);
+        for (int v = 0; v < pooled; v++) lanes.want(destination[v]);
+    }
+
+    // ---------------- HELPERS ----------------
+    // Appends vehicle v to queue 'lane' at 'tick'; an empty lane books its front.
+    private void push(int lane, int v, long tick) {
+        double speed = Math.max(1, Math.min(desired[v], network.laneSpeedLimit(lane)));
+        entered[v] = tick;
+        ready[v] = tick + Math.max(1, (long) Math.ceil(network.laneLength(lane) / speed / Simulation.TICK_SECONDS));
+        next[v] = -1;
+        if (tail[lane] >= 0) next[tail[lane]] = v;
+        else head[lane] = v;
+        tail[lane] = v;
+        count[lane]++;
+        used[lane] += VehicleType.byId(type[v]).length + JAM_GAP;
+        if (count[lane] == 1) schedule(lane, Math.max(ready[v], (long) Math.ceil(nextFree[lane])));
+    }
+
+    // Takes the front off queue 'lane' at 'tick', books the next one and
+    // tells whoever waited for room.
+    private void pop(int lane, long tick) {
+        int v = head[lane];
+        head[lane] = next[v];
+        if (head[lane] < 0) tail[lane] = -1;
+        count[lane]--;
+        used[lane] = count[lane] == 0 ? 0 : used[lane] - VehicleType.byId(type[v]).length - JAM_GAP;
+        nextFree[lane] = Math.max(nextFree[lane], tick) + headwayTicks[lane];
+        if (head[lane] >= 0) schedule(lane, Math.max(ready[head[lane]], (long) Math.ceil(nextFree[lane])));
+        for (int w = firstWaiter[lane]; w >= 0; ) {
+            int after = nextWaiter[w];
+            waitingOn[w] = nextWaiter[w] = prevWaiter[w] = -1;
+            schedule(w, tick + 1);
+            w = after;
+        }
+        firstWaiter[lane] = -1;
+    }
+
+    // Replaces lane's pending event (if any) with one at 'tick'.
+    private void schedule(int lane, long tick) {
+        wheel.cancel(event[lane]);
+        event[lane] = wheel.schedule(tick, eventKind, lane);
+    }
+
+    private void waitFor(int lane, int full) {
+        waitingOn[lane] = full;
+        prevWaiter[lane] = -1;
+        nextWaiter[lane] = firstWaiter[full];
+        if (firstWaiter[full] >= 0) prevWaiter[firstWaiter[full]] = lane;
+        firstWaiter[full] = lane;
+    }
+
+    private void stopWaiting(int lane) {
+        int full = waitingOn[lane];
+        if (full < 0) return;
+        if (prevWaiter[lane] >= 0) nextWaiter[prevWaiter[lane]] = nextWaiter[lane];
+        else firstWaiter[full] = nextWaiter[lane];
+        if (nextWaiter[lane] >= 0) prevWaiter[nextWaiter[lane]] = prevWaiter[lane];
+        waitingOn[lane] = nextWaiter[lane] = prevWaiter[lane] = -1;
+    }
+
+    private void empty() {
+        Arrays.fill(head, -1);
+        Arrays.fill(tail, -1);
+        Arrays.fill(count, 0);
+        Arrays.fill(used, 0);
+        Arrays.fill(nextFree, 0);
+        Arrays.fill(event, -1);
+        Arrays.fill(waitingOn, -1);
+        Arrays.fill(firstWaiter, -1);
+        Arrays.fill(nextWaiter, -1);
+        Arrays.fill(prevWaiter, -1);
+        pooled = size = 0;
+        freeHead = -1;
+    }
+
+    private int allocate() {
+        int v;
+        if (freeHead >= 0) {
+            v = freeHead;
+            freeHead = next[v];
+        } else {
+            if (pooled == type.length) grow(pooled * 2);
+            v = pooled++;
+        }
+        size++;
+        return v;
+    }
+
+    private void free(int v) {
+        next[v] = freeHead;
+        freeHead = v;
+        size--;
+    }
+
+    private void grow(int capacity) {
+        if (capacity <= type.length) return;
+        type = Arrays.copyOf(type, capacity);
+        destination = Arrays.copyOf(destination, capacity);
+        next = Arrays.copyOf(next, capacity);
+        born = Arrays.copyOf(born, capacity);
+        entered = Arrays.copyOf(entered, capacity);
+        ready = Arrays.copyOf(ready, capacity);
+        desired = Arrays.copyOf(desired, capacity);
+    }
+}
@@ -0,0 +1,440 @@
+package game;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.Arrays;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/*
+CLASS: ReplayViewer
+DESCRIPTION: Plays a recorded run (see TrajectoryRecorder) back in a window
+             without simulating anything. Each frame it works out which
+             recorded tick is due, has the TrajectoryReader decode it and
+             draws its vehicles over the roads. A seek decodes at most one
+             keyframe's worth of chunks and playing on decodes one chunk, so
+             the run can be paused, fast-forwarded and scrubbed anywhere at
+             the same cost.
+             The view is a Camera that pans and zooms over the map. Only
+             what is in view is drawn: lanes are found through a spatial
+             index of the (fixed) network, and vehicles by a bounds test on
+             the decoded position columns. The level of detail follows the
+             zoom: vehicle outlines close up, one pixel per vehicle further
+             out, and with a scenario a heatmap of each lane's density when
+             a vehicle would be smaller than a pixel.
+USAGE: java game.ReplayViewer <run.strj> [scenario]
+       With the scenario (binary, or .txt) the roads are drawn under the
+       traffic; without it the view fits the vehicles of the first and last
+       frames.
+       Space: pause/play | Left/Right: previous/next frame | Up/Down: faster/
+       slower | Home/End: first/last frame | click or drag the bar at the
+       bottom to jump there
+       Drag the map to pan, mouse wheel or +/- to zoom, F to fit the map,
+       L to switch the level of detail (auto, outlines, pixels, heatmap)
+NOTE: Signal states aren't recorded, so there are no lights to draw.
+*/
+class ReplayViewer extends Game implements KeyListener {
+
+    // ---------------- CONSTANTS ----------------
+    private static final int BAR_HEIGHT = 34;
+    private static final double MIN_SPEED = 0.25, MAX_SPEED = 1024;
+    private static final Color ROAD = new Color(120, 120, 120);
+    private static final Color JUNCTION = new Color(105, 105, 105);
+    private static final Color TRUCK = new Color(139, 69, 19);
+    private static final Font HUD_FONT = new Font("Arial", Font.PLAIN, 12);
+    // Levels of detail; AUTO picks one from the zoom.
+    private static final int AUTO = 0, OUTLINES = 1, PIXELS = 2, HEATMAP = 3;
+    private static final String[] DETAIL_NAMES = {"auto", "outlines", "pixels", "heatmap"};
+    // Below OUTLINE_ZOOM (pixels per world unit) a car is under ~10 pixels
+    // long and is drawn as a dot; below HEATMAP_ZOOM it is under a pixel.
+    private static final double OUTLINE_ZOOM = 0.5, HEATMAP_ZOOM = 0.05;
+    private static final double LANE_CELL = 256;
+    // Lane density (vehicles per world unit) that shows as full red.
+    private static final double JAM_DENSITY = 1.0 / 25;
+    private static final Color[] HEAT = new Color[32];
+    static {
+        for (int i = 0; i < HEAT.length; i++) {
+            double t = i / (HEAT.length - 1.0); // green, through yellow, to red
+            HEAT[i] = new Color((int) (255 * Math.min(1, 2 * t)), (int) (255 * Math.min(1, 2 - 2 * t)), 0);
+        }
+    }
+
+    // ---------------- PLAYBACK STATE ----------------
+    private final TrajectoryReader reader;
+    private final RoadNetwork roads; // null without a scenario
+    private final double[] home;     // world rectangle F fits to
+    private final Camera camera = new Camera();
+    private boolean fitted = false;
+    private long drawnCamera = -1;   // camera version the background shows
+    private int detail = AUTO;
+    private int drawn;               // vehicles drawn in the last frame
+    private TrajectoryRecorder.Frame frame;
+    private int shown = -1;         // frame index in 'frame'
+    private double position;        // playback position, in ticks
+    private double speed = 1;       // simulated seconds per real second
+    private boolean paused = false;
+    private long lastFrameNanos = 0;
+    private String error;
+    // The roads, painted once per window size.
+    private final BackgroundLayer background = new BackgroundLayer(this::drawRoads);
+
+    // Lanes filed by bounding box, and scratch for the ones in view.
+    private final SpatialHash laneIndex = new SpatialHash(LANE_CELL);
+    private final IntList visible = new IntList();
+    private double lanesMinX, lanesMinY, lanesMaxX, lanesMaxY;
+
+    // Scratch outline, reused for every vehicle; the dot layer and its pixels.
+    private final int[] xs = new int[4], ys = new int[4];
+    private BufferedImage dots;
+    private int[] dotPixels;
+
+    // Mouse drag: where it started and whether it is scrubbing or panning.
+    private int dragX, dragY;
+    private boolean scrubbing;
+
+    public ReplayViewer(Path file, TrajectoryReader reader, RoadNetwork roads, double[] bounds) {
+        super("Replay: " + file.getFileName(), 800, 600);
+        this.reader = reader;
+        this.roads = roads;
+        this.home = bounds;
+        position = reader.tick(0);
+        if (roads != null) indexLanes();
+
+        this.addKeyListener(this);
+        // Anonymous class: dragging on the bar scrubs the timeline, dragging
+        // the map pans it, and the wheel zooms about the pointer. Like the
+        // keys, each holds the viewer's monitor so it never lands mid-frame.
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                synchronized (ReplayViewer.this) {
+                    scrubbing = e.getY() >= getHeight() - BAR_HEIGHT;
+                    dragX = e.getX();
+                    dragY = e.getY();
+                    if (scrubbing) scrubTo(e);
+                }
+            }
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                synchronized (ReplayViewer.this) {
+                    if (scrubbing) {
+                        scrubTo(e);
+                        return;
+                    }
+                    camera.pan(e.getX() - dragX, e.getY() - dragY);
+                    dragX = e.getX();
+                    dragY = e.getY();
+                }
+            }
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                synchronized (ReplayViewer.this) {
+                    camera.zoomAbout(Math.pow(1.25, -e.getPreciseWheelRotation()), e.getX(), e.getY());
+                }
+            }
+        };
+        this.addMouseListener(mouse);
+        this.addMouseMotionListener(mouse);
+        this.addMouseWheelListener(mouse);
+        this.setFocusable(true);
+        this.requestFocus();
+        this.requestFocusInWindow();
+    }
+
+    // ---------------- MAIN LOOP ----------------
+    @Override
+    public void paint(Graphics brush) {
+        if (reader == null) return; // the window painted before we were built
+        long now = System.nanoTime();
+        if (!paused && lastFrameNanos != 0) {
+            position += (now - lastFrameNanos) / 1e9 * speed / reader.tickSeconds();
+            long last = reader.tick(reader.frameCount() - 1);
+            if (position >= last) {
+                position = last;
+                paused = true;
+            }
+        }
+        lastFrameNanos = now;
+        show(reader.find((long) position));
+
+        camera.setView(getWidth(), getHeight() - BAR_HEIGHT);
+        if (!fitted) {
+            camera.fit(home[0], home[1], home[2], home[3]);
+            fitted = true;
+        }
+        if (camera.version() != drawnCamera) {
+            background.invalidate(); // the roads are drawn in screen coordinates
+            drawnCamera = camera.version();
+        }
+        background.restore(this, brush);
+        drawn = 0;
+        if (frame != null) {
+            int level = levelOfDetail();
+            if (level == HEATMAP) drawHeatmap(brush);
+            else if (level == PIXELS) drawDots(brush);
+            else drawVehicles(brush);
+        }
+        drawBar(brush, getWidth(), getHeight() - BAR_HEIGHT);
+        background.mark(0, getHeight() - BAR_HEIGHT, getWidth(), getHeight());
+    }
+
+    private int levelOfDetail() {
+        if (detail != AUTO) return detail == HEATMAP && roads == null ? PIXELS : detail;
+        if (camera.zoom() >= OUTLINE_ZOOM) return OUTLINES;
+        return camera.zoom() < HEATMAP_ZOOM && roads != null ? HEATMAP : PIXELS;
+    }
+
+    // Decodes frame i unless it is already on show.
+    private void show(int i) {
+        if (i < 0 || i == shown) return;
+        try {
+            frame = reader.read(i, frame);
+            shown = i;
+        } catch (IOException e) {
+            error = "Can't read frame " + i + ": " + e.getMessage();
+            paused = true;
+        }
+    }
+
+    // ---------------- DRAWING ----------------
+    // The background: black, and the paved band of every lane in view.
+    private void drawRoads(Graphics brush) {
+        brush.setColor(Color.BLACK);
+        brush.fillRect(0, 0, getWidth(), getHeight());
+        if (roads == null) return;
+        brush.setColor(ROAD);
+        findVisibleLanes();
+        for (int i = 0; i < visible.size(); i++) fillLane(brush, visible.get(i));
+        brush.setColor(JUNCTION);
+        for (int n = 0; n < roads.nodeCount(); n++) {
+            double half = roads.junctionHalfSize(n);
+            if (half <= 0) continue;
+            int x0 = screenX(roads.nodeX(n) - half), y0 = screenY(roads.nodeY(n) - half);
+            int x1 = screenX(roads.nodeX(n) + half), y1 = screenY(roads.nodeY(n) + half);
+            if (x1 < 0 || y1 < 0 || x0 > getWidth() || y0 > getHeight()) continue;
+            brush.fillRect(x0, y0, Math.max(1, x1 - x0), Math.max(1, y1 - y0));
+        }
+    }
+
+    // Lane l's paved band: from laneMin to laneMax along the right-hand normal (-dy, dx).
+    private void fillLane(Graphics brush, int l) {
+        double dx = roads.laneDirX(l), dy = roads.laneDirY(l), len = roads.laneLength(l);
+        double sx = roads.nodeX(roads.laneFrom(l)), sy = roads.nodeY(roads.laneFrom(l));
+        double lo = roads.laneMin(l), hi = roads.laneMax(l);
+        corner(0, sx - dy * lo, sy + dx * lo);
+        corner(1, sx - dy * hi, sy + dx * hi);
+        corner(2, sx + dx * len - dy * hi, sy + dy * len + dx * hi);
+        corner(3, sx + dx * len - dy * lo, sy + dy * len + dx * lo);
+        brush.fillPolygon(xs, ys, 4);
+    }
+
+    // Full outlines of the vehicles in view.
+    private void drawVehicles(Graphics brush) {
+        TrajectoryRecorder.Frame f = frame;
+        double margin = VehicleType.TRUCK.length; // longer than any half-diagonal
+        double x0 = camera.minX() - margin, y0 = camera.minY() - margin;
+        double x1 = camera.maxX() + margin, y1 = camera.maxY() + margin;
+        for (int k = 0; k < f.size; k++) {
+            double cx = f.x[k], cy = f.y[k];
+            if (cx < x0 || cx > x1 || cy < y0 || cy > y1) continue;
+            VehicleType type = f.typeOf(k);
+            brush.setColor(type == VehicleType.TRUCK ? TRUCK : type == VehicleType.AMBULANCE ? Color.RED : Color.BLUE);
+            double rad = Math.toRadians(f.heading[k]);
+            double ax = Math.cos(rad) * type.length / 2, ay = Math.sin(rad) * type.length / 2;
+            double bx = -Math.sin(rad) * type.width / 2, by = Math.cos(rad) * type.width / 2;
+            corner(0, cx - ax - bx, cy - ay - by);
+            corner(1, cx + ax - bx, cy + ay - by);
+            corner(2, cx + ax + bx, cy + ay + by);
+            corner(3, cx - ax + bx, cy - ay + by);
+            brush.fillPolygon(xs, ys, 4);
+            background.mark(Math.min(Math.min(xs[0], xs[1]), Math.min(xs[2], xs[3])) - 1,
+                    Math.min(Math.min(ys[0], ys[1]), Math.min(ys[2], ys[3])) - 1,
+                    Math.max(Math.max(xs[0], xs[1]), Math.max(xs[2], xs[3])) + 2,
+                    Math.max(Math.max(ys[0], ys[1]), Math.max(ys[2], ys[3])) + 2);
+            drawn++;
+        }
+    }
+
+    // One pixel per vehicle in view, set straight into an image's pixels.
+    private void drawDots(Graphics brush) {
+        int w = camera.viewWidth(), h = camera.viewHeight();
+        if (dots == null || dots.getWidth() != w || dots.getHeight() != h) {
+            dots = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            dotPixels = ((DataBufferInt) dots.getRaster().getDataBuffer()).getData();
+        }
+        Arrays.fill(dotPixels, 0);
+        TrajectoryRecorder.Frame f = frame;
+        for (int k = 0; k < f.size; k++) {
+            int px = screenX(f.x[k]), py = screenY(f.y[k]);
+            if (px < 0 || py < 0 || px >= w || py >= h) continue;
+            byte type = f.type[k];
+            dotPixels[py * w + px] = type == VehicleType.TRUCK.ordinal() ? TRUCK.getRGB()
+                    : type == VehicleType.AMBULANCE.ordinal() ? 0xFFFF0000 : 0xFF4080FF;
+            drawn++;
+        }
+        brush.drawImage(dots, 0, 0, null);
+        background.mark(0, 0, w, h);
+    }
+
+    // Every lane in view, coloured from green (empty) to red (jammed).
+    private void drawHeatmap(Graphics brush) {
+        TrajectoryRecorder.Frame f = frame;
+        findVisibleLanes();
+        for (int i = 0; i < visible.size(); i++) {
+            int l = visible.get(i);
+            if (l >= f.lanes) continue;
+            double density = f.laneVehicles[l] / (roads.laneLength(l) * JAM_DENSITY);
+            brush.setColor(HEAT[(int) (Math.min(1, density) * (HEAT.length - 1))]);
+            fillLane(brush, l);
+            background.mark(Math.min(Math.min(xs[0], xs[1]), Math.min(xs[2], xs[3])) - 1,
+                    Math.min(Math.min(ys[0], ys[1]), Math.min(ys[2], ys[3])) - 1,
+                    Math.max(Math.max(xs[0], xs[1]), Math.max(xs[2], xs[3])) + 2,
+                    Math.max(Math.max(ys[0], ys[1]), Math.max(ys[2], ys[3])) + 2);
+            drawn += f.laneVehicles[l];
+        }
+    }
+
+    // Timeline along the bottom with the playback state written over it.
+    private void drawBar(Graphics brush, int w, int top) {
+        long first = reader.tick(0), last = reader.tick(reader.frameCount() - 1);
+        brush.setColor(new Color(40, 40, 40));
+        brush.fillRect(0, top, w, BAR_HEIGHT);
+        brush.setColor(new Color(70, 110, 170));
+        int done = last == first ? w : (int) ((position - first) / (last - first) * w);
+        brush.fillRect(0, top, done, 4);
+
+        brush.setColor(Color.WHITE);
+        brush.setFont(HUD_FONT);
+        long tick = frame == null ? first : frame.tick;
+        double seconds = tick * reader.tickSeconds();
+        String state = String.format(Locale.ROOT, "tick %d  %d:%02d:%04.1f  %s%sx  %d vehicles (%d in view)  %s%s%s  %s",
+                tick, (int) (seconds / 3600), (int) (seconds / 60) % 60, seconds % 60,
+                paused ? "paused  " : "", speed < 1 ? String.valueOf(speed) : String.valueOf((int) speed),
+                frame == null ? 0 : frame.size, drawn, DETAIL_NAMES[levelOfDetail()], detail == AUTO ? " (auto)" : "",
+                reader.isComplete() ? "" : "  (cut short)", getFrameStats());
+        brush.drawString(error != null ? error : state, 10, top + 20);
+    }
+
+    private void corner(int i, double x, double y) {
+        xs[i] = screenX(x);
+        ys[i] = screenY(y);
+    }
+
+    private int screenX(double x) { return (int) Math.round(camera.screenX(x)); }
+    private int screenY(double y) { return (int) Math.round(camera.screenY(y)); }
+
+    // ---------------- CULLING ----------------
+    // Files every lane's paved band by its bounding box, once.
+    private void indexLanes() {
+        lanesMinX = lanesMinY = Double.MAX_VALUE;
+        lanesMaxX = lanesMaxY = -Double.MAX_VALUE;
+        for (int l = 0; l < roads.laneCount(); l++) {
+            double dx = roads.laneDirX(l), dy = roads.laneDirY(l), len = roads.laneLength(l);
+            double sx = roads.nodeX(roads.laneFrom(l)), sy = roads.nodeY(roads.laneFrom(l));
+            double reach = Math.max(Math.abs(roads.laneMin(l)), Math.abs(roads.laneMax(l)));
+            double x0 = Math.min(sx, sx + dx * len) - reach, x1 = Math.max(sx, sx + dx * len) + reach;
+            double y0 = Math.min(sy, sy + dy * len) - reach, y1 = Math.max(sy, sy + dy * len) + reach;
+            laneIndex.insert(l, x0, y0, x1, y1);
+            lanesMinX = Math.min(lanesMinX, x0);
+            lanesMinY = Math.min(lanesMinY, y0);
+            lanesMaxX = Math.max(lanesMaxX, x1);
+            lanesMaxY = Math.max(lanesMaxY, y1);
+        }
+    }
+
+    // The lanes overlapping the view (clipped to the network, so a far
+    // zoomed-out view doesn't walk empty cells) into 'visible'.
+    private void findVisibleLanes() {
+        visible.clear();
+        double x0 = Math.max(camera.minX(), lanesMinX), y0 = Math.max(camera.minY(), lanesMinY);
+        double x1 = Math.min(camera.maxX(), lanesMaxX), y1 = Math.min(camera.maxY(), lanesMaxY);
+        if (x0 <= x1 && y0 <= y1) laneIndex.query(x0, y0, x1, y1, visible);
+    }
+
+    // ---------------- INPUT ----------------
+    private void scrubTo(MouseEvent e) {
+        long first = reader.tick(0), last = reader.tick(reader.frameCount() - 1);
+        double at = Math.max(0, Math.min(1, e.getX() / (double) getWidth()));
+        position = first + at * (last - first);
+        error = null;
+    }
+
+    // Jumps to frame i (clamped) and pauses there.
+    private void step(int i) {
+        i = Math.max(0, Math.min(reader.frameCount() - 1, i));
+        position = reader.tick(i);
+        paused = true;
+    }
+
+    @Override
+    public synchronized void keyPressed(KeyEvent e) {
+        int key = e.getKeyCode();
+        int at = reader.find((long) position);
+        if (key == KeyEvent.VK_SPACE) {
+            if (paused && at == reader.frameCount() - 1) position = reader.tick(0); // play again from the start
+            paused = !paused;
+        } else if (key == KeyEvent.VK_RIGHT) step(at + 1);
+        else if (key == KeyEvent.VK_LEFT) step(at - 1);
+        else if (key == KeyEvent.VK_HOME) step(0);
+        else if (key == KeyEvent.VK_END) step(reader.frameCount() - 1);
+        else if (key == KeyEvent.VK_UP) speed = Math.min(MAX_SPEED, speed * 2);
+        else if (key == KeyEvent.VK_DOWN) speed = Math.max(MIN_SPEED, speed / 2);
+        else if (key == KeyEvent.VK_EQUALS || key == KeyEvent.VK_PLUS || key == KeyEvent.VK_ADD) {
+            camera.zoomAbout(2, camera.viewWidth() / 2.0, camera.viewHeight() / 2.0);
+        } else if (key == KeyEvent.VK_MINUS || key == KeyEvent.VK_SUBTRACT) {
+            camera.zoomAbout(0.5, camera.viewWidth() / 2.0, camera.viewHeight() / 2.0);
+        } else if (key == KeyEvent.VK_F) camera.fit(home[0], home[1], home[2], home[3]);
+        else if (key == KeyEvent.VK_L) detail = (detail + 1) % DETAIL_NAMES.length;
+    }
+
+    @Override
+    public void keyReleased(KeyEvent e) {}
+
+    @Override
+    public void keyTyped(KeyEvent e) {}
+
+    // ---------------- MAIN ----------------
+    // World rectangle {x0, y0, x1, y1} to fit in the window: the scenario's
+    // map, or else where the vehicles are at the start and end.
+    private static double[] bounds(TrajectoryReader in, Scenario scenario) throws IOException {
+        if (scenario != null) return new double[] {0, 0, scenario.width(), scenario.height()};
+        double[] b = {Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        TrajectoryRecorder.Frame f = null;
+        for (int i : new int[] {0, in.frameCount() - 1}) {
+            f = in.read(i, f);
+            for (int k = 0; k < f.size; k++) {
+                b[0] = Math.min(b[0], f.x[k]);
+                b[1] = Math.min(b[1], f.y[k]);
+                b[2] = Math.max(b[2], f.x[k]);
+                b[3] = Math.max(b[3], f.y[k]);
+            }
+        }
+        return b[0] > b[2] ? new double[] {0, 0, 800, 600} : b;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: java game.ReplayViewer <run.strj> [scenario]");
+            System.exit(2);
+        }
+        Path file = Paths.get(args[0]);
+        TrajectoryReader in = TrajectoryReader.open(file);
+        if (in.frameCount() == 0) {
+            System.err.println(file + " has no recorded frames");
+            System.exit(1);
+        }
+        Scenario scenario = null;
+        if (args.length == 2) {
+            Path scenarioFile = Paths.get(args[1]);
+            scenario = scenarioFile.toString().endsWith(".txt")
+                    ? ScenarioConverter.parse(scenarioFile) : Scenario.map(scenarioFile);
+        }
+        ReplayViewer viewer = new ReplayViewer(file, in, scenario == null ? null : scenario.buildNetwork(),
+                bounds(in, scenario));
+        viewer.start();
+    }
+}
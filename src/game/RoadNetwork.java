@@ -0,0 +1,517 @@
+package game;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+CLASS: RoadNetwork
+DESCRIPTION: The road map as a graph. Nodes are junctions (or map edges)
+             with a square junction box; lanes are directed straight edges
+             between two nodes, each with its own driving line, paved band,
+             speed limit and capacity. A uniform grid over the map answers
+             "which lane / junction is this point on?" by looking at a single
+             cell, so the cost doesn't grow with the size of the map.
+USAGE: addNode()/addLane() (or load() a text file), then buildIndex() once
+       before querying. Ids are dense ints in the order things were added.
+NOTE: Lateral distances are measured along the lane's right-hand normal,
+      which in screen coordinates (y grows downwards) is (-dirY, dirX).
+*/
+class RoadNetwork {
+    static final double INDEX_CELL_SIZE = 64;
+    // Lanes whose directions' cross product is below this run straight on.
+    static final double TURN_EPSILON = 1e-6;
+
+    // ---------------- NODES ----------------
+    private double[] nodeX = new double[16], nodeY = new double[16];
+    private double[] nodeHalfSize = new double[16]; // junction box, 0 for plain road ends
+    private int nodeCount = 0;
+
+    // ---------------- LANES ----------------
+    private int[] laneFrom = new int[16], laneTo = new int[16];
+    private double[] laneOffset = new double[16];        // driving line, from the centreline
+    private double[] laneMin = new double[16], laneMax = new double[16]; // paved band
+    private double[] laneSpeedLimit = new double[16];    // world units per second
+    private double[] laneCapacity = new double[16];      // vehicles per hour
+    // Derived from the nodes: centreline start, unit direction and length.
+    private double[] laneStartX = new double[16], laneStartY = new double[16];
+    private double[] laneDirX = new double[16], laneDirY = new double[16];
+    private double[] laneLength = new double[16];
+    private int laneCount = 0;
+
+    // ---------------- INDEX ----------------
+    // Lanes leaving each node, CSR style: outLanes[outStart[n] .. outStart[n+1]),
+    // and the same for the lanes arriving at it.
+    private int[] outStart = new int[1], outLanes = new int[0];
+    private int[] inStart = new int[1], inLanes = new int[0];
+    // Grid cells over the map, each listing the lanes / junctions touching it.
+    private double gridX, gridY;
+    private int gridCols, gridRows;
+    private int[] laneCellStart = new int[1], laneCellItems = new int[0];
+    private int[] nodeCellStart = new int[1], nodeCellItems = new int[0];
+    // Per lane: the straight-ahead lane at its end, and the parallel lanes
+    // (same two nodes) just left and right of it; -1 where there is none.
+    private int[] laneNext = new int[0], laneLeft = new int[0], laneRight = new int[0];
+    private boolean indexed = false;
+
+    // ---------------- BUILDING ----------------
+    public int addNode(double x, double y, double junctionHalfSize) {
+        if (nodeCount == nodeX.length) {
+            int size = nodeCount * 2;
+            nodeX = Arrays.copyOf(nodeX, size);
+            nodeY = Arrays.copyOf(nodeY, size);
+            nodeHalfSize = Arrays.copyOf(nodeHalfSize, size);
+        }
+        nodeX[nodeCount] = x;
+        nodeY[nodeCount] = y;
+        nodeHalfSize[nodeCount] = junctionHalfSize;
+        indexed = false;
+        return nodeCount++;
+    }
+
+    public int addLane(int from, int to, double offset, double lateralMin, double lateralMax,
+                       double speedLimit, double capacity) {
+        if (from < 0 || from >= nodeCount || to < 0 || to >= nodeCount || from == to) {
+            throw new IllegalArgumentException("Lane must join two different existing nodes: " + from + " -> " + to);
+        }
+        if (laneCount == laneFrom.length) growLanes(laneCount * 2);
+        int l = laneCount++;
+        laneFrom[l] = from;
+        laneTo[l] = to;
+        laneOffset[l] = offset;
+        laneMin[l] = lateralMin;
+        laneMax[l] = lateralMax;
+        laneSpeedLimit[l] = speedLimit;
+        laneCapacity[l] = capacity;
+        double dx = nodeX[to] - nodeX[from], dy = nodeY[to] - nodeY[from];
+        double length = Math.sqrt(dx * dx + dy * dy);
+        laneStartX[l] = nodeX[from];
+        laneStartY[l] = nodeY[from];
+        laneDirX[l] = dx / length;
+        laneDirY[l] = dy / length;
+        laneLength[l] = length;
+        indexed = false;
+        return l;
+    }
+
+    /*
+    METHOD: buildIndex
+    DESCRIPTION: Builds the node -> lanes tables and the lookup grid.
+                 Call once after the last add; queries assume it is current.
+    */
+    public void buildIndex() {
+        // Outgoing and incoming lanes per node (counting sorts on each end).
+        outStart = new int[nodeCount + 1];
+        outLanes = laneTable(laneFrom, outStart);
+        inStart = new int[nodeCount + 1];
+        inLanes = laneTable(laneTo, inStart);
+        linkLanes();
+
+        // Grid bounds: everything paved or boxed.
+        double loX = Double.POSITIVE_INFINITY, loY = Double.POSITIVE_INFINITY;
+        double hiX = Double.NEGATIVE_INFINITY, hiY = Double.NEGATIVE_INFINITY;
+        double[] box = new double[4];
+        for (int l = 0; l < laneCount; l++) {
+            laneBounds(l, box);
+            loX = Math.min(loX, box[0]); loY = Math.min(loY, box[1]);
+            hiX = Math.max(hiX, box[2]); hiY = Math.max(hiY, box[3]);
+        }
+        for (int n = 0; n < nodeCount; n++) {
+            loX = Math.min(loX, nodeX[n] - nodeHalfSize[n]); loY = Math.min(loY, nodeY[n] - nodeHalfSize[n]);
+            hiX = Math.max(hiX, nodeX[n] + nodeHalfSize[n]); hiY = Math.max(hiY, nodeY[n] + nodeHalfSize[n]);
+        }
+        if (loX > hiX) { loX = loY = 0; hiX = hiY = 1; } // empty map
+        gridX = loX;
+        gridY = loY;
+        gridCols = (int) Math.floor((hiX - loX) / INDEX_CELL_SIZE) + 1;
+        gridRows = (int) Math.floor((hiY - loY) / INDEX_CELL_SIZE) + 1;
+
+        double[][] laneBoxes = new double[laneCount][4];
+        for (int l = 0; l < laneCount; l++) laneBounds(l, laneBoxes[l]);
+        double[][] nodeBoxes = new double[nodeCount][];
+        for (int n = 0; n < nodeCount; n++) {
+            double h = nodeHalfSize[n];
+            nodeBoxes[n] = new double[] {nodeX[n] - h, nodeY[n] - h, nodeX[n] + h, nodeY[n] + h};
+        }
+        laneCellStart = new int[gridCols * gridRows + 1];
+        laneCellItems = fillCells(laneBoxes, laneCellStart);
+        nodeCellStart = new int[gridCols * gridRows + 1];
+        nodeCellItems = fillCells(nodeBoxes, nodeCellStart);
+        indexed = true;
+    }
+
+    public boolean isIndexed() { return indexed; }
+
+    // ---------------- QUERIES ----------------
+    /*
+    METHOD: laneAt
+    DESCRIPTION: The lane whose paved band contains (x, y), preferring the
+                 one whose driving line is closest where bands overlap (as
+                 they do inside junctions). -1 when the point is off-road.
+    */
+    public int laneAt(double x, double y) {
+        int cell = cellOf(x, y);
+        if (cell < 0) return -1;
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int i = laneCellStart[cell], end = laneCellStart[cell + 1]; i < end; i++) {
+            int l = laneCellItems[i];
+            double px = x - laneStartX[l], py = y - laneStartY[l];
+            double along = px * laneDirX[l] + py * laneDirY[l];
+            if (along < 0 || along > laneLength[l]) continue;
+            double lateral = -px * laneDirY[l] + py * laneDirX[l];
+            if (lateral < laneMin[l] || lateral > laneMax[l]) continue;
+            double distance = Math.abs(lateral - laneOffset[l]);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = l;
+            }
+        }
+        return best;
+    }
+
+    public boolean isOnRoad(double x, double y) { return laneAt(x, y) >= 0; }
+
+    // The junction whose box, grown by 'margin' on every side, contains (x, y); -1 if none.
+    public int junctionAt(double x, double y, double margin) {
+        // A margin can reach past the grid or into neighbouring cells, so
+        // look at every cell the grown box could have come from.
+        int reach = (int) Math.ceil(margin / INDEX_CELL_SIZE);
+        int col = (int) Math.floor((x - gridX) / INDEX_CELL_SIZE);
+        int row = (int) Math.floor((y - gridY) / INDEX_CELL_SIZE);
+        for (int r = Math.max(0, row - reach); r <= Math.min(gridRows - 1, row + reach); r++) {
+            for (int c = Math.max(0, col - reach); c <= Math.min(gridCols - 1, col + reach); c++) {
+                int k = r * gridCols + c;
+                for (int i = nodeCellStart[k], end = nodeCellStart[k + 1]; i < end; i++) {
+                    int n = nodeCellItems[i];
+                    double h = nodeHalfSize[n] + margin;
+                    if (nodeHalfSize[n] > 0 && Math.abs(x - nodeX[n]) <= h && Math.abs(y - nodeY[n]) <= h) return n;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /*
+    METHOD: snapLane
+    DESCRIPTION: The lane running roughly along 'headingDegrees' (within
+                 about 25 degrees) whose driving line passes closest to
+                 (x, y), looking in the point's grid cell and its neighbours.
+                 Points past either end of a lane count from that end, so
+                 a vehicle waiting just off the map still finds its lane.
+                 -1 when nothing fits. Used to put spawned vehicles on a lane.
+    */
+    public int snapLane(double x, double y, double headingDegrees) {
+        double radians = Math.toRadians(headingDegrees);
+        double hx = Math.cos(radians), hy = Math.sin(radians);
+        int col = Math.max(0, Math.min(gridCols - 1, (int) Math.floor((x - gridX) / INDEX_CELL_SIZE)));
+        int row = Math.max(0, Math.min(gridRows - 1, (int) Math.floor((y - gridY) / INDEX_CELL_SIZE)));
+        int best = -1;
+        double bestDistance = 2 * INDEX_CELL_SIZE;
+        for (int r = Math.max(0, row - 1); r <= Math.min(gridRows - 1, row + 1); r++) {
+            for (int c = Math.max(0, col - 1); c <= Math.min(gridCols - 1, col + 1); c++) {
+                int k = r * gridCols + c;
+                for (int i = laneCellStart[k], end = laneCellStart[k + 1]; i < end; i++) {
+                    int l = laneCellItems[i];
+                    if (laneDirX[l] * hx + laneDirY[l] * hy < 0.9) continue;
+                    double along = Math.max(0, Math.min(laneLength[l], positionAlong(l, x, y)));
+                    double dx = x - laneX(l, along), dy = y - laneY(l, along);
+                    double distance = Math.sqrt(dx * dx + dy * dy);
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = l;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    // Distance along lane l of the point's projection (may be < 0 or > length).
+    public double positionAlong(int l, double x, double y) {
+        return (x - laneStartX[l]) * laneDirX[l] + (y - laneStartY[l]) * laneDirY[l];
+    }
+
+    /*
+    METHOD: turnFrom
+    DESCRIPTION: Where a vehicle 'half' its length long, turning from lane
+                 'in' onto 'out' (which starts where 'in' ends), leaves
+                 'in': 'half' short of where their driving lines cross, so
+                 its nose reaches that point and a turn towards the lane's
+                 own side cuts the corner, clear of the lanes the other way.
+                 That is kept between the stop line and the end of 'in';
+                 straight on it is the end. turnInto() is where it comes
+                 out on 'out': 'half' past the same point, its tail there,
+                 kept within the box.
+    */
+    public double turnFrom(int in, int out, double half) {
+        double cross = laneDirX[in] * laneDirY[out] - laneDirY[in] * laneDirX[out];
+        if (Math.abs(cross) < TURN_EPSILON) return laneLength[in];
+        double t = ((laneX(out, 0) - laneX(in, 0)) * laneDirY[out] - (laneY(out, 0) - laneY(in, 0)) * laneDirX[out]) / cross;
+        return Math.max(stopLine(in), Math.min(laneLength[in], t - half));
+    }
+
+    public double turnInto(int in, int out, double half) {
+        double cross = laneDirX[in] * laneDirY[out] - laneDirY[in] * laneDirX[out];
+        if (Math.abs(cross) < TURN_EPSILON) return 0;
+        double u = ((laneX(out, 0) - laneX(in, 0)) * laneDirY[in] - (laneY(out, 0) - laneY(in, 0)) * laneDirX[in]) / cross;
+        return Math.max(0, Math.min(nodeHalfSize[laneFrom[out]], u + half));
+    }
+
+    // ---------------- ACCESS ----------------
+    public int nodeCount() { return nodeCount; }
+    public double nodeX(int n) { return nodeX[n]; }
+    public double nodeY(int n) { return nodeY[n]; }
+    public double junctionHalfSize(int n) { return nodeHalfSize[n]; }
+    public int outDegree(int n) { return outStart[n + 1] - outStart[n]; }
+    public int outLane(int n, int k) { return outLanes[outStart[n] + k]; }
+    public int inDegree(int n) { return inStart[n + 1] - inStart[n]; }
+    public int inLane(int n, int k) { return inLanes[inStart[n] + k]; }
+
+    public int laneCount() { return laneCount; }
+    public int laneFrom(int l) { return laneFrom[l]; }
+    public int laneTo(int l) { return laneTo[l]; }
+    public double laneOffset(int l) { return laneOffset[l]; }
+    public double laneMin(int l) { return laneMin[l]; }
+    public double laneMax(int l) { return laneMax[l]; }
+    public double laneSpeedLimit(int l) { return laneSpeedLimit[l]; }
+    public double laneCapacity(int l) { return laneCapacity[l]; }
+    public double laneLength(int l) { return laneLength[l]; }
+    public double laneDirX(int l) { return laneDirX[l]; }
+    public double laneDirY(int l) { return laneDirY[l]; }
+    public int nextLane(int l) { return laneNext[l]; }
+    public int leftLane(int l) { return laneLeft[l]; }
+    public int rightLane(int l) { return laneRight[l]; }
+    // Where traffic on lane l waits for a light: the edge of the junction box at its end.
+    public double stopLine(int l) { return laneLength[l] - nodeHalfSize[laneTo[l]]; }
+    // Heading of the lane in degrees, zero due east (as TrafficElement uses).
+    public double laneHeading(int l) { return Math.toDegrees(Math.atan2(laneDirY[l], laneDirX[l])); }
+    // The point 'along' units down lane l's driving line.
+    public double laneX(int l, double along) { return laneStartX[l] + laneDirX[l] * along - laneDirY[l] * laneOffset[l]; }
+    public double laneY(int l, double along) { return laneStartY[l] + laneDirY[l] * along + laneDirX[l] * laneOffset[l]; }
+
+    // ---------------- FACTORIES ----------------
+    /*
+    METHOD: crossIntersection
+    DESCRIPTION: The original map: one horizontal and one vertical two-way
+                 road of the given width crossing at (centerX, centerY), each
+                 running 40 units past the edges of a width x height area.
+                 Every lane's band is its half of the road and its driving
+                 line sits 10 units off the centreline.
+    */
+    public static RoadNetwork crossIntersection(double centerX, double centerY, double roadWidth,
+                                                double junctionHalfSize, double width, double height,
+                                                double speedLimit, double capacity) {
+        RoadNetwork net = new RoadNetwork();
+        int center = net.addNode(centerX, centerY, junctionHalfSize);
+        int west = net.addNode(-40, centerY, 0);
+        int east = net.addNode(width + 40, centerY, 0);
+        int north = net.addNode(centerX, -40, 0);
+        int south = net.addNode(centerX, height + 40, 0);
+        double half = roadWidth / 2;
+        for (int end : new int[] {west, east, north, south}) {
+            net.addLane(end, center, -10, -half, 0, speedLimit, capacity);
+            net.addLane(center, end, -10, -half, 0, speedLimit, capacity);
+        }
+        net.buildIndex();
+        return net;
+    }
+
+    /*
+    METHOD: load
+    DESCRIPTION: Reads a network from a text file, one record per line:
+                   node <id> <x> <y> <junctionHalfSize>
+                   lane <id> <fromNode> <toNode> <offset> <lateralMin> <lateralMax> <speedLimit> <capacity>
+                 Ids are any integers, unique per kind; nodes must appear
+                 before the lanes that use them. Blank lines and lines
+                 starting with '#' are skipped. The index is built on return.
+    */
+    public static RoadNetwork load(Path file) throws IOException {
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return parse(in, file.toString());
+        }
+    }
+
+    public static RoadNetwork parse(Reader source, String name) throws IOException {
+        RoadNetwork net = new RoadNetwork();
+        Map<Integer, Integer> nodeIds = new HashMap<>();
+        Map<Integer, Integer> laneIds = new HashMap<>();
+        BufferedReader in = new BufferedReader(source);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            String[] f = line.trim().split("\\s+");
+            if (f[0].isEmpty() || f[0].startsWith("#")) continue;
+            try {
+                if (!net.parseRecord(f, nodeIds, laneIds)) {
+                    throw new IllegalArgumentException("unknown record '" + f[0] + "'");
+                }
+            } catch (RuntimeException e) {
+                throw new IOException(name + ":" + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        net.buildIndex();
+        return net;
+    }
+
+    // One text record; returns false if the keyword isn't a network record.
+    boolean parseRecord(String[] f, Map<Integer, Integer> nodeIds, Map<Integer, Integer> laneIds) {
+        switch (f[0]) {
+            case "node": {
+                expectFields(f, 5);
+                int id = Integer.parseInt(f[1]);
+                if (nodeIds.containsKey(id)) throw new IllegalArgumentException("duplicate node " + id);
+                nodeIds.put(id, addNode(Double.parseDouble(f[2]), Double.parseDouble(f[3]), Double.parseDouble(f[4])));
+                return true;
+            }
+            case "lane": {
+                expectFields(f, 9);
+                int id = Integer.parseInt(f[1]);
+                if (laneIds.containsKey(id)) throw new IllegalArgumentException("duplicate lane " + id);
+                laneIds.put(id, addLane(lookup(nodeIds, f[2], "node"), lookup(nodeIds, f[3], "node"),
+                        Double.parseDouble(f[4]), Double.parseDouble(f[5]), Double.parseDouble(f[6]),
+                        Double.parseDouble(f[7]), Double.parseDouble(f[8])));
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    static void expectFields(String[] f, int count) {
+        if (f.length != count) {
+            throw new IllegalArgumentException("'" + f[0] + "' needs " + (count - 1) + " values, got " + (f.length - 1));
+        }
+    }
+
+    static int lookup(Map<Integer, Integer> ids, String field, String kind) {
+        Integer id = ids.get(Integer.parseInt(field));
+        if (id == null) throw new IllegalArgumentException("unknown " + kind + " " + field);
+        return id;
+    }
+
+    // ---------------- HELPERS ----------------
+    private int cellOf(double x, double y) {
+        int col = (int) Math.floor((x - gridX) / INDEX_CELL_SIZE);
+        int row = (int) Math.floor((y - gridY) / INDEX_CELL_SIZE);
+        if (col < 0 || row < 0 || col >= gridCols || row >= gridRows) return -1;
+        return row * gridCols + col;
+    }
+
+    // Lanes grouped by the node in 'endOf', filling 'start' (nodeCount + 1 long).
+    private int[] laneTable(int[] endOf, int[] start) {
+        for (int l = 0; l < laneCount; l++) start[endOf[l] + 1]++;
+        for (int n = 0; n < nodeCount; n++) start[n + 1] += start[n];
+        int[] lanes = new int[laneCount];
+        int[] fill = Arrays.copyOf(start, nodeCount);
+        for (int l = 0; l < laneCount; l++) lanes[fill[endOf[l]]++] = l;
+        return lanes;
+    }
+
+    /*
+    METHOD: linkLanes
+    DESCRIPTION: Fills laneNext/laneLeft/laneRight from the outgoing-lanes
+                 table. The next lane is the one leaving the end node closest
+                 to straight on (never a U-turn or a turn sharper than 60
+                 degrees), and of those the nearest in offset; neighbours are the lanes between the same two
+                 nodes with the nearest offset on each side.
+    */
+    private void linkLanes() {
+        laneNext = new int[laneCount];
+        laneLeft = new int[laneCount];
+        laneRight = new int[laneCount];
+        for (int l = 0; l < laneCount; l++) {
+            int best = -1, sideLeft = -1, sideRight = -1;
+            double bestDot = 0.5;
+            int end = laneTo[l];
+            for (int i = outStart[end]; i < outStart[end + 1]; i++) {
+                int m = outLanes[i];
+                double dot = laneDirX[l] * laneDirX[m] + laneDirY[l] * laneDirY[m];
+                // Parallel lanes each carry on in the lane at the same offset.
+                boolean closer = best >= 0 && dot > bestDot - 1e-9
+                        && Math.abs(laneOffset[m] - laneOffset[l]) < Math.abs(laneOffset[best] - laneOffset[l]);
+                if (dot > bestDot + 1e-9 || closer) {
+                    bestDot = dot;
+                    best = m;
+                }
+            }
+            int start = laneFrom[l];
+            for (int i = outStart[start]; i < outStart[start + 1]; i++) {
+                int m = outLanes[i];
+                if (m == l || laneTo[m] != end) continue;
+                if (laneOffset[m] < laneOffset[l] && (sideLeft < 0 || laneOffset[m] > laneOffset[sideLeft])) sideLeft = m;
+                if (laneOffset[m] > laneOffset[l] && (sideRight < 0 || laneOffset[m] < laneOffset[sideRight])) sideRight = m;
+            }
+            laneNext[l] = best;
+            laneLeft[l] = sideLeft;
+            laneRight[l] = sideRight;
+        }
+    }
+
+    // Axis-aligned box around lane l's paved band, as {minX, minY, maxX, maxY}.
+    private void laneBounds(int l, double[] out) {
+        double nx = -laneDirY[l], ny = laneDirX[l];
+        double ex = laneDirX[l] * laneLength[l], ey = laneDirY[l] * laneLength[l];
+        double ax = laneStartX[l] + nx * laneMin[l], ay = laneStartY[l] + ny * laneMin[l];
+        double bx = laneStartX[l] + nx * laneMax[l], by = laneStartY[l] + ny * laneMax[l];
+        out[0] = Math.min(Math.min(ax, bx), Math.min(ax + ex, bx + ex));
+        out[1] = Math.min(Math.min(ay, by), Math.min(ay + ey, by + ey));
+        out[2] = Math.max(Math.max(ax, bx), Math.max(ax + ex, bx + ex));
+        out[3] = Math.max(Math.max(ay, by), Math.max(ay + ey, by + ey));
+    }
+
+    // Counting-sort the boxes into grid cells; fills 'start' and returns the items.
+    private int[] fillCells(double[][] boxes, int[] start) {
+        for (int pass = 0; pass < 2; pass++) {
+            int[] items = pass == 0 ? null : new int[start[start.length - 1]];
+            int[] fill = pass == 0 ? null : Arrays.copyOf(start, start.length - 1);
+            for (int i = 0; i < boxes.length; i++) {
+                int c0 = clampCol(boxes[i][0]), c1 = clampCol(boxes[i][2]);
+                int r0 = clampRow(boxes[i][1]), r1 = clampRow(boxes[i][3]);
+                for (int r = r0; r <= r1; r++) {
+                    for (int c = c0; c <= c1; c++) {
+                        int k = r * gridCols + c;
+                        if (pass == 0) start[k + 1]++;
+                        else items[fill[k]++] = i;
+                    }
+                }
+            }
+            if (pass == 0) {
+                for (int k = 0; k + 1 < start.length; k++) start[k + 1] += start[k];
+            } else {
+                return items;
+            }
+        }
+        return null; // not reached
+    }
+
+    private int clampCol(double x) {
+        return Math.max(0, Math.min(gridCols - 1, (int) Math.floor((x - gridX) / INDEX_CELL_SIZE)));
+    }
+
+    private int clampRow(double y) {
+        return Math.max(0, Math.min(gridRows - 1, (int) Math.floor((y - gridY) / INDEX_CELL_SIZE)));
+    }
+
+    private void growLanes(int size) {
+        laneFrom = Arrays.copyOf(laneFrom, size);
+        laneTo = Arrays.copyOf(laneTo, size);
+        laneOffset = Arrays.copyOf(laneOffset, size);
+        laneMin = Arrays.copyOf(laneMin, size);
+        laneMax = Arrays.copyOf(laneMax, size);
+        laneSpeedLimit = Arrays.copyOf(laneSpeedLimit, size);
+        laneCapacity = Arrays.copyOf(laneCapacity, size);
+        laneStartX = Arrays.copyOf(laneStartX, size);
+        laneStartY = Arrays.copyOf(laneStartY, size);
+        laneDirX = Arrays.copyOf(laneDirX, size);
+        laneDirY = Arrays.copyOf(laneDirY, size);
+        laneLength = Arrays.copyOf(laneLength, size);
+    }
+}
@@ -0,0 +1,355 @@
+package game;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+CLASS: Router
+DESCRIPTION: Shortest-time routes over a RoadNetwork. Routes are kept as
+             route tables, one per destination node: for every lane, the
+             lane to take at its end to reach the destination soonest (-1
+             where the lane ends there, or can't get there). A table is one
+             backwards Dijkstra search over the lane graph from the
+             destination, on the network's primitive adjacency arrays, and
+             it serves every origin at once, so a vehicle spawning costs a
+             lookup however many of them there are.
+             Costs are the seconds it takes to drive each lane, which may
+             differ by time of day: the day is cut into buckets of
+             bucketTicks() ticks, each with its own costs (free-flow, length
+             over speed limit, until told otherwise). Tables are cached by
+             (destination, bucket) in a least-recently-used cache, and
+             computed in parallel batches when several are missing.
+             updateCosts() changes the costs in place and drops only the
+             cached tables the change can alter, so a Router can be reused
+             from one assignment iteration to the next.
+USAGE: router = new Router(network); tables(destinations, bucket, out,
+       executor) fills in the tables a set of vehicles needs;
+       table(destination, bucket) gets one. The network must be indexed
+       and is never changed, so one Router can serve every Simulation of
+       the same scenario.
+NOTE: Thread-safe: the cache is locked, and searches share nothing. Only
+      updateCosts() between runs, never while a Simulation routes on it.
+      U-turns (onto the lane back where one came from) are never taken.
+      Where two ways cost the same, the straight-on lane wins (as
+      RoadNetwork.nextLane() would pick), then the nearest in offset, so a
+      vehicle keeps its side of a multi-lane road.
+*/
+class Router {
+    static final int DEFAULT_CACHE_TABLES = 256;
+
+    private final RoadNetwork network;
+    private final int laneCount;
+    // Seconds to drive each lane: cost[bucket * laneCount + lane].
+    private final double[] cost;
+    private final int buckets;
+    private final long bucketTicks;
+
+    // Route tables by destination and bucket, least recently used first.
+    private final Map<Long, Table> cache;
+    private long computed = 0, hits = 0, dropped = 0;
+
+    public Router(RoadNetwork network) { this(network, DEFAULT_CACHE_TABLES); }
+
+    // Free-flow costs, the same all day; at most 'cacheTables' tables kept.
+    public Router(RoadNetwork network, int cacheTables) {
+        this(network, freeFlow(network), 1, Long.MAX_VALUE, cacheTables);
+    }
+
+    /*
+    Costs given per bucket: 'cost' holds buckets * laneCount seconds, and
+    bucket b covers ticks [b * bucketTicks, (b + 1) * bucketTicks), the last
+    one for the rest of the run.
+    */
+    public Router(RoadNetwork network, double[] cost, int buckets, long bucketTicks, int cacheTables) {
+        if (!network.isIndexed()) throw new IllegalArgumentException("Index the network before routing on it");
+        if (buckets < 1 || bucketTicks < 1 || cost.length != buckets * network.laneCount()) {
+            throw new IllegalArgumentException("Need " + network.laneCount() + " lane costs for each of "
+                    + buckets + " buckets, got " + cost.length);
+        }
+        this.network = network;
+        this.laneCount = network.laneCount();
+        this.cost = cost.clone();
+        this.buckets = buckets;
+        this.bucketTicks = bucketTicks;
+        int capacity = Math.max(1, cacheTables);
+        this.cache = new LinkedHashMap<Long, Table>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Table> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public RoadNetwork getNetwork() { return network; }
+    public int bucketCount() { return buckets; }
+    public long bucketTicks() { return bucketTicks; }
+    public int bucketOf(long tick) { return (int) Math.min(buckets - 1, tick / bucketTicks); }
+    public double travelTime(int lane, int bucket) { return cost[bucket * laneCount + lane]; }
+    // Every bucket's costs, in the layout the constructor takes.
+    public synchronized double[] costs() { return cost.clone(); }
+
+    // Tables searched so far, lookups the cache answered, and tables
+    // updateCosts() threw out.
+    public synchronized long tablesComputed() { return computed; }
+    public synchronized long cacheHits() { return hits; }
+    public synchronized long tablesDropped() { return dropped; }
+    public synchronized int tablesCached() { return cache.size(); }
+
+    // ---------------- TABLES ----------------
+    // Inner Class: Table (Static Nested Class)
+    // One destination's routes: the lane to take at the end of each lane,
+    // and the time from there to the destination (infinity: no way).
+    private static class Table {
+        final int[] next;
+        final double[] remaining;
+
+        Table(int[] next, double[] remaining) {
+            this.next = next;
+            this.remaining = remaining;
+        }
+    }
+
+    public int[] table(int destination, int bucket) {
+        Table table = cached(destination, bucket);
+        if (table == null) {
+            table = search(destination, bucket);
+            keep(destination, bucket, table);
+        }
+        return table.next;
+    }
+
+    /*
+    METHOD: tables
+    DESCRIPTION: Puts the table for each destination in 'destinations' at
+                 'bucket' into byDestination[destination]: from the cache
+                 where it can, and the rest searched side by side on
+                 'executor'. The tables come out the same either way.
+    */
+    public void tables(IntList destinations, int bucket, int[][] byDestination, TickExecutor executor) {
+        IntList missing = new IntList(destinations.size());
+        for (int i = 0; i < destinations.size(); i++) {
+            int d = destinations.get(i);
+            Table table = cached(d, bucket);
+            byDestination[d] = table == null ? null : table.next;
+            if (table == null) missing.add(d);
+        }
+        Table[] searched = new Table[missing.size()];
+        executor.forEachChunk(missing.size(), 1, (chunk, from, to) -> {
+            for (int i = from; i < to; i++) searched[i] = search(missing.get(i), bucket);
+        });
+        for (int i = 0; i < missing.size(); i++) {
+            keep(missing.get(i), bucket, searched[i]);
+            byDestination[missing.get(i)] = searched[i].next;
+        }
+    }
+
+    private synchronized Table cached(int destination, int bucket) {
+        Table table = cache.get(key(destination, bucket));
+        if (table != null) hits++;
+        return table;
+    }
+
+    private synchronized void keep(int destination, int bucket, Table table) {
+        cache.put(key(destination, bucket), table);
+        computed++;
+    }
+
+    private static long key(int destination, int bucket) {
+        return (long) bucket << 32 | destination;
+    }
+
+    // ---------------- COSTS ----------------
+    /*
+    METHOD: updateCosts
+    DESCRIPTION: Routes on 'next' (the constructor's layout) from now on,
+                 but only where a lane's cost moved by more than
+                 'tolerance' (a fraction of the old cost); smaller moves
+                 are left out, so noise doesn't reroute anyone. A cached
+                 table is dropped only if a lane got dearer that its routes
+                 use, or cheaper enough to beat a route it offers; every
+                 other table is still exact and stays. Returns how many
+                 were dropped.
+    */
+    public synchronized int updateCosts(double[] next, double tolerance) {
+        if (next.length != cost.length) {
+            throw new IllegalArgumentException("Need " + cost.length + " lane costs, got " + next.length);
+        }
+        IntList[] changed = new IntList[buckets];
+        for (int b = 0; b < buckets; b++) {
+            changed[b] = new IntList();
+            for (int l = 0; l < laneCount; l++) {
+                int i = b * laneCount + l;
+                if (Math.abs(next[i] - cost[i]) > tolerance * cost[i]) changed[b].add(l);
+            }
+        }
+        int count = 0;
+        for (Iterator<Map.Entry<Long, Table>> it = cache.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, Table> entry = it.next();
+            int b = (int) (entry.getKey() >>> 32);
+            if (changed[b].size() > 0 && affected(entry.getValue(), b, changed[b], next)) {
+                it.remove();
+                count++;
+            }
+        }
+        for (int b = 0; b < buckets; b++) {
+            for (int k = 0; k < changed[b].size(); k++) {
+                int i = b * laneCount + changed[b].get(k);
+                cost[i] = next[i];
+            }
+        }
+        dropped += count;
+        return count;
+    }
+
+    // Whether the new costs of the 'lanes' changed in bucket b alter 'table'.
+    private boolean affected(Table table, int b, IntList lanes, double[] next) {
+        boolean[] used = null; // lanes some route turns onto, worked out if needed
+        for (int k = 0; k < lanes.size(); k++) {
+            int m = lanes.get(k), i = b * laneCount + m;
+            if (table.remaining[m] == Double.POSITIVE_INFINITY) continue; // leads nowhere either way
+            if (next[i] > cost[i]) {
+                if (used == null) {
+                    used = new boolean[laneCount];
+                    for (int p = 0; p < laneCount; p++) {
+                        if (table.next[p] >= 0) used[table.next[p]] = true;
+                    }
+                }
+                if (used[m]) return true;
+            } else {
+                double through = next[i] + table.remaining[m];
+                int from = network.laneFrom(m);
+                for (int j = 0; j < network.inDegree(from); j++) {
+                    int p = network.inLane(from, j);
+                    if (network.laneFrom(p) == network.laneTo(m)) continue; // a U-turn
+                    if (through <= table.remaining[p] * (1 + 1e-9)) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // ---------------- SEARCH ----------------
+    /*
+    METHOD: search
+    DESCRIPTION: One route table. Dijkstra runs backwards from the lanes
+                 into 'destination', labelling each lane with the time from
+                 its end to the destination; then each lane picks the
+                 outgoing lane that realises its label.
+    */
+    private Table search(int destination, int bucket) {
+        int base = bucket * laneCount;
+        double[] remaining = new double[laneCount];
+        Arrays.fill(remaining, Double.POSITIVE_INFINITY);
+        Heap heap = new Heap(Math.max(16, laneCount));
+        for (int k = 0; k < network.inDegree(destination); k++) {
+            int l = network.inLane(destination, k);
+            remaining[l] = 0;
+            heap.push(l, 0);
+        }
+        while (heap.size > 0) {
+            double key = heap.topKey();
+            int l = heap.pop();
+            if (key > remaining[l]) continue; // a stale entry
+            double through = key + cost[base + l]; // from the end of any lane feeding l
+            int from = network.laneFrom(l), to = network.laneTo(l);
+            for (int k = 0; k < network.inDegree(from); k++) {
+                int p = network.inLane(from, k);
+                if (network.laneFrom(p) == to || through >= remaining[p]) continue;
+                remaining[p] = through;
+                heap.push(p, through);
+            }
+        }
+
+        int[] next = new int[laneCount];
+        Arrays.fill(next, -1);
+        for (int p = 0; p < laneCount; p++) {
+            int end = network.laneTo(p);
+            if (remaining[p] == Double.POSITIVE_INFINITY || end == destination) continue;
+            int straight = network.nextLane(p), best = -1;
+            double bestTime = Double.POSITIVE_INFINITY;
+            for (int k = 0; k < network.outDegree(end); k++) {
+                int m = network.outLane(end, k);
+                if (network.laneTo(m) == network.laneFrom(p) || remaining[m] == Double.POSITIVE_INFINITY) continue;
+                double time = cost[base + m] + remaining[m];
+                double slack = 1e-9 * Math.max(1, Math.min(time, bestTime));
+                boolean better = time < bestTime - slack;
+                if (!better && time <= bestTime + slack && best != straight) {
+                    better = m == straight || Math.abs(network.laneOffset(m) - network.laneOffset(p))
+                            < Math.abs(network.laneOffset(best) - network.laneOffset(p));
+                }
+                if (better) {
+                    best = m;
+                    bestTime = Math.min(time, bestTime);
+                }
+            }
+            next[p] = best;
+        }
+        return new Table(next, remaining);
+    }
+
+    // Seconds to drive each lane at its speed limit.
+    static double[] freeFlow(RoadNetwork network) {
+        double[] cost = new double[network.laneCount()];
+        for (int l = 0; l < cost.length; l++) cost[l] = network.laneLength(l) / network.laneSpeedLimit(l);
+        return cost;
+    }
+
+    // Inner Class: Heap (Static Nested Class)
+    // A binary min-heap of lanes on parallel primitive arrays. Lanes are
+    // pushed again when their key drops, and stale entries skipped on pop.
+    private static class Heap {
+        private int[] lanes;
+        private double[] keys;
+        int size = 0;
+
+        Heap(int capacity) {
+            lanes = new int[capacity];
+            keys = new double[capacity];
+        }
+
+        void push(int lane, double key) {
+            if (size == lanes.length) {
+                lanes = Arrays.copyOf(lanes, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!less(key, lane, keys[parent], lanes[parent])) break;
+                lanes[i] = lanes[parent];
+                keys[i] = keys[parent];
+                i = parent;
+            }
+            lanes[i] = lane;
+            keys[i] = key;
+        }
+
+        double topKey() { return keys[0]; }
+
+        int pop() {
+            int top = lanes[0];
+            int lane = lanes[--size];
+            double key = keys[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && less(keys[child + 1], lanes[child + 1], keys[child], lanes[child])) child++;
+                if (!less(keys[child], lanes[child], key, lane)) break;
+                lanes[i] = lanes[child];
+                keys[i] = keys[child];
+                i = child;
+            }
+            lanes[i] = lane;
+            keys[i] = key;
+            return top;
+        }
+
+        // Ties go to the lower lane, so the search order never varies.
+        private static boolean less(double keyA, int laneA, double keyB, int laneB) {
+            return keyA < keyB || (keyA == keyB && laneA < laneB);
+        }
+    }
+}
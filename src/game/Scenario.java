@@ -0,0 +1,393 @@
+package game;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+CLASS: Scenario
+DESCRIPTION: Everything a run starts from (world size, road network,
+             signals, initial vehicles, the optional player car, and the
+             traffic demand and incidents scheduled over the run) in a
+             compact binary layout: a fixed header followed by fixed-width
+             little-endian records. The object is only a view over those
+             bytes; map() reads a file through FileChannel.map, so opening a
+             scenario costs the same however many records it holds, and each
+             record is decoded only when it is read.
+USAGE: Scenario.map(file) for a file written by write() or by
+       ScenarioConverter; Scenario.Builder to assemble one in code (see
+       classic()). Simulation reads the records when it sets up or resets.
+NOTE: Layout (byte offsets):
+        header  0 magic 'STSC', 4 version, 8 nodes, 12 lanes, 16 signals,
+                20 vehicles, 24 width (double), 32 height (double), 40 flags,
+                44 reserved, 48/56/64/72 player x, y, heading, speed (doubles),
+                80 demands, 84 incidents, 88 random seed (long)
+        node    24 bytes: x, y, junctionHalfSize (doubles)
+        lane    48 bytes: from, to (ints), offset, lateralMin, lateralMax,
+                speedLimit, capacity (doubles)
+        signal  32 bytes: node, min green, max green, yellow, all-red, offset
+                ticks, mode (SignalController.FIXED/ACTUATED), phase plan
+                (SignalController.AXES/SHARED) (ints)
+        vehicle 20 bytes: type (int), x, y, heading, speed (floats)
+        demand  32 bytes: origin node, destination node, type, first tick,
+                last tick, reserved (ints), vehicles per hour, speed (floats)
+        incident 16 bytes: lane, start tick, duration ticks (ints), position
+                along the lane (float)
+*/
+class Scenario {
+    static final int MAGIC = 0x53545343; // "STSC"
+    static final int VERSION = 3;
+    static final int HEADER_BYTES = 96;
+    static final int NODE_BYTES = 24;
+    static final int LANE_BYTES = 48;
+    static final int SIGNAL_BYTES = 32;
+    static final int VEHICLE_BYTES = 20;
+    static final int DEMAND_BYTES = 32;
+    static final int INCIDENT_BYTES = 16;
+    static final int FLAG_PLAYER = 1;
+
+    private final ByteBuffer data;
+    private final int nodeCount, laneCount, signalCount, vehicleCount, demandCount, incidentCount;
+    private final int nodeBase, laneBase, signalBase, vehicleBase, demandBase, incidentBase;
+
+    private Scenario(ByteBuffer bytes) throws IOException {
+        data = bytes.order(ByteOrder.LITTLE_ENDIAN);
+        if (data.limit() < HEADER_BYTES || data.getInt(0) != MAGIC) throw new IOException("Not a scenario file");
+        if (data.getInt(4) != VERSION) throw new IOException("Unsupported scenario version " + data.getInt(4));
+        nodeCount = data.getInt(8);
+        laneCount = data.getInt(12);
+        signalCount = data.getInt(16);
+        vehicleCount = data.getInt(20);
+        demandCount = data.getInt(80);
+        incidentCount = data.getInt(84);
+        nodeBase = HEADER_BYTES;
+        laneBase = nodeBase + nodeCount * NODE_BYTES;
+        signalBase = laneBase + laneCount * LANE_BYTES;
+        vehicleBase = signalBase + signalCount * SIGNAL_BYTES;
+        demandBase = vehicleBase + vehicleCount * VEHICLE_BYTES;
+        incidentBase = demandBase + demandCount * DEMAND_BYTES;
+        long expected = (long) incidentBase + (long) incidentCount * INCIDENT_BYTES;
+        if (data.limit() != expected) {
+            throw new IOException("Scenario is " + data.limit() + " bytes, header says " + expected);
+        }
+    }
+
+    // ---------------- FILES ----------------
+    public static Scenario map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new Scenario(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public void write(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer all = data.duplicate();
+            all.clear();
+            while (all.hasRemaining()) channel.write(all);
+        }
+    }
+
+    // ---------------- HEADER ----------------
+    public double width() { return data.getDouble(24); }
+    public double height() { return data.getDouble(32); }
+    public boolean hasPlayer() { return (data.getInt(40) & FLAG_PLAYER) != 0; }
+    public double playerX() { return data.getDouble(48); }
+    public double playerY() { return data.getDouble(56); }
+    public double playerHeading() { return data.getDouble(64); }
+    public double playerSpeed() { return data.getDouble(72); }
+    public long seed() { return data.getLong(88); }
+
+    public int nodeCount() { return nodeCount; }
+    public int laneCount() { return laneCount; }
+    public int signalCount() { return signalCount; }
+    public int vehicleCount() { return vehicleCount; }
+    public int demandCount() { return demandCount; }
+    public int incidentCount() { return incidentCount; }
+
+    // ---------------- RECORDS ----------------
+    public int signalNode(int i) { return data.getInt(signalBase + i * SIGNAL_BYTES); }
+    public int signalMinGreen(int i) { return data.getInt(signalBase + i * SIGNAL_BYTES + 4); }
+    public int signalMaxGreen(int i) { return data.getInt(signalBase + i * SIGNAL_BYTES + 8); }
+    public int signalYellow(int i) { return data.getInt(signalBase + i * SIGNAL_BYTES + 12); }
+    public int signalAllRed(int i) { return data.getInt(signalBase + i * SIGNAL_BYTES + 16); }
+    public int signalOffset(int i) { return data.getInt(signalBase + i * SIGNAL_BYTES + 20); }
+    public int signalMode(int i) { return data.getInt(signalBase + i * SIGNAL_BYTES + 24); }
+    public int signalPlan(int i) { return data.getInt(signalBase + i * SIGNAL_BYTES + 28); }
+
+    public VehicleType vehicleType(int i) { return VehicleType.byId(data.getInt(vehicleBase + i * VEHICLE_BYTES)); }
+    public double vehicleX(int i) { return data.getFloat(vehicleBase + i * VEHICLE_BYTES + 4); }
+    public double vehicleY(int i) { return data.getFloat(vehicleBase + i * VEHICLE_BYTES + 8); }
+    public double vehicleHeading(int i) { return data.getFloat(vehicleBase + i * VEHICLE_BYTES + 12); }
+    public double vehicleSpeed(int i) { return data.getFloat(vehicleBase + i * VEHICLE_BYTES + 16); }
+
+    // Origin-destination demand: vehicles enter at 'origin' as a Poisson
+    // stream between the first and last tick and leave at 'destination'.
+    public int demandOrigin(int i) { return data.getInt(demandBase + i * DEMAND_BYTES); }
+    public int demandDestination(int i) { return data.getInt(demandBase + i * DEMAND_BYTES + 4); }
+    public VehicleType demandType(int i) { return VehicleType.byId(data.getInt(demandBase + i * DEMAND_BYTES + 8)); }
+    public int demandFirstTick(int i) { return data.getInt(demandBase + i * DEMAND_BYTES + 12); }
+    public int demandLastTick(int i) { return data.getInt(demandBase + i * DEMAND_BYTES + 16); }
+    public double demandRate(int i) { return data.getFloat(demandBase + i * DEMAND_BYTES + 24); }
+    public double demandSpeed(int i) { return data.getFloat(demandBase + i * DEMAND_BYTES + 28); }
+
+    // Incidents block a lane at a point for a while (a breakdown, a crash).
+    public int incidentLane(int i) { return data.getInt(incidentBase + i * INCIDENT_BYTES); }
+    public int incidentStart(int i) { return data.getInt(incidentBase + i * INCIDENT_BYTES + 4); }
+    public int incidentDuration(int i) { return data.getInt(incidentBase + i * INCIDENT_BYTES + 8); }
+    public double incidentAlong(int i) { return data.getFloat(incidentBase + i * INCIDENT_BYTES + 12); }
+
+    // Decodes the node and lane records into a ready-to-query network.
+    public RoadNetwork buildNetwork() {
+        RoadNetwork net = new RoadNetwork();
+        for (int i = 0; i < nodeCount; i++) {
+            int at = nodeBase + i * NODE_BYTES;
+            net.addNode(data.getDouble(at), data.getDouble(at + 8), data.getDouble(at + 16));
+        }
+        for (int i = 0; i < laneCount; i++) {
+            int at = laneBase + i * LANE_BYTES;
+            net.addLane(data.getInt(at), data.getInt(at + 4), data.getDouble(at + 8), data.getDouble(at + 16),
+                    data.getDouble(at + 24), data.getDouble(at + 32), data.getDouble(at + 40));
+        }
+        net.buildIndex();
+        return net;
+    }
+
+    // ---------------- VARIANTS ----------------
+    // A copy with another random seed, e.g. for one replication of a study.
+    public Scenario withSeed(long newSeed) {
+        ByteBuffer copy = copyBytes();
+        copy.putLong(88, newSeed);
+        return wrap(copy);
+    }
+
+    // A copy where every signal's (minimum) green is 'greenTicks'; actuated
+    // signals keep their maximum unless it would now be shorter.
+    public Scenario withGreen(int greenTicks) {
+        ByteBuffer copy = copyBytes();
+        for (int i = 0; i < signalCount; i++) {
+            int at = signalBase + i * SIGNAL_BYTES;
+            boolean actuated = copy.getInt(at + 24) == SignalController.ACTUATED;
+            copy.putInt(at + 4, greenTicks);
+            copy.putInt(at + 8, actuated ? Math.max(greenTicks, copy.getInt(at + 8)) : greenTicks);
+        }
+        return wrap(copy);
+    }
+
+    // A copy with every demand's rate multiplied by 'factor'.
+    public Scenario withDemandScale(double factor) {
+        ByteBuffer copy = copyBytes();
+        for (int i = 0; i < demandCount; i++) {
+            int at = demandBase + i * DEMAND_BYTES + 24;
+            copy.putFloat(at, (float) (copy.getFloat(at) * factor));
+        }
+        return wrap(copy);
+    }
+
+    private ByteBuffer copyBytes() {
+        ByteBuffer all = data.duplicate();
+        all.clear();
+        ByteBuffer copy = ByteBuffer.allocate(all.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        copy.put(all).flip();
+        return copy;
+    }
+
+    private static Scenario wrap(ByteBuffer bytes) {
+        try {
+            return new Scenario(bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // a copy of a valid scenario
+        }
+    }
+
+    // ---------------- BUILT-IN ----------------
+    /*
+    METHOD: classic
+    DESCRIPTION: The original game: the cross-road map, one fixed-time light
+                 shared by every road into the crossing (12 seconds each of
+                 green, yellow and red), four NPCs and the player car.
+                 Speeds are the old per-frame steps times 10.
+    */
+    public static Scenario classic(int width, int height) {
+        int hRoadY = Simulation.H_ROAD_Y, hRoadH = Simulation.H_ROAD_H;
+        int vRoadX = Simulation.V_ROAD_X, vRoadW = Simulation.V_ROAD_W;
+        Builder b = new Builder(RoadNetwork.crossIntersection(vRoadX + vRoadW / 2, hRoadY + hRoadH / 2,
+                hRoadH, Simulation.JUNCTION_HALF_SIZE, width, height,
+                Simulation.DEFAULT_SPEED_LIMIT, Simulation.DEFAULT_CAPACITY));
+        b.setWorld(width, height);
+        b.addSignal(0, 120, 120, 120, 120, 0, SignalController.FIXED, SignalController.SHARED); // node 0 is the crossing
+        b.addVehicle(VehicleType.TRUCK, -40, hRoadY + 40, 0, 15);              // eastbound
+        b.addVehicle(VehicleType.AMBULANCE, width + 40, hRoadY + 60, 180, 75); // westbound
+        b.addVehicle(VehicleType.TRUCK, vRoadX + 60, -40, 90, 15);             // southbound
+        b.addVehicle(VehicleType.CAR, vRoadX + 40, height + 40, 270, 60);      // northbound
+        b.setPlayer(100, hRoadY + hRoadH / 2 + 10, 90, 78);
+        return b.build();
+    }
+
+    // Inner Class: Builder (Static Nested Class)
+    // Collects records in memory and lays them out in the binary format.
+    static class Builder {
+        private double width, height;
+        private final RoadNetwork network;
+        private int[] signals = new int[8 * 8];
+        private int signalCount = 0;
+        private int[] vehicleTypes = new int[64];
+        private float[] vehicleFields = new float[4 * 64];
+        private int vehicleCount = 0;
+        private boolean hasPlayer = false;
+        private double playerX, playerY, playerHeading, playerSpeed;
+        private int[] demandInts = new int[5 * 8];
+        private float[] demandFloats = new float[2 * 8];
+        private int demandCount = 0;
+        private int[] incidentInts = new int[3 * 8];
+        private float[] incidentAlong = new float[8];
+        private int incidentCount = 0;
+        private long seed = 0;
+
+        // Nodes and lanes go straight into 'network' (it is not re-indexed here).
+        public Builder(RoadNetwork network) {
+            this.network = network;
+        }
+
+        // Size of the area vehicles wrap around in.
+        public void setWorld(double inWidth, double inHeight) {
+            width = inWidth;
+            height = inHeight;
+        }
+
+        public RoadNetwork network() { return network; }
+
+        // A fixed-time signal: every phase gets 'greenTicks' of green.
+        public void addSignal(int node, int greenTicks, int yellowTicks, int allRedTicks, int offsetTicks) {
+            addSignal(node, greenTicks, greenTicks, yellowTicks, allRedTicks, offsetTicks, SignalController.FIXED);
+        }
+
+        public void addSignal(int node, int minGreenTicks, int maxGreenTicks, int yellowTicks, int allRedTicks,
+                              int offsetTicks, int mode) {
+            addSignal(node, minGreenTicks, maxGreenTicks, yellowTicks, allRedTicks, offsetTicks, mode,
+                    SignalController.AXES);
+        }
+
+        public void addSignal(int node, int minGreenTicks, int maxGreenTicks, int yellowTicks, int allRedTicks,
+                              int offsetTicks, int mode, int plan) {
+            if (node < 0 || node >= network.nodeCount()) throw new IllegalArgumentException("Signal on unknown node " + node);
+            if (8 * signalCount + 8 > signals.length) signals = Arrays.copyOf(signals, signals.length * 2);
+            int at = 8 * signalCount++;
+            signals[at] = node;
+            signals[at + 1] = minGreenTicks;
+            signals[at + 2] = maxGreenTicks;
+            signals[at + 3] = yellowTicks;
+            signals[at + 4] = allRedTicks;
+            signals[at + 5] = offsetTicks;
+            signals[at + 6] = mode;
+            signals[at + 7] = plan;
+        }
+
+        public void addVehicle(VehicleType type, double x, double y, double heading, double speed) {
+            if (vehicleCount == vehicleTypes.length) {
+                vehicleTypes = Arrays.copyOf(vehicleTypes, vehicleCount * 2);
+                vehicleFields = Arrays.copyOf(vehicleFields, vehicleFields.length * 2);
+            }
+            vehicleTypes[vehicleCount] = type.ordinal();
+            int at = 4 * vehicleCount++;
+            vehicleFields[at] = (float) x;
+            vehicleFields[at + 1] = (float) y;
+            vehicleFields[at + 2] = (float) heading;
+            vehicleFields[at + 3] = (float) speed;
+        }
+
+        public void setPlayer(double x, double y, double heading, double speed) {
+            hasPlayer = true;
+            playerX = x;
+            playerY = y;
+            playerHeading = heading;
+            playerSpeed = speed;
+        }
+
+        // A Poisson stream of 'type' from 'origin' to 'destination' for the whole run.
+        public void addDemand(int origin, int destination, VehicleType type, double vehiclesPerHour, double speed) {
+            addDemand(origin, destination, type, vehiclesPerHour, speed, 0, Integer.MAX_VALUE);
+        }
+
+        public void addDemand(int origin, int destination, VehicleType type, double vehiclesPerHour, double speed,
+                              int firstTick, int lastTick) {
+            if (origin < 0 || origin >= network.nodeCount() || destination < 0 || destination >= network.nodeCount()) {
+                throw new IllegalArgumentException("Demand between unknown nodes " + origin + " -> " + destination);
+            }
+            if (!(vehiclesPerHour > 0) || firstTick < 0 || lastTick < firstTick) {
+                throw new IllegalArgumentException("Bad demand " + origin + " -> " + destination);
+            }
+            if (demandCount * 2 == demandFloats.length) {
+                demandInts = Arrays.copyOf(demandInts, demandInts.length * 2);
+                demandFloats = Arrays.copyOf(demandFloats, demandFloats.length * 2);
+            }
+            int at = 5 * demandCount;
+            demandInts[at] = origin;
+            demandInts[at + 1] = destination;
+            demandInts[at + 2] = type.ordinal();
+            demandInts[at + 3] = firstTick;
+            demandInts[at + 4] = lastTick;
+            demandFloats[2 * demandCount] = (float) vehiclesPerHour;
+            demandFloats[2 * demandCount++ + 1] = (float) speed;
+        }
+
+        // Blocks 'lane' at 'along' from 'startTick' for 'durationTicks'.
+        public void addIncident(int lane, double along, int startTick, int durationTicks) {
+            if (lane < 0 || lane >= network.laneCount()) throw new IllegalArgumentException("Incident on unknown lane " + lane);
+            if (startTick < 0 || durationTicks < 1) throw new IllegalArgumentException("Bad incident timing on lane " + lane);
+            if (incidentCount == incidentAlong.length) {
+                incidentInts = Arrays.copyOf(incidentInts, incidentInts.length * 2);
+                incidentAlong = Arrays.copyOf(incidentAlong, incidentAlong.length * 2);
+            }
+            incidentInts[3 * incidentCount] = lane;
+            incidentInts[3 * incidentCount + 1] = startTick;
+            incidentInts[3 * incidentCount + 2] = durationTicks;
+            incidentAlong[incidentCount++] = (float) along;
+        }
+
+        // Seeds the random streams (demand arrivals) so runs repeat exactly.
+        public void setSeed(long inSeed) { seed = inSeed; }
+
+        public Scenario build() {
+            int nodes = network.nodeCount(), lanes = network.laneCount();
+            long size = HEADER_BYTES + (long) nodes * NODE_BYTES + (long) lanes * LANE_BYTES
+                      + (long) signalCount * SIGNAL_BYTES + (long) vehicleCount * VEHICLE_BYTES
+                      + (long) demandCount * DEMAND_BYTES + (long) incidentCount * INCIDENT_BYTES;
+            if (size > Integer.MAX_VALUE) throw new IllegalStateException("Scenario too large: " + size + " bytes");
+            ByteBuffer out = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(MAGIC).putInt(VERSION).putInt(nodes).putInt(lanes).putInt(signalCount).putInt(vehicleCount);
+            out.putDouble(width).putDouble(height).putInt(hasPlayer ? FLAG_PLAYER : 0).putInt(0);
+            out.putDouble(playerX).putDouble(playerY).putDouble(playerHeading).putDouble(playerSpeed);
+            out.putInt(demandCount).putInt(incidentCount).putLong(seed);
+            for (int n = 0; n < nodes; n++) {
+                out.putDouble(network.nodeX(n)).putDouble(network.nodeY(n)).putDouble(network.junctionHalfSize(n));
+            }
+            for (int l = 0; l < lanes; l++) {
+                out.putInt(network.laneFrom(l)).putInt(network.laneTo(l));
+                out.putDouble(network.laneOffset(l)).putDouble(network.laneMin(l)).putDouble(network.laneMax(l));
+                out.putDouble(network.laneSpeedLimit(l)).putDouble(network.laneCapacity(l));
+            }
+            for (int i = 0; i < signalCount; i++) {
+                for (int k = 0; k < 8; k++) out.putInt(signals[8 * i + k]);
+            }
+            for (int i = 0; i < vehicleCount; i++) {
+                out.putInt(vehicleTypes[i]);
+                for (int k = 0; k < 4; k++) out.putFloat(vehicleFields[4 * i + k]);
+            }
+            for (int i = 0; i < demandCount; i++) {
+                for (int k = 0; k < 5; k++) out.putInt(demandInts[5 * i + k]);
+                out.putInt(0).putFloat(demandFloats[2 * i]).putFloat(demandFloats[2 * i + 1]);
+            }
+            for (int i = 0; i < incidentCount; i++) {
+                for (int k = 0; k < 3; k++) out.putInt(incidentInts[3 * i + k]);
+                out.putFloat(incidentAlong[i]);
+            }
+            out.flip();
+            return wrap(out); // our own layout; can't be malformed
+        }
+    }
+}
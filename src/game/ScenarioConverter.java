@@ -0,0 +1,141 @@
+package game;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+CLASS: ScenarioConverter
+DESCRIPTION: Turns the human-readable scenario text format into the binary
+             Scenario format. The text format is one record per line; '#'
+             starts a comment line:
+               world   <width> <height>
+               node    <id> <x> <y> <junctionHalfSize>
+               lane    <id> <fromNode> <toNode> <offset> <lateralMin> <lateralMax> <speedLimit> <capacity>
+               signal  <node> <greenTicks> <yellowTicks> <allRedTicks> <offsetTicks> [actuated <maxGreenTicks>] [shared]
+               vehicle <car|truck|ambulance> <x> <y> <heading> <speed>
+               player  <x> <y> <heading> <speed>
+               seed    <n>
+               demand  <originNode> <destinationNode> <car|truck|ambulance> <vehiclesPerHour> <speed> [<firstTick> <lastTick>]
+               incident <lane> <along> <startTick> <durationTicks>
+             Node and lane ids are any integers; records may only refer to
+             nodes and lanes that appear above them. A signal is fixed-time
+             unless marked actuated, when greenTicks is its minimum green,
+             and gives the east-west and north-south approaches green in
+             turn unless marked shared, when they all share one light.
+             A demand without ticks runs for the whole simulation.
+USAGE: java game.ScenarioConverter <scenario.txt> <scenario.bin>
+*/
+class ScenarioConverter {
+
+    public static Scenario parse(Path file) throws IOException {
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return parse(in, file.toString());
+        }
+    }
+
+    public static Scenario parse(Reader source, String name) throws IOException {
+        RoadNetwork network = new RoadNetwork();
+        Scenario.Builder builder = new Scenario.Builder(network);
+        Map<Integer, Integer> nodeIds = new HashMap<>();
+        Map<Integer, Integer> laneIds = new HashMap<>();
+        boolean sawWorld = false;
+        BufferedReader in = new BufferedReader(source);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            String[] f = line.trim().split("\\s+");
+            if (f[0].isEmpty() || f[0].startsWith("#")) continue;
+            try {
+                switch (f[0]) {
+                    case "world":
+                        RoadNetwork.expectFields(f, 3);
+                        builder.setWorld(Double.parseDouble(f[1]), Double.parseDouble(f[2]));
+                        sawWorld = true;
+                        break;
+                    case "signal": {
+                        boolean shared = f.length == 7 || f.length == 9;
+                        int fields = shared ? f.length - 1 : f.length;
+                        if (fields != 6) {
+                            RoadNetwork.expectFields(f, shared ? 9 : 8);
+                            if (!f[6].equals("actuated")) throw new IllegalArgumentException("expected 'actuated', got '" + f[6] + "'");
+                        }
+                        if (shared && !f[f.length - 1].equals("shared")) {
+                            throw new IllegalArgumentException("expected 'shared', got '" + f[f.length - 1] + "'");
+                        }
+                        int green = Integer.parseInt(f[2]);
+                        builder.addSignal(RoadNetwork.lookup(nodeIds, f[1], "node"), green,
+                                fields == 8 ? Integer.parseInt(f[7]) : green, Integer.parseInt(f[3]),
+                                Integer.parseInt(f[4]), Integer.parseInt(f[5]),
+                                fields == 8 ? SignalController.ACTUATED : SignalController.FIXED,
+                                shared ? SignalController.SHARED : SignalController.AXES);
+                        break;
+                    }
+                    case "vehicle":
+                        RoadNetwork.expectFields(f, 6);
+                        builder.addVehicle(VehicleType.valueOf(f[1].toUpperCase(Locale.ROOT)),
+                                Double.parseDouble(f[2]), Double.parseDouble(f[3]),
+                                Double.parseDouble(f[4]), Double.parseDouble(f[5]));
+                        break;
+                    case "seed":
+                        RoadNetwork.expectFields(f, 2);
+                        builder.setSeed(Long.parseLong(f[1]));
+                        break;
+                    case "demand": {
+                        if (f.length != 6) RoadNetwork.expectFields(f, 8);
+                        int origin = RoadNetwork.lookup(nodeIds, f[1], "node");
+                        int destination = RoadNetwork.lookup(nodeIds, f[2], "node");
+                        VehicleType type = VehicleType.valueOf(f[3].toUpperCase(Locale.ROOT));
+                        double rate = Double.parseDouble(f[4]), speed = Double.parseDouble(f[5]);
+                        if (f.length == 8) {
+                            builder.addDemand(origin, destination, type, rate, speed,
+                                    Integer.parseInt(f[6]), Integer.parseInt(f[7]));
+                        } else {
+                            builder.addDemand(origin, destination, type, rate, speed);
+                        }
+                        break;
+                    }
+                    case "incident":
+                        RoadNetwork.expectFields(f, 5);
+                        builder.addIncident(RoadNetwork.lookup(laneIds, f[1], "lane"), Double.parseDouble(f[2]),
+                                Integer.parseInt(f[3]), Integer.parseInt(f[4]));
+                        break;
+                    case "player":
+                        RoadNetwork.expectFields(f, 5);
+                        builder.setPlayer(Double.parseDouble(f[1]), Double.parseDouble(f[2]),
+                                Double.parseDouble(f[3]), Double.parseDouble(f[4]));
+                        break;
+                    default:
+                        if (!network.parseRecord(f, nodeIds, laneIds)) {
+                            throw new IllegalArgumentException("unknown record '" + f[0] + "'");
+                        }
+                }
+            } catch (RuntimeException e) {
+                throw new IOException(name + ":" + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        if (!sawWorld) throw new IOException(name + ": missing 'world' record");
+        return builder.build();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: java game.ScenarioConverter <scenario.txt> <scenario.bin>");
+            System.exit(2);
+        }
+        Scenario scenario = parse(Paths.get(args[0]));
+        scenario.write(Paths.get(args[1]));
+        System.out.println("Wrote " + args[1] + ": " + scenario.nodeCount() + " nodes, "
+                + scenario.laneCount() + " lanes, " + scenario.signalCount() + " signals, "
+                + scenario.vehicleCount() + " vehicles, " + scenario.demandCount() + " demands, "
+                + scenario.incidentCount() + " incidents");
+    }
+}
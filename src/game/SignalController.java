@@ -0,0 +1,539 @@
+package game;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+CLASS: SignalController
+DESCRIPTION: Every signalised junction in the network, controlled together.
+             A junction runs a phase plan: each phase is a set of incoming
+             lanes that get green together, and the junction steps through
+             green -> yellow -> all-red for one phase after another. In FIXED
+             mode every green lasts its set time, and offsets line junctions
+             up into green waves. In ACTUATED mode a green lasts at least its
+             minimum, then keeps going while the detector on a green lane
+             still sees traffic, and ends when traffic has cleared and
+             someone else is queued, or when the maximum runs out while
+             someone is.
+             An emergency vehicle on its way preempts a junction (see
+             Preemption): a conflicting green ends at once, through its
+             yellow and all-red, the junction goes straight to the phase
+             that serves the vehicle's lane, and that green is held for as
+             long as the request is renewed.
+USAGE: add() each junction (or let Simulation do it from the scenario).
+       Every timed stage change is an event on the TimerWheel, which hands
+       it back through fire(). Once per tick, after LaneOccupancy is
+       rebuilt, run updateRange() over [0, activeCount()) in one or more
+       chunks and then endGreens(). Vehicles read the result per lane
+       through laneState().
+NOTE: All state lives in primitive arrays indexed by junction, phase or
+      lane, so nothing is touched per light between its changes: a fixed
+      junction costs one event per stage, and only actuated junctions
+      past their minimum green (the "active" ones) read their detectors
+      each tick. A junction only writes its own lanes, so chunks of active
+      junctions can be checked in parallel.
+*/
+class SignalController {
+    static final int FIXED = 0, ACTUATED = 1;
+    // Default phase plans: the east-west approaches then the north-south
+    // ones, or every approach in one phase (a single shared light).
+    static final int AXES = 0, SHARED = 1;
+    // Stages of the current phase.
+    static final int GREEN = 0, YELLOW = 1, ALL_RED = 2;
+
+    // A lane's detector covers this far back from the stop line.
+    static final double DETECTOR_LENGTH = 150;
+    // Slower than this (units per second) counts as queued.
+    static final double QUEUE_SPEED = 5;
+
+    private static final LightState[] STATES = LightState.values();
+
+    private final RoadNetwork network;
+
+    // ---------------- PER JUNCTION ----------------
+    private int count = 0;
+    private int[] node = new int[4], mode = new int[4];
+    private int[] minGreen = new int[4], maxGreen = new int[4], yellow = new int[4], allRed = new int[4];
+    private int[] phaseStart = new int[5];    // phases of junction c: [phaseStart[c], phaseStart[c+1])
+    private int[] phase = new int[4], stage = new int[4];
+    private long[] stageStart = new long[4];  // tick the current stage began
+    private int[] event = new int[4];         // pending stage change on the wheel, -1 if none
+    private int[] activeAt = new int[4];      // index in 'active', -1 if not active
+    private int[] preemptPhase = new int[4];  // phase an emergency vehicle asked for, -1 if none
+    private long[] preemptUntil = new long[4]; // last tick that request holds
+    private final int[] junctionAtNode;       // -1 where unsignalised
+    private long preemptions = 0;             // requests that took a junction over
+
+    // ---------------- ACTIVE (actuated, past minimum green) ----------------
+    private int[] active = new int[4];
+    private boolean[] ending = new boolean[4]; // per active index: green ends this tick
+    private int activeCount = 0;
+
+    // ---------------- PER PHASE ----------------
+    private int phaseCount = 0;
+    private int[] phaseLaneStart = new int[9]; // lanes of phase p: phaseLanes[phaseLaneStart[p] ..]
+    private int[] phaseLanes = new int[16];
+    private int phaseLaneCount = 0;
+
+    // ---------------- PER LANE ----------------
+    private final byte[] laneState;   // LightState ordinal; GREEN where no signal
+    private final int[] queue;        // stopped vehicles on the detector
+    private final int[] occupied;     // any vehicles on the detector
+
+    private final TimerWheel wheel;
+    private final int eventKind;
+    private QueueLanes queues; // whose queue lanes detect their own traffic, or null
+
+    // Stage changes are scheduled on 'timers' as events of 'kind', with the junction as argument.
+    public SignalController(RoadNetwork network, TimerWheel timers, int kind) {
+        this.network = network;
+        this.wheel = timers;
+        this.eventKind = kind;
+        junctionAtNode = new int[network.nodeCount()];
+        Arrays.fill(junctionAtNode, -1);
+        laneState = new byte[network.laneCount()];
+        queue = new int[network.laneCount()];
+        occupied = new int[network.laneCount()];
+    }
+
+    // Detectors on lanes that run as queues count the vehicles waiting at their front.
+    public void setQueues(QueueLanes q) { queues = q; }
+
+    // ---------------- BUILDING ----------------
+    /*
+    METHOD: add
+    DESCRIPTION: Signalises 'node' with a default plan. AXES has two
+                 phases: lanes arriving along the east-west axis, then
+                 those arriving along north-south (an empty group is left
+                 out). SHARED has one phase with every arriving lane. A node
+                 no lane arrives at can't be signalised. Times are in ticks;
+                 a FIXED junction uses minGreenTicks for its green. Returns
+                 the junction's index.
+    */
+    public int add(int atNode, int minGreenTicks, int maxGreenTicks, int yellowTicks, int allRedTicks,
+                   int offsetTicks, int controlMode, int plan) {
+        int arriving = network.inDegree(atNode);
+        if (plan == SHARED) {
+            int[] all = new int[arriving];
+            for (int k = 0; k < arriving; k++) all[k] = network.inLane(atNode, k);
+            return add(atNode, new int[][] {all}, minGreenTicks, maxGreenTicks, yellowTicks, allRedTicks,
+                    offsetTicks, controlMode);
+        }
+        int[] horizontal = new int[arriving], vertical = new int[arriving];
+        int h = 0, v = 0;
+        for (int k = 0; k < arriving; k++) {
+            int lane = network.inLane(atNode, k);
+            if (Math.abs(network.laneDirX(lane)) >= Math.abs(network.laneDirY(lane))) horizontal[h++] = lane;
+            else vertical[v++] = lane;
+        }
+        int[][] phases = h == 0 ? new int[][] {Arrays.copyOf(vertical, v)}
+                       : v == 0 ? new int[][] {Arrays.copyOf(horizontal, h)}
+                       : new int[][] {Arrays.copyOf(horizontal, h), Arrays.copyOf(vertical, v)};
+        return add(atNode, phases, minGreenTicks, maxGreenTicks, yellowTicks, allRedTicks, offsetTicks, controlMode);
+    }
+
+    // Signalises 'node' with an explicit plan: phases[i] lists the lanes green in phase i.
+    public int add(int atNode, int[][] phases, int minGreenTicks, int maxGreenTicks, int yellowTicks,
+                   int allRedTicks, int offsetTicks, int controlMode) {
+        if (junctionAtNode[atNode] >= 0) throw new IllegalArgumentException("Node " + atNode + " already has a signal");
+        if (phases.length == 0) throw new IllegalArgumentException("Signal at node " + atNode + " has no phases");
+        for (int[] lanes : phases) {
+            if (lanes.length == 0) throw new IllegalArgumentException("Signal at node " + atNode + " has an empty phase");
+        }
+        if (minGreenTicks < 1 || maxGreenTicks < minGreenTicks || yellowTicks < 0 || allRedTicks < 0) {
+            throw new IllegalArgumentException("Bad signal timings at node " + atNode);
+        }
+        if (count == node.length) growJunctions(count * 2);
+        int c = count++;
+        node[c] = atNode;
+        mode[c] = controlMode;
+        minGreen[c] = minGreenTicks;
+        maxGreen[c] = controlMode == ACTUATED ? maxGreenTicks : minGreenTicks;
+        yellow[c] = yellowTicks;
+        allRed[c] = allRedTicks;
+        event[c] = activeAt[c] = preemptPhase[c] = -1;
+        junctionAtNode[atNode] = c;
+
+        for (int[] lanes : phases) {
+            if (phaseCount + 2 > phaseLaneStart.length) phaseLaneStart = Arrays.copyOf(phaseLaneStart, phaseLaneStart.length * 2);
+            for (int lane : lanes) {
+                if (network.laneTo(lane) != atNode) {
+                    throw new IllegalArgumentException("Lane " + lane + " doesn't arrive at node " + atNode);
+                }
+                if (phaseLaneCount == phaseLanes.length) phaseLanes = Arrays.copyOf(phaseLanes, phaseLaneCount * 2);
+                phaseLanes[phaseLaneCount++] = lane;
+            }
+            phaseLaneStart[++phaseCount] = phaseLaneCount;
+        }
+        phaseStart[c + 1] = phaseCount;
+        setOffset(c, offsetTicks);
+        return c;
+    }
+
+    /*
+    METHOD: setOffset
+    DESCRIPTION: Restarts junction c 'offsetTicks' into its cycle (whose
+                 first phase starts green at offset 0) using the minimum
+                 greens, counting from the tick about to run. For a FIXED
+                 junction that is exactly where it will be every cycle.
+    */
+    public void setOffset(int c, int offsetTicks) {
+        int phases = phaseStart[c + 1] - phaseStart[c];
+        int perPhase = minGreen[c] + yellow[c] + allRed[c];
+        int into = Math.floorMod(offsetTicks, phases * perPhase);
+        phase[c] = into / perPhase;
+        into %= perPhase;
+        if (into < minGreen[c]) {
+            stage[c] = GREEN;
+        } else if (into < minGreen[c] + yellow[c]) {
+            stage[c] = YELLOW;
+            into -= minGreen[c];
+        } else {
+            stage[c] = ALL_RED;
+            into -= minGreen[c] + yellow[c];
+        }
+        wheel.cancel(event[c]);
+        deactivate(c);
+        stageStart[c] = wheel.now() + 1 - into;
+        event[c] = wheel.schedule(stageStart[c] + duration(c), eventKind, c);
+        publish(c);
+    }
+
+    /*
+    METHOD: greenWave
+    DESCRIPTION: Offsets the junctions at 'nodes' (in driving order along a
+                 corridor) so the first phase turns green at each one just
+                 as traffic leaving the previous one at 'speed' arrives.
+    */
+    public void greenWave(int[] nodes, double speed) {
+        double travelled = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            if (i > 0) {
+                double dx = network.nodeX(nodes[i]) - network.nodeX(nodes[i - 1]);
+                double dy = network.nodeY(nodes[i]) - network.nodeY(nodes[i - 1]);
+                travelled += Math.sqrt(dx * dx + dy * dy);
+            }
+            int c = junctionAtNode[nodes[i]];
+            if (c < 0) throw new IllegalArgumentException("Node " + nodes[i] + " has no signal");
+            setOffset(c, -(int) Math.round(travelled / speed / Simulation.TICK_SECONDS));
+        }
+    }
+
+    // ---------------- UPDATE ----------------
+    /*
+    METHOD: fire
+    DESCRIPTION: Junction c's current stage has run its time (called from
+                 the TimerWheel handler). A FIXED green, a yellow or an
+                 all-red moves straight on; an ACTUATED green becomes
+                 active, and updateRange() decides from then on when it
+                 ends.
+    */
+    public void fire(int c) {
+        event[c] = -1;
+        switch (stage[c]) {
+            case GREEN:
+                if (held(c)) event[c] = wheel.schedule(preemptUntil[c] + 1, eventKind, c); // look again then
+                else if (mode[c] == FIXED) next(c, YELLOW);
+                else activate(c);
+                break;
+            case YELLOW:
+                next(c, ALL_RED);
+                break;
+            default:
+                phase[c] = nextPhase(c);
+                next(c, GREEN);
+        }
+    }
+
+    /*
+    METHOD: updateRange
+    DESCRIPTION: Checks active junctions [from, to) (indices into the active
+                 list): reads their detectors from the lane occupancy and
+                 marks those whose green should end. endGreens() then ends
+                 them; the split keeps the parallel part free of wheel
+                 updates.
+    */
+    public void updateRange(int from, int to, LaneOccupancy occupancy, VehicleStore store) {
+        long now = wheel.now();
+        for (int k = from; k < to; k++) {
+            int c = active[k];
+            int waiting = 0, flowing = 0; // demand on red lanes, traffic on green lanes
+            for (int p = phaseStart[c]; p < phaseStart[c + 1]; p++) {
+                boolean green = p - phaseStart[c] == phase[c];
+                for (int i = phaseLaneStart[p]; i < phaseLaneStart[p + 1]; i++) {
+                    int lane = phaseLanes[i];
+                    detect(lane, occupancy, store);
+                    if (green) flowing += occupied[lane];
+                    else waiting += queue[lane];
+                }
+            }
+            // Actuated greens rest while nobody else is waiting, and
+            // only max out against a queue on another phase.
+            ending[k] = !held(c) && waiting > 0 && (flowing == 0 || now - stageStart[c] >= maxGreen[c]);
+        }
+    }
+
+    // Ends the greens updateRange() marked, after every chunk has run.
+    public void endGreens() {
+        for (int k = activeCount - 1; k >= 0; k--) {
+            if (!ending[k]) continue;
+            int c = active[k];
+            deactivate(c);
+            next(c, YELLOW);
+        }
+    }
+
+    // Moves junction c into 'nextStage' now, skipping stages that last no
+    // time, and schedules the end of the stage it lands in.
+    private void next(int c, int nextStage) {
+        stage[c] = nextStage;
+        if (nextStage == YELLOW && yellow[c] == 0) {
+            next(c, ALL_RED);
+            return;
+        }
+        if (nextStage == ALL_RED && allRed[c] == 0) {
+            phase[c] = nextPhase(c);
+            stage[c] = GREEN;
+        }
+        stageStart[c] = wheel.now();
+        event[c] = wheel.schedule(stageStart[c] + duration(c), eventKind, c);
+        publish(c);
+    }
+
+    // The phase after junction c's current one: the preempted one while a
+    // request holds, else the next in its plan.
+    private int nextPhase(int c) {
+        return preempted(c) ? preemptPhase[c] : (phase[c] + 1) % (phaseStart[c + 1] - phaseStart[c]);
+    }
+
+    // How long junction c's current stage runs before its timer fires.
+    private int duration(int c) {
+        return stage[c] == GREEN ? minGreen[c] : stage[c] == YELLOW ? yellow[c] : allRed[c];
+    }
+
+    private void activate(int c) {
+        if (activeCount == active.length) {
+            active = Arrays.copyOf(active, activeCount * 2);
+            ending = Arrays.copyOf(ending, activeCount * 2);
+        }
+        activeAt[c] = activeCount;
+        active[activeCount] = c;
+        ending[activeCount++] = false;
+    }
+
+    // Takes c off the active list (the last entry fills its place).
+    private void deactivate(int c) {
+        int k = activeAt[c];
+        if (k < 0) return;
+        int last = active[--activeCount];
+        active[k] = last;
+        ending[k] = ending[activeCount];
+        activeAt[last] = k;
+        activeAt[c] = -1;
+    }
+
+    // Counts what lane's detector sees, walking back from the front of the
+    // lane (or, on a queue lane, what waits at the front of the queue).
+    private void detect(int lane, LaneOccupancy occupancy, VehicleStore store) {
+        if (queues != null && queues.isQueue(lane)) {
+            queue[lane] = occupied[lane] = queues.waiting(lane, wheel.now(), DETECTOR_LENGTH);
+            return;
+        }
+        int stopped = 0, present = 0;
+        double stopLine = network.stopLine(lane);
+        for (int k = occupancy.count(lane) - 1; k >= 0; k--) {
+            int h = occupancy.vehicle(lane, k);
+            double toLine = stopLine - store.along[h] - VehicleType.byId(store.type[h]).length / 2;
+            if (toLine < 0) continue; // already over the line
+            if (toLine > DETECTOR_LENGTH) break;
+            present++;
+            if (store.speed[h] < QUEUE_SPEED) stopped++;
+        }
+        queue[lane] = stopped;
+        occupied[lane] = present;
+    }
+
+    // Writes the lane states for junction c's current phase and stage.
+    private void publish(int c) {
+        for (int p = phaseStart[c]; p < phaseStart[c + 1]; p++) {
+            LightState s = phaseState(c, p - phaseStart[c]);
+            for (int i = phaseLaneStart[p]; i < phaseLaneStart[p + 1]; i++) {
+                laneState[phaseLanes[i]] = (byte) s.ordinal();
+            }
+        }
+    }
+
+    // What junction c shows the lanes of its phase 'p'.
+    private LightState phaseState(int c, int p) {
+        return p != phase[c] || stage[c] == ALL_RED ? LightState.RED
+             : stage[c] == YELLOW ? LightState.YELLOW : LightState.GREEN;
+    }
+
+    // ---------------- PREEMPTION ----------------
+    /*
+    METHOD: preempt
+    DESCRIPTION: An emergency vehicle arriving on 'lane' at junction c wants
+                 green until 'untilTick' (renewing an earlier request just
+                 extends it). A conflicting green ends now; a yellow or
+                 all-red already under way runs out and then hands over to
+                 the lane's phase. While a request for a different phase
+                 still holds, that one keeps the junction. A lane in none of
+                 c's phases is ignored. Called serially, before
+                 updateRange().
+    */
+    public void preempt(int c, int lane, long untilTick) {
+        int wanted = -1;
+        for (int p = phaseStart[c]; p < phaseStart[c + 1] && wanted < 0; p++) {
+            for (int i = phaseLaneStart[p]; i < phaseLaneStart[p + 1]; i++) {
+                if (phaseLanes[i] == lane) {
+                    wanted = p - phaseStart[c];
+                    break;
+                }
+            }
+        }
+        if (wanted < 0) return;
+        boolean holding = preempted(c);
+        if (holding && preemptPhase[c] != wanted) return; // first come, first served
+        if (!holding) preemptions++;
+        preemptUntil[c] = holding ? Math.max(preemptUntil[c], untilTick) : untilTick;
+        preemptPhase[c] = wanted;
+        if (stage[c] == GREEN && phase[c] != wanted) {
+            wheel.cancel(event[c]);
+            deactivate(c);
+            next(c, YELLOW);
+        }
+    }
+
+    // True while a request for junction c holds.
+    public boolean preempted(int c) {
+        return preemptPhase[c] >= 0 && wheel.now() <= preemptUntil[c];
+    }
+
+    // True while junction c shows green to the phase a request holds.
+    private boolean held(int c) {
+        return stage[c] == GREEN && preempted(c) && phase[c] == preemptPhase[c];
+    }
+
+    // Requests so far that took a junction over (renewals don't count).
+    public long preemptionCount() { return preemptions; }
+
+    // ---------------- ACCESS ----------------
+    public int count() { return count; }
+    public int activeCount() { return activeCount; }
+    public int nodeOf(int c) { return node[c]; }
+    public int junctionAt(int atNode) { return junctionAtNode[atNode]; }
+    public int phaseOf(int c) { return phase[c]; }
+    public int stageOf(int c) { return stage[c]; }
+    // Ticks junction c has been in its current stage.
+    public long stageAge(int c) { return wheel.now() - stageStart[c]; }
+    // The tick junction c's stage is next due to change, or -1 while an
+    // actuated green waits on its detectors (it may end on any tick).
+    public long nextChange(int c) { return wheel.isPending(event[c]) ? wheel.dueTick(event[c]) : -1; }
+
+    // What a driver arriving on 'lane' sees (GREEN where there is no signal).
+    public LightState laneState(int lane) { return STATES[laneState[lane]]; }
+    // Queued vehicles at the lane's last detector check (active junctions only).
+    public int queueLength(int lane) { return queue[lane]; }
+
+    // What junction c shows for its first phase (the one its light post draws).
+    public LightState displayState(int c) { return phaseState(c, 0); }
+
+    /*
+    METHOD: approachState
+    DESCRIPTION: The light facing something at 'atNode' heading along
+                 'headingDegrees': the state of the arriving lane that points
+                 most nearly the same way. GREEN where there is no signal.
+    */
+    public LightState approachState(int atNode, double headingDegrees) {
+        if (atNode < 0 || junctionAtNode[atNode] < 0) return LightState.GREEN;
+        double radians = Math.toRadians(headingDegrees);
+        double hx = Math.cos(radians), hy = Math.sin(radians);
+        int best = -1;
+        double bestDot = Double.NEGATIVE_INFINITY;
+        for (int k = 0; k < network.inDegree(atNode); k++) {
+            int lane = network.inLane(atNode, k);
+            double dot = network.laneDirX(lane) * hx + network.laneDirY(lane) * hy;
+            if (dot > bestDot) {
+                bestDot = dot;
+                best = lane;
+            }
+        }
+        return best < 0 ? LightState.GREEN : laneState(best);
+    }
+
+    // ---------------- HANDOVER (see DomainWorker) ----------------
+    // Junction c's state, for the copy of this network in another domain
+    // that takes the junction over.
+    void writeJunction(int c, DataOutput out) throws IOException {
+        out.writeInt(phase[c]);
+        out.writeInt(stage[c]);
+        out.writeLong(stageStart[c]);
+        out.writeBoolean(activeAt[c] >= 0);
+        out.writeLong(wheel.isPending(event[c]) ? wheel.dueTick(event[c]) : -1);
+        out.writeInt(preemptPhase[c]);
+        out.writeLong(preemptUntil[c]);
+    }
+
+    // Takes junction c over from what writeJunction() wrote, replacing this copy's own state.
+    void readJunction(int c, DataInput in) throws IOException {
+        phase[c] = in.readInt();
+        stage[c] = in.readInt();
+        stageStart[c] = in.readLong();
+        boolean isActive = in.readBoolean();
+        long due = in.readLong();
+        preemptPhase[c] = in.readInt();
+        preemptUntil[c] = in.readLong();
+        wheel.cancel(event[c]);
+        event[c] = -1;
+        deactivate(c);
+        if (isActive) activate(c);
+        if (due >= 0) event[c] = wheel.schedule(due, eventKind, c);
+        publish(c);
+    }
+
+    // ---------------- CHECKPOINTS ----------------
+    // Where each junction is in its plan and its pending event on the wheel
+    // (timings and plans come from the scenario, so a fork can change them).
+    void save(Checkpoint.Out out) {
+        out.putInts(phase, count); out.putInts(stage, count);
+        out.putLongs(stageStart, count); out.putInts(event, count); out.putInts(activeAt, count);
+        out.putInts(preemptPhase, count); out.putLongs(preemptUntil, count); out.putLong(preemptions);
+        out.putInts(active, activeCount); out.putBooleans(ending, activeCount);
+        out.putBytes(laneState, laneState.length);
+        out.putInts(queue, queue.length); out.putInts(occupied, occupied.length);
+    }
+
+    void load(Checkpoint.In in) throws IOException {
+        in.getInts(phase, count); in.getInts(stage, count);
+        in.getLongs(stageStart, count); in.getInts(event, count); in.getInts(activeAt, count);
+        in.getInts(preemptPhase, count); in.getLongs(preemptUntil, count); preemptions = in.getLong();
+        activeCount = in.peekLength();
+        if (active.length < activeCount) {
+            active = new int[activeCount];
+            ending = new boolean[activeCount];
+        }
+        in.getInts(active, activeCount); in.getBooleans(ending, activeCount);
+        in.getBytes(laneState, laneState.length);
+        in.getInts(queue, queue.length); in.getInts(occupied, occupied.length);
+    }
+
+    // ---------------- STORAGE ----------------
+    private void growJunctions(int size) {
+        node = Arrays.copyOf(node, size);
+        mode = Arrays.copyOf(mode, size);
+        minGreen = Arrays.copyOf(minGreen, size);
+        maxGreen = Arrays.copyOf(maxGreen, size);
+        yellow = Arrays.copyOf(yellow, size);
+        allRed = Arrays.copyOf(allRed, size);
+        phaseStart = Arrays.copyOf(phaseStart, size + 1);
+        phase = Arrays.copyOf(phase, size);
+        stage = Arrays.copyOf(stage, size);
+        stageStart = Arrays.copyOf(stageStart, size);
+        event = Arrays.copyOf(event, size);
+        activeAt = Arrays.copyOf(activeAt, size);
+        preemptPhase = Arrays.copyOf(preemptPhase, size);
+        preemptUntil = Arrays.copyOf(preemptUntil, size);
+    }
+}
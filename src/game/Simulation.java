@@ -0,0 +1,923 @@
+package game;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/*
+CLASS: Simulation
+DESCRIPTION: The headless traffic engine. It owns the vehicles, the
+             intersection light and the game rules, and advances all of them
+             in fixed-length ticks without touching any window or display.
+             Vehicle state lives in a VehicleStore; the TrafficElement
+             objects are views of it for drawing and keyboard control, and
+             large runs can add store-only vehicles with spawn(). What the
+             world starts as comes from a Scenario, and so does what happens
+             at set times during the run: signal changes, vehicles entering
+             from the demand and incidents are events on a TimerWheel that
+             fire on their exact tick, so nothing polls for them. Vehicles
+             with a destination follow a Router's shortest-time routes.
+             Emergency vehicles preempt the signals ahead of them and the
+             traffic in front makes way (see Preemption), unless that is
+             switched off with setPreemption(false). Lanes chosen with
+             setQueueLanes() run as queues instead of being driven (see
+             QueueLanes): all of them for a mesoscopic run, or all but a
+             region of interest for a hybrid one.
+USAGE: Call step(dt) with elapsed seconds (wall-clock for a viewer, or any
+       amount for batch runs); an accumulator turns that into whole ticks so
+       the model behaves the same whatever rate it is driven at. Renderers
+       read snapshot(), a copy they may keep and draw from any thread, and
+       never change state themselves. checkpoint() and restore() save and
+       resume a run between ticks (see Checkpoint). getMetrics() times
+       every tick and its phases (see TickMetrics).
+*/
+class Simulation {
+
+    // ---------------- CONSTANTS (timing) ----------------
+    static final double TICK_SECONDS = 0.1; // one tick == one frame of the old 10fps loop
+
+    // ---------------- CONSTANTS (default map: roads & intersection boxes) ----------------
+    static final int H_ROAD_Y = 250;  // horizontal road top
+    static final int H_ROAD_H = 100; // horizontal road height
+    static final int V_ROAD_X = 350;// vertical road left
+    static final int V_ROAD_W = 100;// vertical road width
+
+    // Junction box half-size: lane traffic stops at its edge on red
+    static final double JUNCTION_HALF_SIZE = 60;
+
+    // Extra margin around the junction box for stricter red-light detection
+    static final double RED_LIGHT_MARGIN = 20;
+
+    // Default lane limits for the built-in map
+    static final double DEFAULT_SPEED_LIMIT = 80;   // units per second
+    static final double DEFAULT_CAPACITY = 1800;    // vehicles per hour
+
+    // Broad-phase cell edge: a bit over the longest vehicle, so most boxes
+    // touch one to four cells.
+    static final double COLLISION_CELL_SIZE = 64;
+
+    // ---------------- CONSTANTS (event kinds on the timer wheel) ----------------
+    static final int EVENT_SIGNAL = 0;         // arg: junction index
+    static final int EVENT_INCIDENT_START = 1; // arg: scenario incident index
+    static final int EVENT_INCIDENT_END = 2;
+    static final int EVENT_DEMAND = 3;         // + TrafficDemand.ARRIVAL / RELEASE; arg: demand index
+    static final int EVENT_QUEUE = 5;          // arg: lane (see QueueLanes)
+
+    // ---------------- STATE ----------------
+    private final Scenario scenario;
+    private final boolean withViews;
+    private final int width, height;
+    private final RoadNetwork network;
+    private final Router router;
+    private final VehicleStore store = new VehicleStore();
+    private final LaneDynamics lanes;
+    private final Preemption preemption;
+    private boolean preempting = true;
+    private final QueueLanes queues;
+    private boolean queueing = false; // some lanes run as queues
+    private Car playerCar; // null when the scenario has no player
+    private List<TrafficElement> vehicles;
+    private int[] viewAt = new int[0]; // per handle: index of its view in 'vehicles', -1 if none
+    private Snapshot lastSnapshot;      // the latest snapshot taken, and per handle
+    private int[] snapshotAt = new int[0]; // the index of its vehicle there (-1 if none)
+    private SignalController signals;
+    private List<TrafficLight> lights; // one post per signalised junction, by junction index
+    private TimerWheel events;
+    private TrafficDemand demand;
+    private boolean[] incidentActive;
+    private boolean gameOver = false;
+    private String loseReason = "";
+    private long tick = 0;
+    private double accumulator = 0;
+    // Trips finished (vehicles that reached their destination) and their total length in ticks.
+    private long tripsCompleted = 0, tripTicks = 0;
+    // The same for emergency vehicles alone (their response times).
+    private long emergencyTrips = 0, emergencyTripTicks = 0;
+    // Colliding pairs summed over every tick so far.
+    private long collisionTotal = 0;
+
+    // Collision detection: broad phase, its candidate pairs, and every pair
+    // the narrow phase confirmed, packed as (a, b, a, b, ...) store handles.
+    private final SpatialHash broadPhase = new SpatialHash(COLLISION_CELL_SIZE);
+    private final IntList candidates = new IntList();
+    private final IntList collisions = new IntList();
+
+    // Where each tick's time goes; kept across reset() and restore().
+    private final TickMetrics metrics = new TickMetrics();
+    // Lane travel times being observed (dynamic assignment), or null.
+    private TravelTimes travelTimes;
+
+    // Parallel phases and the state they share for the current tick.
+    private TickExecutor executor = new TickExecutor(1);
+    private ChunkScratch[] scratch = new ChunkScratch[0];
+    private final TimerWheel.Handler dispatch = this::fire;
+    private final TickExecutor.ChunkBody signalPhase = this::signalRange;
+    private final TickExecutor.ChunkBody decidePhase = this::decideRange;
+    private final TickExecutor.ChunkBody movePhase = this::moveRange;
+    private final TickExecutor.ChunkBody locatePhase = this::locateRange;
+    private final TickExecutor.ChunkBody broadPhasePhase = this::broadPhaseRange;
+    private final TickExecutor.ChunkBody narrowPhasePhase = this::narrowPhaseRange;
+
+    public Simulation(int width, int height) {
+        this(Scenario.classic(width, height), true);
+    }
+
+    /*
+    Runs 'scenario'. With views, every vehicle also gets a TrafficElement for
+    drawing; without, vehicles exist only in the store (for large headless
+    runs). The loss rules only apply when the scenario has a player car.
+    */
+    public Simulation(Scenario scenario, boolean withViews) {
+        this(scenario, withViews, null);
+    }
+
+    /*
+    The same, routing on 'router' (and its network) so that simulations of
+    one scenario can share route tables; null for a router of its own.
+    */
+    public Simulation(Scenario scenario, boolean withViews, Router router) {
+        this.scenario = scenario;
+        this.withViews = withViews;
+        this.width = (int) scenario.width();
+        this.height = (int) scenario.height();
+        this.network = router != null ? router.getNetwork() : scenario.buildNetwork();
+        if (network.nodeCount() != scenario.nodeCount() || network.laneCount() != scenario.laneCount()) {
+            throw new IllegalArgumentException("The router's network isn't this scenario's");
+        }
+        this.router = router != null ? router : new Router(network);
+        this.lanes = new LaneDynamics(network, store, -40, -40, width + 40, height + 40);
+        lanes.setRouter(this.router);
+        this.preemption = new Preemption(network, store, lanes);
+        lanes.setPreemption(preemption);
+        this.queues = new QueueLanes(network, lanes, this);
+        setup();
+    }
+
+    // ---------------- SETUP / RESET ----------------
+    private void setup() {
+        clearViews();
+        store.clear();
+        lanes.clear();
+        preemption.clear();
+        events = new TimerWheel(0);
+
+        // Signals, with a light post at each signalised junction
+        signals = new SignalController(network, events, EVENT_SIGNAL);
+        lights = new ArrayList<>();
+        for (int i = 0; i < scenario.signalCount(); i++) {
+            int node = scenario.signalNode(i);
+            int c = signals.add(node, scenario.signalMinGreen(i), scenario.signalMaxGreen(i), scenario.signalYellow(i),
+                    scenario.signalAllRed(i), scenario.signalOffset(i), scenario.signalMode(i), scenario.signalPlan(i));
+            TrafficLight light = new TrafficLight(new Point(network.nodeX(node), network.nodeY(node)));
+            light.state = signals.displayState(c);
+            lights.add(light);
+        }
+        lanes.setSignals(signals);
+        preemption.setSignals(signals);
+        queues.attach(events, EVENT_QUEUE, signals);
+        signals.setQueues(queueing ? queues : null);
+        lanes.setQueues(queueing ? queues : null);
+
+        // NPC vehicles
+        store.ensureCapacity(scenario.vehicleCount() + 1);
+        for (int i = 0; i < scenario.vehicleCount(); i++) {
+            VehicleType type = scenario.vehicleType(i);
+            double x = scenario.vehicleX(i), y = scenario.vehicleY(i), heading = scenario.vehicleHeading(i);
+            int h = spawn(type, x, y, heading, scenario.vehicleSpeed(i));
+            if (withViews) {
+                TrafficElement v = TrafficElement.create(type, new Point(x, y), heading);
+                v.bind(store, h);
+                v.pullFromStore(); // spawning may have moved it onto its lane
+                addView(v);
+            }
+            if ((store.flags[h] & VehicleStore.ON_LANE) != 0 && queues.isQueue(store.lane[h])) {
+                queues.join(store, h, tick);
+                despawn(h);
+            }
+        }
+
+        // Player car (controlled)
+        playerCar = null;
+        if (scenario.hasPlayer()) {
+            playerCar = new Car(VehicleType.CAR.shape(), new Point(scenario.playerX(), scenario.playerY()),
+                                scenario.playerHeading());
+            playerCar.stepSize = scenario.playerSpeed() * TICK_SECONDS;
+            playerCar.bind(store, store.add(VehicleType.CAR, scenario.playerX(), scenario.playerY(),
+                    scenario.playerHeading(), scenario.playerSpeed(), VehicleStore.PLAYER));
+            addView(playerCar); // draw player last
+        }
+
+        // What happens later: incidents, and traffic entering from the demand
+        incidentActive = new boolean[scenario.incidentCount()];
+        for (int i = 0; i < scenario.incidentCount(); i++) {
+            events.schedule(scenario.incidentStart(i), EVENT_INCIDENT_START, i);
+            events.schedule((long) scenario.incidentStart(i) + scenario.incidentDuration(i), EVENT_INCIDENT_END, i);
+        }
+        demand = new TrafficDemand(scenario, network, this, events, EVENT_DEMAND);
+        lanes.sense(tick); // so the first tick's events see who is where
+    }
+
+    /*
+    METHOD: spawn
+    DESCRIPTION: Adds an autonomous vehicle that exists only in the store
+                 (no view object), for runs too large to draw. Returns its
+                 handle. If a lane runs its way nearby it is put on that lane
+                 and drives it, wanting 'speed'; otherwise it just keeps going
+                 straight at 'speed'.
+    */
+    public int spawn(VehicleType type, double x, double y, double heading, double speed) {
+        int h = store.add(type, x, y, heading, speed, VehicleStore.AUTONOMOUS);
+        lanes.snap(h);
+        preemption.track(h);
+        return h;
+    }
+
+    /*
+    METHOD: spawnOnLane
+    DESCRIPTION: Adds an autonomous vehicle at the start of 'lane' (which
+                 the caller has checked with LaneDynamics.entrySpeed), wanting
+                 'speed' and leaving the map at node 'destination' (-1 to
+                 stay). With views it gets one, drawn under the player.
+    */
+    public int spawnOnLane(VehicleType type, int lane, double speed, int destination) {
+        int h = store.add(type, network.laneX(lane, 0), network.laneY(lane, 0), network.laneHeading(lane),
+                speed, VehicleStore.AUTONOMOUS);
+        store.destination[h] = destination;
+        store.born[h] = tick;
+        lanes.want(destination);
+        lanes.enter(h, lane, tick);
+        preemption.track(h);
+        if (withViews) {
+            TrafficElement v = TrafficElement.create(type, new Point(store.x[h], store.y[h]), store.heading[h]);
+            v.bind(store, h);
+            addView(v);
+        }
+        return h;
+    }
+
+    /*
+    METHOD: adopt
+    DESCRIPTION: Vehicle h has just been put in the store from another
+                 domain's simulation (see DomainWorker), as one of ours or
+                 as a ghost: routes it from the next tick on and, if it is
+                 an emergency vehicle, gives it priority.
+    */
+    public void adopt(int h) {
+        lanes.want(store.destination[h]);
+        preemption.track(h);
+    }
+
+    /*
+    METHOD: setQueueLanes
+    DESCRIPTION: Runs the lanes marked true as queues (see QueueLanes) and
+                 drives the rest; null drives every lane. QueueLanes.all()
+                 makes the whole run mesoscopic, QueueLanes.outside() keeps
+                 a region of interest microscopic. Starts the run again
+                 from the scenario, so it is chosen before the first tick;
+                 vehicles the scenario puts on queue lanes join the queues.
+    */
+    public void setQueueLanes(boolean[] queued) {
+        if (tick != 0) throw new IllegalStateException("Queue lanes are chosen before the first tick");
+        queues.setQueued(queued);
+        queueing = queues.any();
+        reset();
+    }
+
+    /*
+    METHOD: refile
+    DESCRIPTION: Files every vehicle on its lane again. The events at the
+                 start of a tick (demand entering, queues letting vehicles
+                 out) see the lanes as the last tick filed them, so a
+                 caller that changes the store between ticks calls this
+                 afterwards. DomainWorker swaps its ghosts and takes in
+                 other domains' vehicles there; without it, those events
+                 would miss the newcomers and read recycled handles.
+    */
+    public void refile() { lanes.sense(tick); }
+
+    // A trip of 'ticks' ticks ended (an emergency vehicle's, too, if 'emergency').
+    void arrive(boolean emergency, long ticks) {
+        tripsCompleted++;
+        tripTicks += ticks;
+        if (emergency) {
+            emergencyTrips++;
+            emergencyTripTicks += ticks;
+        }
+    }
+
+    // Takes vehicle h (and its view) off the map.
+    public void despawn(int h) {
+        if (withViews) removeView(h);
+        store.remove(h);
+    }
+
+    // ---------------- VIEWS ----------------
+    private void clearViews() {
+        vehicles = new ArrayList<>();
+        Arrays.fill(viewAt, -1);
+    }
+
+    // Adds view v to the draw order, under the player car if there is one.
+    private void addView(TrafficElement v) {
+        int h = v.getHandle();
+        if (h >= viewAt.length) {
+            int old = viewAt.length;
+            viewAt = Arrays.copyOf(viewAt, Math.max(h + 1, old * 2));
+            Arrays.fill(viewAt, old, viewAt.length, -1);
+        }
+        int at = vehicles.size();
+        if (v != playerCar && at > 0 && vehicles.get(at - 1) == playerCar) {
+            vehicles.add(--at, v);
+            viewAt[playerCar.getHandle()] = at + 1;
+        } else {
+            vehicles.add(v);
+        }
+        viewAt[h] = at;
+    }
+
+    // Drops vehicle h's view, if it has one, in O(1): the last view other
+    // than the player's takes its place in the draw order.
+    private void removeView(int h) {
+        int i = h < viewAt.length ? viewAt[h] : -1;
+        if (i < 0) return;
+        viewAt[h] = -1;
+        int last = vehicles.size() - 1;
+        if (vehicles.get(last) == playerCar && vehicles.get(i) != playerCar) last--;
+        if (i != last) {
+            TrafficElement moved = vehicles.get(last);
+            vehicles.set(i, moved);
+            viewAt[moved.getHandle()] = i;
+        }
+        vehicles.remove(last); // the player, if after it, moves down one
+        if (last < vehicles.size()) viewAt[playerCar.getHandle()] = last;
+    }
+
+    public void reset() {
+        gameOver = false;
+        loseReason = "";
+        tick = 0;
+        accumulator = 0;
+        tripsCompleted = tripTicks = emergencyTrips = emergencyTripTicks = collisionTotal = 0;
+        collisions.clear();
+        candidates.clear();
+        setup();
+    }
+
+    // ---------------- STEPPING ----------------
+    /*
+    METHOD: step
+    DESCRIPTION: Adds dt seconds to the accumulator and runs as many whole
+                 ticks as fit. Leftover time carries over to the next call.
+    */
+    public void step(double dt) {
+        accumulator += dt;
+        while (accumulator >= TICK_SECONDS) {
+            tick();
+            accumulator -= TICK_SECONDS;
+        }
+    }
+
+    /*
+    METHOD: tick
+    DESCRIPTION: Advances the model by exactly one TICK_SECONDS, in phases:
+                 events, sense, signals, decide, move, collide, resolve. The per-vehicle
+                 phases run in parallel chunks on the TickExecutor; each one
+                 only reads the published state and writes its own slots or
+                 buffers, so the outcome doesn't depend on the thread count.
+                 Nothing moves once lost.
+    */
+    public void tick() {
+        if (gameOver) return;
+        metrics.beginTick();
+
+        // 0) Events due this tick: signal changes, demand, incidents
+        events.advanceTo(tick, dispatch);
+        lanes.prepareRoutes(tick, executor); // for whoever just spawned
+        metrics.endPhase(TickMetrics.EVENTS);
+        int n = store.highWater();
+
+        // 1) Sense: who is on which lane, in order; emergency vehicles
+        // call their lights and clear the road ahead
+        lanes.sense(tick);
+        if (preempting) preemption.update(tick);
+        metrics.endPhase(TickMetrics.SENSE);
+
+        // 2) Signals: actuated junctions past their minimum green check their detectors
+        executor.forEachChunk(signals.activeCount(), signalPhase);
+        signals.endGreens();
+        for (int c = 0; c < lights.size(); c++) lights.get(c).state = signals.displayState(c);
+        metrics.endPhase(TickMetrics.SIGNALS);
+
+        // 3) Decide: lane traffic follows its leader and stops for red
+        // lights; the player can still enter (and get flagged)
+        executor.forEachChunk(n, decidePhase);
+        metrics.endPhase(TickMetrics.DECIDE);
+
+        // 4) Move: into the back buffer, publish it, drop whoever reached
+        // their destination, then find each lane
+        ensureScratch(TickExecutor.chunkCount(n));
+        executor.forEachChunk(n, movePhase);
+        store.swapBuffers();
+        for (int c = 0; c < TickExecutor.chunkCount(n); c++) {
+            IntList arrived = scratch[c].arrived, joining = scratch[c].joining;
+            for (int k = 0; k < arrived.size(); k++) {
+                int h = arrived.get(k);
+                arrive((store.flags[h] & VehicleStore.EMERGENCY) != 0, tick + 1 - store.born[h]);
+                despawn(h);
+            }
+            for (int k = 0; k < joining.size(); k++) {
+                int h = joining.get(k);
+                queues.join(store, h, tick + 1);
+                despawn(h);
+            }
+        }
+        if (playerCar != null) {
+            double fromX = playerCar.position.x, fromY = playerCar.position.y;
+            playerCar.move();
+            wrapAround(playerCar);
+            playerCar.pushToStore();
+            // Traffic behind reacts to how fast the player really went (a wrap isn't a jump in speed)
+            double moved = Math.hypot(playerCar.position.x - fromX, playerCar.position.y - fromY);
+            store.setSpeed(playerCar.getHandle(), Math.min(moved, playerCar.stepSize) / TICK_SECONDS);
+        }
+        metrics.endPhase(TickMetrics.MOVE);
+        executor.forEachChunk(n, locatePhase);
+
+        for (TrafficElement v : vehicles) {
+            if (v != playerCar) v.pullFromStore();
+        }
+        metrics.endPhase(TickMetrics.LOCATE);
+
+        // 5) Collide
+        collisionTotal += detectCollisions();
+        metrics.endPhase(TickMetrics.COLLIDE);
+
+        // 6) Resolve: loss conditions (only when someone is playing)
+        if (playerCar != null) {
+            // 6a) Collision: any two vehicles collide
+            if (getCollisionCount() > 0) {
+                triggerLoss("Collision!");
+            }
+
+            // 6b) Red-light run: player’s center enters EXPANDED intersection area while its approach is red
+            if (isRedAt(network.junctionAt(playerCar.position.x, playerCar.position.y, RED_LIGHT_MARGIN),
+                        playerCar.rotation)) {
+                triggerLoss("Red Light Violation!");
+            }
+
+            // 6c) Off-road: player’s center is not within any lane
+            if (!network.isOnRoad(playerCar.position.x, playerCar.position.y)) {
+                triggerLoss("Off road!");
+            }
+        }
+
+        // 7) Observe: lane speeds for the travel times, now and then
+        if (travelTimes != null && tick % TravelTimes.SAMPLE_TICKS == 0) travelTimes.sample(store, tick);
+        metrics.endPhase(TickMetrics.RULES);
+
+        metrics.endTick(tick, store.size(), candidates.size() / 2, getCollisionCount());
+        tick++;
+    }
+
+    // ---------------- CHECKPOINTS ----------------
+    // The whole run so far, to restore() into this or another Simulation of
+    // the same scenario (or a variant of it).
+    public Checkpoint checkpoint() { return Checkpoint.capture(this); }
+
+    /*
+    METHOD: restore
+    DESCRIPTION: Puts this simulation in the state 'c' was taken in. The
+                 scenario's own records (map, timings, rates) stay those of
+                 this simulation, so restoring into a variant forks the run.
+                 Views are rebuilt for every vehicle when drawing.
+    */
+    public void restore(Checkpoint c) throws IOException { c.restoreInto(this); }
+
+    void save(Checkpoint.Out out) {
+        out.putLong(tick);
+        out.putDouble(accumulator);
+        out.putBoolean(gameOver);
+        out.putString(loseReason);
+        out.putLong(tripsCompleted);
+        out.putLong(tripTicks);
+        out.putLong(emergencyTrips);
+        out.putLong(emergencyTripTicks);
+        out.putLong(collisionTotal);
+        out.putBooleans(incidentActive, incidentActive.length);
+        out.putInt(collisions.size());
+        for (int k = 0; k < collisions.size(); k++) out.putInt(collisions.get(k));
+        events.save(out);
+        signals.save(out);
+        store.save(out);
+        lanes.save(out);
+        demand.save(out);
+        queues.save(out);
+        out.putInt(playerCar == null ? -1 : playerCar.getHandle());
+        if (playerCar != null) {
+            out.putDouble(playerCar.position.x);
+            out.putDouble(playerCar.position.y);
+            out.putDouble(playerCar.rotation);
+            out.putDouble(playerCar.stepSize);
+            out.putDouble(playerCar.rotationRate);
+            out.putBoolean(playerCar.forward);
+            out.putBoolean(playerCar.backward);
+            out.putBoolean(playerCar.left);
+            out.putBoolean(playerCar.right);
+        }
+    }
+
+    // Builds the scenario's fresh state, then overwrites everything that changes.
+    void load(Checkpoint.In in) throws IOException {
+        setup();
+        tick = in.getLong();
+        accumulator = in.getDouble();
+        gameOver = in.getBoolean();
+        loseReason = in.getString();
+        tripsCompleted = in.getLong();
+        tripTicks = in.getLong();
+        emergencyTrips = in.getLong();
+        emergencyTripTicks = in.getLong();
+        collisionTotal = in.getLong();
+        in.getBooleans(incidentActive, incidentActive.length);
+        collisions.clear();
+        for (int k = in.getInt(); k > 0; k--) collisions.add(in.getInt());
+        candidates.clear();
+        events.load(in);
+        signals.load(in);
+        store.load(in);
+        lanes.load(in);
+        demand.load(in);
+        queues.load(in); // with the queue lanes the checkpoint was taken with
+        queueing = queues.any();
+        signals.setQueues(queueing ? queues : null);
+        lanes.setQueues(queueing ? queues : null);
+        for (int h = 0; h < store.highWater(); h++) {
+            if (store.isAlive(h)) lanes.want(store.destination[h]);
+        }
+        lanes.prepareRoutes(tick, executor);
+        preemption.trackAll();
+        int playerHandle = in.getInt();
+        if ((playerHandle >= 0) != (playerCar != null)) throw new IOException("Checkpoint disagrees about the player car");
+        if (playerCar != null) {
+            playerCar.bind(store, playerHandle);
+            playerCar.position.x = in.getDouble();
+            playerCar.position.y = in.getDouble();
+            playerCar.rotation = in.getDouble();
+            playerCar.stepSize = in.getDouble();
+            playerCar.rotationRate = in.getDouble();
+            playerCar.forward = in.getBoolean();
+            playerCar.backward = in.getBoolean();
+            playerCar.left = in.getBoolean();
+            playerCar.right = in.getBoolean();
+        }
+
+        for (int c = 0; c < lights.size(); c++) lights.get(c).state = signals.displayState(c);
+        clearViews();
+        if (withViews) {
+            for (int h = 0; h < store.highWater(); h++) {
+                if (!store.isAlive(h) || (store.flags[h] & VehicleStore.PLAYER) != 0) continue;
+                TrafficElement v = TrafficElement.create(store.typeOf(h), new Point(store.x[h], store.y[h]),
+                        store.heading[h]);
+                v.bind(store, h);
+                addView(v);
+            }
+        }
+        if (playerCar != null) addView(playerCar);
+    }
+
+    // ---------------- EVENTS ----------------
+    private void fire(int kind, int arg, long at) {
+        switch (kind) {
+            case EVENT_SIGNAL:
+                signals.fire(arg);
+                break;
+            case EVENT_QUEUE:
+                queues.fire(arg, at);
+                break;
+            case EVENT_INCIDENT_START:
+            case EVENT_INCIDENT_END:
+                incidentActive[arg] = kind == EVENT_INCIDENT_START;
+                refreshBlockage(scenario.incidentLane(arg));
+                break;
+            default:
+                demand.fire(kind, arg, at);
+        }
+    }
+
+    // A lane is blocked at the nearest point any active incident on it blocks.
+    private void refreshBlockage(int lane) {
+        double at = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < incidentActive.length; i++) {
+            if (incidentActive[i] && scenario.incidentLane(i) == lane) at = Math.min(at, scenario.incidentAlong(i));
+        }
+        lanes.setBlockage(lane, at);
+    }
+
+    // ---------------- PHASES (run per chunk, possibly in parallel) ----------------
+    private void signalRange(int chunk, int from, int to) {
+        signals.updateRange(from, to, lanes.getOccupancy(), store);
+    }
+
+    // Lane followers pick an acceleration; NPCs off the lane graph standing
+    // in a junction box are held while its light is red.
+    private void decideRange(int chunk, int from, int to) {
+        lanes.decideRange(from, to);
+        double[] xs = store.x, ys = store.y;
+        int[] flags = store.flags;
+        for (int h = from; h < to; h++) {
+            if ((flags[h] & (VehicleStore.AUTONOMOUS | VehicleStore.ON_LANE)) != VehicleStore.AUTONOMOUS) continue;
+            store.setHeld(h, isRedAt(network.junctionAt(xs[h], ys[h], 0), store.heading[h]));
+        }
+    }
+
+    // True if something at 'node' heading that way faces a red light.
+    private boolean isRedAt(int node, double heading) {
+        return node >= 0 && signals.approachState(node, heading) == LightState.RED;
+    }
+
+    private void moveRange(int chunk, int from, int to) {
+        store.moveRange(from, to, TICK_SECONDS);
+        store.wrapRange(from, to, -40, -40, width + 40, height + 40);
+        ChunkScratch s = scratch[chunk];
+        s.arrived.clear();
+        s.joining.clear();
+        lanes.moveRange(from, to, TICK_SECONDS, s.arrived, s.joining);
+    }
+
+    // Looks up the lane under the centre of each vehicle not driving a lane
+    // (lane followers already know theirs), so traffic can queue behind it.
+    private void locateRange(int chunk, int from, int to) {
+        int[] flags = store.flags, laneOf = store.lane;
+        for (int h = from; h < to; h++) {
+            if ((flags[h] & (VehicleStore.ALIVE | VehicleStore.ON_LANE)) != VehicleStore.ALIVE) continue;
+            double cx = store.centerX(h), cy = store.centerY(h);
+            int l = network.laneAt(cx, cy);
+            laneOf[h] = l;
+            store.targetLane[h] = -1; // not changing lanes; see LaneDynamics.moveRange
+            if (l >= 0) store.along[h] = network.positionAlong(l, cx, cy);
+        }
+    }
+
+    private void broadPhaseRange(int chunk, int fromBucket, int toBucket) {
+        IntList out = scratch[chunk].out;
+        out.clear();
+        broadPhase.findPairs(fromBucket, toBucket, out);
+    }
+
+    private void narrowPhaseRange(int chunk, int fromPair, int toPair) {
+        ChunkScratch s = scratch[chunk];
+        s.out.clear();
+        for (int k = fromPair; k < toPair; k++) {
+            int a = candidates.get(2 * k), b = candidates.get(2 * k + 1);
+            if (!countsPair(a, b)) continue;
+            store.corners(a, s.ax, s.ay);
+            store.corners(b, s.bx, s.by);
+            if (TrafficElement.CollisionHandler.overlap(s.ax, s.ay, 4, s.bx, s.by, 4, null)) {
+                s.out.add(a);
+                s.out.add(b);
+            }
+        }
+    }
+
+    // A pair with a ghost in it is seen by both domains (see DomainWorker):
+    // only the one whose own vehicle has the lower id counts it.
+    private boolean countsPair(int a, int b) {
+        boolean ghostA = (store.flags[a] & VehicleStore.GHOST) != 0, ghostB = (store.flags[b] & VehicleStore.GHOST) != 0;
+        if (ghostA == ghostB) return !ghostA;
+        return ghostA ? store.id[b] < store.id[a] : store.id[a] < store.id[b];
+    }
+
+    /*
+    METHOD: detectCollisions
+    DESCRIPTION: Files every vehicle's bounding box in the spatial hash, then
+                 runs the exact SAT test only on the pairs whose boxes
+                 overlap. Both searches run in chunks whose outputs are joined
+                 in chunk order. Every colliding pair is kept, not just the
+                 first; of those with a ghost in them, see countsPair().
+    */
+    private int detectCollisions() {
+        broadPhase.clear();
+        for (int h = 0, n = store.highWater(); h < n; h++) {
+            if (!store.isAlive(h)) continue;
+            double cx = store.centerX(h), cy = store.centerY(h);
+            double ex = store.extentX(h), ey = store.extentY(h);
+            broadPhase.insert(h, cx - ex, cy - ey, cx + ex, cy + ey);
+        }
+
+        int buckets = broadPhase.bucketCount();
+        ensureScratch(TickExecutor.chunkCount(buckets));
+        executor.forEachChunk(buckets, broadPhasePhase);
+        candidates.clear();
+        for (int c = 0; c < TickExecutor.chunkCount(buckets); c++) candidates.addAll(scratch[c].out);
+
+        int pairs = candidates.size() / 2;
+        ensureScratch(TickExecutor.chunkCount(pairs));
+        executor.forEachChunk(pairs, narrowPhasePhase);
+        collisions.clear();
+        for (int c = 0; c < TickExecutor.chunkCount(pairs); c++) collisions.addAll(scratch[c].out);
+        return getCollisionCount();
+    }
+
+    private void ensureScratch(int chunks) {
+        if (scratch.length >= chunks) return;
+        ChunkScratch[] grown = Arrays.copyOf(scratch, chunks);
+        for (int c = scratch.length; c < chunks; c++) grown[c] = new ChunkScratch();
+        scratch = grown;
+    }
+
+    // Per-chunk output and work arrays, kept between ticks.
+    private static class ChunkScratch {
+        final IntList out = new IntList();
+        final IntList arrived = new IntList(); // reached their destination this move
+        final IntList joining = new IntList(); // reached a queue lane this move
+        final double[] ax = new double[4], ay = new double[4];
+        final double[] bx = new double[4], by = new double[4];
+    }
+
+    // ---------------- THREADS ----------------
+    // Runs the per-vehicle phases on this many threads (1 = caller only).
+    public void setThreads(int threads) {
+        executor.shutdown();
+        executor = new TickExecutor(threads);
+    }
+
+    public int getThreads() { return executor.getThreads(); }
+
+    public void shutdown() { executor.shutdown(); }
+
+    // ---------------- ACCESS ----------------
+    public Car getPlayerCar() { return playerCar; }
+    public List<TrafficElement> getVehicles() { return Collections.unmodifiableList(vehicles); }
+    public List<TrafficLight> getLights() { return Collections.unmodifiableList(lights); }
+    public SignalController getSignals() { return signals; }
+    public TimerWheel getEvents() { return events; }
+    public TrafficDemand getDemand() { return demand; }
+    public boolean isGameOver() { return gameOver; }
+    public String getLoseReason() { return loseReason; }
+    public long getTick() { return tick; }
+    public long getTripsCompleted() { return tripsCompleted; }
+    public long getTripTicks() { return tripTicks; }
+    public long getEmergencyTripsCompleted() { return emergencyTrips; }
+    public long getEmergencyTripTicks() { return emergencyTripTicks; }
+    public long getCollisionTotal() { return collisionTotal; }
+
+    public VehicleStore getStore() { return store; }
+    public TickMetrics getMetrics() { return metrics; }
+    public Router getRouter() { return router; }
+    // Observe lane travel times into 't' from now on (null stops).
+    public void setTravelTimes(TravelTimes t) {
+        travelTimes = t;
+        queues.setTravelTimes(t);
+    }
+    public RoadNetwork getNetwork() { return network; }
+    public LaneDynamics getLanes() { return lanes; }
+    public Preemption getPreemption() { return preemption; }
+    public QueueLanes getQueues() { return queues; }
+
+    // Whether emergency vehicles get priority (on by default); off, they
+    // queue and stop on red like everyone else.
+    public void setPreemption(boolean on) {
+        preempting = on;
+        lanes.setPreemption(on ? preemption : null);
+    }
+
+    public boolean isPreempting() { return preempting; }
+
+    // Colliding pairs from the last tick, as VehicleStore handles.
+    public int getCollisionCount() { return collisions.size() / 2; }
+    public int getCollisionA(int k) { return collisions.get(2 * k); }
+    public int getCollisionB(int k) { return collisions.get(2 * k + 1); }
+    // Pairs the broad phase passed on to the exact test on the last tick.
+    public int getCandidatePairCount() { return candidates.size() / 2; }
+    public Scenario getScenario() { return scenario; }
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+
+    public Snapshot snapshot() { return new Snapshot(this, null); }
+    // The same, also giving each vehicle its pose in 'previous' to blend from.
+    public Snapshot snapshot(Snapshot previous) { return new Snapshot(this, previous); }
+
+    /*
+    METHOD: snapshotSlots
+    DESCRIPTION: The per-handle index of each vehicle in 'previous' (-1
+                 for none), big enough for every handle now in use, for a
+                 new snapshot to blend from. The table is kept for the latest
+                 snapshot, so a game passing each one on costs nothing here
+                 and allocates nothing once the table has grown. For
+                 another snapshot it is refilled.
+    */
+    private int[] snapshotSlots(Snapshot previous) {
+        int need = store.highWater();
+        if (snapshotAt.length < need) {
+            int old = snapshotAt.length;
+            snapshotAt = Arrays.copyOf(snapshotAt, Math.max(need, old * 2));
+            Arrays.fill(snapshotAt, old, snapshotAt.length, -1);
+        }
+        if (previous != lastSnapshot) {
+            if (lastSnapshot != null) {
+                for (int j = 0; j < lastSnapshot.count; j++) snapshotAt[lastSnapshot.handles[j]] = -1;
+            }
+            lastSnapshot = previous;
+            if (previous != null) {
+                for (int j = 0; j < previous.count; j++) snapshotAt[previous.handles[j]] = j;
+            }
+        }
+        return snapshotAt;
+    }
+
+    // Inner Class: Snapshot (Static Nested Class)
+    // What a renderer needs to draw one frame, copied between ticks so it
+    // can be drawn on another thread while the engine carries on.
+    static class Snapshot {
+        // A vehicle that moved further than this in one tick wrapped around
+        // the map (or was placed): it isn't blended across the screen.
+        static final double MAX_BLEND_DISTANCE = 100;
+
+        public final long tick;
+        public final long capturedNanos;         // System.nanoTime() when taken
+        public final TrafficLight[] lights;      // copies
+        public final int count;                  // vehicles, in draw order, player last
+        public final VehicleType[] types;
+        public final int[] ids;                  // VehicleStore ids
+        private final int[] handles;             // and handles
+        public final double[] x, y, rotation;    // each vehicle's Polygon pose
+        public final double[] fromX, fromY, fromRotation; // its pose in the previous snapshot
+        public final boolean gameOver;
+        public final String loseReason;
+
+        private Snapshot(Simulation sim, Snapshot previous) {
+            tick = sim.tick;
+            capturedNanos = System.nanoTime();
+            lights = new TrafficLight[sim.lights.size()];
+            for (int i = 0; i < lights.length; i++) {
+                TrafficLight live = sim.lights.get(i);
+                lights[i] = new TrafficLight(live.position);
+                lights[i].state = live.state;
+            }
+            count = sim.vehicles.size();
+            types = new VehicleType[count];
+            ids = new int[count];
+            handles = new int[count];
+            x = new double[count];
+            y = new double[count];
+            rotation = new double[count];
+            for (int k = 0; k < count; k++) {
+                TrafficElement v = sim.vehicles.get(k);
+                types[k] = v.getType();
+                handles[k] = v.getHandle();
+                ids[k] = sim.store.id[handles[k]];
+                x[k] = v.position.x;
+                y[k] = v.position.y;
+                rotation[k] = v.rotation;
+            }
+            fromX = x.clone();
+            fromY = y.clone();
+            fromRotation = rotation.clone();
+            int[] at = sim.snapshotSlots(previous);
+            if (previous != null) {
+                for (int k = 0; k < count; k++) {
+                    int j = handles[k] < at.length ? at[handles[k]] : -1;
+                    if (j < 0 || previous.ids[j] != ids[k]) continue; // new, or a recycled handle
+                    if (Math.hypot(previous.x[j] - x[k], previous.y[j] - y[k]) > MAX_BLEND_DISTANCE) continue;
+                    fromX[k] = previous.x[j];
+                    fromY[k] = previous.y[j];
+                    fromRotation[k] = previous.rotation[j];
+                }
+                for (int j = 0; j < previous.count; j++) at[previous.handles[j]] = -1;
+            }
+            for (int k = 0; k < count; k++) at[handles[k]] = k;
+            sim.lastSnapshot = this;
+            gameOver = sim.gameOver;
+            loseReason = sim.loseReason;
+        }
+
+        // Vehicle k's pose 'alpha' of the way (0..1) from the previous snapshot
+        // to this one, written into 'into'.
+        public void blend(int k, double alpha, Polygon into) {
+            into.position.x = fromX[k] + (x[k] - fromX[k]) * alpha;
+            into.position.y = fromY[k] + (y[k] - fromY[k]) * alpha;
+            double turn = ((rotation[k] - fromRotation[k]) % 360 + 540) % 360 - 180; // the short way round
+            into.rotation = fromRotation[k] + turn * alpha;
+        }
+    }
+
+    // ---------------- LOSS / CHECK HELPERS ----------------
+    private void triggerLoss(String reason) {
+        if (!gameOver) {
+            gameOver = true;
+            loseReason = reason;
+            // stop player controls
+            if (playerCar != null) playerCar.forward = playerCar.backward = playerCar.left = playerCar.right = false;
+            System.out.println("YOU LOST: " + reason);
+        }
+    }
+
+    private void wrapAround(TrafficElement v) {
+        if (v.position.x > width + 40) v.position.x = -40;
+        if (v.position.x < -40) v.position.x = width + 40;
+        if (v.position.y > height + 40) v.position.y = -40;
+        if (v.position.y < -40) v.position.y = height + 40;
+    }
+}
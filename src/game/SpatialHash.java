@@ -0,0 +1,218 @@
+package game;
+
+import java.util.Arrays;
+
+/*
+CLASS: SpatialHash
+DESCRIPTION: Broad-phase collision culling. Space is cut into square cells
+             and every box is filed under each cell it touches; only boxes
+             that share a cell and whose bounds overlap come out as candidate
+             pairs. With vehicles spread over a map, that is close to linear
+             in the number of vehicles instead of the all-pairs n*n.
+USAGE: Once per tick: clear(), insert() every box under a small
+       non-negative id (e.g. a store handle), then findPairs() and read
+       pairA(k)/pairB(k), or query() the boxes over an area. To search
+       bucket ranges on several threads, call bucketCount() once after the
+       inserts, then findPairs() over the ranges. All storage is primitive
+       arrays kept between ticks, so a steady-state rebuild allocates
+       nothing.
+NOTE: Cells are hashed into a fixed table, so cells far apart can share a
+      bucket; entries keep their real cell coordinates to tell them apart.
+      The first search after the inserts sorts the entries by bucket (a
+      counting sort), so each bucket is one run of adjacent array slots
+      and the searches read memory in order instead of following chains.
+*/
+class SpatialHash {
+    private final double cellSize;
+    private final double inverseCell;
+
+    // Per-id boxes, plus the lowest cell each box touches (for de-duplication).
+    private double[] minX = new double[64], minY = new double[64];
+    private double[] maxX = new double[64], maxY = new double[64];
+    private int[] firstCellX = new int[64], firstCellY = new int[64];
+
+    // One entry per (id, cell) pair, as filed, with its bucket.
+    private int[] entryId = new int[256], entryCellX = new int[256], entryCellY = new int[256];
+    private int[] entryBucket = new int[256];
+    private int entryCount = 0;
+    // The same entries sorted by bucket: bucket b's are [bucketStart[b], bucketStart[b + 1]).
+    private int[] sortedId = new int[256], sortedCellX = new int[256], sortedCellY = new int[256];
+    private int[] bucketStart = new int[257];
+    private int bucketMask = 255;
+    private boolean sorted = true;
+
+    // Candidate pairs found by the last findPairs(), packed as (a, b, a, b, ...).
+    private final IntList pairs = new IntList(128);
+
+    public SpatialHash(double cellSize) {
+        this.cellSize = cellSize;
+        this.inverseCell = 1.0 / cellSize;
+    }
+
+    public double getCellSize() { return cellSize; }
+
+    // Forgets every box, keeping the arrays for the next rebuild.
+    public void clear() {
+        entryCount = 0;
+        pairs.clear();
+        sorted = false;
+    }
+
+    /*
+    METHOD: insert
+    DESCRIPTION: Files the box of 'id' under every cell it overlaps. Each id
+                 is inserted at most once per rebuild; gaps are fine.
+    */
+    public void insert(int id, double loX, double loY, double hiX, double hiY) {
+        if (id >= minX.length) growIds(id + 1);
+        minX[id] = loX;
+        minY[id] = loY;
+        maxX[id] = hiX;
+        maxY[id] = hiY;
+
+        int cx0 = cell(loX), cy0 = cell(loY), cx1 = cell(hiX), cy1 = cell(hiY);
+        firstCellX[id] = cx0;
+        firstCellY[id] = cy0;
+        for (int cx = cx0; cx <= cx1; cx++) {
+            for (int cy = cy0; cy <= cy1; cy++) {
+                if (entryCount == entryId.length) growEntries();
+                int e = entryCount++;
+                entryId[e] = id;
+                entryCellX[e] = cx;
+                entryCellY[e] = cy;
+            }
+        }
+        sorted = false;
+    }
+
+    /*
+    METHOD: findPairs
+    DESCRIPTION: Collects every pair of inserted boxes that overlap, each pair
+                 exactly once (with pairA < pairB). A pair sharing several
+                 cells is only reported from the first cell both boxes touch.
+    */
+    public int findPairs() {
+        pairs.clear();
+        findPairs(0, bucketCount(), pairs);
+        return pairCount();
+    }
+
+    /*
+    METHOD: findPairs (bucket range)
+    DESCRIPTION: The same search restricted to buckets [fromBucket, toBucket),
+                 appending (a, b) to 'out'. Disjoint ranges find disjoint
+                 pairs, so ranges can be searched on different threads and
+                 their outputs joined in range order, once bucketCount()
+                 has sorted the entries.
+    */
+    public void findPairs(int fromBucket, int toBucket, IntList out) {
+        for (int b = fromBucket; b < toBucket; b++) {
+            int end = bucketStart[b + 1];
+            for (int e1 = bucketStart[b]; e1 < end; e1++) {
+                int cx = sortedCellX[e1], cy = sortedCellY[e1];
+                int a = sortedId[e1];
+                for (int e2 = e1 + 1; e2 < end; e2++) {
+                    if (sortedCellX[e2] != cx || sortedCellY[e2] != cy) continue; // hash neighbour, not same cell
+                    int c = sortedId[e2];
+                    if (Math.max(firstCellX[a], firstCellX[c]) != cx
+                            || Math.max(firstCellY[a], firstCellY[c]) != cy) continue; // reported elsewhere
+                    if (!overlaps(a, c)) continue;
+                    out.add(Math.min(a, c));
+                    out.add(Math.max(a, c));
+                }
+            }
+        }
+    }
+
+    /*
+    METHOD: query
+    DESCRIPTION: Appends to 'out' every id whose box overlaps the given box,
+                 each once (from the first of its cells inside the query).
+                 It walks one bucket per cell the query covers, so it suits
+                 boxes spanning a modest number of cells, like a view.
+    */
+    public void query(double loX, double loY, double hiX, double hiY, IntList out) {
+        sort();
+        int cx0 = cell(loX), cy0 = cell(loY), cx1 = cell(hiX), cy1 = cell(hiY);
+        for (int cx = cx0; cx <= cx1; cx++) {
+            for (int cy = cy0; cy <= cy1; cy++) {
+                int b = bucket(cx, cy);
+                for (int e = bucketStart[b], end = bucketStart[b + 1]; e < end; e++) {
+                    if (sortedCellX[e] != cx || sortedCellY[e] != cy) continue;
+                    int id = sortedId[e];
+                    if (Math.max(firstCellX[id], cx0) != cx || Math.max(firstCellY[id], cy0) != cy) continue;
+                    if (minX[id] <= hiX && loX <= maxX[id] && minY[id] <= hiY && loY <= maxY[id]) out.add(id);
+                }
+            }
+        }
+    }
+
+    public int bucketCount() {
+        sort();
+        return bucketMask + 1;
+    }
+    public int pairCount() { return pairs.size() / 2; }
+    public int pairA(int k) { return pairs.get(2 * k); }
+    public int pairB(int k) { return pairs.get(2 * k + 1); }
+
+    // ---------------- HELPERS ----------------
+    private boolean overlaps(int a, int b) {
+        return minX[a] <= maxX[b] && minX[b] <= maxX[a]
+            && minY[a] <= maxY[b] && minY[b] <= maxY[a];
+    }
+
+    private int cell(double coordinate) {
+        return (int) Math.floor(coordinate * inverseCell);
+    }
+
+    private int bucket(int cx, int cy) {
+        return ((cx * 73856093) ^ (cy * 19349663)) & bucketMask;
+    }
+
+    private void growIds(int needed) {
+        int size = Math.max(needed, minX.length * 2);
+        minX = Arrays.copyOf(minX, size);
+        minY = Arrays.copyOf(minY, size);
+        maxX = Arrays.copyOf(maxX, size);
+        maxY = Arrays.copyOf(maxY, size);
+        firstCellX = Arrays.copyOf(firstCellX, size);
+        firstCellY = Arrays.copyOf(firstCellY, size);
+    }
+
+    // Doubles the entry arrays and the bucket table together, so the table
+    // stays about half full.
+    private void growEntries() {
+        int size = entryId.length * 2;
+        entryId = Arrays.copyOf(entryId, size);
+        entryCellX = Arrays.copyOf(entryCellX, size);
+        entryCellY = Arrays.copyOf(entryCellY, size);
+        entryBucket = new int[size];
+        sortedId = new int[size];
+        sortedCellX = new int[size];
+        sortedCellY = new int[size];
+        bucketStart = new int[size + 1];
+        bucketMask = size - 1;
+    }
+
+    // Counting sort of the entries by bucket, keeping their filing order
+    // within a bucket; a no-op until something is filed again.
+    private void sort() {
+        if (sorted) return;
+        int buckets = bucketMask + 1;
+        Arrays.fill(bucketStart, 0, buckets + 1, 0);
+        for (int e = 0; e < entryCount; e++) {
+            int b = bucket(entryCellX[e], entryCellY[e]);
+            entryBucket[e] = b;
+            bucketStart[b]++;
+        }
+        for (int b = 1; b < buckets; b++) bucketStart[b] += bucketStart[b - 1]; // now each bucket's end
+        for (int e = entryCount - 1; e >= 0; e--) {
+            int k = --bucketStart[entryBucket[e]]; // ends move back to starts
+            sortedId[k] = entryId[e];
+            sortedCellX[k] = entryCellX[e];
+            sortedCellY[k] = entryCellY[e];
+        }
+        bucketStart[buckets] = entryCount;
+        sorted = true;
+    }
+}
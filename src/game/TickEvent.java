@@ -0,0 +1,54 @@
+package game;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+CLASS: TickEvent
+DESCRIPTION: A Java Flight Recorder event for one Simulation tick: its
+             duration, how long each phase took, and the tick's vehicle,
+             collision-pair and allocation counts. TickMetrics creates one
+             only while a recording has it enabled, so otherwise it costs
+             nothing.
+USAGE: java -XX:StartFlightRecording=filename=run.jfr game.BatchRunner ...
+       then "jfr print --events game.Tick run.jfr", or open it in JDK
+       Mission Control. Ticks are frequent: a threshold in the recording
+       settings (e.g. game.Tick#threshold=5 ms) keeps only the slow ones.
+*/
+@Name("game.Tick")
+@Label("Simulation Tick")
+@Category("SmartTrafficSim")
+@Description("One fixed-length step of the traffic engine")
+@StackTrace(false)
+class TickEvent extends Event {
+    @Label("Tick")
+    long tick;
+
+    @Label("Vehicles")
+    int vehicles;
+
+    @Label("Broad-Phase Pairs")
+    int broadPairs;
+
+    @Label("Narrow-Phase Pairs")
+    int narrowPairs;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+
+    @Label("Events") @Timespan long events;
+    @Label("Sense") @Timespan long sense;
+    @Label("Signals") @Timespan long signals;
+    @Label("Decide") @Timespan long decide;
+    @Label("Move") @Timespan long move;
+    @Label("Locate") @Timespan long locate;
+    @Label("Collide") @Timespan long collide;
+    @Label("Rules") @Timespan long rules;
+}
@@ -0,0 +1,79 @@
+package game;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+CLASS: TickExecutor
+DESCRIPTION: Runs one phase of a tick over the vehicle slots in parallel.
+             Work is cut into fixed-size chunks whatever the thread count,
+             and each chunk only writes its own slots or its own output
+             buffer, so results come out the same with 1 thread or 32.
+USAGE: forEachChunk(n, body) calls body.run(chunk, from, to) for every
+       chunk of [0, n) and returns when all are done. With one thread it
+       simply loops in the caller. Work that comes in a few big pieces
+       (route tables, say) can pass its own chunk size.
+*/
+class TickExecutor {
+    static final int CHUNK_SIZE = 4096;
+
+    // Inner Interface: ChunkBody
+    // One phase's work over slots [from, to); 'chunk' indexes per-chunk output.
+    interface ChunkBody {
+        void run(int chunk, int from, int to);
+    }
+
+    private final int threads;
+    private final ForkJoinPool pool; // null when running single-threaded
+
+    public TickExecutor(int threads) {
+        this.threads = Math.max(1, threads);
+        this.pool = this.threads > 1 ? new ForkJoinPool(this.threads) : null;
+    }
+
+    public int getThreads() { return threads; }
+
+    public static int chunkCount(int n) { return (n + CHUNK_SIZE - 1) / CHUNK_SIZE; }
+
+    public void forEachChunk(int n, ChunkBody body) {
+        forEachChunk(n, CHUNK_SIZE, body);
+    }
+
+    public void forEachChunk(int n, int chunkSize, ChunkBody body) {
+        int chunks = (n + chunkSize - 1) / chunkSize;
+        if (pool == null || chunks <= 1) {
+            for (int c = 0; c < chunks; c++) body.run(c, c * chunkSize, Math.min(n, (c + 1) * chunkSize));
+            return;
+        }
+        pool.invoke(new ChunkTask(body, n, chunkSize, 0, chunks));
+    }
+
+    public void shutdown() {
+        if (pool != null) pool.shutdown();
+    }
+
+    // Splits a run of chunks in half until one is left, then does it.
+    private static class ChunkTask extends RecursiveAction {
+        private final ChunkBody body;
+        private final int n, chunkSize, firstChunk, endChunk;
+
+        ChunkTask(ChunkBody body, int n, int chunkSize, int firstChunk, int endChunk) {
+            this.body = body;
+            this.n = n;
+            this.chunkSize = chunkSize;
+            this.firstChunk = firstChunk;
+            this.endChunk = endChunk;
+        }
+
+        @Override
+        protected void compute() {
+            if (endChunk - firstChunk == 1) {
+                body.run(firstChunk, firstChunk * chunkSize, Math.min(n, (firstChunk + 1) * chunkSize));
+                return;
+            }
+            int middle = (firstChunk + endChunk) >>> 1;
+            invokeAll(new ChunkTask(body, n, chunkSize, firstChunk, middle),
+                    new ChunkTask(body, n, chunkSize, middle, endChunk));
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package game;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jdk.jfr.EventType;
+
+/*
+CLASS: TickMetrics
+DESCRIPTION: Always-on instrumentation of one Simulation: a LatencyHistogram
+             of every tick and of each of its phases, vehicle updates per
+             second of tick time, collision pairs from the broad and narrow
+             phase, bytes allocated by the ticking thread, and (for a
+             window) how long painting takes. Recording is a few
+             System.nanoTime() calls and counter increments per tick, with
+             no allocation.
+             The same numbers can be read three ways: over JMX once
+             register()ed (see TickMetricsMXBean), as a log line every few
+             seconds after startLog(), and as a TickEvent per tick in a
+             Java Flight Recorder recording.
+USAGE: The Simulation calls beginTick(), endPhase() after each phase and
+       endTick(); a renderer calls recordPaint() with each frame's time.
+NOTE: Written by the thread that ticks (and the one that paints); read from
+      any. Readers may see a tick half recorded, which is fine for
+      monitoring.
+*/
+class TickMetrics implements TickMetricsMXBean {
+    // ---------------- CONSTANTS (phases of a tick, in order) ----------------
+    static final int EVENTS = 0, SENSE = 1, SIGNALS = 2, DECIDE = 3, MOVE = 4, LOCATE = 5, COLLIDE = 6, RULES = 7;
+    static final String[] PHASE_NAMES = {"events", "sense", "signals", "decide", "move", "locate", "collide", "rules"};
+    static final int PHASES = PHASE_NAMES.length;
+
+    private static final ThreadMXBean THREADS = allocationCounter();
+    private static final EventType TICK_EVENT = EventType.getEventType(TickEvent.class);
+    private static ScheduledExecutorService logger; // shared by every startLog, made on first use
+
+    private final LatencyHistogram ticks = new LatencyHistogram();
+    private final LatencyHistogram paints = new LatencyHistogram();
+    private final LatencyHistogram[] phases = new LatencyHistogram[PHASES];
+    private final long[] lastPhase = new long[PHASES];
+    private long tickStart, phaseStart, allocationStart;
+    private TickEvent event; // while a recording wants this tick
+
+    private long vehicleTicks = 0, broadPairs = 0, narrowPairs = 0, allocated = 0;
+    private int lastVehicles = 0;
+
+    private ObjectName registered;
+    private ScheduledFuture<?> log;
+    // The log line's view of the previous interval (only its thread uses these).
+    private final LatencyHistogram logTicks = new LatencyHistogram(), sinceTicks = new LatencyHistogram();
+    private long logVehicleTicks, logBroad, logNarrow, logAllocated, logFrames;
+
+    public TickMetrics() {
+        for (int p = 0; p < PHASES; p++) phases[p] = new LatencyHistogram();
+    }
+
+    // ---------------- RECORDING ----------------
+    public void beginTick() {
+        if (TICK_EVENT.isEnabled()) {
+            event = new TickEvent();
+            event.begin();
+        }
+        if (THREADS != null) allocationStart = THREADS.getCurrentThreadAllocatedBytes();
+        tickStart = phaseStart = System.nanoTime();
+    }
+
+    // Phase 'phase' (EVENTS, SENSE, ...) just finished.
+    public void endPhase(int phase) {
+        long now = System.nanoTime();
+        lastPhase[phase] = now - phaseStart;
+        phases[phase].record(lastPhase[phase]);
+        phaseStart = now;
+    }
+
+    /*
+    METHOD: endTick
+    DESCRIPTION: Closes the tick begun last: 'vehicles' were updated, the
+                 broad phase proposed 'broad' pairs and the narrow phase
+                 confirmed 'narrow' of them.
+    */
+    public void endTick(long tick, int vehicles, int broad, int narrow) {
+        ticks.record(System.nanoTime() - tickStart);
+        long bytes = THREADS == null ? 0 : Math.max(0, THREADS.getCurrentThreadAllocatedBytes() - allocationStart);
+        allocated += bytes;
+        vehicleTicks += vehicles;
+        broadPairs += broad;
+        narrowPairs += narrow;
+        lastVehicles = vehicles;
+        if (event != null) {
+            event.tick = tick;
+            event.vehicles = vehicles;
+            event.broadPairs = broad;
+            event.narrowPairs = narrow;
+            event.allocated = bytes;
+            event.events = lastPhase[EVENTS];
+            event.sense = lastPhase[SENSE];
+            event.signals = lastPhase[SIGNALS];
+            event.decide = lastPhase[DECIDE];
+            event.move = lastPhase[MOVE];
+            event.locate = lastPhase[LOCATE];
+            event.collide = lastPhase[COLLIDE];
+            event.rules = lastPhase[RULES];
+            event.commit();
+            event = null;
+        }
+    }
+
+    public void recordPaint(long nanos) {
+        paints.record(nanos);
+    }
+
+    // ---------------- JMX ----------------
+    /*
+    METHOD: register
+    DESCRIPTION: Shows these metrics over JMX as game:type=TickMetrics,
+                 name='name' until unregister(). A clash or a refusal is
+                 reported and otherwise ignored; it never stops a run.
+    */
+    public synchronized void register(String name) {
+        unregister();
+        try {
+            ObjectName objectName = new ObjectName("game:type=TickMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            registered = objectName;
+        } catch (JMException e) {
+            System.err.println("Tick metrics not registered as " + name + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized void unregister() {
+        if (registered == null) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(registered)) server.unregisterMBean(registered);
+        } catch (JMException e) {
+            System.err.println("Tick metrics not unregistered: " + e.getMessage());
+        }
+        registered = null;
+    }
+
+    @Override public long getTicks() { return ticks.count(); }
+    @Override public double getVehiclesPerSecond() { return perSecond(vehicleTicks, ticks.totalNanos()); }
+    @Override public double getTickMeanMicros() { return ticks.mean() / 1e3; }
+    @Override public double getTickP50Micros() { return ticks.percentile(50) / 1e3; }
+    @Override public double getTickP99Micros() { return ticks.percentile(99) / 1e3; }
+    @Override public double getTickP999Micros() { return ticks.percentile(99.9) / 1e3; }
+    @Override public double getTickMaxMicros() { return ticks.maxNanos() / 1e3; }
+    @Override public String[] getPhaseNames() { return PHASE_NAMES.clone(); }
+
+    @Override
+    public double[] getPhaseMeanMicros() {
+        double[] out = new double[PHASES];
+        for (int p = 0; p < PHASES; p++) out[p] = phases[p].mean() / 1e3;
+        return out;
+    }
+
+    @Override
+    public double[] getPhaseP99Micros() {
+        double[] out = new double[PHASES];
+        for (int p = 0; p < PHASES; p++) out[p] = phases[p].percentile(99) / 1e3;
+        return out;
+    }
+
+    @Override public long getBroadPhasePairs() { return broadPairs; }
+    @Override public long getNarrowPhasePairs() { return narrowPairs; }
+    @Override public long getAllocatedBytes() { return allocated; }
+    @Override public long getFrames() { return paints.count(); }
+    @Override public double getPaintMeanMicros() { return paints.mean() / 1e3; }
+    @Override public double getPaintP99Micros() { return paints.percentile(99) / 1e3; }
+
+    // Everything since the start, as one line.
+    @Override
+    public String getSummary() {
+        return line(ticks, vehicleTicks, broadPairs, narrowPairs, allocated, paints.count());
+    }
+
+    // ---------------- LOG LINE ----------------
+    /*
+    METHOD: startLog
+    DESCRIPTION: Prints a line to standard error every 'seconds', starting
+                 with 'label', about the ticks of that interval: how many,
+                 their throughput and latency percentiles, the slowest
+                 phase, collision pairs and allocation per tick.
+    */
+    public synchronized void startLog(String label, double seconds) {
+        stopLog();
+        ticks.copyTo(logTicks);
+        logVehicleTicks = vehicleTicks;
+        logBroad = broadPairs;
+        logNarrow = narrowPairs;
+        logAllocated = allocated;
+        logFrames = paints.count();
+        long period = Math.max(1, Math.round(seconds * 1000));
+        log = scheduler().scheduleAtFixedRate(() -> System.err.println(label + ": " + intervalLine()),
+                period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopLog() {
+        if (log != null) log.cancel(false);
+        log = null;
+    }
+
+    // The ticks since the last log line.
+    private String intervalLine() {
+        sinceTicks.setDifference(ticks, logTicks);
+        long vehicles = vehicleTicks, broad = broadPairs, narrow = narrowPairs, bytes = allocated, frames = paints.count();
+        String line = line(sinceTicks, vehicles - logVehicleTicks, broad - logBroad, narrow - logNarrow,
+                bytes - logAllocated, frames - logFrames);
+        ticks.copyTo(logTicks);
+        logVehicleTicks = vehicles;
+        logBroad = broad;
+        logNarrow = narrow;
+        logAllocated = bytes;
+        logFrames = frames;
+        return line;
+    }
+
+    private String line(LatencyHistogram t, long vehicles, long broad, long narrow, long bytes, long frames) {
+        long n = Math.max(1, t.count());
+        int slowest = 0;
+        for (int p = 1; p < PHASES; p++) {
+            if (phases[p].mean() > phases[slowest].mean()) slowest = p;
+        }
+        String line = String.format(Locale.ROOT,
+                "%d ticks, %d vehicles, %.0f vehicles/s, tick p50 %.3f p99 %.3f max %.3f ms (mostly %s), "
+                        + "%.1f broad / %.2f narrow pairs, %d B allocated per tick",
+                t.count(), lastVehicles, perSecond(vehicles, t.totalNanos()),
+                t.percentile(50) / 1e6, t.percentile(99) / 1e6, t.maxNanos() / 1e6, PHASE_NAMES[slowest],
+                broad / (double) n, narrow / (double) n, bytes / n);
+        if (frames > 0) line += String.format(Locale.ROOT, ", %d frames, paint p99 %.3f ms", frames, paints.percentile(99) / 1e6);
+        return line;
+    }
+
+    // ---------------- HELPERS ----------------
+    private static double perSecond(long amount, long nanos) {
+        return nanos == 0 ? 0 : amount * 1e9 / nanos;
+    }
+
+    private static synchronized ScheduledExecutorService scheduler() {
+        if (logger == null) {
+            logger = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-log");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return logger;
+    }
+
+    // The JVM's per-thread allocation counter, or null where it has none.
+    private static ThreadMXBean allocationCounter() {
+        Object threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof ThreadMXBean)) return null;
+        ThreadMXBean counter = (ThreadMXBean) threads;
+        if (!counter.isThreadAllocatedMemorySupported()) return null;
+        if (!counter.isThreadAllocatedMemoryEnabled()) counter.setThreadAllocatedMemoryEnabled(true);
+        return counter;
+    }
+}
@@ -0,0 +1,32 @@
+package game;
+
+/*
+INTERFACE: TickMetricsMXBean
+DESCRIPTION: What a running Simulation's TickMetrics show over JMX (e.g. in
+             JConsole or VisualVM, under "game"). Times are in microseconds;
+             the totals count from when the Simulation was built.
+NOTE: Public only because JMX refuses management interfaces that aren't.
+*/
+public interface TickMetricsMXBean {
+    long getTicks();
+    double getVehiclesPerSecond();   // vehicle updates per second of tick time
+    double getTickMeanMicros();
+    double getTickP50Micros();
+    double getTickP99Micros();
+    double getTickP999Micros();
+    double getTickMaxMicros();
+
+    String[] getPhaseNames();        // the order of the two below
+    double[] getPhaseMeanMicros();
+    double[] getPhaseP99Micros();
+
+    long getBroadPhasePairs();       // candidate pairs, summed over every tick
+    long getNarrowPhasePairs();      // confirmed collisions, the same
+    long getAllocatedBytes();        // by the ticking thread, inside tick()
+
+    long getFrames();
+    double getPaintMeanMicros();
+    double getPaintP99Micros();
+
+    String getSummary();
+}
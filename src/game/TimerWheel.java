@@ -0,0 +1,239 @@
+package game;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+CLASS: TimerWheel
+DESCRIPTION: A discrete-event scheduler keyed by tick: a hierarchical timer
+             wheel of four levels of 64 slots each. An event due within 64
+             ticks goes straight into its tick's slot on the first level;
+             one due later goes into a coarser level and is moved down
+             ("cascaded") as its time comes closer. Scheduling, cancelling
+             and firing an event are all O(1), and a tick with nothing due
+             costs one empty slot check, however many events are pending.
+USAGE: schedule(tick, kind, arg) returns an id that stays valid until the
+       event fires or is cancel()led. advanceTo(tick, handler) fires every
+       event due up to and including 'tick', tick by tick; events due on the
+       same tick fire in the order they were scheduled.
+NOTE: Events are pooled in parallel primitive arrays and chained into
+      per-slot lists by index, so nothing is allocated per event. Events
+      more than 2^24 ticks ahead wait on the top level and are re-filed each
+      time its slot comes round.
+*/
+class TimerWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final long HORIZON = 1L << (SLOT_BITS * LEVELS);
+
+    // Inner Interface: Handler
+    // Receives each event as it fires; 'tick' is the tick it was due on.
+    interface Handler {
+        void fire(int kind, int arg, long tick);
+    }
+
+    private long now; // every event due at or before this has fired
+
+    // ---------------- EVENT POOL ----------------
+    private long[] due = new long[64], seq = new long[64];
+    private int[] kind = new int[64], arg = new int[64];
+    private int[] next = new int[64], prev = new int[64];
+    private int[] slotOf = new int[64]; // -1 when the entry is free
+    private int freeHead = -1, used = 0, size = 0;
+    private long scheduled = 0;         // events ever scheduled, for ordering
+
+    // ---------------- SLOTS ----------------
+    private final int[] head = new int[LEVELS * SLOTS], tail = new int[LEVELS * SLOTS];
+    private int[] batch = new int[16]; // the events firing on the current tick
+
+    // Ready to fire events from 'firstTick' on.
+    public TimerWheel(long firstTick) {
+        now = firstTick - 1;
+        Arrays.fill(head, -1);
+        Arrays.fill(tail, -1);
+        Arrays.fill(slotOf, -1);
+    }
+
+    // The last tick whose events have fired.
+    public long now() { return now; }
+    public int size() { return size; }
+
+    /*
+    METHOD: schedule
+    DESCRIPTION: Files an event for 'atTick'. An event asked for a tick that
+                 has already fired goes off on the next one.
+    */
+    public int schedule(long atTick, int eventKind, int eventArg) {
+        int id;
+        if (freeHead >= 0) {
+            id = freeHead;
+            freeHead = next[id];
+        } else {
+            if (used == due.length) grow(used * 2);
+            id = used++;
+        }
+        due[id] = Math.max(atTick, now + 1);
+        seq[id] = scheduled++;
+        kind[id] = eventKind;
+        arg[id] = eventArg;
+        link(id);
+        size++;
+        return id;
+    }
+
+    public void cancel(int id) {
+        if (id < 0 || id >= used || slotOf[id] < 0) return;
+        unlink(id);
+        release(id);
+    }
+
+    public boolean isPending(int id) { return id >= 0 && id < used && slotOf[id] >= 0; }
+    public long dueTick(int id) { return due[id]; }
+
+    // Drops every pending event (the clock stays where it is).
+    public void clear() {
+        Arrays.fill(head, -1);
+        Arrays.fill(tail, -1);
+        Arrays.fill(slotOf, 0, used, -1);
+        freeHead = -1;
+        used = size = 0;
+    }
+
+    /*
+    METHOD: advanceTo
+    DESCRIPTION: Fires every event due up to 'tick'. For each tick it first
+                 cascades the coarser slots that just came due, then takes
+                 the whole first-level slot, so anything the handler
+                 schedules goes into a later tick. With nothing pending the
+                 clock simply jumps.
+    */
+    public void advanceTo(long tick, Handler handler) {
+        while (now < tick) {
+            if (size == 0) {
+                now = tick;
+                return;
+            }
+            long t = ++now;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((t & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level * SLOTS + (int) ((t >> (SLOT_BITS * level)) & (SLOTS - 1)));
+                }
+            }
+            int slot = (int) (t & (SLOTS - 1));
+            int n = 0;
+            for (int id = head[slot]; id >= 0; id = next[id]) {
+                if (n == batch.length) batch = Arrays.copyOf(batch, n * 2);
+                batch[n++] = id;
+            }
+            if (n == 0) continue;
+            head[slot] = tail[slot] = -1;
+            sortBySeq(n);
+            for (int i = 0; i < n; i++) {
+                int id = batch[i];
+                int k = kind[id], a = arg[id];
+                release(id);
+                handler.fire(k, a, t);
+            }
+        }
+    }
+
+    // ---------------- CHECKPOINTS ----------------
+    // The whole pool and every slot list, so event ids and the order of
+    // same-tick events survive a restore.
+    void save(Checkpoint.Out out) {
+        out.putLong(now);
+        out.putLong(scheduled);
+        out.putInt(freeHead);
+        out.putInt(size);
+        out.putLongs(due, used); out.putLongs(seq, used);
+        out.putInts(kind, used); out.putInts(arg, used);
+        out.putInts(next, used); out.putInts(prev, used); out.putInts(slotOf, used);
+        out.putInts(head, head.length); out.putInts(tail, tail.length);
+    }
+
+    void load(Checkpoint.In in) throws IOException {
+        now = in.getLong();
+        scheduled = in.getLong();
+        freeHead = in.getInt();
+        size = in.getInt();
+        used = in.peekLength();
+        if (due.length < used) grow(used);
+        Arrays.fill(slotOf, -1);
+        in.getLongs(due, used); in.getLongs(seq, used);
+        in.getInts(kind, used); in.getInts(arg, used);
+        in.getInts(next, used); in.getInts(prev, used); in.getInts(slotOf, used);
+        in.getInts(head, head.length); in.getInts(tail, tail.length);
+    }
+
+    // ---------------- HELPERS ----------------
+    // The slot for an event, from how far ahead of the clock it is due.
+    private int slotFor(long at) {
+        long delta = at - now;
+        if (delta >= HORIZON) at = now + HORIZON - 1;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) level++;
+        return level * SLOTS + (int) ((at >> (SLOT_BITS * level)) & (SLOTS - 1));
+    }
+
+    // Re-files every event in a coarse slot now that the clock has reached it.
+    private void cascade(int slot) {
+        int id = head[slot];
+        head[slot] = tail[slot] = -1;
+        while (id >= 0) {
+            int following = next[id];
+            link(id);
+            id = following;
+        }
+    }
+
+    private void link(int id) {
+        int slot = slotFor(due[id]);
+        slotOf[id] = slot;
+        next[id] = -1;
+        prev[id] = tail[slot];
+        if (tail[slot] >= 0) next[tail[slot]] = id;
+        else head[slot] = id;
+        tail[slot] = id;
+    }
+
+    private void unlink(int id) {
+        int slot = slotOf[id];
+        if (prev[id] >= 0) next[prev[id]] = next[id];
+        else head[slot] = next[id];
+        if (next[id] >= 0) prev[next[id]] = prev[id];
+        else tail[slot] = prev[id];
+    }
+
+    private void release(int id) {
+        slotOf[id] = -1;
+        next[id] = freeHead;
+        freeHead = id;
+        size--;
+    }
+
+    // Cascading can put an older event behind a newer one; restore order.
+    private void sortBySeq(int n) {
+        for (int i = 1; i < n; i++) {
+            int id = batch[i];
+            int j = i - 1;
+            while (j >= 0 && seq[batch[j]] > seq[id]) {
+                batch[j + 1] = batch[j];
+                j--;
+            }
+            batch[j + 1] = id;
+        }
+    }
+
+    private void grow(int capacity) {
+        due = Arrays.copyOf(due, capacity);
+        seq = Arrays.copyOf(seq, capacity);
+        kind = Arrays.copyOf(kind, capacity);
+        arg = Arrays.copyOf(arg, capacity);
+        next = Arrays.copyOf(next, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+        int old = slotOf.length;
+        slotOf = Arrays.copyOf(slotOf, capacity);
+        Arrays.fill(slotOf, old, capacity, -1);
+    }
+}
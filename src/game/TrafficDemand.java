@@ -0,0 +1,170 @@
+package game;
+
+import java.io.IOException;
+
+/*
+CLASS: TrafficDemand
+DESCRIPTION: Feeds vehicles into the map from the scenario's
+             origin-destination demand. Each demand is a Poisson stream: the
+             time to the next vehicle is drawn from an exponential
+             distribution with the demand's mean headway, and the arrival is
+             an event on the TimerWheel at that exact tick, so a demand costs
+             nothing on the ticks in between. An arriving vehicle waits at
+             its origin until one of the origin's lanes has room at its
+             start (or, on a queue lane, at its back), then enters it
+             heading for its destination.
+USAGE: Simulation creates it at setup and passes back the ARRIVAL and
+       RELEASE events it schedules through fire().
+NOTE: Every demand draws from its own random stream, seeded from the
+      scenario seed and the demand's index, so runs repeat exactly and
+      adding a demand doesn't change when the others' vehicles come. The
+      stream is SplitMix64 (the same numbers java.util.SplittableRandom
+      gives for that seed) kept as one long per demand, so a Checkpoint
+      can save and restore it.
+*/
+class TrafficDemand {
+    // Event kinds this class schedules (the argument is the demand index).
+    static final int ARRIVAL = 0, RELEASE = 1;
+    // How often a demand with vehicles waiting tries its origin again.
+    static final int RETRY_TICKS = 5;
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final Scenario scenario;
+    private final RoadNetwork network;
+    private final Simulation sim;
+    private final TimerWheel wheel;
+    private final int arrivalKind, releaseKind;
+
+    // ---------------- PER DEMAND ----------------
+    private final long[] random;         // SplitMix64 state
+    private final double[] nextArrival;  // exact time (ticks) of the next vehicle
+    private final double[] meanHeadway;  // ticks
+    private final int[] waiting;         // arrived but not yet on the map
+    private final boolean[] retrying;    // a RELEASE is pending
+    private final int[] nextLane;        // which origin lane to try first (round robin)
+    private boolean[] local;             // which demands let vehicles in here; null: all
+    private long spawned = 0;
+
+    // Events go on 'timers' as kinds arrivalBase + ARRIVAL / + RELEASE.
+    public TrafficDemand(Scenario scenario, RoadNetwork network, Simulation sim, TimerWheel timers, int arrivalBase) {
+        this.scenario = scenario;
+        this.network = network;
+        this.sim = sim;
+        this.wheel = timers;
+        this.arrivalKind = arrivalBase + ARRIVAL;
+        this.releaseKind = arrivalBase + RELEASE;
+        int n = scenario.demandCount();
+        random = new long[n];
+        nextArrival = new double[n];
+        meanHeadway = new double[n];
+        waiting = new int[n];
+        retrying = new boolean[n];
+        nextLane = new int[n];
+        for (int d = 0; d < n; d++) {
+            random[d] = scenario.seed() * GOLDEN_GAMMA + d;
+            meanHeadway[d] = 3600 / scenario.demandRate(d) / Simulation.TICK_SECONDS;
+            nextArrival[d] = scenario.demandFirstTick(d);
+            scheduleArrival(d);
+        }
+    }
+
+    /*
+    METHOD: fire
+    DESCRIPTION: Handles one of this class's events for demand d: a new
+                 vehicle arriving (which also books the next one), or a
+                 retry for vehicles still waiting at the origin.
+    */
+    public void fire(int kind, int d, long tick) {
+        if (kind == arrivalKind) {
+            waiting[d]++;
+            scheduleArrival(d);
+        } else {
+            retrying[d] = false;
+        }
+        release(d, tick);
+    }
+
+    public int waitingCount(int d) { return waiting[d]; }
+    public long spawnedCount() { return spawned; }
+
+    // ---------------- DOMAINS (see DomainWorker) ----------------
+    // Only the demands marked true let vehicles in here (null: every one).
+    // The others still draw their arrivals, so each copy keeps the same streams.
+    public void setLocal(boolean[] isLocal) { local = isLocal; }
+    public boolean isLocal(int d) { return local == null || local[d]; }
+    public int nextLaneOf(int d) { return nextLane[d]; }
+
+    // Demand d moves here from another domain, with the vehicles waiting
+    // there and its next origin lane; they may start entering at 'tick'.
+    public void handOver(int d, int waitingCount, int next, long tick) {
+        waiting[d] = waitingCount;
+        nextLane[d] = next;
+        release(d, tick);
+    }
+
+    // ---------------- CHECKPOINTS ----------------
+    // Rates, origins and time windows come from the scenario, so a fork can change them.
+    void save(Checkpoint.Out out) {
+        int n = random.length;
+        out.putLongs(random, n);
+        out.putDoubles(nextArrival, n);
+        out.putInts(waiting, n);
+        out.putBooleans(retrying, n);
+        out.putInts(nextLane, n);
+        out.putLong(spawned);
+    }
+
+    void load(Checkpoint.In in) throws IOException {
+        int n = random.length;
+        in.getLongs(random, n);
+        in.getDoubles(nextArrival, n);
+        in.getInts(waiting, n);
+        in.getBooleans(retrying, n);
+        in.getInts(nextLane, n);
+        spawned = in.getLong();
+    }
+
+    // ---------------- HELPERS ----------------
+    // Draws the next headway and books the arrival, unless the demand is over.
+    private void scheduleArrival(int d) {
+        nextArrival[d] += -Math.log(1 - nextDouble(d)) * meanHeadway[d];
+        long at = (long) Math.ceil(nextArrival[d]);
+        if (at <= scenario.demandLastTick(d)) wheel.schedule(at, arrivalKind, d);
+    }
+
+    // Uniform in [0, 1) from demand d's stream.
+    private double nextDouble(int d) {
+        long z = random[d] += GOLDEN_GAMMA;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return ((z ^ (z >>> 31)) >>> 11) * 0x1.0p-53;
+    }
+
+    // Lets one waiting vehicle in if an origin lane has room; else tries again later.
+    private void release(int d, long tick) {
+        if (waiting[d] == 0 || !isLocal(d)) return;
+        int origin = scenario.demandOrigin(d), lanes = network.outDegree(origin);
+        VehicleType type = scenario.demandType(d);
+        QueueLanes queues = sim.getQueues();
+        for (int k = 0; k < lanes; k++) {
+            int lane = network.outLane(origin, (nextLane[d] + k) % lanes);
+            if (queues.isQueue(lane)) {
+                if (!queues.hasRoom(lane, type)) continue;
+                queues.enter(lane, type, scenario.demandSpeed(d), scenario.demandDestination(d), tick, tick);
+            } else {
+                double speed = sim.getLanes().entrySpeed(lane, type, scenario.demandSpeed(d), tick);
+                if (speed < 0) continue;
+                int h = sim.spawnOnLane(type, lane, scenario.demandSpeed(d), scenario.demandDestination(d));
+                sim.getStore().speed[h] = speed; // lane followers' speed is theirs to set
+            }
+            nextLane[d] = (nextLane[d] + k + 1) % lanes;
+            waiting[d]--;
+            spawned++;
+            break;
+        }
+        if (waiting[d] > 0 && !retrying[d] && lanes > 0) {
+            retrying[d] = true;
+            wheel.schedule(tick + RETRY_TICKS, releaseKind, d);
+        }
+    }
+}
@@ -20,6 +20,11 @@ abstract class TrafficElement extends Polygon implements Movable {
     public boolean left = false;
     public boolean right = false;
 
+    // When bound, this element is a view of one VehicleStore slot: the store
+    // holds the real pose and the element copies it for drawing.
+    protected VehicleStore store;
+    protected int handle = -1;
+
     public TrafficElement(Point[] inShape, Point inPosition, double inRotation) {
         super(inShape, inPosition, inRotation);
     }
@@ -27,6 +32,44 @@ abstract class TrafficElement extends Polygon implements Movable {
     // Abstract method: forces subclasses to define how they draw themselves.
     abstract public void paint(Graphics brush);
 
+    // Abstract method: which VehicleType this element is stored as.
+    abstract public VehicleType getType();
+
+    // A view of the right subclass for a stored vehicle type.
+    public static TrafficElement create(VehicleType type, Point position, double rotation) {
+        switch (type) {
+            case TRUCK: return new Truck(type.shape(), position, rotation);
+            case AMBULANCE: return new Ambulance(type.shape(), position, rotation);
+            default: return new Car(type.shape(), position, rotation);
+        }
+    }
+
+    public void bind(VehicleStore inStore, int inHandle) {
+        store = inStore;
+        handle = inHandle;
+    }
+
+    public int getHandle() { return handle; }
+
+    // How this vehicle drives when it follows a lane (bound elements only;
+    // the default is IntelligentDriverModel.forType(getType())).
+    public void setDriverModel(DriverModel model) { store.setDriver(handle, model); }
+    public DriverModel getDriverModel() { return store.driverOf(handle); }
+
+    // Copies the store's pose for this vehicle into the view.
+    public void pullFromStore() {
+        position.x = store.x[handle];
+        position.y = store.y[handle];
+        rotation = store.heading[handle];
+    }
+
+    // Copies the view's pose into the store (for keyboard-driven elements).
+    public void pushToStore() {
+        store.x[handle] = position.x;
+        store.y[handle] = position.y;
+        if (store.heading[handle] != rotation) store.setHeading(handle, rotation);
+    }
+
     /*
     METHOD: move
     DESCRIPTION: Updates the element's position and rotation based on boolean flags.
@@ -65,27 +108,96 @@ abstract class TrafficElement extends Polygon implements Movable {
     // Inner Class 2: CollisionHandler (Static Nested Class)
     // Encapsulates the logic for checking polygon intersection.
     protected static class CollisionHandler {
+        // Edges shorter than this (squared) have no usable normal, e.g. a
+        // repeated vertex, and are skipped.
+        private static final double MIN_EDGE_SQUARED = 1e-12;
+
         /*
         METHOD: checkIntersection
-        DESCRIPTION: Checks if any point of 'poly2' is contained in 'poly1' OR
-                     if any point of 'poly1' is contained in 'poly2'.
+        DESCRIPTION: True if the two shapes overlap by more than touching.
         */
         public static boolean checkIntersection(TrafficElement poly1, TrafficElement poly2) {
-            // Check if any point of poly2 is inside poly1
-            for (Point p : poly2.getPoints()) {
-                if (poly1.contains(p)) {
-                    return true;
-                }
+            return findContact(poly1, poly2, null);
+        }
+        
+        /*
+        METHOD: findContact
+        DESCRIPTION: Separating axis test on the polygons' cached vertices,
+                     after a bounding-box reject. If they overlap and 'out'
+                     isn't null, it receives the penetration depth and the
+                     unit normal pointing from poly1 towards poly2.
+        NOTE: Exact for convex shapes, which every vehicle is.
+        */
+        public static boolean findContact(Polygon poly1, Polygon poly2, Contact out) {
+            if (poly1.maxX() <= poly2.minX() || poly2.maxX() <= poly1.minX()
+                    || poly1.maxY() <= poly2.minY() || poly2.maxY() <= poly1.minY()) {
+                return false;
             }
-            
-            // Check if any point of poly1 is inside poly2
-            for (Point p : poly1.getPoints()) {
-                if (poly2.contains(p)) {
-                    return true;
+            return overlap(poly1.worldXs(), poly1.worldYs(), poly1.vertexCount(),
+                           poly2.worldXs(), poly2.worldYs(), poly2.vertexCount(), out);
+        }
+        
+        /*
+        METHOD: overlap
+        DESCRIPTION: The separating axis theorem on raw vertex arrays: two
+                     convex polygons are apart exactly when some edge normal
+                     of either one splits their projections. The normals are
+                     only normalised when a contact is asked for.
+        NOTE: Degenerate edges are skipped whether or not a contact is
+              asked for, so both forms give the same answer.
+        */
+        static boolean overlap(double[] ax, double[] ay, int an,
+                               double[] bx, double[] by, int bn, Contact out) {
+            double bestDepth = Double.POSITIVE_INFINITY, bestX = 0, bestY = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                double[] ex = pass == 0 ? ax : bx, ey = pass == 0 ? ay : by;
+                int n = pass == 0 ? an : bn;
+                for (int i = 0, j = n - 1; i < n; j = i++) {
+                    double nx = ey[j] - ey[i], ny = ex[i] - ex[j]; // edge j->i turned 90 degrees
+                    double squared = nx * nx + ny * ny;
+                    if (squared < MIN_EDGE_SQUARED) continue;
+                    if (out != null) {
+                        double length = Math.sqrt(squared);
+                        nx /= length;
+                        ny /= length;
+                    }
+                    double minA = Double.POSITIVE_INFINITY, maxA = Double.NEGATIVE_INFINITY;
+                    for (int k = 0; k < an; k++) {
+                        double d = ax[k] * nx + ay[k] * ny;
+                        if (d < minA) minA = d;
+                        if (d > maxA) maxA = d;
+                    }
+                    double minB = Double.POSITIVE_INFINITY, maxB = Double.NEGATIVE_INFINITY;
+                    for (int k = 0; k < bn; k++) {
+                        double d = bx[k] * nx + by[k] * ny;
+                        if (d < minB) minB = d;
+                        if (d > maxB) maxB = d;
+                    }
+                    double depth = Math.min(maxA - minB, maxB - minA);
+                    if (depth <= 0) return false; // found a separating axis
+                    if (depth < bestDepth) {
+                        bestDepth = depth;
+                        // Point the normal from A to B along this axis.
+                        boolean flip = (maxA - minB) > (maxB - minA);
+                        bestX = flip ? -nx : nx;
+                        bestY = flip ? -ny : ny;
+                    }
                 }
             }
-            
-            return false;
+            if (out != null) {
+                out.depth = bestDepth;
+                out.normalX = bestX;
+                out.normalY = bestY;
+            }
+            return true;
         }
     }
+    
+    // Inner Class 3: Contact (Static Nested Class)
+    // Filled in by CollisionHandler.findContact for an overlapping pair.
+    static class Contact {
+        public double depth;   // how far the shapes overlap along the normal
+        public double normalX; // unit normal, from the first shape to the second
+        public double normalY;
+    }
 }
\ No newline at end of file
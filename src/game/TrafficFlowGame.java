@@ -2,8 +2,7 @@ package game;
 
 import java.awt.*;
 import java.awt.event.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
 
 /**
  * CLASS: TrafficFlowGame
@@ -14,27 +13,34 @@ import java.util.List;
  */
 class TrafficFlowGame extends Game implements KeyListener {
 
-    // ---------------- CONSTANTS (roads & intersection boxes) ----------------
-    private static final int H_ROAD_Y = 250;  // horizontal road top
-    private static final int H_ROAD_H = 100; // horizontal road height
-    private static final int V_ROAD_X = 350;// vertical road left
-    private static final int V_ROAD_W = 100;// vertical road width
-
-    // Expanded intersection box for stricter red-light detection
-    private static final Rectangle INTERSECTION_STRICT =
-            new Rectangle(320, 220, 160, 160); // bigger than the road overlap
-
-    // Stop zone for NPC vehicles (they pause here on red)
-    private static final Rectangle INTERSECTION_STOP_ZONE =
-            new Rectangle(340, 240, 120, 120);
+    // ---------------- CONSTANTS (roads, owned by the engine) ----------------
+    private static final int H_ROAD_Y = Simulation.H_ROAD_Y;
+    private static final int H_ROAD_H = Simulation.H_ROAD_H;
+    private static final int V_ROAD_X = Simulation.V_ROAD_X;
+    private static final int V_ROAD_W = Simulation.V_ROAD_W;
+
+    // Real time per tick on the simulation thread, and how far it may fall
+    // behind (e.g. the machine was suspended) before it stops catching up.
+    private static final long TICK_NANOS = Math.round(Simulation.TICK_SECONDS * 1e9);
+    private static final long MAX_LAG_NANOS = 250_000_000L;
+    private static final Font HUD_FONT = new Font("Arial", Font.PLAIN, 12);
+    private static final Font TITLE_FONT = new Font("Arial", Font.BOLD, 42);
+    private static final Font REASON_FONT = new Font("Arial", Font.PLAIN, 22);
+    private static final Color SHADE = new Color(0, 0, 0, 150);
 
     // ---------------- GAME STATE ----------------
     static int counter = 0;
-    private Car playerCar;
-    private List<TrafficElement> vehicles;
-    private TrafficLight intersectionLight;
-    private boolean gameOver = false;
-    private String loseReason = "";
+    // Ticked on its own thread; anything touching it holds its monitor.
+    private final Simulation simulation;
+    // The last two ticks, as copies: frames are drawn between them.
+    private volatile Simulation.Snapshot latest;
+    // One unbound element per vehicle type, posed and painted for each vehicle.
+    private final TrafficElement[] painters = new TrafficElement[VehicleType.values().length];
+    // The map is painted once; each frame only redraws over what moved.
+    private final BackgroundLayer background = new BackgroundLayer(this::drawScene);
+    // F5 quick save: the engine state and the frame counter that went with it.
+    private Checkpoint quickSave;
+    private int quickSaveCounter;
 
     // Lambda (counts toward “anonymous class / lambda” req)
     private final Runnable startMessage = () ->
@@ -42,7 +48,12 @@ class TrafficFlowGame extends Game implements KeyListener {
 
     public TrafficFlowGame() {
         super("Traffic Flow Game!", 800, 600);
-        setupGame();
+        simulation = new Simulation(width, height);
+        latest = simulation.snapshot();
+        simulation.getMetrics().register("TrafficFlowGame");
+        for (VehicleType type : VehicleType.values()) {
+            painters[type.ordinal()] = TrafficElement.create(type, new Point(0, 0), 0);
+        }
 
         this.addKeyListener(this);
         this.setFocusable(true);
@@ -52,126 +63,87 @@ class TrafficFlowGame extends Game implements KeyListener {
         startMessage.run();
     }
 
-    // ---------------- GAME SETUP / RESET ----------------
-    private void setupGame() {
-        vehicles = new ArrayList<>();
-
-        // Player car (controlled)
-        Point[] carShape = {new Point(-5, 5), new Point(15, 5), new Point(15, -5), new Point(-5, -5)};
-        playerCar = new Car(carShape, new Point(100, H_ROAD_Y + H_ROAD_H / 2 + 10), 90); // northbound lane
-
-        // NPC vehicles (simple mix of directions)
-        Point[] truckShape = {new Point(-10, 8), new Point(20, 8), new Point(20, -8), new Point(-10, -8)};
-        Point[] ambShape = {new Point(-8, 5), new Point(18, 5), new Point(18, -5), new Point(-8, -5)};
-
-        vehicles.add(new Truck(truckShape, new Point(-40, H_ROAD_Y + 40), 0)); // eastbound
-        vehicles.add(new Ambulance(ambShape, new Point(width + 40, H_ROAD_Y + 60), 180));// westbound
-        vehicles.add(new Truck(truckShape, new Point(V_ROAD_X + 60, -40), 90)); // southbound
-        vehicles.add(new Car(carShape, new Point(V_ROAD_X + 40, height + 40), 270));// northbound
-        vehicles.add(playerCar); // draw player last
-
-        // Start light green
-        intersectionLight = new TrafficLight(new Point(400, 300), LightState.GREEN);
-
-        // Slightly faster overall feel
-        for (TrafficElement v : vehicles) v.stepSize *= 1.5;
-        playerCar.stepSize *= 1.3;
-    }
-
-    // ---------------- INNER CLASS: TRAFFIC LIGHT ----------------
-    protected class TrafficLight {
-        public Point position;
-        public LightState state;
-        private int lightTimer = 0;
-
-        public TrafficLight(Point position, LightState initial) {
-            this.position = position;
-            this.state = initial;
-        }
-
-        public void update() {
-            lightTimer++;
-            // Faster cycling (~2 seconds per color @ ~10fps engine; adjust if your Game.update delay differs)
-            if (lightTimer % 120 == 0) {
-                if (state == LightState.GREEN) state = LightState.YELLOW;
-                else if (state == LightState.YELLOW) state = LightState.RED;
-                else state = LightState.GREEN;
+    // ---------------- SIMULATION THREAD ----------------
+    // Ticks the engine in real time, however fast frames are drawn, and
+    // publishes a snapshot after each tick.
+    private void simulate() {
+        long next = System.nanoTime() + TICK_NANOS;
+        while (on) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
             }
-        }
-
-        public void paint(Graphics brush) {
-            brush.setColor(Color.DARK_GRAY);
-            brush.fillRect((int) position.x - 15, (int) position.y - 45, 30, 90);
-
-            brush.setColor(state == LightState.RED ? Color.RED : Color.GRAY);
-            brush.fillOval((int) position.x - 5, (int) position.y - 25, 10, 10);
-
-            brush.setColor(state == LightState.YELLOW ? Color.YELLOW : Color.GRAY);
-            brush.fillOval((int) position.x - 5, (int) position.y - 5, 10, 10);
-
-            brush.setColor(state == LightState.GREEN ? Color.GREEN : Color.GRAY);
-            brush.fillOval((int) position.x - 5, (int) position.y + 15, 10, 10);
+            synchronized (simulation) {
+                simulation.tick();
+                latest = simulation.snapshot(latest);
+            }
+            next += TICK_NANOS;
+            if (System.nanoTime() - next > MAX_LAG_NANOS) next = System.nanoTime();
         }
     }
 
-    private enum LightState { GREEN, YELLOW, RED }
-
     // ---------------- MAIN LOOP ----------------
+    // The window only renders, on the render thread: it draws the vehicles
+    // part way between the last two ticks, by how much of the next tick has
+    // passed, so motion stays smooth at any frame rate. That puts the
+    // picture one tick (a tenth of a second) behind the engine.
     @Override
     public void paint(Graphics brush) {
-        // 1) Background + “city” styling in corners
-        drawScene(brush);
-
-        if (gameOver) {
-            drawGameOver(brush);
-            return;
-        }
+        long start = System.nanoTime();
+        drawFrame(brush);
+        simulation.getMetrics().recordPaint(System.nanoTime() - start);
+    }
 
-        // 2) Update & draw traffic light
-        intersectionLight.update();
-        intersectionLight.paint(brush);
+    private void drawFrame(Graphics brush) {
+        Simulation.Snapshot frame = latest;
+        if (frame == null) return; // the window painted before we were built
+        double alpha = Math.max(0, Math.min(1, (System.nanoTime() - frame.capturedNanos) / (double) TICK_NANOS));
 
-        // 3) Move/draw vehicles
-        for (TrafficElement v : vehicles) {
-            // Only stop NPC cars on red; player can still enter (and get flagged)
-            if (v != playerCar && intersectionLight.state == LightState.RED && intersects(v, INTERSECTION_STOP_ZONE)) {
-                v.paint(brush); // draw where it is (stopped)
-                continue;
-            }
-            v.move();
-            wrapAround(v);
-            v.paint(brush);
-        }
+        // 1) Background + “city” styling in corners (cached; see drawScene)
+        background.restore(this, brush);
 
-        // 4) Loss conditions
-        // 4a) Collision: any two vehicles collide
-        for (int i = 0; i < vehicles.size(); i++) {
-            for (int j = i + 1; j < vehicles.size(); j++) {
-                if (vehicles.get(i).collides(vehicles.get(j))) {
-                    triggerLoss("Collision!");
-                }
-            }
+        if (frame.gameOver) {
+            drawGameOver(brush, frame.loseReason);
+            background.markAll();
+            return;
         }
 
-        // 4b) Red-light run: player’s center enters EXPANDED intersection area while red
-        if (intersectionLight.state == LightState.RED && intersects(playerCar, INTERSECTION_STRICT)) {
-            triggerLoss("Red Light Violation!");
+        // 2) Draw traffic lights (copies, safe to draw)
+        for (TrafficLight light : frame.lights) {
+            light.paint(brush);
+            int x = (int) light.position.x, y = (int) light.position.y;
+            background.mark(x - 16, y - 46, x + 16, y + 46);
         }
 
-        // 4c) Off-road: player’s center is not within either road
-        if (!isOnRoad(playerCar)) {
-            triggerLoss("Off road!");
+        // 3) Draw vehicles
+        for (int k = 0; k < frame.count; k++) {
+            TrafficElement v = painters[frame.types[k].ordinal()];
+            frame.blend(k, alpha, v);
+            if (v.maxX() < 0 || v.maxY() < 0 || v.minX() > width || v.minY() > height) continue; // off screen
+            v.paint(brush);
+            // The outline, plus the pose's origin (the ambulance's cross is drawn there).
+            background.mark((int) Math.min(v.minX(), v.position.x - 6) - 1, (int) Math.min(v.minY(), v.position.y - 6) - 1,
+                    (int) Math.max(v.maxX(), v.position.x + 6) + 2, (int) Math.max(v.maxY(), v.position.y + 6) + 2);
         }
 
-        // 5) HUD
+        // 4) HUD
         brush.setColor(Color.WHITE);
-        brush.setFont(new Font("Arial", Font.PLAIN, 12));
+        brush.setFont(HUD_FONT);
         brush.drawString("Obey the lights. Avoid crashes! Don’t leave the road.", 10, 15);
-        brush.drawString("W/S: Move | A/D: Turn | Press R to Restart after losing", 10, 30);
+        brush.drawString("W/S: Move | A/D: Turn | F5/F9: Quick save/load | R: Restart after losing", 10, 30);
+        brush.drawString(getFrameStats(), 10, 45);
+        background.mark(0, 0, width, 51);
         counter++;
     }
 
     // ---------------- DRAWING ----------------
+    // Everything that never moves. Only BackgroundLayer calls this, when it
+    // (re)paints its cached image.
     private void drawScene(Graphics brush) {
         // black base
         brush.setColor(Color.BLACK);
@@ -235,71 +207,65 @@ class TrafficFlowGame extends Game implements KeyListener {
         g.fillOval(x + w - 50, y + h - 30, 12, 12);
     }
 
-    private void drawGameOver(Graphics brush) {
-        brush.setColor(new Color(0, 0, 0, 150));
+    private void drawGameOver(Graphics brush, String loseReason) {
+        brush.setColor(SHADE);
         brush.fillRect(0, 0, width, height);
 
         brush.setColor(Color.RED);
-        brush.setFont(new Font("Arial", Font.BOLD, 42));
+        brush.setFont(TITLE_FONT);
         brush.drawString("YOU LOST!", 270, 280);
 
         brush.setColor(Color.WHITE);
-        brush.setFont(new Font("Arial", Font.PLAIN, 22));
+        brush.setFont(REASON_FONT);
         brush.drawString(loseReason, 320, 315);
         brush.drawString("Press R to Restart", 300, 350);
-    }
-
-    // ---------------- LOSS / CHECK HELPERS ----------------
-    private void triggerLoss(String reason) {
-        if (!gameOver) {
-            gameOver = true;
-            loseReason = reason;
-            // stop player controls
-            playerCar.forward = playerCar.backward = playerCar.left = playerCar.right = false;
-            System.out.println("YOU LOST: " + reason);
-        }
+        brush.drawString("or F9 to load your quick save", 270, 380);
     }
 
     private void resetGame() {
-        gameOver = false;
-        loseReason = "";
         counter = 0;
-        setupGame();
-    }
-
-    // Player is on-road if inside horizontal road **or** vertical road
-    private boolean isOnRoad(TrafficElement v) {
-        int x = (int) v.position.x;
-        int y = (int) v.position.y;
-        boolean onHorizontal = (y >= H_ROAD_Y) && (y <= H_ROAD_Y + H_ROAD_H);
-        boolean onVertical = (x >= V_ROAD_X) && (x <= V_ROAD_X + V_ROAD_W);
-        return onHorizontal || onVertical;
+        simulation.reset();
+        latest = simulation.snapshot();
     }
 
-    private boolean intersects(TrafficElement v, Rectangle r) {
-        int x = (int) v.position.x;
-        int y = (int) v.position.y;
-        return r.contains(x, y);
-    }
-
-    private void wrapAround(TrafficElement v) {
-        if (v.position.x > width + 40) v.position.x = -40;
-        if (v.position.x < -40) v.position.x = width + 40;
-        if (v.position.y > height + 40) v.position.y = -40;
-        if (v.position.y < -40) v.position.y = height + 40;
+    private void quickLoad() {
+        try {
+            simulation.restore(quickSave);
+            counter = quickSaveCounter;
+            latest = simulation.snapshot();
+        } catch (IOException ex) {
+            System.err.println("Quick load failed: " + ex.getMessage());
+        }
     }
 
     // ---------------- INPUT ----------------
+    // Input arrives on the AWT event thread, between ticks.
     @Override
     public void keyPressed(KeyEvent e) {
-        int key = e.getKeyCode();
+        synchronized (simulation) {
+            press(e.getKeyCode());
+        }
+    }
+
+    private void press(int key) {
 
-        if (gameOver && key == KeyEvent.VK_R) {
+        if (key == KeyEvent.VK_F5 && !simulation.isGameOver()) {
+            quickSave = simulation.checkpoint();
+            quickSaveCounter = counter;
+            return;
+        }
+        if (key == KeyEvent.VK_F9 && quickSave != null) {
+            quickLoad();
+            return;
+        }
+
+        if (simulation.isGameOver() && key == KeyEvent.VK_R) {
             resetGame();
             return;
         }
-        if (gameOver) return;
+        if (simulation.isGameOver()) return;
 
+        Car playerCar = simulation.getPlayerCar();
         if (key == KeyEvent.VK_W) playerCar.forward = true;
         else if (key == KeyEvent.VK_S) playerCar.backward = true;
         else if (key == KeyEvent.VK_A) playerCar.left = true;
@@ -309,10 +275,13 @@ class TrafficFlowGame extends Game implements KeyListener {
     @Override
     public void keyReleased(KeyEvent e) {
         int key = e.getKeyCode();
-        if (key == KeyEvent.VK_W) playerCar.forward = false;
-        else if (key == KeyEvent.VK_S) playerCar.backward = false;
-        else if (key == KeyEvent.VK_A) playerCar.left = false;
-        else if (key == KeyEvent.VK_D) playerCar.right = false;
+        synchronized (simulation) {
+            Car playerCar = simulation.getPlayerCar();
+            if (key == KeyEvent.VK_W) playerCar.forward = false;
+            else if (key == KeyEvent.VK_S) playerCar.backward = false;
+            else if (key == KeyEvent.VK_A) playerCar.left = false;
+            else if (key == KeyEvent.VK_D) playerCar.right = false;
+        }
     }
 
     @Override
@@ -321,7 +290,9 @@ class TrafficFlowGame extends Game implements KeyListener {
     // ---------------- MAIN ----------------
     public static void main(String[] args) {
         TrafficFlowGame g = new TrafficFlowGame();
-        g.on = true;  // continuous animation (handled by Game.update)
-        g.repaint();
+        Thread model = new Thread(g::simulate, "simulation");
+        model.setDaemon(true);
+        model.start();
+        g.start();  // render thread
     }
 }
\ No newline at end of file
@@ -0,0 +1,34 @@
+package game;
+
+import java.awt.*;
+
+/*
+CLASS: TrafficLight
+DESCRIPTION: The light post drawn at a signalised junction. It only shows a
+             colour; the timing lives in SignalController, which sets
+             'state' each tick to what the junction's first phase shows.
+USAGE: Owned and refreshed by Simulation; painted by whichever renderer is
+       showing the simulation.
+*/
+class TrafficLight {
+    public Point position;
+    public LightState state = LightState.GREEN;
+
+    public TrafficLight(Point position) {
+        this.position = position;
+    }
+
+    public void paint(Graphics brush) {
+        brush.setColor(Color.DARK_GRAY);
+        brush.fillRect((int) position.x - 15, (int) position.y - 45, 30, 90);
+
+        brush.setColor(state == LightState.RED ? Color.RED : Color.GRAY);
+        brush.fillOval((int) position.x - 5, (int) position.y - 25, 10, 10);
+
+        brush.setColor(state == LightState.YELLOW ? Color.YELLOW : Color.GRAY);
+        brush.fillOval((int) position.x - 5, (int) position.y - 5, 10, 10);
+
+        brush.setColor(state == LightState.GREEN ? Color.GREEN : Color.GRAY);
+        brush.fillOval((int) position.x - 5, (int) position.y + 15, 10, 10);
+    }
+}
@@ -0,0 +1,349 @@
+package game;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+CLASS: TrajectoryReader
+DESCRIPTION: Reads back what a TrajectoryRecorder wrote, one recorded tick
+             (chunk) at a time in any order: the trailer's index says where
+             every chunk starts, and read() decodes the one asked for from
+             the keyframe before it, or carries on from the chunk it read
+             last when that is on the way, so playing forwards decodes each
+             chunk once. The chunks are memory-mapped (in pieces of at most
+             MAP_BYTES) rather than copied in.
+             A file without a trailer (the recording was cut short) is
+             indexed by walking its chunks, and an incomplete last chunk is
+             ignored.
+USAGE: try (TrajectoryReader in = TrajectoryReader.open(file)) {
+           TrajectoryRecorder.Frame f = null;
+           for (int i = 0; i < in.frameCount(); i++) {
+               f = in.read(i, f); // reuses f's arrays
+               ... f.size vehicles in f.id/f.x/f.y/..., f.lanes lanes in f.laneVehicles/...
+           }
+       }
+       From the command line it prints a summary and can export CSV:
+         java game.TrajectoryReader <run.strj> [--vehicles vehicles.csv] [--lanes lanes.csv]
+*/
+class TrajectoryReader implements AutoCloseable {
+    static final long MAP_BYTES = 1 << 30;
+
+    private final FileChannel channel;
+    private final int laneCount, every;
+    private final double tickSeconds;
+    private final boolean complete;
+    private long[] ticks = new long[64], offsets = new long[64];
+    private int frames = 0;
+    private long chunksEnd; // where the last chunk ends
+
+    // The chunks, mapped in pieces that each hold whole chunks.
+    private MappedByteBuffer[] maps = new MappedByteBuffer[0];
+    private long[] mapStart = new long[0];
+
+    private final Inflater inflater = new Inflater();
+    private ByteBuffer chunk = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    private byte[] planes = new byte[0];
+    private final TrajectoryRecorder.Frame current = new TrajectoryRecorder.Frame(); // chunk 'decoded'
+    private int decoded = -1;
+
+    private TrajectoryReader(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = readAt(0, TrajectoryRecorder.HEADER_BYTES);
+        if (header.limit() < TrajectoryRecorder.HEADER_BYTES || header.getInt(0) != TrajectoryRecorder.MAGIC) {
+            throw new IOException("Not a trajectory file");
+        }
+        if (header.getInt(4) < 1 || header.getInt(4) > TrajectoryRecorder.VERSION) {
+            throw new IOException("Unsupported trajectory version " + header.getInt(4));
+        }
+        laneCount = header.getInt(8);
+        every = header.getInt(12);
+        tickSeconds = header.getDouble(16);
+        complete = readIndex() || walkChunks();
+        mapChunks();
+    }
+
+    public static TrajectoryReader open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new TrajectoryReader(channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+    // ---------------- INDEX ----------------
+    public int laneCount() { return laneCount; }
+    public int recordEvery() { return every; }
+    public double tickSeconds() { return tickSeconds; }
+    // False if the recording was cut short (no trailer).
+    public boolean isComplete() { return complete; }
+    public int frameCount() { return frames; }
+    public long tick(int i) { return ticks[i]; }
+
+    // The last frame recorded at or before 'tick', or -1 if there is none.
+    public int find(long tick) {
+        int i = Arrays.binarySearch(ticks, 0, frames, tick);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    // ---------------- FRAMES ----------------
+    /*
+    METHOD: read
+    DESCRIPTION: Decodes frame i into 'into' (growing its arrays as needed),
+                 or into a new Frame when 'into' is null, and returns it.
+                 Costs at most KEYFRAME_EVERY chunk decodes, and one when i
+                 follows the frame read before.
+    */
+    public TrajectoryRecorder.Frame read(int i, TrajectoryRecorder.Frame into) throws IOException {
+        if (i < 0 || i >= frames) throw new IndexOutOfBoundsException("Frame " + i + " of " + frames);
+        if (i != decoded) {
+            int key = i;
+            while (key > 0 && key != decoded && (chunk(key).getInt(20) & TrajectoryRecorder.DELTA) != 0) key--;
+            // Carry on from the last decoded chunk if it lies between the keyframe and i.
+            for (int j = decoded >= key && decoded < i ? decoded + 1 : key; j <= i; j++) decode(j);
+        }
+        TrajectoryRecorder.Frame f = into != null ? into : new TrajectoryRecorder.Frame();
+        f.copyFrom(current);
+        return f;
+    }
+
+    // Decodes chunk j into 'current'; a delta chunk must follow the one in it.
+    private void decode(int j) throws IOException {
+        decoded = -1; // until this one is complete
+        ByteBuffer b = chunk(j);
+        long tick = b.getLong(0);
+        int n = b.getInt(8), lanes = b.getInt(12), body = b.getInt(16);
+        if (b.limit() < TrajectoryRecorder.CHUNK_HEADER_BYTES + body) throw new IOException("Chunk " + j + " is cut short");
+        TrajectoryRecorder.Frame f = current;
+        boolean delta = (b.getInt(20) & TrajectoryRecorder.DELTA) != 0;
+        int m = delta ? f.size : 0, ml = delta ? f.lanes : 0;
+        b.position(TrajectoryRecorder.CHUNK_HEADER_BYTES);
+        f.ensure(n, lanes);
+        f.tick = tick;
+        f.size = n;
+        getInts(b, f.id, n, m);
+        getBytes(b, f.type, n, m);
+        getInts(b, f.lane, n, m);
+        getFloats(b, f.x, n, m);
+        getFloats(b, f.y, n, m);
+        getFloats(b, f.heading, n, m);
+        getFloats(b, f.speed, n, m);
+        getInts(b, f.laneVehicles, lanes, ml);
+        getFloats(b, f.laneMeanSpeed, lanes, ml);
+        getInts(b, f.laneQueued, lanes, ml);
+        decoded = j;
+    }
+
+    // ---------------- HELPERS ----------------
+    // Reads the index from the trailer; false if there is no trailer.
+    private boolean readIndex() throws IOException {
+        long size = channel.size();
+        if (size < TrajectoryRecorder.HEADER_BYTES + TrajectoryRecorder.TRAILER_BYTES) return false;
+        ByteBuffer trailer = readAt(size - TrajectoryRecorder.TRAILER_BYTES, TrajectoryRecorder.TRAILER_BYTES);
+        if (trailer.getInt(12) != TrajectoryRecorder.END_MAGIC) return false;
+        long at = trailer.getLong(0);
+        int count = trailer.getInt(8);
+        if (at + count * 16L + TrajectoryRecorder.TRAILER_BYTES != size) throw new IOException("Corrupt trajectory index");
+        ByteBuffer index = readAt(at, count * 16);
+        for (int i = 0; i < count; i++) addFrame(index.getLong(16 * i), index.getLong(16 * i + 8));
+        chunksEnd = at;
+        return true;
+    }
+
+    // Indexes every whole chunk after the header; always false (not complete).
+    private boolean walkChunks() throws IOException {
+        long size = channel.size(), at = TrajectoryRecorder.HEADER_BYTES;
+        while (at + TrajectoryRecorder.CHUNK_HEADER_BYTES <= size) {
+            ByteBuffer head = readAt(at, TrajectoryRecorder.CHUNK_HEADER_BYTES);
+            long end = at + TrajectoryRecorder.CHUNK_HEADER_BYTES + head.getInt(16);
+            if (end > size) break;
+            addFrame(head.getLong(0), at);
+            at = end;
+        }
+        chunksEnd = at;
+        return false;
+    }
+
+    // Maps the chunks in runs of whole chunks, each at most MAP_BYTES (or one chunk).
+    private void mapChunks() throws IOException {
+        int pieces = 0;
+        for (int i = 0; i < frames; ) {
+            int j = i + 1;
+            while (j < frames && end(j) - offsets[i] <= MAP_BYTES) j++;
+            if (pieces == maps.length) {
+                maps = Arrays.copyOf(maps, pieces * 2 + 1);
+                mapStart = Arrays.copyOf(mapStart, pieces * 2 + 1);
+            }
+            maps[pieces] = channel.map(FileChannel.MapMode.READ_ONLY, offsets[i], end(j - 1) - offsets[i]);
+            mapStart[pieces] = offsets[i];
+            pieces++;
+            i = j;
+        }
+        maps = Arrays.copyOf(maps, pieces);
+        mapStart = Arrays.copyOf(mapStart, pieces);
+    }
+
+    private long end(int i) { return i + 1 < frames ? offsets[i + 1] : chunksEnd; }
+
+    // Chunk i (header and body) as a little-endian buffer of its own.
+    private ByteBuffer chunk(int i) {
+        int piece = Arrays.binarySearch(mapStart, offsets[i]);
+        if (piece < 0) piece = -piece - 2;
+        ByteBuffer b = maps[piece].duplicate();
+        int from = (int) (offsets[i] - mapStart[piece]);
+        b.position(from).limit(from + (int) (end(i) - offsets[i]));
+        return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void addFrame(long tick, long offset) {
+        if (frames == ticks.length) {
+            ticks = Arrays.copyOf(ticks, frames * 2);
+            offsets = Arrays.copyOf(offsets, frames * 2);
+        }
+        ticks[frames] = tick;
+        offsets[frames] = offset;
+        frames++;
+    }
+
+    // Up to 'length' bytes from 'position', in the shared buffer (fewer at the end of the file).
+    private ByteBuffer readAt(long position, int length) throws IOException {
+        if (chunk.capacity() < length) {
+            chunk = ByteBuffer.allocate(Math.max(length, chunk.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        chunk.clear().limit(length);
+        while (chunk.hasRemaining()) {
+            if (channel.read(chunk, position + chunk.position()) < 0) break;
+        }
+        chunk.flip();
+        return chunk;
+    }
+
+    // Inflates the next column of the body into the planes buffer.
+    private byte[] inflate(ByteBuffer body, int rawBytes) throws IOException {
+        int length = body.getInt();
+        if (planes.length < rawBytes) planes = new byte[Math.max(rawBytes, planes.length * 2)];
+        ByteBuffer column = body.duplicate();
+        column.limit(column.position() + length);
+        inflater.reset();
+        inflater.setInput(column);
+        try {
+            int got = 0;
+            while (got < rawBytes && !inflater.finished()) {
+                int k = inflater.inflate(planes, got, rawBytes - got);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                got += k;
+            }
+            if (got != rawBytes) throw new IOException("Column is " + got + " bytes, expected " + rawBytes);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt column", e);
+        }
+        body.position(body.position() + length);
+        return planes;
+    }
+
+    // The column's n values, each XORed into what 'out' holds if it is one of
+    // the first m (the chunk before's values, for a delta chunk).
+    private void getInts(ByteBuffer body, int[] out, int n, int m) throws IOException {
+        byte[] p = inflate(body, n * 4);
+        for (int i = 0; i < n; i++) {
+            int v = (p[i] & 0xFF) | (p[n + i] & 0xFF) << 8 | (p[2 * n + i] & 0xFF) << 16 | (p[3 * n + i] & 0xFF) << 24;
+            out[i] = i < m ? out[i] ^ v : v;
+        }
+    }
+
+    private void getFloats(ByteBuffer body, float[] out, int n, int m) throws IOException {
+        byte[] p = inflate(body, n * 4);
+        for (int i = 0; i < n; i++) {
+            int v = (p[i] & 0xFF) | (p[n + i] & 0xFF) << 8 | (p[2 * n + i] & 0xFF) << 16 | (p[3 * n + i] & 0xFF) << 24;
+            if (i < m) v ^= Float.floatToRawIntBits(out[i]);
+            out[i] = Float.intBitsToFloat(v);
+        }
+    }
+
+    private void getBytes(ByteBuffer body, byte[] out, int n, int m) throws IOException {
+        byte[] p = inflate(body, n);
+        for (int i = 0; i < n; i++) out[i] = (byte) (i < m ? out[i] ^ p[i] : p[i]);
+    }
+
+    // ---------------- COMMAND LINE ----------------
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0 || args.length % 2 == 0) {
+            System.err.println("usage: java game.TrajectoryReader <run.strj> [--vehicles vehicles.csv] [--lanes lanes.csv]");
+            System.exit(2);
+        }
+        Path vehiclesCsv = null, lanesCsv = null;
+        for (int i = 1; i < args.length; i += 2) {
+            if (args[i].equals("--vehicles")) vehiclesCsv = Paths.get(args[i + 1]);
+            else if (args[i].equals("--lanes")) lanesCsv = Paths.get(args[i + 1]);
+            else {
+                System.err.println("unknown option " + args[i]);
+                System.exit(2);
+            }
+        }
+        Path file = Paths.get(args[0]);
+        try (TrajectoryReader in = open(file);
+             BufferedWriter vehicles = vehiclesCsv == null ? null : Files.newBufferedWriter(vehiclesCsv, StandardCharsets.UTF_8);
+             BufferedWriter lanes = lanesCsv == null ? null : Files.newBufferedWriter(lanesCsv, StandardCharsets.UTF_8)) {
+            if (vehicles != null) vehicles.write("tick,id,type,lane,x,y,heading,speed\n");
+            if (lanes != null) lanes.write("tick,lane,vehicles,mean_speed,queued\n");
+            long samples = 0;
+            int fewest = Integer.MAX_VALUE, most = 0;
+            double[] laneVehicles = new double[in.laneCount()], laneSpeed = new double[in.laneCount()];
+            double[] laneQueued = new double[in.laneCount()];
+            TrajectoryRecorder.Frame f = null;
+            for (int i = 0; i < in.frameCount(); i++) {
+                f = in.read(i, f);
+                samples += f.size;
+                fewest = Math.min(fewest, f.size);
+                most = Math.max(most, f.size);
+                for (int k = 0; vehicles != null && k < f.size; k++) {
+                    vehicles.write(String.format(Locale.ROOT, "%d,%d,%s,%d,%.2f,%.2f,%.1f,%.2f%n", f.tick, f.id[k],
+                            f.typeOf(k), f.lane[k], f.x[k], f.y[k], f.heading[k], f.speed[k]));
+                }
+                for (int l = 0; l < f.lanes && l < laneVehicles.length; l++) {
+                    laneVehicles[l] += f.laneVehicles[l];
+                    laneSpeed[l] += f.laneMeanSpeed[l] * f.laneVehicles[l];
+                    laneQueued[l] += f.laneQueued[l];
+                    if (lanes != null) {
+                        lanes.write(String.format(Locale.ROOT, "%d,%d,%d,%.2f,%d%n", f.tick, l, f.laneVehicles[l],
+                                f.laneMeanSpeed[l], f.laneQueued[l]));
+                    }
+                }
+            }
+            int n = in.frameCount();
+            System.out.printf(Locale.ROOT, "%s: %d frames%s, every %d ticks, %d lanes%n", file, n,
+                    in.isComplete() ? "" : " (recording cut short)", in.recordEvery(), in.laneCount());
+            if (n == 0) return;
+            System.out.printf(Locale.ROOT, "ticks %d..%d (%.1f s), vehicles per frame %d..%d (mean %.1f)%n",
+                    in.tick(0), in.tick(n - 1), (in.tick(n - 1) - in.tick(0)) * in.tickSeconds(),
+                    fewest, most, (double) samples / n);
+            System.out.printf(Locale.ROOT, "%d bytes, %.2f bytes per vehicle sample%n",
+                    Files.size(file), samples == 0 ? 0 : (double) Files.size(file) / samples);
+            System.out.printf(Locale.ROOT, "%6s %14s %12s %12s%n", "lane", "mean vehicles", "mean speed", "mean queued");
+            for (int l = 0; l < laneVehicles.length; l++) {
+                if (laneVehicles[l] == 0) continue;
+                System.out.printf(Locale.ROOT, "%6d %14.2f %12.2f %12.2f%n", l, laneVehicles[l] / n,
+                        laneSpeed[l] / laneVehicles[l], laneQueued[l] / n);
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package game;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/*
+CLASS: TrajectoryRecorder
+DESCRIPTION: Streams a run to disk: every recorded tick, each vehicle's id,
+             type, lane, centre, heading and speed, and for each lane how
+             many vehicles are on it, their mean speed and how many are
+             queued (for a queue lane, see QueueLanes, only those). A tick is one chunk of the file, stored column by
+             column; each column is byte-shuffled (all the first bytes of
+             its values, then all the second bytes, ...) and deflated, which
+             packs slowly changing numbers far better than deflating the
+             values as they are. Between keyframes (every KEYFRAME_EVERY
+             chunks) a chunk holds each value XORed with the value at the
+             same position in the chunk before; vehicles keep their order
+             from tick to tick, so what is left is mostly zero bytes and
+             a seek never decodes more than KEYFRAME_EVERY chunks.
+             record() only copies the columns into a free frame buffer and
+             hands it over; a background thread compresses and writes it
+             through a FileChannel. There is a fixed number of frame
+             buffers, so memory stays bounded however far the disk falls
+             behind: record() then waits for a buffer, or drops the tick
+             when asked to.
+USAGE: recorder = new TrajectoryRecorder(file, sim.getNetwork().laneCount(), 1);
+       after each sim.tick(): recorder.record(sim);
+       at the end: recorder.close(), which also writes the tick index.
+       Read the file back with TrajectoryReader.
+NOTE: Layout (little-endian; byte offsets):
+        header  0 magic 'STTR', 4 version, 8 lanes, 12 record every
+                (ticks), 16 tick seconds (double), 24 keyframe every
+                (chunks), 28 reserved
+        chunk   0 tick (long), 8 vehicles, 12 lanes, 16 body bytes, 20
+                flags (ints; DELTA: XORed with the chunk before); then the
+                body: for each column in COLUMNS order, its compressed
+                length (int) and bytes
+        index   (tick, chunk offset) longs for every chunk, then a 16-byte
+                trailer: index offset (long), chunks (int), magic 'STTE'
+      A file cut short (e.g. the run crashed) has no trailer;
+      TrajectoryReader then finds the whole chunks by walking them.
+*/
+class TrajectoryRecorder implements AutoCloseable {
+    static final int MAGIC = 0x53545452;   // "STTR"
+    static final int END_MAGIC = 0x53545445; // "STTE"
+    static final int VERSION = 2;       // 1 had no delta chunks
+    static final int HEADER_BYTES = 32;
+    static final int CHUNK_HEADER_BYTES = 24;
+    static final int TRAILER_BYTES = 16;
+    // Vehicle columns, then lane columns; the body holds them in this order.
+    static final String[] COLUMNS = {"id", "type", "lane", "x", "y", "heading", "speed",
+            "laneVehicles", "laneMeanSpeed", "laneQueued"};
+    static final int VEHICLE_COLUMNS = 7;
+    // A vehicle slower than this (units per second) counts as queued.
+    static final double QUEUE_SPEED = 2;
+    static final int DEFAULT_BUFFERS = 4;
+    static final int KEYFRAME_EVERY = 32;
+    static final int DELTA = 1; // chunk flag
+
+    // Inner Class: Frame (Static Nested Class)
+    // One recorded tick, column by column. The recorder fills these from the
+    // store and TrajectoryReader decodes chunks back into them.
+    static class Frame {
+        long tick;
+        int size, lanes;
+        int[] id = new int[0], lane = new int[0];
+        byte[] type = new byte[0];
+        float[] x = new float[0], y = new float[0], heading = new float[0], speed = new float[0];
+        int[] laneVehicles = new int[0], laneQueued = new int[0];
+        float[] laneMeanSpeed = new float[0];
+
+        // Copies every column of 'from' into this frame.
+        void copyFrom(Frame from) {
+            ensure(from.size, from.lanes);
+            tick = from.tick;
+            size = from.size;
+            System.arraycopy(from.id, 0, id, 0, size);
+            System.arraycopy(from.type, 0, type, 0, size);
+            System.arraycopy(from.lane, 0, lane, 0, size);
+            System.arraycopy(from.x, 0, x, 0, size);
+            System.arraycopy(from.y, 0, y, 0, size);
+            System.arraycopy(from.heading, 0, heading, 0, size);
+            System.arraycopy(from.speed, 0, speed, 0, size);
+            System.arraycopy(from.laneVehicles, 0, laneVehicles, 0, lanes);
+            System.arraycopy(from.laneMeanSpeed, 0, laneMeanSpeed, 0, lanes);
+            System.arraycopy(from.laneQueued, 0, laneQueued, 0, lanes);
+        }
+
+        // Makes room for n vehicles and 'laneCount' lanes.
+        void ensure(int n, int laneCount) {
+            if (id.length < n) {
+                int c = Math.max(n, id.length + id.length / 2);
+                id = Arrays.copyOf(id, c);
+                lane = Arrays.copyOf(lane, c);
+                type = Arrays.copyOf(type, c);
+                x = Arrays.copyOf(x, c);
+                y = Arrays.copyOf(y, c);
+                heading = Arrays.copyOf(heading, c);
+                speed = Arrays.copyOf(speed, c);
+            }
+            if (laneVehicles.length < laneCount) {
+                laneVehicles = new int[laneCount];
+                laneQueued = new int[laneCount];
+                laneMeanSpeed = new float[laneCount];
+            }
+            lanes = laneCount;
+        }
+
+        public VehicleType typeOf(int i) { return VehicleType.byId(type[i]); }
+    }
+
+    private final FileChannel channel;
+    private final int laneCount, every;
+    private final boolean dropWhenBehind;
+    private final BlockingQueue<Frame> free, full;
+    private final Frame closing = new Frame(); // tells the writer to finish
+    private final Thread writer;
+    private volatile IOException failure;
+    private boolean closed = false;
+
+    // ---------------- WRITER THREAD STATE ----------------
+    private long position = HEADER_BYTES;
+    private long[] index = new long[256]; // (tick, offset) pairs
+    private int chunks = 0;
+    private final Frame last = new Frame(); // the chunk before, for deltas
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] planes = new byte[0];
+    private ByteBuffer out = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+    // ---------------- COUNTERS ----------------
+    private volatile long bytesWritten = HEADER_BYTES;
+    private long recorded = 0, dropped = 0, stallNanos = 0;
+
+    public TrajectoryRecorder(Path file, int laneCount, int everyTicks) throws IOException {
+        this(file, laneCount, everyTicks, DEFAULT_BUFFERS, false);
+    }
+
+    /*
+    Records every 'everyTicks'th tick into 'file' through 'buffers' frame
+    buffers. With dropWhenBehind, a tick that finds them all still queued
+    for the writer is skipped (and counted) rather than waited for.
+    */
+    public TrajectoryRecorder(Path file, int laneCount, int everyTicks, int buffers, boolean dropWhenBehind)
+            throws IOException {
+        if (everyTicks < 1 || buffers < 1) throw new IllegalArgumentException("everyTicks and buffers must be positive");
+        this.laneCount = laneCount;
+        this.every = everyTicks;
+        this.dropWhenBehind = dropWhenBehind;
+        free = new ArrayBlockingQueue<>(buffers);
+        full = new ArrayBlockingQueue<>(buffers + 1);
+        for (int i = 0; i < buffers; i++) free.add(new Frame());
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(laneCount).putInt(everyTicks)
+                .putDouble(Simulation.TICK_SECONDS).putInt(KEYFRAME_EVERY).putInt(0).flip();
+        while (header.hasRemaining()) channel.write(header);
+        writer = new Thread(this::drain, "trajectory-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /*
+    METHOD: record
+    DESCRIPTION: Copies the state of 'sim' into a frame for the writer, if
+                 its tick count is one to record. Call it between ticks
+                 (also before the first, for the starting state). Throws if
+                 the writer has failed.
+    */
+    public void record(Simulation sim) {
+        long tick = sim.getTick();
+        if (tick % every != 0) return;
+        if (closed) throw new IllegalStateException("Recorder is closed");
+        if (failure != null) throw new UncheckedIOException("Recording failed", failure);
+        Frame frame = free.poll();
+        if (frame == null) {
+            if (dropWhenBehind) {
+                dropped++;
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                frame = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            stallNanos += System.nanoTime() - start;
+        }
+        fill(frame, sim.getStore(), tick);
+        fillQueues(frame, sim);
+        full.add(frame);
+        recorded++;
+    }
+
+    // Ticks handed to the writer, ticks dropped, and time record() spent waiting.
+    public long recordedCount() { return recorded; }
+    public long droppedCount() { return dropped; }
+    public long stallNanos() { return stallNanos; }
+    public long bytesWritten() { return bytesWritten; }
+
+    /*
+    METHOD: close
+    DESCRIPTION: Waits for the writer to finish the frames already handed
+                 over, then writes the tick index and trailer. Rethrows the
+                 writer's error, if it had one.
+    */
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        full.add(closing);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try (FileChannel c = channel) {
+            if (failure != null) throw failure;
+            ByteBuffer tail = ByteBuffer.allocate(chunks * 16 + TRAILER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < chunks * 2; i++) tail.putLong(index[i]);
+            tail.putLong(position).putInt(chunks).putInt(END_MAGIC).flip();
+            while (tail.hasRemaining()) c.write(tail, position + tail.position());
+            bytesWritten = position + tail.limit();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // ---------------- COPY (tick thread) ----------------
+    private void fill(Frame f, VehicleStore store, long tick) {
+        f.tick = tick;
+        f.ensure(store.size(), laneCount);
+        Arrays.fill(f.laneVehicles, 0, laneCount, 0);
+        Arrays.fill(f.laneQueued, 0, laneCount, 0);
+        Arrays.fill(f.laneMeanSpeed, 0, laneCount, 0);
+        int n = 0;
+        for (int h = 0, end = store.highWater(); h < end; h++) {
+            if (!store.isAlive(h)) continue;
+            int l = store.lane[h];
+            double v = store.speed[h];
+            f.id[n] = store.id[h];
+            f.type[n] = store.type[h];
+            f.lane[n] = l;
+            f.x[n] = (float) store.centerX(h);
+            f.y[n] = (float) store.centerY(h);
+            f.heading[n] = (float) store.heading[h];
+            f.speed[n] = (float) v;
+            if (l >= 0 && l < laneCount) {
+                f.laneVehicles[l]++;
+                f.laneMeanSpeed[l] += v;
+                if (v < QUEUE_SPEED) f.laneQueued[l]++;
+            }
+            n++;
+        }
+        f.size = n;
+        for (int l = 0; l < laneCount; l++) {
+            if (f.laneVehicles[l] > 0) f.laneMeanSpeed[l] /= f.laneVehicles[l];
+        }
+    }
+
+    // Lanes run as queues have no vehicles in the store: count what is in
+    // each queue, the ones done with the lane as queued, and the rest as
+    // moving at the lane's speed limit.
+    private void fillQueues(Frame f, Simulation sim) {
+        QueueLanes queues = sim.getQueues();
+        if (!queues.any()) return;
+        RoadNetwork network = sim.getNetwork();
+        for (int l = 0; l < laneCount; l++) {
+            int n = queues.count(l);
+            if (n == 0 || !queues.isQueue(l)) continue;
+            int waiting = queues.waiting(l, f.tick, Double.POSITIVE_INFINITY);
+            f.laneVehicles[l] = n;
+            f.laneQueued[l] = waiting;
+            f.laneMeanSpeed[l] = (float) ((n - waiting) * network.laneSpeedLimit(l) / n);
+        }
+    }
+
+    // ---------------- WRITE (writer thread) ----------------
+    private void drain() {
+        while (true) {
+            Frame f;
+            try {
+                f = full.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (f == closing) return;
+            if (failure == null) {
+                try {
+                    write(f);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            free.add(f);
+        }
+    }
+
+    private void write(Frame f) throws IOException {
+        boolean delta = chunks % KEYFRAME_EVERY != 0;
+        // A keyframe is a delta against nothing: an empty previous frame.
+        int m = delta ? last.size : 0, ml = delta ? last.lanes : 0;
+        out.clear();
+        out.putLong(f.tick).putInt(f.size).putInt(f.lanes).putInt(0).putInt(delta ? DELTA : 0);
+        int n = f.size, lanes = f.lanes;
+        putInts(f.id, n, last.id, m);
+        putBytes(f.type, n, last.type, m);
+        putInts(f.lane, n, last.lane, m);
+        putFloats(f.x, n, last.x, m);
+        putFloats(f.y, n, last.y, m);
+        putFloats(f.heading, n, last.heading, m);
+        putFloats(f.speed, n, last.speed, m);
+        putInts(f.laneVehicles, lanes, last.laneVehicles, ml);
+        putFloats(f.laneMeanSpeed, lanes, last.laneMeanSpeed, ml);
+        putInts(f.laneQueued, lanes, last.laneQueued, ml);
+        last.copyFrom(f);
+        out.putInt(16, out.position() - CHUNK_HEADER_BYTES);
+        out.flip();
+        long at = position;
+        while (out.hasRemaining()) position += channel.write(out, position);
+        if (chunks * 2 == index.length) index = Arrays.copyOf(index, index.length * 2);
+        index[chunks * 2] = f.tick;
+        index[chunks * 2 + 1] = at;
+        chunks++;
+        bytesWritten = position;
+    }
+
+    // Each value's bytes go to byte planes: planes[b * n + i] is byte b of
+    // value i, after XOR with the value at i in 'before' (which has m values).
+    private void putInts(int[] values, int n, int[] before, int m) {
+        byte[] p = planes(n * 4);
+        for (int i = 0; i < n; i++) {
+            int v = i < m ? values[i] ^ before[i] : values[i];
+            p[i] = (byte) v;
+            p[n + i] = (byte) (v >> 8);
+            p[2 * n + i] = (byte) (v >> 16);
+            p[3 * n + i] = (byte) (v >> 24);
+        }
+        deflate(p, n * 4);
+    }
+
+    private void putFloats(float[] values, int n, float[] before, int m) {
+        byte[] p = planes(n * 4);
+        for (int i = 0; i < n; i++) {
+            int v = Float.floatToRawIntBits(values[i]);
+            if (i < m) v ^= Float.floatToRawIntBits(before[i]);
+            p[i] = (byte) v;
+            p[n + i] = (byte) (v >> 8);
+            p[2 * n + i] = (byte) (v >> 16);
+            p[3 * n + i] = (byte) (v >> 24);
+        }
+        deflate(p, n * 4);
+    }
+
+    private void putBytes(byte[] values, int n, byte[] before, int m) {
+        byte[] p = planes(n);
+        for (int i = 0; i < n; i++) p[i] = (byte) (i < m ? values[i] ^ before[i] : values[i]);
+        deflate(p, n);
+    }
+
+    // Appends [compressed length][compressed bytes] to the chunk.
+    private void deflate(byte[] raw, int length) {
+        deflater.reset();
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+        int lengthAt = out.position();
+        out.putInt(0);
+        while (!deflater.finished()) {
+            if (out.remaining() < 1024) grow();
+            int written = deflater.deflate(out.array(), out.position(), out.remaining());
+            out.position(out.position() + written);
+        }
+        out.putInt(lengthAt, out.position() - lengthAt - 4);
+    }
+
+    private byte[] planes(int bytes) {
+        if (planes.length < bytes) planes = new byte[Math.max(bytes, planes.length * 2)];
+        return planes;
+    }
+
+    private void grow() {
+        ByteBuffer bigger = ByteBuffer.allocate(out.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+        out.flip();
+        bigger.put(out);
+        out = bigger;
+    }
+}
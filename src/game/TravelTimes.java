@@ -0,0 +1,92 @@
+package game;
+
+import java.util.Arrays;
+
+/*
+CLASS: TravelTimes
+DESCRIPTION: How long each lane took to drive, per time bin, as observed in
+             a run. Every SAMPLE_TICKS the speeds of the vehicles on each
+             lane are added to that lane's current bin; the mean of those
+             instant speeds is the lane's space-mean speed, and its length
+             over that speed the travel time. A lane nobody drove in a bin
+             keeps its free-flow time. The bins match a Router's time
+             buckets, so costs() can route the next run.
+USAGE: sim.setTravelTimes(new TravelTimes(network, buckets, bucketTicks)),
+       run it, then costs() (one array, bin by bin, as Router takes).
+NOTE: Only lane followers and queued vehicles count; the player steers
+      its own way.
+*/
+class TravelTimes {
+    static final int SAMPLE_TICKS = 10;
+    // Floor on the mean speed, so a lane at a standstill costs a lot but not forever.
+    static final double MIN_SPEED = 1;
+
+    private final RoadNetwork network;
+    private final int laneCount, bins;
+    private final long binTicks;
+    private final double[] speedSum;  // by bin * laneCount + lane
+    private final int[] samples;
+
+    public TravelTimes(RoadNetwork network, int bins, long binTicks) {
+        this.network = network;
+        this.laneCount = network.laneCount();
+        this.bins = Math.max(1, bins);
+        this.binTicks = Math.max(1, binTicks);
+        speedSum = new double[this.bins * laneCount];
+        samples = new int[this.bins * laneCount];
+    }
+
+    public int binCount() { return bins; }
+    public long binTicks() { return binTicks; }
+    public int samples(int bin, int lane) { return samples[bin * laneCount + lane]; }
+
+    // Adds the lane followers' speeds at 'tick' to its bin.
+    public void sample(VehicleStore store, long tick) {
+        int base = (int) Math.min(bins - 1, tick / binTicks) * laneCount;
+        int need = VehicleStore.ALIVE | VehicleStore.AUTONOMOUS | VehicleStore.ON_LANE;
+        int[] flags = store.flags, lanes = store.lane;
+        for (int h = 0, n = store.highWater(); h < n; h++) {
+            if ((flags[h] & need) != need || lanes[h] < 0) continue;
+            speedSum[base + lanes[h]] += store.speed[h];
+            samples[base + lanes[h]]++;
+        }
+    }
+
+    /*
+    METHOD: traversed
+    DESCRIPTION: A vehicle left queue lane 'lane' at 'tick' after 'seconds'
+                 on it (see QueueLanes). It counts as the samples of its
+                 speed over the lane that sample() would have taken along
+                 the way, so driven and queued lanes weigh alike.
+    */
+    public void traversed(int lane, long tick, double seconds) {
+        int i = (int) Math.min(bins - 1, tick / binTicks) * laneCount + lane;
+        int n = Math.max(1, (int) Math.round(seconds / (SAMPLE_TICKS * Simulation.TICK_SECONDS)));
+        speedSum[i] += n * network.laneLength(lane) / Math.max(seconds, Simulation.TICK_SECONDS);
+        samples[i] += n;
+    }
+
+    /*
+    METHOD: costs
+    DESCRIPTION: Seconds to drive each lane in each bin: observed where
+                 anyone drove it, else the lane's time from 'freeFlow' (the
+                 same layout, or one bin's worth used for every bin).
+    */
+    public double[] costs(double[] freeFlow) {
+        double[] out = new double[bins * laneCount];
+        for (int b = 0; b < bins; b++) {
+            for (int l = 0; l < laneCount; l++) {
+                int i = b * laneCount + l;
+                double free = freeFlow[freeFlow.length == out.length ? i : l];
+                out[i] = samples[i] == 0 ? free
+                        : Math.max(free, network.laneLength(l) / Math.max(MIN_SPEED, speedSum[i] / samples[i]));
+            }
+        }
+        return out;
+    }
+
+    public void clear() {
+        Arrays.fill(speedSum, 0);
+        Arrays.fill(samples, 0);
+    }
+}
@@ -9,6 +9,7 @@ CLASS: Truck
 DESCRIPTION: A large, slow traffic element (simulating congestion).
 */
 class Truck extends TrafficElement {
+    private static final Color BROWN = new Color(139, 69, 19);
     
     public Truck(Point[] inShape, Point inPosition, double inRotation) {
         super(inShape, inPosition, inRotation);
@@ -16,23 +17,17 @@ class Truck extends TrafficElement {
         this.rotationRate = 2.0; // Slow rotation
     }
 
+    @Override
+    public VehicleType getType() { return VehicleType.TRUCK; }
+
     @Override
     public void paint(Graphics brush) {
-        brush.setColor(new Color(139, 69, 19)); // Brown
-        // Convert Point[] (double coords) to int[] for drawing methods
-        Point[] points = getPoints();
-        int[] xCoords = new int[points.length];
-        int[] yCoords = new int[points.length];
-        
-        for (int i = 0; i < points.length; i++) {
-            xCoords[i] = (int) points[i].x;
-            yCoords[i] = (int) points[i].y;
-        }
-        
-        brush.fillPolygon(xCoords, yCoords, points.length);
+        brush.setColor(BROWN);
+        fill(brush); // reuses the polygon's screen vertices
     }
     
     // Automatic Movement: Simple continuous movement
+    // Only used when unbound; a bound truck is moved by the VehicleStore.
     @Override
     public void move() {
         double radians = Math.toRadians(rotation);
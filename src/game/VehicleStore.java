@@ -0,0 +1,332 @@
+package game;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+CLASS: VehicleStore
+DESCRIPTION: Every vehicle's state, kept as parallel primitive arrays (one
+             slot per vehicle) instead of one object per vehicle. The update
+             loops walk plain double[] arrays front to back, which keeps them
+             cache friendly, lets the JIT vectorise them, and produces no
+             garbage however many vehicles there are.
+USAGE: add() returns a handle that stays valid until remove(); handles are
+       slot indices and are recycled after removal. TrafficElement objects
+       can be bound to a handle and are then just views used for drawing and
+       keyboard control.
+NOTE: The arrays are package-visible for the engine's tight loops. Heading
+      and speed must go through setHeading/setSpeed/setFlags so the cached
+      velocity stays right (lane followers have no velocity, so LaneDynamics
+      writes their speed directly). Positions are double-buffered: moveRange()
+      reads x/y and writes nextX/nextY, so a parallel move never sees a
+      neighbour half-updated; swapBuffers() publishes the new positions.
+*/
+class VehicleStore {
+
+    // ---------------- FLAGS ----------------
+    static final int ALIVE = 1;      // slot holds a vehicle
+    static final int AUTONOMOUS = 2; // driven by the store's move loop
+    static final int HELD = 4;       // stopped this tick (e.g. red light)
+    static final int PLAYER = 8;     // pose comes from the keyboard-driven view
+    static final int ON_LANE = 16;   // follows its lane's driving line (see LaneDynamics)
+    static final int EMERGENCY = 32; // signals and traffic give way to it (see Preemption)
+    static final int GHOST = 64;     // another domain's vehicle, shown here to follow (see DomainWorker)
+
+    // ---------------- COLUMNS ----------------
+    double[] x, y;         // Polygon-style position (offset of the outline)
+    double[] nextX, nextY; // back buffer the move phase writes into
+    double[] heading;      // degrees, zero is due east
+    double[] speed;        // world units per second
+    double[] vx, vy;       // velocity actually applied by moveRange(), 0 unless moving
+    private double[] dirX, dirY; // unit heading vector, refreshed with heading
+    byte[] type;           // VehicleType ordinal
+    int[] lane;            // lane id, -1 when not on a known lane
+    int[] flags;
+    // Lane following: distance of the centre down the lane, the speed the
+    // driver wants, the acceleration chosen this tick, the lane it has
+    // decided to move into (== lane when staying), and its DriverModel.
+    double[] along, desiredSpeed, accel;
+    int[] targetLane;
+    byte[] driver;         // index into the driver table below
+    int[] destination;     // node the vehicle leaves the map at, -1 if it stays
+    long[] born;           // tick the vehicle entered the map
+    int[] id;              // number the vehicle keeps for life (handles are recycled)
+
+    private DriverModel[] drivers = new DriverModel[0];
+    private int driverCount = 0;
+
+    private int highWater = 0; // one past the highest slot ever used
+    private int count = 0;
+    private int nextId = 0;
+    private int idStride = 1;
+    private int[] freeSlots = new int[16];
+    private int freeCount = 0;
+
+    public VehicleStore() { this(64); }
+
+    public VehicleStore(int initialCapacity) {
+        allocate(Math.max(1, initialCapacity));
+        for (VehicleType t : VehicleType.values()) registerDriver(IntelligentDriverModel.forType(t));
+    }
+
+    // ---------------- LIFECYCLE ----------------
+    public int add(VehicleType kind, double px, double py, double headingDegrees,
+                   double unitsPerSecond, int initialFlags) {
+        int h;
+        if (freeCount > 0) {
+            h = freeSlots[--freeCount];
+        } else {
+            if (highWater == x.length) allocate(x.length * 2);
+            h = highWater++;
+        }
+        x[h] = px;
+        y[h] = py;
+        type[h] = (byte) kind.ordinal();
+        lane[h] = targetLane[h] = destination[h] = -1;
+        along[h] = accel[h] = 0;
+        born[h] = 0;
+        id[h] = nextId;
+        nextId += idStride;
+        speed[h] = desiredSpeed[h] = unitsPerSecond;
+        driver[h] = (byte) kind.ordinal(); // the type's default, registered first
+        flags[h] = initialFlags | ALIVE | (kind == VehicleType.AMBULANCE ? EMERGENCY : 0);
+        setHeading(h, headingDegrees);
+        count++;
+        return h;
+    }
+
+    public void remove(int h) {
+        if (!isAlive(h)) return;
+        flags[h] = 0;
+        vx[h] = vy[h] = 0;
+        if (freeCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        freeSlots[freeCount++] = h;
+        count--;
+    }
+
+    public void clear() {
+        Arrays.fill(flags, 0, highWater, 0);
+        Arrays.fill(vx, 0, highWater, 0);
+        Arrays.fill(vy, 0, highWater, 0);
+        highWater = count = freeCount = nextId = 0;
+    }
+
+    // Grows the columns up front so a bulk load doesn't copy them repeatedly.
+    public void ensureCapacity(int capacity) {
+        if (capacity > x.length) allocate(capacity);
+    }
+
+    /*
+    METHOD: setIdStride
+    DESCRIPTION: From now on ids go up by 'stride', starting 'offset' past
+                 the next one. Stores that begin alike and take different
+                 offsets below the stride never hand out the same id, so
+                 vehicles can move between them keeping theirs.
+    */
+    public void setIdStride(int offset, int stride) {
+        nextId += offset;
+        idStride = stride;
+    }
+
+    public int size() { return count; }
+    // Slots [0, highWater()) cover every live vehicle; dead ones have no ALIVE flag.
+    public int highWater() { return highWater; }
+    public boolean isAlive(int h) { return h >= 0 && h < highWater && (flags[h] & ALIVE) != 0; }
+    public VehicleType typeOf(int h) { return VehicleType.byId(type[h]); }
+
+    // ---------------- DRIVERS ----------------
+    // Vehicles share DriverModel instances through a small table, so a
+    // vehicle's model costs one byte and the same model is only listed once.
+    public void setDriver(int h, DriverModel model) {
+        driver[h] = (byte) registerDriver(model);
+    }
+
+    public DriverModel driverOf(int h) { return drivers[driver[h] & 0xFF]; }
+
+    private int registerDriver(DriverModel model) {
+        for (int i = 0; i < driverCount; i++) {
+            if (drivers[i] == model) return i;
+        }
+        if (driverCount == 256) throw new IllegalStateException("Too many distinct driver models");
+        if (driverCount == drivers.length) drivers = Arrays.copyOf(drivers, Math.max(8, driverCount * 2));
+        drivers[driverCount] = model;
+        return driverCount++;
+    }
+
+    // ---------------- SETTERS (keep velocity in step) ----------------
+    public void setHeading(int h, double degrees) {
+        heading[h] = degrees;
+        double radians = Math.toRadians(degrees);
+        dirX[h] = Math.cos(radians);
+        dirY[h] = Math.sin(radians);
+        refreshVelocity(h);
+    }
+
+    public void setSpeed(int h, double unitsPerSecond) {
+        speed[h] = unitsPerSecond;
+        refreshVelocity(h);
+    }
+
+    public void setFlags(int h, int newFlags) {
+        flags[h] = newFlags;
+        refreshVelocity(h);
+    }
+
+    public void setHeld(int h, boolean held) {
+        int f = flags[h];
+        int updated = held ? (f | HELD) : (f & ~HELD);
+        if (updated != f) setFlags(h, updated);
+    }
+
+    private void refreshVelocity(int h) {
+        // Lane followers are placed by LaneDynamics, not by velocity.
+        boolean moving = (flags[h] & (ALIVE | AUTONOMOUS | HELD | ON_LANE)) == (ALIVE | AUTONOMOUS);
+        vx[h] = moving ? speed[h] * dirX[h] : 0;
+        vy[h] = moving ? speed[h] * dirY[h] : 0;
+    }
+
+    // ---------------- HOT LOOPS ----------------
+    /*
+    METHOD: moveRange
+    DESCRIPTION: Writes the position of slots [from, to) after dt seconds into
+                 the back buffer. Everything not driving has zero velocity,
+                 so the loop needs no branches and compiles to straight
+                 vector arithmetic.
+    */
+    public void moveRange(int from, int to, double dt) {
+        double[] px = x, py = y, qx = nextX, qy = nextY, ux = vx, uy = vy;
+        for (int i = from; i < to; i++) {
+            qx[i] = px[i] + ux[i] * dt;
+            qy[i] = py[i] + uy[i] * dt;
+        }
+    }
+
+    // Teleports autonomous vehicles in the back buffer that left the box to
+    // the opposite edge (lane followers wrap through their lanes instead).
+    public void wrapRange(int from, int to, double minX, double minY, double maxX, double maxY) {
+        double[] qx = nextX, qy = nextY;
+        for (int i = from; i < to; i++) {
+            if ((flags[i] & (AUTONOMOUS | ON_LANE)) != AUTONOMOUS) continue;
+            if (qx[i] > maxX) qx[i] = minX;
+            if (qx[i] < minX) qx[i] = maxX;
+            if (qy[i] > maxY) qy[i] = minY;
+            if (qy[i] < minY) qy[i] = maxY;
+        }
+    }
+
+    // Makes the back buffer current once every range has been moved.
+    public void swapBuffers() {
+        double[] t = x; x = nextX; nextX = t;
+        t = y; y = nextY; nextY = t;
+    }
+
+    // Single-threaded convenience: move and wrap everyone, then swap.
+    public void moveAll(double dt, double minX, double minY, double maxX, double maxY) {
+        moveRange(0, highWater, dt);
+        wrapRange(0, highWater, minX, minY, maxX, maxY);
+        swapBuffers();
+    }
+
+    // ---------------- GEOMETRY ----------------
+    // A vehicle's outline is its type's rectangle turned about its centre;
+    // these match what Polygon computes for a view of the same pose.
+    public double centerX(int h) { return x[h] + VehicleType.byId(type[h]).length / 2; }
+    public double centerY(int h) { return y[h] + VehicleType.byId(type[h]).width / 2; }
+
+    // Half the width/height of the axis-aligned box around the outline.
+    public double extentX(int h) {
+        VehicleType t = VehicleType.byId(type[h]);
+        return (Math.abs(dirX[h]) * t.length + Math.abs(dirY[h]) * t.width) / 2;
+    }
+
+    public double extentY(int h) {
+        VehicleType t = VehicleType.byId(type[h]);
+        return (Math.abs(dirY[h]) * t.length + Math.abs(dirX[h]) * t.width) / 2;
+    }
+
+    // Writes the four corners of the outline into xs/ys (length >= 4).
+    public void corners(int h, double[] xs, double[] ys) {
+        VehicleType t = VehicleType.byId(type[h]);
+        double cx = centerX(h), cy = centerY(h);
+        double lx = dirX[h] * t.length / 2, ly = dirY[h] * t.length / 2;  // half length along heading
+        double wx = -dirY[h] * t.width / 2, wy = dirX[h] * t.width / 2;   // half width across it
+        xs[0] = cx - lx + wx; ys[0] = cy - ly + wy;
+        xs[1] = cx + lx + wx; ys[1] = cy + ly + wy;
+        xs[2] = cx + lx - wx; ys[2] = cy + ly - wy;
+        xs[3] = cx - lx - wx; ys[3] = cy - ly - wy;
+    }
+
+    // ---------------- CHECKPOINTS ----------------
+    // Every column up to the high-water mark, and the free list in order, so
+    // handles and ids come out the same after a restore.
+    void save(Checkpoint.Out out) {
+        int n = highWater;
+        out.putInt(n);
+        out.putInt(count);
+        out.putInt(nextId);
+        out.putInt(driverCount);
+        out.putInts(freeSlots, freeCount);
+        out.putDoubles(x, n); out.putDoubles(y, n);
+        out.putDoubles(heading, n); out.putDoubles(speed, n);
+        out.putDoubles(vx, n); out.putDoubles(vy, n);
+        out.putDoubles(dirX, n); out.putDoubles(dirY, n);
+        out.putBytes(type, n); out.putInts(lane, n); out.putInts(flags, n);
+        out.putDoubles(along, n); out.putDoubles(desiredSpeed, n); out.putDoubles(accel, n);
+        out.putInts(targetLane, n); out.putBytes(driver, n);
+        out.putInts(destination, n); out.putLongs(born, n); out.putInts(id, n);
+    }
+
+    // Driver models aren't saved, only each vehicle's index into the table,
+    // so the table must hold the same models (the defaults unless setDriver()
+    // added others in the same order).
+    void load(Checkpoint.In in) throws IOException {
+        int n = in.getInt();
+        int loadedCount = in.getInt(), loadedNextId = in.getInt();
+        if (in.getInt() != driverCount) throw new IOException("Checkpoint uses other driver models");
+        int free = in.peekLength();
+        clear();
+        ensureCapacity(n);
+        if (freeSlots.length < free) freeSlots = new int[free];
+        in.getInts(freeSlots, free);
+        in.getDoubles(x, n); in.getDoubles(y, n);
+        in.getDoubles(heading, n); in.getDoubles(speed, n);
+        in.getDoubles(vx, n); in.getDoubles(vy, n);
+        in.getDoubles(dirX, n); in.getDoubles(dirY, n);
+        in.getBytes(type, n); in.getInts(lane, n); in.getInts(flags, n);
+        in.getDoubles(along, n); in.getDoubles(desiredSpeed, n); in.getDoubles(accel, n);
+        in.getInts(targetLane, n); in.getBytes(driver, n);
+        in.getInts(destination, n); in.getLongs(born, n); in.getInts(id, n);
+        highWater = n;
+        count = loadedCount;
+        nextId = loadedNextId;
+        freeCount = free;
+    }
+
+    // ---------------- STORAGE ----------------
+    private void allocate(int capacity) {
+        if (x == null) {
+            x = new double[capacity]; y = new double[capacity];
+            nextX = new double[capacity]; nextY = new double[capacity];
+            heading = new double[capacity]; speed = new double[capacity];
+            vx = new double[capacity]; vy = new double[capacity];
+            dirX = new double[capacity]; dirY = new double[capacity];
+            type = new byte[capacity]; lane = new int[capacity]; flags = new int[capacity];
+            along = new double[capacity]; desiredSpeed = new double[capacity]; accel = new double[capacity];
+            targetLane = new int[capacity]; driver = new byte[capacity];
+            destination = new int[capacity]; born = new long[capacity]; id = new int[capacity];
+            return;
+        }
+        x = Arrays.copyOf(x, capacity); y = Arrays.copyOf(y, capacity);
+        nextX = Arrays.copyOf(nextX, capacity); nextY = Arrays.copyOf(nextY, capacity);
+        heading = Arrays.copyOf(heading, capacity); speed = Arrays.copyOf(speed, capacity);
+        vx = Arrays.copyOf(vx, capacity); vy = Arrays.copyOf(vy, capacity);
+        dirX = Arrays.copyOf(dirX, capacity); dirY = Arrays.copyOf(dirY, capacity);
+        type = Arrays.copyOf(type, capacity); lane = Arrays.copyOf(lane, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        along = Arrays.copyOf(along, capacity); desiredSpeed = Arrays.copyOf(desiredSpeed, capacity);
+        accel = Arrays.copyOf(accel, capacity);
+        targetLane = Arrays.copyOf(targetLane, capacity); driver = Arrays.copyOf(driver, capacity);
+        destination = Arrays.copyOf(destination, capacity); born = Arrays.copyOf(born, capacity);
+        id = Arrays.copyOf(id, capacity);
+    }
+}
@@ -0,0 +1,31 @@
+package game;
+
+/*
+ENUM: VehicleType
+DESCRIPTION: The kinds of vehicle on the road and the size of their
+             rectangular body (length along the heading, width across it).
+USAGE: Stored by ordinal in VehicleStore; shape() builds the outline that a
+       TrafficElement of this type is drawn and collided with.
+*/
+enum VehicleType {
+    CAR(20, 10),
+    TRUCK(30, 16),
+    AMBULANCE(26, 10);
+
+    public final double length, width;
+
+    VehicleType(double length, double width) {
+        this.length = length;
+        this.width = width;
+    }
+
+    // A fresh outline for this type, heading due east.
+    public Point[] shape() {
+        return new Point[] {new Point(0, width), new Point(length, width),
+                            new Point(length, 0), new Point(0, 0)};
+    }
+
+    private static final VehicleType[] BY_ID = values();
+
+    public static VehicleType byId(int id) { return BY_ID[id]; }
+}
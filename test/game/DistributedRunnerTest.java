@@ -0,0 +1,132 @@
+package game;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Random;
+
+/*
+CLASS: DistributedRunnerTest
+DESCRIPTION: Checks that splitting a run over domains keeps the results of
+             one process: a 5x5 grid of signalised junctions with traffic
+             between its edges is run for a simulated hour in 1 domain and
+             again in 2 and 3, and the totals are compared. Vehicles
+             spawned and trips must agree within TRIP_TOLERANCE, and
+             collisions within COLLISION_TOLERANCE per boundary (a split
+             run judges pairs at a boundary against a ghost a tick old,
+             which adds a few; see DomainWorker). Every run must also stand
+             on its own: at least TRIP_SHARE of the vehicles spawned finish
+             their trips (a run that locks up falls well short), and there
+             are no more than MAX_COLLISIONS.
+USAGE: Compile together with the game sources and run:
+         javac -encoding UTF-8 -d out src/game/*.java test/game/*.java
+         java -cp out game.DistributedRunnerTest
+       It prints every run's table and exits with status 1 if a check failed.
+NOTE: The workers are started as child JVMs on the same class path, and
+      rebalancing is off so every run is repeatable.
+*/
+class DistributedRunnerTest {
+    private static final int SIZE = 5;
+    private static final double SPACING = 400, MARGIN = 50;
+    private static final double VEHICLES_PER_HOUR = 60;
+    private static final long SEED = 7;
+    private static final long TICKS = Math.round(3600 / Simulation.TICK_SECONDS);
+    private static final int[] SPLITS = {2, 3};
+    private static final double TRIP_TOLERANCE = 0.01;
+    // Measured: +2% with one boundary, +6% with two.
+    private static final double COLLISION_TOLERANCE = 0.05;
+    // A healthy hour ends with about 4% of its vehicles still on the way;
+    // one that locks up within it finishes under 80%.
+    private static final double TRIP_SHARE = 0.9;
+    // The grid's count before vehicles were routed (179): with turning
+    // traffic giving way, it should do no worse.
+    private static final long MAX_COLLISIONS = 180;
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path file = Files.createTempFile("grid", ".bin");
+        try {
+            grid().write(file);
+            long[] one = DistributedRunner.simulate(file, 1, SEED, TICKS, 0, 1.25);
+            checkRun(1, one);
+            for (int domains : SPLITS) {
+                long[] split = DistributedRunner.simulate(file, domains, SEED, TICKS, 0, 1.25);
+                checkRun(domains, split);
+                check(domains, "spawned", one[DistributedRunner.SPAWNED], split[DistributedRunner.SPAWNED], TRIP_TOLERANCE);
+                check(domains, "trips", one[DistributedRunner.TRIPS], split[DistributedRunner.TRIPS], TRIP_TOLERANCE);
+                check(domains, "collisions", one[DistributedRunner.COLLISIONS], split[DistributedRunner.COLLISIONS],
+                        COLLISION_TOLERANCE * (domains - 1));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        System.out.println(failures == 0 ? "all checks passed" : failures + " check(s) failed");
+        if (failures > 0) System.exit(1);
+    }
+
+    // The grid: two-way lanes between neighbours, a signal at every
+    // junction, and demand from every edge junction to four others.
+    static Scenario grid() {
+        RoadNetwork net = new RoadNetwork();
+        for (int j = 0; j < SIZE; j++) {
+            for (int i = 0; i < SIZE; i++) net.addNode(MARGIN + i * SPACING, MARGIN + j * SPACING, 20);
+        }
+        for (int j = 0; j < SIZE; j++) {
+            for (int i = 0; i < SIZE; i++) {
+                int n = j * SIZE + i;
+                if (i + 1 < SIZE) twoWay(net, n, n + 1);
+                if (j + 1 < SIZE) twoWay(net, n, n + SIZE);
+            }
+        }
+        Scenario.Builder b = new Scenario.Builder(net);
+        double side = 2 * MARGIN + (SIZE - 1) * SPACING;
+        b.setWorld(side, side);
+        for (int j = 0; j < SIZE; j++) {
+            for (int i = 0; i < SIZE; i++) b.addSignal(j * SIZE + i, 150, 30, 20, (i * 40 + j * 15) % 200);
+        }
+        int[] edge = new int[4 * (SIZE - 1)];
+        int count = 0;
+        for (int n = 0; n < SIZE * SIZE; n++) {
+            int i = n % SIZE, j = n / SIZE;
+            if (i == 0 || j == 0 || i == SIZE - 1 || j == SIZE - 1) edge[count++] = n;
+        }
+        Random random = new Random(2);
+        for (int origin : edge) {
+            for (int k = 0; k < 4; k++) {
+                int destination = edge[random.nextInt(edge.length)];
+                if (destination != origin) b.addDemand(origin, destination, VehicleType.CAR, VEHICLES_PER_HOUR, 40);
+            }
+        }
+        b.setSeed(SEED);
+        return b.build();
+    }
+
+    private static void twoWay(RoadNetwork net, int a, int b) {
+        net.addLane(a, b, 6, 0, 12, 45, 1800);
+        net.addLane(b, a, 6, 0, 12, 45, 1800);
+    }
+
+    // Fails when a run finished too few of its trips or collided too often.
+    private static void checkRun(int domains, long[] totals) {
+        long spawned = totals[DistributedRunner.SPAWNED], trips = totals[DistributedRunner.TRIPS];
+        long collisions = totals[DistributedRunner.COLLISIONS];
+        boolean ok = trips >= TRIP_SHARE * spawned;
+        System.out.printf(Locale.ROOT, "%s %d domains: %d trips of %d spawned (%.1f%%)%n", ok ? "ok  " : "FAIL",
+                domains, trips, spawned, spawned == 0 ? 0.0 : 100.0 * trips / spawned);
+        if (!ok) failures++;
+        ok = collisions <= MAX_COLLISIONS;
+        System.out.printf(Locale.ROOT, "%s %d domains: %d collisions, at most %d%n", ok ? "ok  " : "FAIL",
+                domains, collisions, MAX_COLLISIONS);
+        if (!ok) failures++;
+    }
+
+    // Fails when 'split' is further than 'tolerance' (a fraction) from 'one'.
+    private static void check(int domains, String what, long one, long split, double tolerance) {
+        boolean ok = Math.abs(split - one) <= tolerance * Math.max(one, 1);
+        System.out.printf(Locale.ROOT, "%s %d domains: %s %d against %d in one (%+.2f%%)%n", ok ? "ok  " : "FAIL",
+                domains, what, split, one, one == 0 ? 0.0 : 100.0 * (split - one) / one);
+        if (!ok) failures++;
+    }
+}
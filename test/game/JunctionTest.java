@@ -0,0 +1,48 @@
+package game;
+
+import java.util.Locale;
+
+/*
+CLASS: JunctionTest
+DESCRIPTION: Checks that traffic keeps flowing through the junctions of the
+             grid DistributedRunnerTest runs: vehicles give way to each
+             other in the boxes, and that must not lock the grid up. The
+             grid is run in one process for a simulated hour, and after the
+             first WINDOW (while the first trips are still under way) the
+             trips completed in each WINDOW must come to at least KEEP_UP of
+             the vehicles spawned in it, and can't be none (once the grid
+             is full nothing spawns either). A locked grid stops completing
+             trips within a window or two.
+USAGE: Compile together with the game sources and run:
+         javac -encoding UTF-8 -d out src/game/*.java test/game/*.java
+         java -cp out game.JunctionTest
+       It prints a line per window and exits with status 1 if a check failed.
+NOTE: At its 60 vehicles an hour per route the grid runs below what its
+      signal timings can carry (it saturates somewhere past 60), so a
+      healthy run finishes nearly every trip it starts.
+*/
+class JunctionTest {
+    private static final double WINDOW_SECONDS = 600;
+    private static final double KEEP_UP = 0.8;
+    private static final long TICKS = Math.round(3600 / Simulation.TICK_SECONDS);
+
+    public static void main(String[] args) {
+        Simulation sim = new Simulation(DistributedRunnerTest.grid(), false);
+        long window = Math.round(WINDOW_SECONDS / Simulation.TICK_SECONDS);
+        long trips = 0, spawned = 0;
+        int failures = 0;
+        for (long tick = 1; tick <= TICKS; tick++) {
+            sim.tick();
+            if (tick % window != 0) continue;
+            long newTrips = sim.getTripsCompleted() - trips, newSpawned = sim.getDemand().spawnedCount() - spawned;
+            trips += newTrips;
+            spawned += newSpawned;
+            boolean ok = tick == window || newTrips > 0 && newTrips >= KEEP_UP * newSpawned;
+            System.out.printf(Locale.ROOT, "%s t=%5.0fs: %d trips against %d spawned, %d on the map%n", ok ? "ok  " : "FAIL",
+                    tick * Simulation.TICK_SECONDS, newTrips, newSpawned, sim.getStore().size());
+            if (!ok) failures++;
+        }
+        System.out.println(failures == 0 ? "all checks passed" : failures + " check(s) failed");
+        if (failures > 0) System.exit(1);
+    }
+}